@@ -0,0 +1,77 @@
+package com.cyanoth.secretwarden;
+
+import org.springframework.stereotype.Component;
+
+import javax.validation.constraints.NotNull;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of how scans are performed on this node (e.g. cache hits & misses), so administrators can see how much work
+ * the caches and limits save. Counters are per node (not replicated) & reset when the plugin is restarted.
+ */
+@Component
+public class ScanMetrics {
+    public static final String BLOB_CACHE_HITS = "blob_cache_hits";
+    public static final String BLOB_CACHE_MISSES = "blob_cache_misses";
+    public static final String BLOB_CACHE_PUTS = "blob_cache_puts";
+    public static final String MERGE_CHECK_SCANS = "merge_check_scans";
+    public static final String MERGE_CHECK_BUDGET_EXHAUSTED = "merge_check_budget_exhausted";
+    public static final String SINGLE_FLIGHT_MERGED = "single_flight_merged_scans";
+    public static final String PRESCANS = "prescans";
+    public static final String PRESCANS_COALESCED = "prescans_coalesced";
+    public static final String RESULT_CACHE_EVICTIONS = "result_cache_evictions";
+    public static final String RESULT_CACHE_EVICTED_BYTES = "result_cache_evicted_bytes";
+    public static final String RESULT_STORE_LOADS = "result_store_loads";
+
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+    /**
+     * @param counter Name of the counter to add one to
+     */
+    public void increment(@NotNull String counter) {
+        add(counter, 1);
+    }
+
+    /**
+     * @param counter Name of the counter to add to
+     * @param value Value to add
+     */
+    public void add(@NotNull String counter, long value) {
+        counters.computeIfAbsent(counter, k -> new AtomicLong()).addAndGet(value);
+    }
+
+    /**
+     * @param counter Name of the counter to raise to the value, if the value is higher (a high-water mark)
+     * @param value Value to compare
+     */
+    public void max(@NotNull String counter, long value) {
+        counters.computeIfAbsent(counter, k -> new AtomicLong()).accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * @param counter Name of the counter
+     * @return Current value of the counter, 0 if it has never been incremented
+     */
+    public long get(@NotNull String counter) {
+        AtomicLong value = counters.get(counter);
+        return value == null ? 0 : value.get();
+    }
+
+    /**
+     * @return Every counter & its current value, ordered by name
+     */
+    @NotNull
+    public Map<String, Long> getAll() {
+        final Map<String, Long> all = new TreeMap<>();
+        counters.forEach((name, value) -> all.put(name, value.get()));
+        return all;
+    }
+
+    public void reset() {
+        counters.clear();
+    }
+}
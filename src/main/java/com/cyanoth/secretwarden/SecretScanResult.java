@@ -1,17 +1,27 @@
 package com.cyanoth.secretwarden;
 
 import com.cyanoth.secretwarden.collections.FoundSecretCollection;
+import com.cyanoth.secretwarden.structures.MatchTimeout;
+import com.cyanoth.secretwarden.structures.SkippedFile;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Output from a secret scan, containing the found secrets & scan status.
  * Children of this class may add further metadata - such as where the scan took place.
  */
 public class SecretScanResult implements Serializable {
+    private static final long serialVersionUID = 1L;
 
     private FoundSecretCollection foundSecrets;
     private SecretScanStatus secretScanStatus;
+    private List<MatchTimeout> matchTimeouts = new ArrayList<>();
+    private List<SkippedFile> skippedFiles = new ArrayList<>();
+    // Totals of skippedFiles, kept alongside it so they are included wherever the result is shown (e.g. as JSON)
+    private int skippedFileCount = 0;
+    private long skippedBytes = 0;
 
     protected SecretScanResult() {
         secretScanStatus = SecretScanStatus.UNKNOWN;
@@ -37,4 +47,45 @@ public class SecretScanResult implements Serializable {
         this.secretScanStatus = secretScanStatus;
     }
 
+    /**
+     * @return Rules which timed out on a line during the scan, so that line was not fully checked by that rule.
+     */
+    public List<MatchTimeout> getMatchTimeouts() {
+        return matchTimeouts;
+    }
+
+    public void setMatchTimeouts(List<MatchTimeout> matchTimeouts) {
+        this.matchTimeouts = matchTimeouts;
+    }
+
+    /**
+     * @return Changed files which were not scanned, because the file filter excludes them.
+     */
+    public List<SkippedFile> getSkippedFiles() {
+        return skippedFiles;
+    }
+
+    public void setSkippedFiles(List<SkippedFile> skippedFiles) {
+        this.skippedFiles = skippedFiles;
+        skippedFileCount = 0;
+        skippedBytes = 0;
+        if (skippedFiles != null) {
+            for (SkippedFile file : skippedFiles) {
+                skippedFileCount++;
+                skippedBytes += Math.max(0, file.getBytes());
+            }
+        }
+    }
+
+    public int getSkippedFileCount() {
+        return skippedFileCount;
+    }
+
+    /**
+     * @return Total size of the skipped files (whose size is known)
+     */
+    public long getSkippedBytes() {
+        return skippedBytes;
+    }
+
 }
@@ -9,7 +9,7 @@ import java.util.HashMap;
 
 /**
  * A collection of MatchRule objects, that is, the name of a secret rule matching pattern & regular expression.
- * Must implement Serializable to be cluster-safe & ensuring that upon reload (config change) - every node will have the same ruleset.
+ * Each node loads its own ruleset from settings (see MatchRuleSetCache), but this remains Serializable so it can be returned/copied safely.
  */
 public class MatchRuleSet implements Serializable {
 
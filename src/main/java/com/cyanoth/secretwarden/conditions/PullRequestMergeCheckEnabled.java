@@ -24,7 +24,7 @@ import java.util.Map;
 @Scanned
 public class PullRequestMergeCheckEnabled implements Condition {
     private static final Logger log = LoggerFactory.getLogger(PullRequestMergeCheckEnabled.class);
-    private static final String HOOK_KEY = "com.cyanoth.secretwarden:has-secret-pr-merge-check";
+    public static final String HOOK_KEY = "com.cyanoth.secretwarden:has-secret-pr-merge-check";
     private final RepositoryHookService repositoryHookService;
     private final SecurityService securityService;
 
@@ -0,0 +1,251 @@
+package com.cyanoth.secretwarden.config;
+
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.atlassian.sal.api.pluginsettings.PluginSettings;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nullable;
+import javax.validation.constraints.NotNull;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Methods to get, set and validate the file filter, which decides which changed files of a pull request are not scanned
+ * at all (e.g. lockfiles, minified bundles, vendored code or binaries). See ChangeFilter.
+ *
+ * The file filter is opt-in: by default nothing is excluded, there are no limits & binary files are scanned, so every
+ * changed file is scanned until an administrator chooses what to exclude. Files which are excluded are listed as skipped
+ * on the scan result (and the pull request overview), as a secret in them would not be found.
+ *
+ * Every setting has a global value (or its default) & may be overridden for a single repository. Removing the override of
+ * a repository setting reverts it to the global value. Changes apply from the next scan of a pull request, results which
+ * are already cached are kept until the pull request changes (or the result cache is cleared).
+ */
+@Component
+public class FileFilterSettings {
+    private static final Logger log = LoggerFactory.getLogger(FileFilterSettings.class);
+    private final PluginSettings pluginSettings;
+    private final String SETTINGS_NAMESPACE = "com.cyanoth.secretwarden.settings"; // !! DO NOT CHANGE ME EVER (EVER) !!
+    private final String KEY_FILTER_PREFIX = ".filter.";
+    private final String KEY_REPOSITORY_PREFIX = "repo.";
+
+    public static final String EXCLUDE_PATHS = "exclude_paths";
+    public static final String INCLUDE_PATHS = "include_paths";
+    public static final String MAX_FILE_KILOBYTES = "max_file_kilobytes";
+    public static final String MAX_CHANGED_LINES = "max_changed_lines";
+    public static final String SKIP_BINARY = "skip_binary";
+    private static final List<String> ALL_SETTINGS = Arrays.asList(EXCLUDE_PATHS, INCLUDE_PATHS, MAX_FILE_KILOBYTES,
+            MAX_CHANGED_LINES, SKIP_BINARY);
+
+    private static final String DEFAULT_EXCLUDE_PATHS = "";
+    private static final String DEFAULT_INCLUDE_PATHS = "";
+    private static final long DEFAULT_MAX_FILE_KILOBYTES = 0;
+    private static final long MAX_MAX_FILE_KILOBYTES = 1_048_576;
+    private static final long DEFAULT_MAX_CHANGED_LINES = 0;
+    private static final long MAX_MAX_CHANGED_LINES = 100_000_000;
+    private static final boolean DEFAULT_SKIP_BINARY = false;
+    private static final int MAX_PATH_PATTERNS_LENGTH = 16_384;
+
+    @Autowired
+    public FileFilterSettings(@ComponentImport final PluginSettingsFactory pluginSettingsFactory) {
+        this.pluginSettings = pluginSettingsFactory.createSettingsForKey(SETTINGS_NAMESPACE);
+    }
+
+    /**
+     * @param repositoryId The repository, null for the global value
+     * @return Glob patterns (see ChangeFilter) of paths which are not scanned
+     */
+    @NotNull
+    public List<String> getExcludePaths(@Nullable Integer repositoryId) {
+        return splitPatterns(getString(repositoryId, EXCLUDE_PATHS, DEFAULT_EXCLUDE_PATHS));
+    }
+
+    /**
+     * @param repositoryId The repository, null for the global value
+     * @return Glob patterns of paths which are scanned even though they match an excluded path pattern
+     */
+    @NotNull
+    public List<String> getIncludePaths(@Nullable Integer repositoryId) {
+        return splitPatterns(getString(repositoryId, INCLUDE_PATHS, DEFAULT_INCLUDE_PATHS));
+    }
+
+    /**
+     * @param repositoryId The repository, null for the global value
+     * @return Size (kilobytes) over which a changed file is not scanned. 0 disables the limit.
+     */
+    public long getMaxFileKilobytes(@Nullable Integer repositoryId) {
+        return getLong(repositoryId, MAX_FILE_KILOBYTES, DEFAULT_MAX_FILE_KILOBYTES);
+    }
+
+    /**
+     * @param repositoryId The repository, null for the global value
+     * @return Added lines over which a changed file is not scanned. 0 disables the limit.
+     */
+    public long getMaxChangedLines(@Nullable Integer repositoryId) {
+        return getLong(repositoryId, MAX_CHANGED_LINES, DEFAULT_MAX_CHANGED_LINES);
+    }
+
+    /**
+     * @param repositoryId The repository, null for the global value
+     * @return True, if files which git considers binary are not scanned
+     */
+    public boolean isSkipBinary(@Nullable Integer repositoryId) {
+        String value = getString(repositoryId, SKIP_BINARY, null);
+        return (value == null) ? DEFAULT_SKIP_BINARY : Boolean.parseBoolean(value);
+    }
+
+    /**
+     * @param repositoryId The repository, null for the global values
+     * @return Every file filter setting & the value which applies (of the repository, otherwise global or default)
+     */
+    @NotNull
+    public Map<String, Object> getAllSettings(@Nullable Integer repositoryId) {
+        final Map<String, Object> settings = new LinkedHashMap<>();
+        settings.put(EXCLUDE_PATHS, getExcludePaths(repositoryId));
+        settings.put(INCLUDE_PATHS, getIncludePaths(repositoryId));
+        settings.put(MAX_FILE_KILOBYTES, getMaxFileKilobytes(repositoryId));
+        settings.put(MAX_CHANGED_LINES, getMaxChangedLines(repositoryId));
+        settings.put(SKIP_BINARY, isSkipBinary(repositoryId));
+        return settings;
+    }
+
+    /**
+     * @return Names of the settings which the repository overrides
+     */
+    @NotNull
+    public List<String> getRepositoryOverrides(int repositoryId) {
+        final List<String> overrides = new ArrayList<>();
+        for (String key : ALL_SETTINGS) {
+            if (pluginSettings.get(getSettingKeyName(repositoryId, key)) != null)
+                overrides.add(key);
+        }
+        return overrides;
+    }
+
+    /**
+     * Validate & update a single file filter setting in plugin settings.
+     * @param repositoryId The repository to override the setting of, null to update the global value
+     * @param key The name of the setting (see getAllSettings())
+     * @param value The new value of the setting, as a string. Path patterns are separated by commas or new lines.
+     * @throws IllegalArgumentException Unknown setting or the value did not pass validation. Includes explanation why.
+     */
+    public void updateSetting(@Nullable Integer repositoryId, @NotNull String key, @NotNull String value) throws IllegalArgumentException {
+        switch (key) {
+            case EXCLUDE_PATHS:
+            case INCLUDE_PATHS:
+                put(repositoryId, key, parsePatterns(key, value));
+                break;
+            case MAX_FILE_KILOBYTES:
+                put(repositoryId, key, Long.toString(parseLong(key, value, 0, MAX_MAX_FILE_KILOBYTES)));
+                break;
+            case MAX_CHANGED_LINES:
+                put(repositoryId, key, Long.toString(parseLong(key, value, 0, MAX_MAX_CHANGED_LINES)));
+                break;
+            case SKIP_BINARY:
+                put(repositoryId, key, Boolean.toString(parseBoolean(key, value)));
+                break;
+            default:
+                throw new IllegalArgumentException(String.format("Unknown file filter setting: %s", key));
+        }
+    }
+
+    /**
+     * Remove the override of a repository setting, so the global value applies again.
+     */
+    public void removeSetting(int repositoryId, @NotNull String key) throws IllegalArgumentException {
+        if (!ALL_SETTINGS.contains(key))
+            throw new IllegalArgumentException(String.format("Unknown file filter setting: %s", key));
+        remove(repositoryId, key);
+    }
+
+    @NotNull
+    private static List<String> splitPatterns(String value) {
+        final List<String> patterns = new ArrayList<>();
+        for (String pattern : value.split("[,\\n]")) {
+            if (!pattern.trim().isEmpty())
+                patterns.add(pattern.trim());
+        }
+        return patterns;
+    }
+
+    private String parsePatterns(String key, String value) throws IllegalArgumentException {
+        if (value.length() > MAX_PATH_PATTERNS_LENGTH)
+            throw new IllegalArgumentException(String.format("File filter setting %s must be at most %d characters.", key,
+                    MAX_PATH_PATTERNS_LENGTH));
+        return String.join(",", splitPatterns(value.replace("\r", "")));
+    }
+
+    private long parseLong(String key, String value, long min, long max) throws IllegalArgumentException {
+        try {
+            long parsed = Long.parseLong(value.trim());
+            if (parsed < min || parsed > max)
+                throw new IllegalArgumentException(String.format("File filter setting %s must be between %d and %d.", key, min, max));
+            return parsed;
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("File filter setting %s must be a whole number.", key));
+        }
+    }
+
+    private boolean parseBoolean(String key, String value) throws IllegalArgumentException {
+        if ("true".equalsIgnoreCase(value.trim()))
+            return true;
+        if ("false".equalsIgnoreCase(value.trim()))
+            return false;
+        throw new IllegalArgumentException(String.format("File filter setting %s must be true or false.", key));
+    }
+
+    /**
+     * @return The value of the repository if it overrides the setting, otherwise the global value, otherwise the default
+     */
+    private String getString(@Nullable Integer repositoryId, String key, String defaultValue) {
+        if (repositoryId != null) {
+            String value = (String) pluginSettings.get(getSettingKeyName(repositoryId, key));
+            if (value != null)
+                return value;
+        }
+        String value = (String) pluginSettings.get(getSettingKeyName(null, key));
+        return (value == null) ? defaultValue : value;
+    }
+
+    private long getLong(@Nullable Integer repositoryId, String key, long defaultValue) {
+        String value = getString(repositoryId, key, null);
+        try {
+            return (value == null) ? defaultValue : Long.parseLong(value);
+        }
+        catch (NumberFormatException e) {
+            log.warn(String.format("Invalid value for file filter setting %s: %s, using the default: %d", key, value, defaultValue));
+            return defaultValue;
+        }
+    }
+
+    private void put(@Nullable Integer repositoryId, String key, String value) {
+        pluginSettings.put(getSettingKeyName(repositoryId, key), value);
+        log.debug(String.format("Set file filter setting Repository: %s Key: %s Value: %s",
+                repositoryId == null ? "(global)" : repositoryId, key, value));
+    }
+
+    private void remove(int repositoryId, String key) {
+        pluginSettings.remove(getSettingKeyName(repositoryId, key));
+        log.debug(String.format("Removed file filter setting Repository: %d Key: %s", repositoryId, key));
+    }
+
+    /**
+     * Internal function to get a unique key identifier in plugin settings
+     * @param repositoryId The repository of the setting, null for the global setting
+     * @param key The setting name
+     * @return String that is a unique key for the plugin setting.
+     */
+    private String getSettingKeyName(@Nullable Integer repositoryId, String key) {
+        if (repositoryId == null)
+            return SETTINGS_NAMESPACE + KEY_FILTER_PREFIX + key;
+        return SETTINGS_NAMESPACE + KEY_FILTER_PREFIX + KEY_REPOSITORY_PREFIX + repositoryId + "." + key;
+    }
+}
@@ -1,12 +1,15 @@
 package com.cyanoth.secretwarden.config;
 
 import com.atlassian.cache.Cache;
+import com.atlassian.cache.CacheEntryAdapter;
+import com.atlassian.cache.CacheEntryEvent;
 import com.atlassian.cache.CacheFactory;
 import com.atlassian.cache.CacheSettings;
 import com.atlassian.cache.CacheSettingsBuilder;
 import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
 import com.cyanoth.secretwarden.RuleSetLoadException;
 import com.cyanoth.secretwarden.collections.MatchRuleSet;
+import com.cyanoth.secretwarden.matching.MatchRuleSetSnapshot;
 import com.cyanoth.secretwarden.structures.MatchRule;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
@@ -17,6 +20,8 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
@@ -24,21 +29,26 @@ import java.util.HashSet;
 import java.util.Set;
 
 /**
- * An exposed component uses the Atlassian Cache API to cache in memory a single instance of MatchRuleSet (identified by the key: RULESET_KEY)
- * With this, we can ensure that the loaded ruleset is replicated across all nodes in the cluster even after it has been updated by configuration changes
- * and remains in memory, so we don't have to fetch the rule every time from settings.
+ * An exposed component which keeps a precompiled snapshot of the ruleset on every node in the cluster.
+ *
+ * Only the ruleset version number is replicated across the cluster using the Atlassian Cache API (identified by the key: RULESET_VERSION_KEY).
+ * When the ruleset is (re)loaded on any node, a new version is published and every other node is notified by a cache listener,
+ * then drops its own snapshot. The next scan on that node compiles a new snapshot from plugin settings (which are shared across the cluster).
+ * With this, patterns are compiled once per ruleset change per node and a scan obtains the snapshot with a single volatile read,
+ * rather than a deserialized copy of the ruleset (whose patterns must be compiled again) on every scan.
  *
  * [1] https://docs.atlassian.com/atlassian-cache-api/2.2.0/atlassian-cache-api/apidocs/com/atlassian/cache/CacheFactory.html
  */
 @Component
 public class MatchRuleSetCache {
     private static final Logger log = LoggerFactory.getLogger(MatchRuleSetCache.class);
-    private final String CACHE_NAME = "com.cyanoth.secretwarden:MatchRuleSetCache";
-    private final String RULESET_KEY = "MatchSecretRuleSet";
+    private final String CACHE_NAME = "com.cyanoth.secretwarden:MatchRuleSetVersionCache";
+    private final String RULESET_VERSION_KEY = "MatchSecretRuleSetVersion";
     private final MatchRuleSettings matchRuleSettings;
     private final CacheFactory cacheFactory;
     private final CacheSettings cacheSettings;
-    private Cache<String, MatchRuleSet> _matchRuleSet = null; // Always Use cache() for access, even inner class
+    private Cache<String, Long> _rulesetVersion = null; // Always Use cache() for access, even inner class
+    private volatile MatchRuleSetSnapshot snapshot = null; // Null when this node has no (up-to-date) snapshot
 
     @Autowired
     public MatchRuleSetCache(@ComponentImport CacheFactory cacheFactory,
@@ -48,46 +58,80 @@ public class MatchRuleSetCache {
         this.matchRuleSettings = matchRuleSettings;
     }
 
-    private Cache<String, MatchRuleSet> cache() {
+    private Cache<String, Long> cache() {
         synchronized (this) {
-            if (this._matchRuleSet == null) {
-                this._matchRuleSet = this.cacheFactory.getCache(CACHE_NAME, null, cacheSettings);
-                try {
-                    reloadRuleSet();
-                    log.debug("SecretWarden: A new cache object has been initialised for MatchRuleSet!");
-                }
-                catch (RuleSetLoadException e) {
-                    log.error("Failed to load SecretWarden RuleSet! RuleSet may be empty...");
-
-                }
+            if (this._rulesetVersion == null) {
+                this._rulesetVersion = this.cacheFactory.getCache(CACHE_NAME, null, cacheSettings);
+                this._rulesetVersion.addListener(new RuleSetVersionListener(), true);
+                log.debug("SecretWarden: A new cache object has been initialised for the MatchRuleSet version!");
             }
-            return this._matchRuleSet;
+            return this._rulesetVersion;
         }
     }
 
     /**
-     * @return MatchRuleSet A collection of match secret rules loaded previous and stored in the cache
+     * @return MatchRuleSet A collection of match secret rules in the current snapshot
      */
     public MatchRuleSet getRuleSet() {
-        return cache().get(RULESET_KEY);
+        return getSnapshot().getRuleSet();
     }
 
     /**
-     * Reloads the ruleset from default plugin & user configuration rules. Incase of failure, the old ruleset is kept.
+     * Get the precompiled ruleset of this node. If the ruleset has changed (on any node) since the snapshot was taken,
+     * a new snapshot is compiled from settings first.
+     * @return Immutable snapshot of the ruleset, including its version & compiled engine.
+     */
+    public MatchRuleSetSnapshot getSnapshot() {
+        MatchRuleSetSnapshot current = snapshot;
+        if (current != null)
+            return current;
+
+        synchronized (this) {
+            if (snapshot == null) {
+                Long version = cache().get(RULESET_VERSION_KEY);
+                if (version == null) { // First node to load the ruleset in the cluster
+                    cache().putIfAbsent(RULESET_VERSION_KEY, nextVersion(0));
+                    version = cache().get(RULESET_VERSION_KEY);
+                }
+
+                try {
+                    MatchRuleSetSnapshot compiled = compileSnapshot(version);
+
+                    // The version may have changed (on another node) whilst compiling, the settings read may be older than it
+                    Long latestVersion;
+                    while ((latestVersion = cache().get(RULESET_VERSION_KEY)) != null && !latestVersion.equals(version)) {
+                        version = latestVersion;
+                        compiled = compileSnapshot(version);
+                    }
+                    snapshot = compiled;
+                }
+                catch (RuleSetLoadException e) {
+                    log.error("Failed to load SecretWarden RuleSet! RuleSet may be empty...");
+                    snapshot = new MatchRuleSetSnapshot(version, new MatchRuleSet());
+                }
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * Reloads the ruleset from default plugin & user configuration rules, then notifies every node in the cluster to do the same.
+     * Incase of failure, the old ruleset is kept.
      */
     public void reloadRuleSet() throws RuleSetLoadException {
         log.info("Reloading SecretWarden MatchRuleset");
         try {
+            synchronized (this) {
+                // Intentionally compile into a temporary local variable, incase an error occurs, the snapshot doesn't get replaced
+                final Long previousVersion = cache().get(RULESET_VERSION_KEY);
+                final MatchRuleSetSnapshot reloaded = compileSnapshot(nextVersion(previousVersion == null ? 0 : previousVersion));
 
-            // Intentionally load into a temporary local variable, incase an error occurs, the cache doesn't get replaced
-            MatchRuleSet ruleSet = new MatchRuleSet();
-            ruleSet.putAllRules(getDefaultRuleSet());
-            ruleSet.putAllRules(getCustomRuleSet(ruleSet));
-
-            cache().removeAll();
-            cache().put(RULESET_KEY, ruleSet);
+                snapshot = reloaded;
+                cache().put(RULESET_VERSION_KEY, reloaded.getVersion());
 
-            log.info(String.format("SecretWarden ruleset reloaded successfully and contains: %d rules", cache().get(RULESET_KEY).count()));
+                log.info(String.format("SecretWarden ruleset reloaded successfully (version: %d) and contains: %d rules",
+                        reloaded.getVersion(), reloaded.getRuleSet().count()));
+            }
         }
         catch (RuleSetLoadException e) {
             log.error(String.format("Failed to reload SecretWarden ruleset.\nAn exception has occurred: %s", e.getMessage()));
@@ -95,6 +139,31 @@ public class MatchRuleSetCache {
         }
     }
 
+    /**
+     * Load the ruleset from settings & compile it.
+     * @param version The version the compiled snapshot represents
+     * @return A new snapshot of the ruleset
+     * @throws RuleSetLoadException Exception which meant the ruleset could not be loaded.
+     */
+    private MatchRuleSetSnapshot compileSnapshot(long version) throws RuleSetLoadException {
+        final MatchRuleSet ruleSet = new MatchRuleSet();
+        ruleSet.putAllRules(getDefaultRuleSet());
+        ruleSet.putAllRules(getCustomRuleSet(ruleSet));
+
+        final MatchRuleSetSnapshot compiled = new MatchRuleSetSnapshot(version, ruleSet);
+        log.debug(String.format("SecretWarden compiled ruleset version %d: %d enabled rules, %d of which are only evaluated when their literal anchor is present & %d span more than one line",
+                version, compiled.getMatchEngine().countRules(), compiled.getMatchEngine().countAnchoredRules(),
+                compiled.getMatchEngine().countLineSpanRules()));
+        return compiled;
+    }
+
+    /**
+     * Versions only need to be unique & increasing. Time based, so a version is not reused should the cache be lost (i.e cluster restart)
+     */
+    private long nextVersion(long previousVersion) {
+        return Math.max(System.currentTimeMillis(), previousVersion + 1);
+    }
+
     /**
      * Load the built-in ruleset. Any changes the user has made (in settings) will override the values in the file
      * @return Set of secret rules from the plugin resources folder.
@@ -114,10 +183,12 @@ public class MatchRuleSetCache {
                 final JsonObject ruleObj = rule.getAsJsonObject();
                 try {
                     int ruleNumber = ruleObj.get("rule_number").getAsInt();
+                    int lineSpan = ruleObj.has("line_span") ? ruleObj.get("line_span").getAsInt() : 1;
                     ruleCollector.add(new MatchRule(ruleNumber,
                             matchRuleSettings.getRuleNameOrDefault(ruleNumber, ruleObj.get("friendly_name").getAsString()),
                             matchRuleSettings.getRulePatternOrDefault(ruleNumber, ruleObj.get("regex_pattern").getAsString()),
-                            matchRuleSettings.getRuleEnabledOrDefault(ruleNumber, true)));
+                            matchRuleSettings.getRuleEnabledOrDefault(ruleNumber, true),
+                            matchRuleSettings.getRuleLineSpanOrDefault(ruleNumber, lineSpan)));
                 }
                 catch (Exception e) {
                     log.warn("An exception occurred trying to load a default rule: Exception", e);
@@ -157,7 +228,8 @@ public class MatchRuleSetCache {
                                     ruleNumber,
                                     matchRuleSettings.getRuleNameOrDefault(ruleNumber, "unknown"),
                                     matchRuleSettings.getRulePatternOrDefault(ruleNumber, ""),
-                                    matchRuleSettings.getRuleEnabledOrDefault(ruleNumber, false));
+                                    matchRuleSettings.getRuleEnabledOrDefault(ruleNumber, false),
+                                    matchRuleSettings.getRuleLineSpanOrDefault(ruleNumber, 1));
 
                             ruleCollector.add(incomingRule);
                         }
@@ -178,22 +250,24 @@ public class MatchRuleSetCache {
         }
     }
 
-    public boolean createNewRule(String ruleName, String rulePattern, Boolean ruleEnabled) {
+    public boolean createNewRule(String ruleName, String rulePattern, Boolean ruleEnabled, int lineSpan) {
         synchronized (this) {
             int newRuleNumber = getFirstNonExistentRuleNumber();
 
-            log.debug(String.format("Creating new rule: # %d, Name: %s Pattern: %s Enabled: %s",
-                    newRuleNumber, ruleName, rulePattern, ruleEnabled));
+            log.debug(String.format("Creating new rule: # %d, Name: %s Pattern: %s Enabled: %s Line Span: %d",
+                    newRuleNumber, ruleName, rulePattern, ruleEnabled, lineSpan));
 
             try {
                 // The validate function is also called in set functions too but this duplicated call is
                 // necessary for creating rules so to 'ensure' all properties can be created without rollback.
                 matchRuleSettings.validateRuleName(ruleName);
-                matchRuleSettings.validateRulePattern(rulePattern);
+                matchRuleSettings.validateRulePatternSyntax(rulePattern); // Cost is validated by the caller, it takes a while
+                matchRuleSettings.validateRuleLineSpan(lineSpan);
 
                 matchRuleSettings.setRuleName(newRuleNumber, ruleName);
                 matchRuleSettings.setRulePattern(newRuleNumber, rulePattern);
                 matchRuleSettings.setRuleEnabled(newRuleNumber, ruleEnabled);
+                matchRuleSettings.setRuleLineSpan(newRuleNumber, lineSpan);
                 return true;
             } catch (IllegalArgumentException e) {
                 log.error("Failed to set create rule due to validation error: " + e.getMessage());
@@ -225,4 +299,43 @@ public class MatchRuleSetCache {
             nextRuleNumber++;
         }
     }
+    /**
+     * When the ruleset version changes on any node, drop the snapshot on this node so it is recompiled on next use.
+     * Events for the version this node already holds (i.e. it made the change) are ignored.
+     *
+     * Handled under the same lock as compiling a snapshot. Otherwise an event arriving after getSnapshot() has checked the
+     * version, but before the snapshot compiled from it is set, would be lost & the stale snapshot kept until the next change.
+     */
+    private class RuleSetVersionListener extends CacheEntryAdapter<String, Long> {
+        @Override
+        public void onAdd(@Nonnull CacheEntryEvent<String, Long> event) {
+            invalidate(event.getValue());
+        }
+
+        @Override
+        public void onUpdate(@Nonnull CacheEntryEvent<String, Long> event) {
+            invalidate(event.getValue());
+        }
+
+        @Override
+        public void onRemove(@Nonnull CacheEntryEvent<String, Long> event) {
+            invalidate(null);
+        }
+
+        @Override
+        public void onEvict(@Nonnull CacheEntryEvent<String, Long> event) {
+            invalidate(null);
+        }
+
+        private void invalidate(@Nullable Long version) {
+            synchronized (MatchRuleSetCache.this) {
+                final MatchRuleSetSnapshot current = snapshot;
+                if (current != null && (version == null || version != current.getVersion())) {
+                    snapshot = null;
+                    log.debug(String.format("SecretWarden ruleset version changed from %d to %s. The snapshot on this node will be recompiled",
+                            current.getVersion(), version));
+                }
+            }
+        }
+    }
 }
@@ -3,6 +3,10 @@ package com.cyanoth.secretwarden.config;
 import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
 import com.atlassian.sal.api.pluginsettings.PluginSettings;
 import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import com.cyanoth.secretwarden.matching.LongLineWindows;
+import com.cyanoth.secretwarden.matching.RuleCostAnalyzer;
+import com.cyanoth.secretwarden.structures.MatchRule;
+import com.cyanoth.secretwarden.structures.RuleCost;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -10,6 +14,7 @@ import org.springframework.stereotype.Component;
 
 import javax.annotation.Nullable;
 import javax.validation.constraints.NotNull;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * Methods to get, set and validate MatchRule properties from SETTINGS (i.e outside the cache)
@@ -18,23 +23,29 @@ import javax.validation.constraints.NotNull;
 public class MatchRuleSettings {
     private static final Logger log = LoggerFactory.getLogger(MatchRuleSettings.class);
     private final PluginSettings pluginSettings;
+    private final ScanSettings scanSettings;
     private final String SETTINGS_NAMESPACE = "com.cyanoth.secretwarden.settings"; // !! DO NOT CHANGE ME EVER (EVER) !!
 
     private final String KEY_RULE_PREFIX=".rule";
     private final String KEY_APPENDIX_NAME = "_name";
     private final String KEY_APPENDIX_PATTERN = "_pattern";
     private final String KEY_APPENDIX_ENABLED = "_enabled";
+    private final String KEY_APPENDIX_LINE_SPAN = "_line_span";
 
     private final int MIN_RULENAME_CHARS = 3;
     private final int MAX_RULENAME_CHARS = 100;
     private final int MIN_RULEPATTERN_CHARS = 3;
     private final int MAX_RULEPATTERN_CHARS = 9000;
+    private final int MIN_RULE_LINE_SPAN = 1;
+    private final int MAX_RULE_LINE_SPAN = 100;
     // Technically, the max value here can be 99000
     // [1] https://docs.atlassian.com/DAC/javadoc/sal/2.6/reference/com/atlassian/sal/api/pluginsettings/PluginSettings.html
 
     @Autowired
-    public MatchRuleSettings(@ComponentImport final PluginSettingsFactory pluginSettingsFactory) {
+    public MatchRuleSettings(@ComponentImport final PluginSettingsFactory pluginSettingsFactory,
+                             final ScanSettings scanSettings) {
         this.pluginSettings = pluginSettingsFactory.createSettingsForKey(SETTINGS_NAMESPACE);
+        this.scanSettings = scanSettings;
     }
 
     /**
@@ -58,7 +69,8 @@ public class MatchRuleSettings {
     }
 
     /**
-     * Update the pattern of an existing rule in plugin settings
+     * Update the pattern of an existing rule in plugin settings. Only the syntax is validated here, the cost of the pattern
+     * should be validated first with validateRulePattern(...) as it takes a while.
      * @param ruleNumber The unique rule identifier number to update
      * @param rulePattern The regular expression pattern (String) to update to
      * @return True if successful, false otherwise.
@@ -66,7 +78,7 @@ public class MatchRuleSettings {
      */
     public boolean setRulePattern(int ruleNumber, @NotNull String rulePattern) throws IllegalArgumentException {
         try {
-            validateRulePattern(rulePattern);
+            validateRulePatternSyntax(rulePattern);
             String key = getRuleKeyName(ruleNumber, KEY_APPENDIX_PATTERN);
             pluginSettings.put(key, rulePattern);
             log.debug(String.format("Set rule pattern for Rule #: %d Key: %s Value: %s", ruleNumber, key, rulePattern));
@@ -91,6 +103,26 @@ public class MatchRuleSettings {
         return true;
     }
 
+    /**
+     * Update the number of consecutive added lines a rule is evaluated over
+     * @param ruleNumber The unique rule identifier number to update
+     * @param lineSpan Number of lines, 1 for a single line
+     * @return True, rule line span was changed successfully.
+     */
+    public boolean setRuleLineSpan(int ruleNumber, int lineSpan) {
+        try {
+            validateRuleLineSpan(lineSpan);
+            String key = getRuleKeyName(ruleNumber, KEY_APPENDIX_LINE_SPAN);
+            pluginSettings.put(key, Integer.toString(lineSpan));
+            log.debug(String.format("Set rule line span for Rule #: %d Key: %s Value: %d", ruleNumber, key, lineSpan));
+            return true;
+        }
+        catch (IllegalArgumentException e) {
+            log.error("Failed to set rule line span due to validation error: " + e.getMessage());
+        }
+        return false;
+    }
+
     /**
      * Ensure that the change to rulename passes validation.
      * @param ruleName The name of the rule to validate
@@ -103,16 +135,64 @@ public class MatchRuleSettings {
     }
 
     /**
-     * Ensure that the change to the rule pattern passes validation.
+     * Ensure that the line span of a rule passes validation. Every rule spanning more than one line keeps that many lines
+     * of each file being scanned in memory, so it is limited.
+     * @param lineSpan The line span of the rule to validate
+     * @throws IllegalArgumentException Rule line span did not pass validation. Includes explanation why
+     */
+    public void validateRuleLineSpan(int lineSpan) throws IllegalArgumentException {
+        if (lineSpan < MIN_RULE_LINE_SPAN || lineSpan > MAX_RULE_LINE_SPAN)
+            throw new IllegalArgumentException(String.format("Rule line span must be between %d and %d lines.",
+                    MIN_RULE_LINE_SPAN, MAX_RULE_LINE_SPAN));
+    }
+
+    /**
+     * Ensure that the change to the rule pattern passes validation, including how expensive it is to evaluate (see RuleCostAnalyzer).
+     * A pattern which is too slow is rejected or accepted (to be saved disabled) depending on the slow rule policy scan setting.
+     * A rule being saved disabled is never rejected, its cost is only measured.
+     * @param rulePattern The pattern of the rule to validate
+     * @param lineSpan The line span the rule is being saved with, the pattern is measured over that many lines
+     * @param enabled True, if the rule is being saved enabled
+     * @return The measured cost of the pattern. If isTooSlow(), the rule must be saved disabled.
+     * @throws IllegalArgumentException Rule pattern did not pass validation. Includes explanation why.
+     */
+    @NotNull
+    public RuleCost validateRulePattern(String rulePattern, int lineSpan, boolean enabled) throws IllegalArgumentException {
+        validateRulePatternSyntax(rulePattern);
+
+        RuleCost cost = RuleCostAnalyzer.analyze(new MatchRule(0, "Validation", rulePattern, true, lineSpan),
+                scanSettings.getLineStepBudget(),
+                new LongLineWindows(scanSettings.getLongLineThreshold(), scanSettings.getLongLineWindow()),
+                scanSettings.getRuleMinThroughput());
+        log.debug(String.format("Measured rule pattern: %s Line Span: %d Cost: %s Warnings: %s", rulePattern, lineSpan, cost,
+                cost.getWarnings()));
+
+        if (cost.isTooSlow() && enabled) {
+            if (scanSettings.getSlowRulePolicy() == ScanSettings.SlowRulePolicy.REJECT)
+                throw new IllegalArgumentException(String.format("Rule pattern is too slow to evaluate: %s. %s",
+                        cost, String.join(" ", cost.getWarnings())));
+
+            log.warn(String.format("Rule pattern is too slow to evaluate & will be saved disabled: %s Cost: %s", rulePattern, cost));
+        }
+        return cost;
+    }
+
+    /**
+     * Ensure that the rule pattern is within the length limits & is a valid regular expression.
      * @param rulePattern The pattern of the rule to validate
      * @throws IllegalArgumentException Rule pattern did not pass validation. Includes explanation why.
      */
-    public void validateRulePattern(String rulePattern) throws IllegalArgumentException {
+    public void validateRulePatternSyntax(String rulePattern) throws IllegalArgumentException {
          if (rulePattern.length() <= MIN_RULEPATTERN_CHARS || rulePattern.length() >= MAX_RULEPATTERN_CHARS)
             throw new IllegalArgumentException(String.format("Rule pattern length must be greater than %d characters & smaller than %d characters.",
                     MIN_RULEPATTERN_CHARS, MAX_RULEPATTERN_CHARS));
 
-        // Naively, we trust that the user has put a valid regex expression. Should consider changing that.
+        try {
+            new MatchRule(0, "Validation", rulePattern, true).getCompiledRegexPattern(); // Same flags as scanning
+        }
+        catch (PatternSyntaxException e) {
+            throw new IllegalArgumentException(String.format("Rule pattern is not a valid regular expression: %s", e.getDescription()));
+        }
     }
 
     /**
@@ -148,6 +228,23 @@ public class MatchRuleSettings {
         return (ruleEnabled == null) ? defaultValue : Boolean.valueOf(ruleEnabled);
     }
 
+    /**
+     * Get the line span of a rule identified by the number in settings. Returns a default value if rule is not found.
+     * @param ruleNumber The rule number to get the line span of
+     * @param defaultValue The value to return if the rule was not found
+     * @return Value of the rule line span or defaultValue if not found
+     */
+    public Integer getRuleLineSpanOrDefault(int ruleNumber, @Nullable Integer defaultValue) {
+        String lineSpan = (String) pluginSettings.get(getRuleKeyName(ruleNumber, KEY_APPENDIX_LINE_SPAN));
+        try {
+            return (lineSpan == null) ? defaultValue : Integer.valueOf(lineSpan);
+        }
+        catch (NumberFormatException e) {
+            log.warn(String.format("Invalid line span for Rule #: %d Value: %s, using: %s", ruleNumber, lineSpan, defaultValue));
+            return defaultValue;
+        }
+    }
+
     /**
      * Internal function to get a unique key identifier in plugin settings
      * @param ruleNumber The rule number to get key for
@@ -6,10 +6,15 @@ import com.atlassian.bitbucket.permission.PermissionValidationService;
 import com.atlassian.bitbucket.rest.RestErrorMessage;
 import com.atlassian.plugin.spring.scanner.annotation.component.Scanned;
 import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.cyanoth.secretwarden.ScanMetrics;
+import com.cyanoth.secretwarden.config.FileFilterSettings;
 import com.cyanoth.secretwarden.config.MatchRuleSetCache;
 import com.cyanoth.secretwarden.config.MatchRuleSettings;
+import com.cyanoth.secretwarden.config.ScanSettings;
+import com.cyanoth.secretwarden.pullrequest.BlobFindingsCache;
 import com.cyanoth.secretwarden.pullrequest.PullRequestSecretScanResultCache;
 import com.cyanoth.secretwarden.structures.MatchRule;
+import com.cyanoth.secretwarden.structures.RuleCost;
 import com.google.gson.Gson;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,6 +23,8 @@ import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Exposed REST endpoints to modify global configuration of the plugin (for administrators)
@@ -32,16 +39,28 @@ public class GlobalConfig  {
     private final MatchRuleSettings matchRuleSettings;
     private final MatchRuleSetCache matchRuleSetCache;
     private final PullRequestSecretScanResultCache pullRequestSecretScanResultCache;
+    private final ScanSettings scanSettings;
+    private final BlobFindingsCache blobFindingsCache;
+    private final ScanMetrics scanMetrics;
+    private final FileFilterSettings fileFilterSettings;
 
     public GlobalConfig(@ComponentImport  PermissionValidationService permissionValidationService,
                         final MatchRuleSettings matchRuleSettings,
                         final MatchRuleSetCache matchRuleSetCache,
-                        final PullRequestSecretScanResultCache pullRequestSecretScanResultCache) {
+                        final PullRequestSecretScanResultCache pullRequestSecretScanResultCache,
+                        final ScanSettings scanSettings,
+                        final BlobFindingsCache blobFindingsCache,
+                        final ScanMetrics scanMetrics,
+                        final FileFilterSettings fileFilterSettings) {
 
         this.permissionValidationService = permissionValidationService;
         this.matchRuleSetCache = matchRuleSetCache;
         this.matchRuleSettings = matchRuleSettings;
         this.pullRequestSecretScanResultCache = pullRequestSecretScanResultCache;
+        this.scanSettings = scanSettings;
+        this.blobFindingsCache = blobFindingsCache;
+        this.scanMetrics = scanMetrics;
+        this.fileFilterSettings = fileFilterSettings;
 
     }
 
@@ -80,9 +99,13 @@ public class GlobalConfig  {
     }
 
      /**
-     * Creates or updates an existing match secret rule
+     * Creates or updates an existing match secret rule. The cost of a new or changed rule pattern is measured first, a rule
+     * which is too slow is rejected or saved disabled depending on the slow rule policy (see ScanSettings). A rule being
+     * disabled is never rejected. The cost of an unchanged pattern & line span isn't measured again (e.g. the rule is renamed),
+     * unless the rule is being enabled: it may have been saved disabled because it is too slow.
      * @param incomingRule Required, matching JSON data representation of a new MatchSecretRule.
-     * @return Response 200 if the rule has been updated & reloaded successfully. HTTP error otherwise.
+     * @return Response 200 (including the measured cost, if it was measured) if the rule has been updated & reloaded successfully.
+     *         400 (with reason) if the rule did not pass validation. HTTP error otherwise.
      */
     @POST
     @Path("/match-secret-rule")
@@ -92,37 +115,66 @@ public class GlobalConfig  {
             this.permissionValidationService.validateForGlobal(Permission.ADMIN);
 
             try {
+                matchRuleSettings.validateRuleLineSpan(incomingRule.getLineSpan());
+                final boolean requestEnabled = !Boolean.FALSE.equals(incomingRule.getIsEnabled());
+                final MatchRule existingRule = (incomingRule.getRuleNumber() == 0) ? null
+                        : matchRuleSetCache.getRuleSet().getRule(incomingRule.getRuleNumber());
+
+                // Measuring takes a while, so only when the pattern is new or has changed. A rule spanning more lines is
+                // evaluated over more text, so a changed line span is measured again too. A disabled rule may be too slow,
+                // so it is measured again when it is enabled.
+                RuleCost cost = null;
+                if (existingRule == null || !existingRule.getRegexPattern().equals(incomingRule.getRegexPattern())
+                        || existingRule.getLineSpan() != incomingRule.getLineSpan()
+                        || (requestEnabled && !Boolean.TRUE.equals(existingRule.getIsEnabled())))
+                    cost = matchRuleSettings.validateRulePattern(incomingRule.getRegexPattern(), incomingRule.getLineSpan(),
+                            requestEnabled);
+                final boolean tooSlow = cost != null && cost.isTooSlow();
+
+                Map<String, Object> response = new LinkedHashMap<>();
+                if (cost != null)
+                    response.put("cost", cost);
+
                 if (incomingRule.getRuleNumber() == 0) { // Creating a new rule
                     log.debug("Creating new rule");
                     boolean createSuccess = matchRuleSetCache.createNewRule(incomingRule.getFriendlyName(),
-                            incomingRule.getCompiledRegexPattern().toString(),true);
+                            incomingRule.getRegexPattern(), requestEnabled && !tooSlow, incomingRule.getLineSpan());
 
-                    if (createSuccess)
-                        return Response.ok("{ \"id\": \"1\" }").build(); //AJS Restful Table id of the new row (which we don't have)
+                    if (createSuccess) {
+                        response.put("id", "1"); //AJS Restful Table id of the new row (which we don't have)
+                        return Response.ok(new Gson().toJson(response)).build();
+                    }
                     else
                         throw new Exception("New rule was not created!");
                 }
                 else {  // Updating an existing rule
                     int ruleNumber = incomingRule.getRuleNumber();
                     String newFriendlyName = incomingRule.getFriendlyName();
-                    String newRegexPattern = incomingRule.getCompiledRegexPattern().toString();
-                    Boolean newIsEnabled = incomingRule.getIsEnabled();
+                    String newRegexPattern = incomingRule.getRegexPattern();
+                    Boolean newIsEnabled = requestEnabled && !tooSlow;
+                    int newLineSpan = incomingRule.getLineSpan();
+                    response.put("enabled", newIsEnabled);
 
-                    log.info(String.format("Updating a MatchSecret Rule: Number: %d Name: %s Pattern: %s Enabled: %s",
-                        ruleNumber, newFriendlyName, newRegexPattern, newIsEnabled.toString()));
+                    log.info(String.format("Updating a MatchSecret Rule: Number: %d Name: %s Pattern: %s Enabled: %s Line Span: %d",
+                        ruleNumber, newFriendlyName, newRegexPattern, newIsEnabled.toString(), newLineSpan));
 
                     boolean ruleEnableSuccess = matchRuleSettings.setRuleEnabled(ruleNumber, newIsEnabled);
                     boolean ruleNameSuccess = matchRuleSettings.setRuleName(ruleNumber, newFriendlyName);
                     boolean rulePatternSuccess = matchRuleSettings.setRulePattern(ruleNumber, newRegexPattern);
+                    boolean ruleLineSpanSuccess = matchRuleSettings.setRuleLineSpan(ruleNumber, newLineSpan);
                     reloadRuleSet();
 
-                    if (ruleEnableSuccess && ruleNameSuccess && rulePatternSuccess)
-                        return Response.ok("{}").build(); //AJS Restful Table response >requires< JSON response as the OK
+                    if (ruleEnableSuccess && ruleNameSuccess && rulePatternSuccess && ruleLineSpanSuccess)
+                        return Response.ok(new Gson().toJson(response)).build(); //AJS Restful Table response >requires< JSON response as the OK
                     else
                         throw new Exception ("Rule was not updated!");
                 }
 
             }
+            catch (IllegalArgumentException e) {
+                log.warn("Rejected a MatchRule which did not pass validation: " + e.getMessage());
+                return Response.status(Response.Status.BAD_REQUEST).entity(new RestErrorMessage(e.getMessage())).build();
+            }
             catch (Exception e) {
                 log.error("Failed to create/update a MatchRule. An error occurred:", e);
                 return Response.status(Response.Status.BAD_REQUEST).entity(new RestErrorMessage("Failed to update MatchSecretRule." +
@@ -134,6 +186,129 @@ public class GlobalConfig  {
         }
     }
 
+    /**
+     * @return JSON representation of all scan settings & their current values
+     */
+    @GET
+    @Path("/scan-settings")
+    @Produces({ MediaType.APPLICATION_JSON })
+    public Response getScanSettings() {
+        try {
+            this.permissionValidationService.validateForGlobal(Permission.ADMIN);
+            return Response.ok(new Gson().toJson(scanSettings.getAllSettings())).build();
+        } catch (AuthorisationException e) {
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+    }
+
+    /**
+     * @return JSON representation of the scan metrics (counters) of this node, since it was started.
+     */
+    @GET
+    @Path("/scan-metrics")
+    @Produces({ MediaType.APPLICATION_JSON })
+    public Response getScanMetrics() {
+        try {
+            this.permissionValidationService.validateForGlobal(Permission.ADMIN);
+            return Response.ok(new Gson().toJson(scanMetrics.getAll())).build();
+        } catch (AuthorisationException e) {
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+    }
+
+    /**
+     * Update one or more scan settings. Every setting is validated before it is saved, settings not included are unchanged.
+     * @param incomingSettings Required, JSON object of setting name to new value.
+     * @return Response 200 if the settings have been updated. 400 (with reason) if a setting is unknown or invalid.
+     */
+    @PUT
+    @Path("/scan-settings")
+    @Consumes({ MediaType.APPLICATION_JSON })
+    @Produces({ MediaType.APPLICATION_JSON })
+    public Response updateScanSettings(Map<String, String> incomingSettings) {
+        try {
+            this.permissionValidationService.validateForGlobal(Permission.ADMIN);
+
+            if (incomingSettings == null)
+                return Response.status(Response.Status.BAD_REQUEST).entity(new RestErrorMessage("No scan settings were provided.")).build();
+
+            try {
+                for (Map.Entry<String, String> setting : incomingSettings.entrySet()) {
+                    log.info(String.format("Updating SecretWarden scan setting: %s Value: %s", setting.getKey(), setting.getValue()));
+                    scanSettings.updateSetting(setting.getKey(), setting.getValue());
+                }
+                return Response.ok(new Gson().toJson(scanSettings.getAllSettings())).build();
+            }
+            catch (IllegalArgumentException e) {
+                return Response.status(Response.Status.BAD_REQUEST).entity(new RestErrorMessage(e.getMessage())).build();
+            }
+        } catch (AuthorisationException e) {
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+    }
+
+    /**
+     * @return JSON representation of the global file filter settings (which changed files are not scanned)
+     */
+    @GET
+    @Path("/file-filter")
+    @Produces({ MediaType.APPLICATION_JSON })
+    public Response getFileFilterSettings() {
+        try {
+            this.permissionValidationService.validateForGlobal(Permission.ADMIN);
+            return Response.ok(new Gson().toJson(fileFilterSettings.getAllSettings(null))).build();
+        } catch (AuthorisationException e) {
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+    }
+
+    /**
+     * Update one or more global file filter settings. Every setting is validated before it is saved, settings not included
+     * are unchanged. Repositories which override a setting keep their own value.
+     * @param incomingSettings Required, JSON object of setting name to new value.
+     * @return Response 200 if the settings have been updated. 400 (with reason) if a setting is unknown or invalid.
+     */
+    @PUT
+    @Path("/file-filter")
+    @Consumes({ MediaType.APPLICATION_JSON })
+    @Produces({ MediaType.APPLICATION_JSON })
+    public Response updateFileFilterSettings(Map<String, String> incomingSettings) {
+        try {
+            this.permissionValidationService.validateForGlobal(Permission.ADMIN);
+
+            if (incomingSettings == null)
+                return Response.status(Response.Status.BAD_REQUEST).entity(new RestErrorMessage("No file filter settings were provided.")).build();
+
+            try {
+                for (Map.Entry<String, String> setting : incomingSettings.entrySet()) {
+                    log.info(String.format("Updating SecretWarden file filter setting: %s Value: %s", setting.getKey(), setting.getValue()));
+                    fileFilterSettings.updateSetting(null, setting.getKey(), setting.getValue());
+                }
+                return Response.ok(new Gson().toJson(fileFilterSettings.getAllSettings(null))).build();
+            }
+            catch (IllegalArgumentException e) {
+                return Response.status(Response.Status.BAD_REQUEST).entity(new RestErrorMessage(e.getMessage())).build();
+            }
+        } catch (AuthorisationException e) {
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+    }
+
+    /**
+     * @return JSON representation of the scan result cache statistics of this node (entries, estimated bytes, evictions)
+     */
+    @GET
+    @Path("/result-cache-stats")
+    @Produces({ MediaType.APPLICATION_JSON })
+    public Response getResultCacheStatistics() {
+        try {
+            this.permissionValidationService.validateForGlobal(Permission.ADMIN);
+            return Response.ok(new Gson().toJson(pullRequestSecretScanResultCache.getStatistics())).build();
+        } catch (AuthorisationException e) {
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+    }
+
     /**
      * @return Response 200 if the secret scan result cache has been cleared. HTTP error otherwise.
      */
@@ -146,6 +321,7 @@ public class GlobalConfig  {
             try {
                 log.debug("Clearing SecretWarden Result Cache...");
                 pullRequestSecretScanResultCache.clear();
+                blobFindingsCache.clear();
                 return Response.ok("The secret result cache has been cleared!").build();
             }
             catch (Exception e) {
@@ -0,0 +1,138 @@
+package com.cyanoth.secretwarden.config.REST;
+
+import com.atlassian.bitbucket.AuthorisationException;
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.permission.PermissionValidationService;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.repository.RepositoryService;
+import com.atlassian.bitbucket.rest.RestErrorMessage;
+import com.atlassian.plugin.spring.scanner.annotation.component.Scanned;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.cyanoth.secretwarden.config.FileFilterSettings;
+import com.google.gson.Gson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.*;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Exposed REST endpoints to modify the configuration of the plugin for a single repository (for repository administrators)
+ *
+ * [1] https://developer.atlassian.com/server/framework/atlassian-sdk/rest-plugin-module/
+ */
+@Path("/repositoryconfig")
+@Scanned
+public class RepositoryConfig {
+    private static final Logger log = LoggerFactory.getLogger(RepositoryConfig.class);
+    private final PermissionValidationService permissionValidationService;
+    private final RepositoryService repositoryService;
+    private final FileFilterSettings fileFilterSettings;
+
+    public RepositoryConfig(@ComponentImport PermissionValidationService permissionValidationService,
+                            @ComponentImport RepositoryService repositoryService,
+                            final FileFilterSettings fileFilterSettings) {
+        this.permissionValidationService = permissionValidationService;
+        this.repositoryService = repositoryService;
+        this.fileFilterSettings = fileFilterSettings;
+    }
+
+    /**
+     * @param projectKey Bitbucket Project Key of the repository
+     * @param repoSlug Bitbucket Repository Slug of the repository
+     * @return JSON of the file filter settings which apply to the repository & the names of those it overrides. 404 if
+     *         the repository does not exist.
+     */
+    @GET
+    @Path("/{projectKey}/{repoSlug}/file-filter")
+    @Produces({ MediaType.APPLICATION_JSON })
+    public Response getFileFilterSettings(@PathParam("projectKey") String projectKey, @PathParam("repoSlug") String repoSlug) {
+        try {
+            Repository repo = repositoryService.getBySlug(projectKey, repoSlug);
+            if (repo == null)
+                return Response.status(Response.Status.NOT_FOUND).build();
+
+            this.permissionValidationService.validateForRepository(repo, Permission.REPO_ADMIN);
+            return Response.ok(new Gson().toJson(getRepositorySettings(repo))).build();
+        } catch (AuthorisationException e) {
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+    }
+
+    /**
+     * Override one or more file filter settings for the repository. Every setting is validated before it is saved,
+     * settings not included are unchanged.
+     * @param incomingSettings Required, JSON object of setting name to new value.
+     * @return Response 200 if the settings have been updated. 400 (with reason) if a setting is unknown or invalid.
+     */
+    @PUT
+    @Path("/{projectKey}/{repoSlug}/file-filter")
+    @Consumes({ MediaType.APPLICATION_JSON })
+    @Produces({ MediaType.APPLICATION_JSON })
+    public Response updateFileFilterSettings(@PathParam("projectKey") String projectKey, @PathParam("repoSlug") String repoSlug,
+                                             Map<String, String> incomingSettings) {
+        try {
+            Repository repo = repositoryService.getBySlug(projectKey, repoSlug);
+            if (repo == null)
+                return Response.status(Response.Status.NOT_FOUND).build();
+
+            this.permissionValidationService.validateForRepository(repo, Permission.REPO_ADMIN);
+
+            if (incomingSettings == null)
+                return Response.status(Response.Status.BAD_REQUEST).entity(new RestErrorMessage("No file filter settings were provided.")).build();
+
+            try {
+                for (Map.Entry<String, String> setting : incomingSettings.entrySet()) {
+                    log.info(String.format("Updating SecretWarden file filter setting of repository %d: %s Value: %s",
+                            repo.getId(), setting.getKey(), setting.getValue()));
+                    fileFilterSettings.updateSetting(repo.getId(), setting.getKey(), setting.getValue());
+                }
+                return Response.ok(new Gson().toJson(getRepositorySettings(repo))).build();
+            }
+            catch (IllegalArgumentException e) {
+                return Response.status(Response.Status.BAD_REQUEST).entity(new RestErrorMessage(e.getMessage())).build();
+            }
+        } catch (AuthorisationException e) {
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+    }
+
+    /**
+     * Remove the override of a file filter setting, so the global value applies to the repository again.
+     * @return Response 200 if the override has been removed (or there was none). 400 if the setting is unknown.
+     */
+    @DELETE
+    @Path("/{projectKey}/{repoSlug}/file-filter/{key}")
+    @Produces({ MediaType.APPLICATION_JSON })
+    public Response removeFileFilterSetting(@PathParam("projectKey") String projectKey, @PathParam("repoSlug") String repoSlug,
+                                            @PathParam("key") String key) {
+        try {
+            Repository repo = repositoryService.getBySlug(projectKey, repoSlug);
+            if (repo == null)
+                return Response.status(Response.Status.NOT_FOUND).build();
+
+            this.permissionValidationService.validateForRepository(repo, Permission.REPO_ADMIN);
+
+            try {
+                log.info(String.format("Removing SecretWarden file filter setting of repository %d: %s", repo.getId(), key));
+                fileFilterSettings.removeSetting(repo.getId(), key);
+                return Response.ok(new Gson().toJson(getRepositorySettings(repo))).build();
+            }
+            catch (IllegalArgumentException e) {
+                return Response.status(Response.Status.BAD_REQUEST).entity(new RestErrorMessage(e.getMessage())).build();
+            }
+        } catch (AuthorisationException e) {
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+    }
+
+    private Map<String, Object> getRepositorySettings(Repository repo) {
+        final Map<String, Object> response = new LinkedHashMap<>();
+        response.put("settings", fileFilterSettings.getAllSettings(repo.getId()));
+        response.put("overrides", fileFilterSettings.getRepositoryOverrides(repo.getId()));
+        return response;
+    }
+}
@@ -0,0 +1,413 @@
+package com.cyanoth.secretwarden.config;
+
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.atlassian.sal.api.pluginsettings.PluginSettings;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.validation.constraints.NotNull;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Methods to get, set and validate global settings which control how secret scans are performed (limits, modes etc.)
+ * Every setting has a default value which is used until an administrator changes it.
+ */
+@Component
+public class ScanSettings {
+    private static final Logger log = LoggerFactory.getLogger(ScanSettings.class);
+    private final PluginSettings pluginSettings;
+    private final String SETTINGS_NAMESPACE = "com.cyanoth.secretwarden.settings"; // !! DO NOT CHANGE ME EVER (EVER) !!
+    private final String KEY_SCAN_PREFIX = ".scan.";
+
+    public static final String LINE_STEP_BUDGET = "line_step_budget";
+    public static final String SCAN_STEP_BUDGET = "scan_step_budget";
+    public static final String RULE_MIN_THROUGHPUT = "rule_min_throughput_mbps";
+    public static final String SLOW_RULE_POLICY = "slow_rule_policy";
+    public static final String DIFF_STREAM_MODE = "diff_stream_mode";
+    public static final String SCAN_THREADS = "scan_threads";
+    public static final String SCAN_PARALLELISM = "scan_parallelism";
+    public static final String BLOB_CACHE_MAX_ENTRIES = "blob_cache_max_entries";
+    public static final String MERGE_CHECK_MODE = "merge_check_mode";
+    public static final String MERGE_CHECK_LATENCY_BUDGET = "merge_check_latency_budget_ms";
+    public static final String SCHEDULER_THREADS = "scan_scheduler_threads";
+    public static final String SCAN_QUEUE_LIMIT = "scan_queue_limit";
+    public static final String SCAN_QUEUE_REPOSITORY_LIMIT = "scan_queue_repository_limit";
+    public static final String PRESCAN_ENABLED = "prescan_enabled";
+    public static final String RESULT_CACHE_MAX_MEGABYTES = "result_cache_max_megabytes";
+    public static final String RESULT_STORE_ENABLED = "result_store_enabled";
+    public static final String LONG_LINE_THRESHOLD = "long_line_threshold";
+    public static final String LONG_LINE_WINDOW = "long_line_window";
+
+    private static final long DEFAULT_LINE_STEP_BUDGET = 5_000_000L;
+    private static final long DEFAULT_SCAN_STEP_BUDGET = 2_000_000_000L;
+    private static final long MIN_STEP_BUDGET = 10_000L;
+    private static final double DEFAULT_RULE_MIN_THROUGHPUT = 2.0;
+    private static final double MAX_RULE_MIN_THROUGHPUT = 10_000.0;
+    private static final SlowRulePolicy DEFAULT_SLOW_RULE_POLICY = SlowRulePolicy.REJECT;
+    private static final DiffStreamMode DEFAULT_DIFF_STREAM_MODE = DiffStreamMode.PER_FILE;
+    private static final long DEFAULT_SCAN_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private static final long DEFAULT_SCAN_PARALLELISM = 4;
+    private static final long MAX_THREADS = 256;
+    private static final long DEFAULT_BLOB_CACHE_MAX_ENTRIES = 100_000;
+    private static final long MAX_BLOB_CACHE_MAX_ENTRIES = 10_000_000;
+    private static final MergeCheckMode DEFAULT_MERGE_CHECK_MODE = MergeCheckMode.FAIL_FAST;
+    private static final long DEFAULT_MERGE_CHECK_LATENCY_BUDGET = 0; // Waits for the scan, as the merge check always has
+    private static final long MAX_MERGE_CHECK_LATENCY_BUDGET = 60_000;
+    private static final long DEFAULT_SCHEDULER_THREADS = 2;
+    private static final long DEFAULT_SCAN_QUEUE_LIMIT = 1_000;
+    private static final long DEFAULT_SCAN_QUEUE_REPOSITORY_LIMIT = 100;
+    private static final long MAX_SCAN_QUEUE_LIMIT = 100_000;
+    private static final boolean DEFAULT_PRESCAN_ENABLED = true;
+    private static final long DEFAULT_RESULT_CACHE_MAX_MEGABYTES = 256;
+    private static final long MAX_RESULT_CACHE_MAX_MEGABYTES = 1_048_576;
+    private static final boolean DEFAULT_RESULT_STORE_ENABLED = false;
+    private static final long DEFAULT_LONG_LINE_THRESHOLD = 10_000;
+    private static final long DEFAULT_LONG_LINE_WINDOW = 1_024;
+    private static final long MIN_LONG_LINE_WINDOW = 256;
+    private static final long MAX_LONG_LINE_LENGTH = 100_000_000;
+
+    /**
+     * What to do when a rule being saved is too slow (see RuleCostAnalyzer)
+     */
+    public enum SlowRulePolicy {
+        REJECT,         // The rule is not saved
+        SAVE_DISABLED   // The rule is saved, but disabled until an administrator enables it
+    }
+
+    /**
+     * How the differences of a pull request are streamed from Bitbucket during a scan
+     */
+    public enum DiffStreamMode {
+        PER_FILE,           // List the changes, then stream the diff of each added/modified file separately. The default
+        SINGLE_STREAM,      // Stream the diff of the whole pull request at once
+        GIT_ZERO_CONTEXT    // Run git diff without context lines & parse only the added lines, falls back to SINGLE_STREAM
+    }
+
+    /**
+     * How the merge check scans a pull request which has no (valid) scan result yet
+     */
+    public enum MergeCheckMode {
+        FULL,           // Find every secret, then decide
+        FAIL_FAST       // Stop at the first secret & decide, every secret is then found in the background
+    }
+
+    @Autowired
+    public ScanSettings(@ComponentImport final PluginSettingsFactory pluginSettingsFactory) {
+        this.pluginSettings = pluginSettingsFactory.createSettingsForKey(SETTINGS_NAMESPACE);
+    }
+
+    /**
+     * @return Maximum regex steps (characters read) to evaluate one rule against one line before it is considered timed out.
+     */
+    public long getLineStepBudget() {
+        return getLongOrDefault(LINE_STEP_BUDGET, DEFAULT_LINE_STEP_BUDGET);
+    }
+
+    /**
+     * @return Maximum regex steps for all rule evaluations of a single scan. Once used up, rules are no longer evaluated.
+     */
+    public long getScanStepBudget() {
+        return getLongOrDefault(SCAN_STEP_BUDGET, DEFAULT_SCAN_STEP_BUDGET);
+    }
+
+    /**
+     * @return Minimum throughput (MB/s) a rule pattern must achieve on the benchmark corpus when it is saved, as estimated from its
+     *         steps per character (see RuleCostAnalyzer). 0 disables the check.
+     */
+    public double getRuleMinThroughput() {
+        String value = (String) pluginSettings.get(getSettingKeyName(RULE_MIN_THROUGHPUT));
+        try {
+            return (value == null) ? DEFAULT_RULE_MIN_THROUGHPUT : Double.parseDouble(value);
+        }
+        catch (NumberFormatException e) {
+            log.warn(String.format("Invalid value for scan setting %s: %s, using the default: %.2f", RULE_MIN_THROUGHPUT, value,
+                    DEFAULT_RULE_MIN_THROUGHPUT));
+            return DEFAULT_RULE_MIN_THROUGHPUT;
+        }
+    }
+
+    /**
+     * @return What to do when a rule being saved is too slow
+     */
+    public SlowRulePolicy getSlowRulePolicy() {
+        return getEnumOrDefault(SLOW_RULE_POLICY, SlowRulePolicy.class, DEFAULT_SLOW_RULE_POLICY);
+    }
+
+    /**
+     * @return How the differences of a pull request are streamed during a scan
+     */
+    public DiffStreamMode getDiffStreamMode() {
+        return getEnumOrDefault(DIFF_STREAM_MODE, DiffStreamMode.class, DEFAULT_DIFF_STREAM_MODE);
+    }
+
+    /**
+     * @return Number of threads shared by every scan on this node, which caps the files scanned in parallel instance-wide
+     */
+    public int getScanThreads() {
+        return (int) getLongOrDefault(SCAN_THREADS, DEFAULT_SCAN_THREADS);
+    }
+
+    /**
+     * @return Maximum files of a single scan that are scanned in parallel. 1 scans every file on the calling thread.
+     */
+    public int getScanParallelism() {
+        return (int) getLongOrDefault(SCAN_PARALLELISM, DEFAULT_SCAN_PARALLELISM);
+    }
+
+    /**
+     * @return Maximum file versions kept in the blob findings cache on each node, 0 disables it. A change empties the cache.
+     */
+    public int getBlobCacheMaxEntries() {
+        return (int) getLongOrDefault(BLOB_CACHE_MAX_ENTRIES, DEFAULT_BLOB_CACHE_MAX_ENTRIES);
+    }
+
+    /**
+     * @return How the merge check scans a pull request which has no (valid) scan result yet
+     */
+    public MergeCheckMode getMergeCheckMode() {
+        return getEnumOrDefault(MERGE_CHECK_MODE, MergeCheckMode.class, DEFAULT_MERGE_CHECK_MODE);
+    }
+
+    /**
+     * @return Milliseconds the merge check waits for a scan result before vetoing the merge as "still scanning" (the scan
+     *         continues in the background). 0 (the default) disables the budget, the merge check waits for the scan on the
+     *         request thread.
+     */
+    public long getMergeCheckLatencyBudget() {
+        return getLongOrDefault(MERGE_CHECK_LATENCY_BUDGET, DEFAULT_MERGE_CHECK_LATENCY_BUDGET);
+    }
+
+    /**
+     * @return Number of threads running queued pull request scans (see ScanScheduler) on this node
+     */
+    public int getSchedulerThreads() {
+        return (int) getLongOrDefault(SCHEDULER_THREADS, DEFAULT_SCHEDULER_THREADS);
+    }
+
+    /**
+     * @return Maximum scans queued in each priority class of the ScanScheduler (except merge checks), more are rejected
+     */
+    public int getScanQueueLimit() {
+        return (int) getLongOrDefault(SCAN_QUEUE_LIMIT, DEFAULT_SCAN_QUEUE_LIMIT);
+    }
+
+    /**
+     * @return Maximum scans of a single repository queued in each priority class of the ScanScheduler (except merge checks),
+     *         more are rejected
+     */
+    public int getScanQueueRepositoryLimit() {
+        return (int) getLongOrDefault(SCAN_QUEUE_REPOSITORY_LIMIT, DEFAULT_SCAN_QUEUE_REPOSITORY_LIMIT);
+    }
+
+    /**
+     * @return True, if pull requests are scanned in the background when opened, reopened or rescoped (see PullRequestPrescanListener)
+     */
+    public boolean isPrescanEnabled() {
+        String value = (String) pluginSettings.get(getSettingKeyName(PRESCAN_ENABLED));
+        return (value == null) ? DEFAULT_PRESCAN_ENABLED : Boolean.parseBoolean(value);
+    }
+
+    /**
+     * @return Estimated memory (megabytes) the scan result cache may retain on each node before the least recently used
+     *         results are evicted. 0 disables the budget.
+     */
+    public long getResultCacheMaxMegabytes() {
+        return getLongOrDefault(RESULT_CACHE_MAX_MEGABYTES, DEFAULT_RESULT_CACHE_MAX_MEGABYTES);
+    }
+
+    /**
+     * @return True, if finished scan results are also stored in the database (see PersistentScanResultStore), so they
+     *         survive restarts & clearing the result cache
+     */
+    public boolean isResultStoreEnabled() {
+        String value = (String) pluginSettings.get(getSettingKeyName(RESULT_STORE_ENABLED));
+        return (value == null) ? DEFAULT_RESULT_STORE_ENABLED : Boolean.parseBoolean(value);
+    }
+
+    /**
+     * @return Length (characters) over which a line is matched in overlapping windows rather than as a whole (see
+     *         LongLineWindows). 0 disables windows, every line is matched as a whole.
+     */
+    public int getLongLineThreshold() {
+        return (int) getLongOrDefault(LONG_LINE_THRESHOLD, DEFAULT_LONG_LINE_THRESHOLD);
+    }
+
+    /**
+     * @return Length (characters) of the windows a long line is matched in. A rule without a maximum match length only
+     *         finds matches up to half a window long in a long line.
+     */
+    public int getLongLineWindow() {
+        return (int) getLongOrDefault(LONG_LINE_WINDOW, DEFAULT_LONG_LINE_WINDOW);
+    }
+
+    /**
+     * @return Every scan setting & its current value (or default value if not set)
+     */
+    @NotNull
+    public Map<String, Object> getAllSettings() {
+        final Map<String, Object> settings = new LinkedHashMap<>();
+        settings.put(LINE_STEP_BUDGET, getLineStepBudget());
+        settings.put(SCAN_STEP_BUDGET, getScanStepBudget());
+        settings.put(RULE_MIN_THROUGHPUT, getRuleMinThroughput());
+        settings.put(SLOW_RULE_POLICY, getSlowRulePolicy().name());
+        settings.put(DIFF_STREAM_MODE, getDiffStreamMode().name());
+        settings.put(SCAN_THREADS, getScanThreads());
+        settings.put(SCAN_PARALLELISM, getScanParallelism());
+        settings.put(BLOB_CACHE_MAX_ENTRIES, getBlobCacheMaxEntries());
+        settings.put(MERGE_CHECK_MODE, getMergeCheckMode().name());
+        settings.put(MERGE_CHECK_LATENCY_BUDGET, getMergeCheckLatencyBudget());
+        settings.put(SCHEDULER_THREADS, getSchedulerThreads());
+        settings.put(SCAN_QUEUE_LIMIT, getScanQueueLimit());
+        settings.put(SCAN_QUEUE_REPOSITORY_LIMIT, getScanQueueRepositoryLimit());
+        settings.put(PRESCAN_ENABLED, isPrescanEnabled());
+        settings.put(RESULT_CACHE_MAX_MEGABYTES, getResultCacheMaxMegabytes());
+        settings.put(RESULT_STORE_ENABLED, isResultStoreEnabled());
+        settings.put(LONG_LINE_THRESHOLD, getLongLineThreshold());
+        settings.put(LONG_LINE_WINDOW, getLongLineWindow());
+        return settings;
+    }
+
+    /**
+     * Validate & update a single scan setting in plugin settings.
+     * @param key The name of the setting (see getAllSettings())
+     * @param value The new value of the setting, as a string
+     * @throws IllegalArgumentException Unknown setting or the value did not pass validation. Includes explanation why.
+     */
+    public void updateSetting(@NotNull String key, @NotNull String value) throws IllegalArgumentException {
+        switch (key) {
+            case LINE_STEP_BUDGET:
+            case SCAN_STEP_BUDGET:
+                putLong(key, parseLong(key, value, MIN_STEP_BUDGET, Long.MAX_VALUE));
+                break;
+            case RULE_MIN_THROUGHPUT:
+                put(key, Double.toString(parseDouble(key, value, 0, MAX_RULE_MIN_THROUGHPUT)));
+                break;
+            case SLOW_RULE_POLICY:
+                put(key, parseEnum(key, SlowRulePolicy.class, value).name());
+                break;
+            case DIFF_STREAM_MODE:
+                put(key, parseEnum(key, DiffStreamMode.class, value).name());
+                break;
+            case SCAN_THREADS:
+            case SCAN_PARALLELISM:
+            case SCHEDULER_THREADS:
+                putLong(key, parseLong(key, value, 1, MAX_THREADS));
+                break;
+            case BLOB_CACHE_MAX_ENTRIES:
+                putLong(key, parseLong(key, value, 0, MAX_BLOB_CACHE_MAX_ENTRIES));
+                break;
+            case MERGE_CHECK_MODE:
+                put(key, parseEnum(key, MergeCheckMode.class, value).name());
+                break;
+            case MERGE_CHECK_LATENCY_BUDGET:
+                putLong(key, parseLong(key, value, 0, MAX_MERGE_CHECK_LATENCY_BUDGET));
+                break;
+            case SCAN_QUEUE_LIMIT:
+            case SCAN_QUEUE_REPOSITORY_LIMIT:
+                putLong(key, parseLong(key, value, 1, MAX_SCAN_QUEUE_LIMIT));
+                break;
+            case PRESCAN_ENABLED:
+            case RESULT_STORE_ENABLED:
+                put(key, Boolean.toString(parseBoolean(key, value)));
+                break;
+            case RESULT_CACHE_MAX_MEGABYTES:
+                putLong(key, parseLong(key, value, 0, MAX_RESULT_CACHE_MAX_MEGABYTES));
+                break;
+            case LONG_LINE_THRESHOLD:
+                putLong(key, parseLong(key, value, 0, MAX_LONG_LINE_LENGTH));
+                break;
+            case LONG_LINE_WINDOW:
+                putLong(key, parseLong(key, value, MIN_LONG_LINE_WINDOW, MAX_LONG_LINE_LENGTH));
+                break;
+            default:
+                throw new IllegalArgumentException(String.format("Unknown scan setting: %s", key));
+        }
+    }
+
+    private long parseLong(String key, String value, long min, long max) throws IllegalArgumentException {
+        try {
+            long parsed = Long.parseLong(value.trim());
+            if (parsed < min || parsed > max)
+                throw new IllegalArgumentException(String.format("Scan setting %s must be between %d and %d.", key, min, max));
+            return parsed;
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("Scan setting %s must be a whole number.", key));
+        }
+    }
+
+    private double parseDouble(String key, String value, double min, double max) throws IllegalArgumentException {
+        try {
+            double parsed = Double.parseDouble(value.trim());
+            if (Double.isNaN(parsed) || parsed < min || parsed > max)
+                throw new IllegalArgumentException(String.format("Scan setting %s must be between %.2f and %.2f.", key, min, max));
+            return parsed;
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("Scan setting %s must be a number.", key));
+        }
+    }
+
+    private boolean parseBoolean(String key, String value) throws IllegalArgumentException {
+        if ("true".equalsIgnoreCase(value.trim()))
+            return true;
+        if ("false".equalsIgnoreCase(value.trim()))
+            return false;
+        throw new IllegalArgumentException(String.format("Scan setting %s must be true or false.", key));
+    }
+
+    private <E extends Enum<E>> E parseEnum(String key, Class<E> type, String value) throws IllegalArgumentException {
+        try {
+            return Enum.valueOf(type, value.trim().toUpperCase());
+        }
+        catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(String.format("Scan setting %s must be one of: %s", key,
+                    Arrays.toString(type.getEnumConstants())));
+        }
+    }
+
+    private <E extends Enum<E>> E getEnumOrDefault(String key, Class<E> type, E defaultValue) {
+        String value = (String) pluginSettings.get(getSettingKeyName(key));
+        try {
+            return (value == null) ? defaultValue : Enum.valueOf(type, value);
+        }
+        catch (IllegalArgumentException e) {
+            log.warn(String.format("Invalid value for scan setting %s: %s, using the default: %s", key, value, defaultValue));
+            return defaultValue;
+        }
+    }
+
+    private long getLongOrDefault(String key, long defaultValue) {
+        String value = (String) pluginSettings.get(getSettingKeyName(key));
+        try {
+            return (value == null) ? defaultValue : Long.parseLong(value);
+        }
+        catch (NumberFormatException e) {
+            log.warn(String.format("Invalid value for scan setting %s: %s, using the default: %d", key, value, defaultValue));
+            return defaultValue;
+        }
+    }
+
+    private void putLong(String key, long value) {
+        put(key, Long.toString(value));
+    }
+
+    private void put(String key, String value) {
+        pluginSettings.put(getSettingKeyName(key), value);
+        log.debug(String.format("Set scan setting Key: %s Value: %s", key, value));
+    }
+
+    /**
+     * Internal function to get a unique key identifier in plugin settings
+     * @param key The setting name
+     * @return String that is a unique key for the plugin setting.
+     */
+    private String getSettingKeyName(String key) {
+        return SETTINGS_NAMESPACE + KEY_SCAN_PREFIX + key;
+    }
+}
@@ -0,0 +1,46 @@
+package com.cyanoth.secretwarden.matching;
+
+import javax.annotation.Nonnull;
+
+/**
+ * INTERNAL: A CharSequence which counts every character read by the regex engine. Backtracking re-reads characters,
+ * so the count is a good measure of the work a pattern is doing. Once the limit is reached the match is aborted
+ * by throwing MatchBudgetExceededException, rather than letting a catastrophically backtracking pattern run (near) forever.
+ */
+final class BudgetedCharSequence implements CharSequence {
+    private final String value;
+    private final long stepLimit;
+    private long steps = 0;
+
+    BudgetedCharSequence(String value, long stepLimit) {
+        this.value = value;
+        this.stepLimit = stepLimit;
+    }
+
+    @Override
+    public int length() {
+        return value.length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (++steps > stepLimit)
+            throw new MatchBudgetExceededException(stepLimit);
+        return value.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return value.subSequence(start, end); // Only used to extract matched groups, not whilst matching
+    }
+
+    @Nonnull
+    @Override
+    public String toString() {
+        return value;
+    }
+
+    long getSteps() {
+        return Math.min(steps, stepLimit);
+    }
+}
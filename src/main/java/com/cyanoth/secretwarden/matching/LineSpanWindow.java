@@ -0,0 +1,184 @@
+package com.cyanoth.secretwarden.matching;
+
+import com.cyanoth.secretwarden.structures.MatchRule;
+
+import javax.validation.constraints.NotNull;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The recent consecutive lines of a file, which the rules that span more than one line (see MatchRule.getLineSpan) are
+ * evaluated over, such as a PEM block or the private key of a JSON service account. Created for each matcher by
+ * MatchRuleEngine.newLineSpanWindow(), not thread-safe.
+ *
+ * Lines are kept in a ring buffer of the longest line span of any rule & at most MAX_WINDOW_CHARS characters, so memory
+ * stays bounded however long the file is. A longer line can't be part of a match, it empties the window.
+ *
+ * When a line is added, each rule is evaluated over (up to) its line span of the most recent lines, joined by \n, as if
+ * that was the whole text. A rule is only evaluated when one of its literal anchors is in one of those lines, found by
+ * scanning each line once as it is added. A match is reported once, on the line where it starts.
+ */
+public final class LineSpanWindow {
+    private static final int MAX_WINDOW_CHARS = 65_536;
+
+    private final MatchRule[] rules;
+    private final boolean[] alwaysEvaluate; // Indexed as rules. True when the rule has no anchor in the automaton
+    private final LiteralAutomaton anchors;
+
+    // Ring buffer, the line with sequence number s is at index s % capacity. Sequence numbers count every line added.
+    private final String[] lines;
+    private final int[] lineNumbers;
+    private long nextSequence = 0;
+    private int count = 0;
+    private int chars = 0;
+
+    private final boolean[] found; // Reused for every line
+    private final long[] lastAnchorSequence; // Indexed as rules. Latest line which has an anchor of the rule, -1 if none
+    private final long[] lastMatchSequence; // Indexed as rules. Line the latest reported match started on, -1 if none
+
+    LineSpanWindow(MatchRule[] rules, boolean[] alwaysEvaluate, LiteralAutomaton anchors, int capacity) {
+        this.rules = rules;
+        this.alwaysEvaluate = alwaysEvaluate;
+        this.anchors = anchors;
+        this.lines = new String[capacity];
+        this.lineNumbers = new int[capacity];
+        this.found = new boolean[rules.length];
+        this.lastAnchorSequence = new long[rules.length];
+        this.lastMatchSequence = new long[rules.length];
+        Arrays.fill(lastAnchorSequence, -1);
+        Arrays.fill(lastMatchSequence, -1);
+    }
+
+    /**
+     * Empty the window, the next line added isn't consecutive to the previous one (i.e. another file or hunk).
+     */
+    public void clear() {
+        Arrays.fill(lines, null);
+        count = 0;
+        chars = 0;
+    }
+
+    /**
+     * Add the next line & find every rule which matches the recent lines, without exceeding the budget. Each evaluation
+     * counts as a line for the line step limit.
+     * @param line The next line
+     * @param lineNumber Line number of the line in the file, reported for the matches that start on it
+     * @param budget Budget of the scan the line belongs to
+     * @param timedOut Output, rules which exceeded the budget (or could not be evaluated as it has ran out) are added to this
+     * @return Rules which match & the line where each match starts, in rule number order. Empty if no new match was found.
+     */
+    @NotNull
+    public List<Match> add(@NotNull String line, int lineNumber, @NotNull MatchBudget budget, @NotNull List<MatchRule> timedOut) {
+        if (line.length() > MAX_WINDOW_CHARS) {
+            clear();
+            return Collections.emptyList();
+        }
+
+        while (count > 0 && (count == lines.length || chars + count + line.length() > MAX_WINDOW_CHARS)) {
+            final int oldest = index(nextSequence - count);
+            chars -= lines[oldest].length();
+            lines[oldest] = null;
+            count--;
+        }
+
+        final long sequence = nextSequence++;
+        lines[index(sequence)] = line;
+        lineNumbers[index(sequence)] = lineNumber;
+        count++;
+        chars += line.length();
+
+        Arrays.fill(found, false);
+        anchors.scan(line, found);
+        for (int i = 0; i < rules.length; i++) {
+            if (found[i])
+                lastAnchorSequence[i] = sequence;
+        }
+
+        final long oldestSequence = sequence - count + 1;
+        String text = null;
+        int[] offsets = null;
+        List<Match> matched = null;
+
+        for (int i = 0; i < rules.length; i++) {
+            // Only the lines after the previous match of the rule, so the same match isn't reported again
+            final long first = Math.max(oldestSequence,
+                    Math.max(sequence - rules[i].getLineSpan() + 1, lastMatchSequence[i] + 1));
+            if (first > sequence || (!alwaysEvaluate[i] && lastAnchorSequence[i] < first))
+                continue;
+
+            if (budget.isExhausted()) {
+                timedOut.add(rules[i]);
+                continue;
+            }
+
+            if (text == null) {
+                offsets = new int[count];
+                final StringBuilder joined = new StringBuilder(chars + count);
+                for (int k = 0; k < count; k++) {
+                    if (k > 0)
+                        joined.append('\n');
+                    offsets[k] = joined.length();
+                    joined.append(lines[index(oldestSequence + k)]);
+                }
+                text = joined.toString();
+            }
+
+            try {
+                long from = first;
+                while (from <= sequence) {
+                    final int start = budget.find(rules[i].getCompiledRegexPattern(), text,
+                            offsets[(int) (from - oldestSequence)], text.length());
+                    if (start == -1)
+                        break;
+
+                    final long startSequence = oldestSequence + lineAt(offsets, start);
+                    if (matched == null)
+                        matched = new ArrayList<>(2);
+                    matched.add(new Match(rules[i], lineNumbers[index(startSequence)]));
+                    lastMatchSequence[i] = startSequence;
+                    from = startSequence + 1;
+                }
+            }
+            catch (MatchBudgetExceededException e) {
+                timedOut.add(rules[i]);
+            }
+        }
+
+        return matched == null ? Collections.emptyList() : matched;
+    }
+
+    private int index(long sequence) {
+        return (int) (sequence % lines.length);
+    }
+
+    /**
+     * @return Index of the line (in the joined text) which the offset is on
+     */
+    private static int lineAt(int[] offsets, int offset) {
+        int line = Arrays.binarySearch(offsets, offset);
+        return line >= 0 ? line : -line - 2;
+    }
+
+    /**
+     * A rule which matches the window, and the line number the match starts on
+     */
+    public static final class Match {
+        private final MatchRule rule;
+        private final int lineNumber;
+
+        Match(MatchRule rule, int lineNumber) {
+            this.rule = rule;
+            this.lineNumber = lineNumber;
+        }
+
+        public MatchRule getRule() {
+            return rule;
+        }
+
+        public int getLineNumber() {
+            return lineNumber;
+        }
+    }
+}
@@ -0,0 +1,537 @@
+package com.cyanoth.secretwarden.matching;
+
+import javax.validation.constraints.NotNull;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Extracts the literal anchors of a (case-insensitive) regular expression. That is, a set of literal strings where
+ * at least one of them must appear in any text the regular expression can match. If none of the anchors are present in a line,
+ * the regular expression cannot match it, so it does not need to be run at all.
+ *
+ * The pattern is parsed into a tree of concatenations, alternations, quantifiers and character classes, where for every node either:
+ *    Exact - the (small) set of all strings that node can match, i.e. [t|T][w|W] = {tw, t|, |w, ||}
+ *    Required - a set of strings, at least one of which must appear in the text that node matches.
+ *
+ * The analysis must never produce an anchor that a matching line does not contain, so any construct which is not understood
+ * (back-references, comments mode, unusual escapes etc.) makes the node (or the whole pattern) have no requirement.
+ * Letters are folded to lower-case as per Pattern.CASE_INSENSITIVE (US-ASCII only), so a pattern turning on Unicode case
+ * ((?u) or (?U)) has no anchors.
+ *
+ * The same analysis also bounds the length of the text the regular expression can match (see maxMatchLength), which is
+ * what the windows of a long line must overlap by (see LongLineWindows). A character class or . counts as 2 characters,
+ * as it may match a surrogate pair.
+ *
+ * [1] https://swtch.com/~rsc/regexp/regexp4.html (Indexed Regular Expression Search)
+ */
+public final class LiteralAnchorExtractor {
+    private static final int MAX_EXACT_STRINGS = 64;
+    private static final int MAX_REQUIRED_STRINGS = 256;
+    private static final int MAX_CLASS_CHARS = 8;
+    private static final int MAX_CLASS_RANGE = 64;
+    private static final int UNBOUNDED = -1;
+    private static final int MAX_CHARACTER_LENGTH = 2; // Surrogate pair
+
+    private final String pattern;
+    private int pos = 0;
+
+    private LiteralAnchorExtractor(String pattern) {
+        this.pattern = pattern;
+    }
+
+    /**
+     * @param regexPattern The regular expression to extract anchors from. This is expected to be a valid pattern.
+     * @return Lower-case literal anchors, at least one of which is in any text the pattern matches. Empty if there are none.
+     */
+    @NotNull
+    public static Set<String> extract(String regexPattern) {
+        final Info info = analyze(regexPattern);
+        final Set<String> anchors = info == null ? null : info.required();
+        return anchors == null ? Collections.emptySet() : Collections.unmodifiableSet(anchors);
+    }
+
+    /**
+     * @param regexPattern The regular expression to analyze. This is expected to be a valid pattern.
+     * @return Maximum length (characters) of any text the pattern matches, lookarounds excluded. -1 if it is unbounded or unknown.
+     */
+    public static int maxMatchLength(String regexPattern) {
+        final Info info = analyze(regexPattern);
+        return (info == null || info.maxLength > Integer.MAX_VALUE) ? UNBOUNDED : (int) info.maxLength;
+    }
+
+    /**
+     * @return What is known about the whole pattern, null if the analysis can't be trusted
+     */
+    private static Info analyze(String regexPattern) {
+        if (regexPattern == null || regexPattern.isEmpty())
+            return null;
+
+        try {
+            final LiteralAnchorExtractor parser = new LiteralAnchorExtractor(regexPattern);
+            final Info info = parser.parseAlternation();
+
+            if (parser.pos != regexPattern.length()) // Unbalanced group, don't trust the analysis
+                return null;
+            return info;
+        }
+        catch (UnsupportedConstructException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private Info parseAlternation() throws UnsupportedConstructException {
+        Info result = parseSequence();
+        while (pos < pattern.length() && pattern.charAt(pos) == '|') {
+            pos++;
+            result = Info.alternate(result, parseSequence());
+        }
+        return result;
+    }
+
+    /**
+     * A sequence keeps a run of consecutive exact atoms (i.e. a literal) growing until it hits an atom which isn't exact
+     * or the run would become too large. The run is then closed and only the most selective requirement seen is kept.
+     */
+    private Info parseSequence() throws UnsupportedConstructException {
+        Info run = Info.EMPTY;
+        Set<String> required = null;
+        boolean exact = true;
+        long maxLength = 0;
+
+        while (pos < pattern.length() && pattern.charAt(pos) != '|' && pattern.charAt(pos) != ')') {
+            final Info atom = parseQuantifier(parseAtom());
+            maxLength = Info.addLengths(maxLength, atom.maxLength);
+
+            if (atom.exact != null && run.exact.size() * atom.exact.size() <= MAX_EXACT_STRINGS) {
+                run = Info.concat(run, atom);
+                continue;
+            }
+
+            exact = false;
+            required = Info.moreSelective(required, run.required());
+
+            if (atom.exact != null) {
+                run = atom;
+            } else {
+                required = Info.moreSelective(required, atom.required());
+                run = Info.EMPTY;
+            }
+        }
+
+        return exact ? run : new Info(null, Info.moreSelective(required, run.required()), maxLength);
+    }
+
+    private Info parseAtom() throws UnsupportedConstructException {
+        final char c = pattern.charAt(pos);
+
+        switch (c) {
+            case '(':
+                return parseGroup();
+            case '[':
+                return parseCharacterClass();
+            case '\\':
+                return parseEscape();
+            case '.':
+                pos++;
+                return Info.ANY;
+            case '^':
+            case '$':
+                pos++;
+                return Info.EMPTY;
+            case '*':
+            case '+':
+            case '?':
+            case '{':
+                throw new UnsupportedConstructException("Dangling quantifier");
+            default:
+                pos++;
+                return Info.character(c);
+        }
+    }
+
+    private Info parseGroup() throws UnsupportedConstructException {
+        pos++; // (
+        boolean lookaround = false;
+
+        if (peek() == '?') {
+            pos++;
+            final char type = next();
+
+            if (type == '=' || type == '!') {
+                lookaround = true;
+            } else if (type == '<' && (peek() == '=' || peek() == '!')) {
+                pos++;
+                lookaround = true;
+            } else if (type == '<') { // Named group
+                while (next() != '>') {
+                    // skip the group name
+                }
+            } else if (type != ':' && type != '>') { // Inline flags: (?flags) or (?flags:X)
+                pos--;
+                char flag;
+                while ((flag = next()) != ')' && flag != ':') {
+                    if (flag == 'x') // Comments mode changes how the pattern is parsed
+                        throw new UnsupportedConstructException("Comments mode");
+                    if (flag == 'u' || flag == 'U') // Unicode case folds non-ASCII letters too, e.g. the Kelvin sign onto k
+                        throw new UnsupportedConstructException("Unicode case");
+                }
+                if (flag == ')')
+                    return Info.EMPTY;
+            }
+        }
+
+        final Info inner = parseAlternation();
+        if (next() != ')')
+            throw new UnsupportedConstructException("Unbalanced group");
+
+        // A lookaround doesn't consume any of the text, whatever it contains isn't required to be in the matched text
+        return lookaround ? Info.EMPTY : inner;
+    }
+
+    private Info parseEscape() throws UnsupportedConstructException {
+        pos++; // backslash
+        final char c = next();
+
+        switch (c) {
+            case 'b': case 'B': case 'A': case 'G': case 'Z': case 'z':
+                return Info.EMPTY;
+            case 'd': case 'D': case 's': case 'S': case 'w': case 'W':
+            case 'h': case 'H': case 'v': case 'V': case 'R':
+                return Info.ANY;
+            case 'X': // Grapheme cluster, any number of characters
+                return Info.unknown(UNBOUNDED);
+            case 'n': case 'r': // Line terminators are never in an anchor, the automaton may be scanning lines
+                return Info.ANY;
+            case 't':
+                return Info.character('\t');
+            case 'p': case 'P':
+                skipPropertyName();
+                return Info.ANY;
+            case 'Q': {
+                int end = pattern.indexOf("\\E", pos);
+                if (end == -1)
+                    end = pattern.length();
+
+                Info quoted = Info.EMPTY;
+                for (int i = pos; i < end; i++)
+                    quoted = Info.concat(quoted, Info.character(pattern.charAt(i)));
+
+                pos = Math.min(end + 2, pattern.length());
+                return quoted;
+            }
+            default:
+                if (Character.isLetterOrDigit(c)) // Back-references, control characters, octal, hex, unicode escapes
+                    throw new UnsupportedConstructException("Escape: \\" + c);
+                return Info.character(c);
+        }
+    }
+
+    private Info parseCharacterClass() throws UnsupportedConstructException {
+        pos++; // [
+        boolean complex = false;
+        final Set<Character> characters = new LinkedHashSet<>();
+
+        if (peek() == '^') {
+            pos++;
+            complex = true;
+        }
+
+        if (peek() == ']')
+            throw new UnsupportedConstructException("Class starting with ]");
+
+        while (true) {
+            final char c = next();
+
+            if (c == ']')
+                break;
+
+            if (c == '[') {
+                pos--;
+                skipNestedCharacterClass();
+                complex = true;
+                continue;
+            }
+
+            if (c == '&' && peek() == '&') {
+                pos++;
+                complex = true;
+                continue;
+            }
+
+            final int low;
+            if (c == '\\') {
+                final int escaped = parseClassEscape();
+                if (escaped == -1) {
+                    complex = true;
+                    continue;
+                }
+                low = escaped;
+            } else {
+                low = c;
+            }
+
+            if (peek() == '-' && pos + 1 < pattern.length() && pattern.charAt(pos + 1) != ']') {
+                pos++;
+                final char h = next();
+                final int high = (h == '\\') ? parseClassEscape() : h;
+
+                if (high == -1 || h == '[')
+                    throw new UnsupportedConstructException("Range");
+
+                if (high - low > MAX_CLASS_RANGE) {
+                    complex = true;
+                } else {
+                    for (int r = low; r <= high; r++)
+                        characters.add((char) r);
+                }
+            } else {
+                characters.add((char) low);
+            }
+        }
+
+        if (complex)
+            return Info.ANY;
+
+        final Set<String> exact = new LinkedHashSet<>();
+        for (char character : characters) {
+            if (character >= 128)
+                return Info.ANY;
+            exact.add(String.valueOf(fold(character)));
+        }
+
+        return exact.size() > MAX_CLASS_CHARS ? Info.ANY : Info.exact(exact);
+    }
+
+    /**
+     * @return The escaped character (within a character class) or -1 if the escape is a predefined class (\d, \w etc.)
+     */
+    private int parseClassEscape() throws UnsupportedConstructException {
+        final char c = next();
+        switch (c) {
+            case 'd': case 'D': case 's': case 'S': case 'w': case 'W': case 'h': case 'H': case 'v': case 'V':
+                return -1;
+            case 'p': case 'P':
+                skipPropertyName();
+                return -1;
+            default:
+                if (Character.isLetterOrDigit(c))
+                    throw new UnsupportedConstructException("Class escape: \\" + c);
+                return c;
+        }
+    }
+
+    private void skipNestedCharacterClass() throws UnsupportedConstructException {
+        int depth = 0;
+        do {
+            final char c = next();
+            if (c == '\\')
+                next();
+            else if (c == '[')
+                depth++;
+            else if (c == ']')
+                depth--;
+        } while (depth > 0);
+    }
+
+    private void skipPropertyName() throws UnsupportedConstructException {
+        if (next() == '{') {
+            while (next() != '}') {
+                // skip the property name
+            }
+        }
+    }
+
+    private Info parseQuantifier(Info atom) throws UnsupportedConstructException {
+        if (pos >= pattern.length())
+            return atom;
+
+        final int min;
+        final int max;
+
+        switch (pattern.charAt(pos)) {
+            case '*':
+                min = 0;
+                max = UNBOUNDED;
+                pos++;
+                break;
+            case '+':
+                min = 1;
+                max = UNBOUNDED;
+                pos++;
+                break;
+            case '?':
+                min = 0;
+                max = 1;
+                pos++;
+                break;
+            case '{': {
+                final int close = pattern.indexOf('}', pos);
+                if (close == -1)
+                    throw new UnsupportedConstructException("Unclosed repetition");
+
+                final String[] bounds = pattern.substring(pos + 1, close).split(",", -1);
+                min = Integer.parseInt(bounds[0].trim());
+                max = bounds.length == 1 ? min : (bounds[1].trim().isEmpty() ? UNBOUNDED : Integer.parseInt(bounds[1].trim()));
+                pos = close + 1;
+                break;
+            }
+            default:
+                return atom;
+        }
+
+        // Lazy or possessive quantifier suffix, doesn't change what can be matched
+        if (pos < pattern.length() && (pattern.charAt(pos) == '?' || pattern.charAt(pos) == '+'))
+            pos++;
+
+        return Info.repeat(atom, min, max);
+    }
+
+    private char peek() {
+        return pos < pattern.length() ? pattern.charAt(pos) : '\0';
+    }
+
+    private char next() throws UnsupportedConstructException {
+        if (pos >= pattern.length())
+            throw new UnsupportedConstructException("Unexpected end of pattern");
+        return pattern.charAt(pos++);
+    }
+
+    private static char fold(char c) {
+        return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    /**
+     * INTERNAL: What is known about the text a node in the pattern can match.
+     */
+    private static final class Info {
+        static final Info ANY = new Info(null, null, MAX_CHARACTER_LENGTH); // Any single character
+        static final Info EMPTY = new Info(Collections.singleton(""), null, 0);
+
+        final Set<String> exact; // Every string this node can match. Null if unknown or too many
+        final Set<String> required; // At least one of these is in any text this node matches. Null if no requirement
+        final long maxLength; // Longest text this node can match, UNBOUNDED if there is no limit
+
+        Info(Set<String> exact, Set<String> required, long maxLength) {
+            this.exact = exact;
+            this.required = required;
+            this.maxLength = maxLength;
+        }
+
+        static Info exact(Set<String> exact) {
+            return new Info(exact, null, exact.stream().mapToInt(String::length).max().orElse(0));
+        }
+
+        /**
+         * @return Any text up to the length, with no requirement
+         */
+        static Info unknown(long maxLength) {
+            return new Info(null, null, maxLength);
+        }
+
+        static Info character(char c) {
+            return c >= 128 ? ANY : exact(Collections.singleton(String.valueOf(fold(c))));
+        }
+
+        /**
+         * @return Strings of which at least one must be in the matched text. Null if there is no such requirement.
+         */
+        Set<String> required() {
+            if (exact != null)
+                return exact.contains("") ? null : exact;
+            return required;
+        }
+
+        static Info concat(Info a, Info b) {
+            if (a.exact != null && b.exact != null && a.exact.size() * b.exact.size() <= MAX_EXACT_STRINGS) {
+                final Set<String> product = new LinkedHashSet<>();
+                for (String x : a.exact) {
+                    for (String y : b.exact)
+                        product.add(x + y);
+                }
+                return exact(product);
+            }
+
+            // Both sides are required, but it is enough (& simpler) to keep only the more selective one
+            return new Info(null, moreSelective(a.required(), b.required()), addLengths(a.maxLength, b.maxLength));
+        }
+
+        static Info alternate(Info a, Info b) {
+            if (a.exact != null && b.exact != null && a.exact.size() + b.exact.size() <= MAX_EXACT_STRINGS) {
+                final Set<String> union = new LinkedHashSet<>(a.exact);
+                union.addAll(b.exact);
+                return exact(union);
+            }
+
+            // Either side may match, so one of the requirements of either side must be present
+            final long maxLength = (a.maxLength == UNBOUNDED || b.maxLength == UNBOUNDED)
+                    ? UNBOUNDED : Math.max(a.maxLength, b.maxLength);
+            final Set<String> ra = a.required();
+            final Set<String> rb = b.required();
+            if (ra == null || rb == null || ra.size() + rb.size() > MAX_REQUIRED_STRINGS)
+                return unknown(maxLength);
+
+            final Set<String> union = new LinkedHashSet<>(ra);
+            union.addAll(rb);
+            return new Info(null, union, maxLength);
+        }
+
+        static Info repeat(Info atom, int min, int max) {
+            final long maxLength = (max == UNBOUNDED || atom.maxLength == UNBOUNDED)
+                    ? (atom.maxLength == 0 ? 0 : UNBOUNDED) : multiplyLength(atom.maxLength, max);
+
+            if (min == 0) {
+                if (max == 1 && atom.exact != null && atom.exact.size() < MAX_EXACT_STRINGS) {
+                    final Set<String> optional = new LinkedHashSet<>(atom.exact);
+                    optional.add("");
+                    return exact(optional);
+                }
+                return unknown(maxLength);
+            }
+
+            if (min == max && atom.exact != null) {
+                Info repeated = EMPTY;
+                for (int i = 0; i < min && repeated.exact != null; i++)
+                    repeated = concat(repeated, atom);
+                return repeated.exact != null ? repeated : new Info(null, repeated.required(), maxLength);
+            }
+
+            // Occurs at least once, so whatever the atom requires is still required
+            return new Info(null, atom.required(), maxLength);
+        }
+
+        static long addLengths(long a, long b) {
+            return (a == UNBOUNDED || b == UNBOUNDED || a + b > Integer.MAX_VALUE) ? UNBOUNDED : a + b;
+        }
+
+        private static long multiplyLength(long length, int times) {
+            return (length != 0 && times > Integer.MAX_VALUE / length) ? UNBOUNDED : length * times;
+        }
+
+        /**
+         * The more selective requirement is the one whose shortest string is longest, then the one with fewer strings.
+         */
+        static Set<String> moreSelective(Set<String> a, Set<String> b) {
+            if (a == null)
+                return b;
+            if (b == null)
+                return a;
+
+            final int minA = a.stream().mapToInt(String::length).min().orElse(0);
+            final int minB = b.stream().mapToInt(String::length).min().orElse(0);
+
+            if (minA != minB)
+                return minA > minB ? a : b;
+            return a.size() <= b.size() ? a : b;
+        }
+    }
+
+    /**
+     * INTERNAL: The pattern uses a construct the extractor does not understand, so no anchor can be trusted.
+     */
+    private static final class UnsupportedConstructException extends Exception {
+        UnsupportedConstructException(String construct) {
+            super(construct);
+        }
+    }
+}
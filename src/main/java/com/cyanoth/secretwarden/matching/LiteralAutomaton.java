@@ -0,0 +1,214 @@
+package com.cyanoth.secretwarden.matching;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * INTERNAL: An Aho-Corasick automaton over (US-ASCII) case-insensitive literals. Every literal belongs to one or more owners
+ * (rule indexes), a single pass over a line reports every owner that has at least one of its literals present in that line.
+ *
+ * The goto/failure functions are flattened into a single transition table (a DFA), over a compact alphabet of only the
+ * characters which appear in the literals. Any other character sends the automaton back to the root state.
+ * Case folding mirrors Pattern.CASE_INSENSITIVE (without UNICODE_CASE), that is, only US-ASCII letters are folded.
+ *
+ * [1] https://en.wikipedia.org/wiki/Aho%E2%80%93Corasick_algorithm
+ */
+final class LiteralAutomaton {
+    private static final int ASCII_SIZE = 128;
+    private static final int ROOT = 0;
+
+    private final int[] alphabet; // ASCII character -> symbol. Symbol 0 is any character not in a literal
+    private final int symbolCount;
+    private final int[] transitions; // state * symbolCount + symbol -> next state
+    private final int[][] outputs; // state -> owners which have a literal ending at that state (including via failure links)
+
+    private LiteralAutomaton(int[] alphabet, int symbolCount, int[] transitions, int[][] outputs) {
+        this.alphabet = alphabet;
+        this.symbolCount = symbolCount;
+        this.transitions = transitions;
+        this.outputs = outputs;
+    }
+
+    /**
+     * Scan text once, flag every owner which has one of its literals in the text
+     * @param text The text to scan
+     * @param found Indexed by owner, set to true if one of the owners literals were found. Never set back to false.
+     */
+    void scan(CharSequence text, boolean[] found) {
+        int state = ROOT;
+        final int length = text.length();
+
+        for (int i = 0; i < length; i++) {
+            final char c = text.charAt(i);
+            state = transitions[state * symbolCount + (c < ASCII_SIZE ? alphabet[c] : 0)];
+
+            final int[] owners = outputs[state];
+            if (owners != null) {
+                for (int owner : owners)
+                    found[owner] = true;
+            }
+        }
+    }
+
+    /**
+     * Scan text once, report every occurrence of a literal to each of its owners. Occurrences are reported in the order
+     * they end in the text.
+     * @param text The text to scan
+     * @param hits Receives the owner & end offset (exclusive) of each occurrence
+     */
+    void scan(CharSequence text, HitConsumer hits) {
+        int state = ROOT;
+        final int length = text.length();
+
+        for (int i = 0; i < length; i++) {
+            final char c = text.charAt(i);
+            state = transitions[state * symbolCount + (c < ASCII_SIZE ? alphabet[c] : 0)];
+
+            final int[] owners = outputs[state];
+            if (owners != null) {
+                for (int owner : owners)
+                    hits.onHit(owner, i + 1);
+            }
+        }
+    }
+
+    /**
+     * INTERNAL: Receives the occurrences of literals found by scan(...)
+     */
+    interface HitConsumer {
+        void onHit(int owner, int end);
+    }
+
+    /**
+     * @param literal Literal to check
+     * @return True, if the literal is made up only of characters the automaton is able to match.
+     */
+    static boolean isSupportedLiteral(String literal) {
+        if (literal == null || literal.isEmpty())
+            return false;
+
+        for (int i = 0; i < literal.length(); i++) {
+            if (literal.charAt(i) >= ASCII_SIZE)
+                return false;
+        }
+        return true;
+    }
+
+    private static char fold(char c) {
+        return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    /**
+     * INTERNAL: Collect literals & their owners, before building the (immutable) automaton.
+     */
+    static final class Builder {
+        private final Map<String, TreeSet<Integer>> literals = new LinkedHashMap<>();
+
+        /**
+         * @param literal Literal which must be supported, see isSupportedLiteral(...)
+         * @param owner Owner (index) the literal belongs to.
+         */
+        Builder add(String literal, int owner) {
+            if (!isSupportedLiteral(literal))
+                throw new IllegalArgumentException(String.format("Literal is not supported by the automaton: %s", literal));
+
+            StringBuilder folded = new StringBuilder(literal.length());
+            for (int i = 0; i < literal.length(); i++)
+                folded.append(fold(literal.charAt(i)));
+
+            literals.computeIfAbsent(folded.toString(), k -> new TreeSet<>()).add(owner);
+            return this;
+        }
+
+        LiteralAutomaton build() {
+            // Alphabet: Each distinct (folded) character gets a symbol, upper-case letters share the symbol with lower-case
+            final int[] alphabet = new int[ASCII_SIZE];
+            int symbolCount = 1;
+            for (String literal : literals.keySet()) {
+                for (int i = 0; i < literal.length(); i++) {
+                    char c = literal.charAt(i);
+                    if (alphabet[c] == 0) {
+                        alphabet[c] = symbolCount;
+                        if (c >= 'a' && c <= 'z')
+                            alphabet[c - ('a' - 'A')] = symbolCount;
+                        symbolCount++;
+                    }
+                }
+            }
+
+            // Trie (goto function). -1 is no transition
+            final List<int[]> gotoTable = new ArrayList<>();
+            final List<TreeSet<Integer>> stateOwners = new ArrayList<>();
+            gotoTable.add(newRow(symbolCount));
+            stateOwners.add(new TreeSet<>());
+
+            for (Map.Entry<String, TreeSet<Integer>> entry : literals.entrySet()) {
+                int state = ROOT;
+                for (int i = 0; i < entry.getKey().length(); i++) {
+                    int symbol = alphabet[entry.getKey().charAt(i)];
+                    if (gotoTable.get(state)[symbol] == -1) {
+                        gotoTable.get(state)[symbol] = gotoTable.size();
+                        gotoTable.add(newRow(symbolCount));
+                        stateOwners.add(new TreeSet<>());
+                    }
+                    state = gotoTable.get(state)[symbol];
+                }
+                stateOwners.get(state).addAll(entry.getValue());
+            }
+
+            // Breadth-first, compute failure links and complete the transition table so it becomes a DFA
+            final int stateCount = gotoTable.size();
+            final int[] transitions = new int[stateCount * symbolCount];
+            final int[] failure = new int[stateCount];
+            final Deque<Integer> queue = new ArrayDeque<>();
+
+            for (int symbol = 0; symbol < symbolCount; symbol++) {
+                int next = gotoTable.get(ROOT)[symbol];
+                if (symbol != 0 && next != -1) {
+                    transitions[symbol] = next;
+                    failure[next] = ROOT;
+                    queue.add(next);
+                } else {
+                    transitions[symbol] = ROOT;
+                }
+            }
+
+            while (!queue.isEmpty()) {
+                final int state = queue.poll();
+                stateOwners.get(state).addAll(stateOwners.get(failure[state]));
+
+                for (int symbol = 0; symbol < symbolCount; symbol++) {
+                    int next = gotoTable.get(state)[symbol];
+                    if (symbol != 0 && next != -1) {
+                        transitions[state * symbolCount + symbol] = next;
+                        failure[next] = transitions[failure[state] * symbolCount + symbol];
+                        queue.add(next);
+                    } else {
+                        transitions[state * symbolCount + symbol] = transitions[failure[state] * symbolCount + symbol];
+                    }
+                }
+            }
+
+            final int[][] outputs = new int[stateCount][];
+            for (int state = 0; state < stateCount; state++) {
+                TreeSet<Integer> owners = stateOwners.get(state);
+                if (!owners.isEmpty())
+                    outputs[state] = owners.stream().mapToInt(Integer::intValue).toArray();
+            }
+
+            return new LiteralAutomaton(alphabet, symbolCount, transitions, outputs);
+        }
+
+        private static int[] newRow(int symbolCount) {
+            int[] row = new int[symbolCount];
+            Arrays.fill(row, -1);
+            return row;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.cyanoth.secretwarden.matching;
+
+/**
+ * How lines which are too long to evaluate as a whole are matched, such as a minified bundle or an inline base64 blob that
+ * is a single line of megabytes. A backtracking rule may take time proportional to the square (or worse) of the length of
+ * the text it is evaluated against, so a line over the threshold is matched in fixed-size windows instead:
+ *    Window  - A region of the line a rule is evaluated against, with transparent bounds so \b, lookarounds, ^ and $
+ *              behave as they would against the whole line.
+ *    Overlap - Consecutive windows of a rule overlap by the longest text the rule can match (see
+ *              LiteralAnchorExtractor.maxMatchLength), so any match is entirely within a window. A rule without such a
+ *              bound (e.g. .+), or whose bound is over half a window, could have a match spanning windows. It is evaluated
+ *              over the whole line instead, where it either matches or times out (within the line step limit), so a long
+ *              match is never missed silently.
+ *
+ * A rule with literal anchors is only evaluated in the windows around its anchors (see MatchRuleEngine). The cost of a
+ * rule matched in windows is then linear in the length of the line, rather than unbounded. Each window counts as a line for the line step
+ * limit of the MatchBudget. Line numbers are unaffected, the windows still belong to the same line.
+ */
+public final class LongLineWindows {
+    private static final LongLineWindows DISABLED = new LongLineWindows(0, 1);
+
+    private final int threshold;
+    private final int windowLength;
+
+    /**
+     * @param threshold Length (characters) over which a line is matched in windows, 0 to always match the whole line
+     * @param windowLength Length (characters) of each window
+     */
+    public LongLineWindows(int threshold, int windowLength) {
+        if (threshold < 0 || windowLength < 1)
+            throw new IllegalArgumentException("Long line threshold must be 0 or more & the window length greater than 0");
+
+        this.threshold = threshold;
+        this.windowLength = windowLength;
+    }
+
+    /**
+     * @return Every line is matched as a whole
+     */
+    public static LongLineWindows disabled() {
+        return DISABLED;
+    }
+
+    /**
+     * @return True, if a line of this length is matched in windows
+     */
+    boolean applies(int lineLength) {
+        return threshold > 0 && lineLength > Math.max(threshold, windowLength);
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public int getWindowLength() {
+        return windowLength;
+    }
+
+    /**
+     * @param maxMatchLength Longest text the rule can match, -1 if unbounded
+     * @return True, if any match of the rule is entirely within one of its windows
+     */
+    boolean fitsWindow(int maxMatchLength) {
+        return maxMatchLength >= 0 && maxMatchLength <= windowLength / 2;
+    }
+
+}
@@ -0,0 +1,170 @@
+package com.cyanoth.secretwarden.matching;
+
+import com.cyanoth.secretwarden.structures.MatchTimeout;
+
+import javax.validation.constraints.NotNull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The amount of regex work (steps, i.e. characters read by the regex engine) a single scan is allowed to do.
+ *    Line step limit - Maximum steps for evaluating one rule against one line.
+ *    Scan step limit - Maximum steps for all rule evaluations in the scan. Once used up, rules are no longer evaluated.
+ *
+ * Evaluations which exceed the budget are recorded (up to a limit) as timeouts, so they can be reported on the scan result.
+ * Thread-safe, a budget may be shared by a scan that runs on more than one thread.
+ */
+public class MatchBudget {
+    private static final int MAX_RECORDED_TIMEOUTS = 100;
+
+    private final long lineStepLimit;
+    private final long scanStepLimit;
+    private final long initialScanSteps;
+    private final AtomicLong remainingScanSteps;
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final List<MatchTimeout> timeouts = new ArrayList<>();
+
+    /**
+     * @param lineStepLimit Maximum steps to evaluate a rule against a single line
+     * @param scanStepLimit Maximum steps for every evaluation of the scan
+     */
+    public MatchBudget(long lineStepLimit, long scanStepLimit) {
+        this(lineStepLimit, scanStepLimit, scanStepLimit);
+        if (lineStepLimit <= 0 || scanStepLimit <= 0)
+            throw new IllegalArgumentException("Match budget step limits must be greater than 0");
+    }
+
+    private MatchBudget(long lineStepLimit, long scanStepLimit, long remainingScanSteps) {
+        this.lineStepLimit = lineStepLimit;
+        this.scanStepLimit = scanStepLimit;
+        this.initialScanSteps = remainingScanSteps;
+        this.remainingScanSteps = new AtomicLong(remainingScanSteps);
+    }
+
+    /**
+     * @return A budget which (realistically) never runs out, the same as unguarded matching.
+     */
+    public static MatchBudget unlimited() {
+        return new MatchBudget(Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * @return A budget for an attempt at part of the scan which may be abandoned, e.g. git fails part-way through a pull
+     *         request which is then scanned again another way. The attempt may use whatever remains of this budget, but
+     *         its steps & timeouts only count towards this budget once committed (see commit).
+     */
+    @NotNull
+    public MatchBudget newAttempt() {
+        return new MatchBudget(lineStepLimit, scanStepLimit, remainingScanSteps.get());
+    }
+
+    /**
+     * Count the steps used & the timeouts of a completed attempt (see newAttempt) towards this budget.
+     */
+    public void commit(@NotNull MatchBudget attempt) {
+        remainingScanSteps.addAndGet(-(attempt.initialScanSteps - attempt.remainingScanSteps.get()));
+
+        final List<MatchTimeout> attemptTimeouts = attempt.getTimeouts();
+        for (MatchTimeout timeout : attemptTimeouts)
+            recordTimeout(timeout);
+        timeoutCount.addAndGet(attempt.countTimeouts() - attemptTimeouts.size()); // Those the attempt didn't record
+    }
+
+    /**
+     * @return True, if the scan step limit has been used up.
+     */
+    public boolean isExhausted() {
+        return remainingScanSteps.get() <= 0;
+    }
+
+    /**
+     * @return Steps used so far by every evaluation of the scan
+     */
+    public long countUsedSteps() {
+        return Math.min(scanStepLimit, scanStepLimit - remainingScanSteps.get());
+    }
+
+    /**
+     * Find the pattern in a line, counting & limiting the steps taken to what remains of the budget.
+     * @throws MatchBudgetExceededException The evaluation used more steps than the budget allows
+     */
+    public boolean matches(Pattern pattern, String line) throws MatchBudgetExceededException {
+        final BudgetedCharSequence guarded = new BudgetedCharSequence(line,
+                Math.max(1, Math.min(lineStepLimit, remainingScanSteps.get())));
+        try {
+            return pattern.matcher(guarded).find();
+        }
+        finally {
+            remainingScanSteps.addAndGet(-guarded.getSteps());
+        }
+    }
+
+    /**
+     * Find the pattern within a region of a line (see LongLineWindows), counting & limiting the steps taken as matches(...) does.
+     * The region has transparent, non-anchoring bounds: the pattern sees the text around the region, but the match must be within it.
+     * @param start Start offset of the region
+     * @param end End offset (exclusive) of the region
+     * @throws MatchBudgetExceededException The evaluation used more steps than the budget allows
+     */
+    boolean matches(Pattern pattern, String line, int start, int end) throws MatchBudgetExceededException {
+        return find(pattern, line, start, end, true) != -1;
+    }
+
+    /**
+     * Find the pattern within a region of a text, as if the region was the whole text (see LineSpanWindow), counting & limiting
+     * the steps taken as matches(...) does.
+     * @param start Start offset of the region
+     * @param end End offset (exclusive) of the region
+     * @return Start offset of the first match, -1 if the pattern is not found
+     * @throws MatchBudgetExceededException The evaluation used more steps than the budget allows
+     */
+    int find(Pattern pattern, String text, int start, int end) throws MatchBudgetExceededException {
+        return find(pattern, text, start, end, false);
+    }
+
+    private int find(Pattern pattern, String text, int start, int end, boolean transparentBounds) throws MatchBudgetExceededException {
+        final BudgetedCharSequence guarded = new BudgetedCharSequence(text,
+                Math.max(1, Math.min(lineStepLimit, remainingScanSteps.get())));
+        try {
+            final Matcher matcher = pattern.matcher(guarded)
+                    .region(start, end)
+                    .useTransparentBounds(transparentBounds)
+                    .useAnchoringBounds(!transparentBounds);
+            return matcher.find() ? matcher.start() : -1;
+        }
+        finally {
+            remainingScanSteps.addAndGet(-guarded.getSteps());
+        }
+    }
+
+    /**
+     * @param timeout A rule that timed out (exceeded the budget), only the first MAX_RECORDED_TIMEOUTS are kept
+     */
+    public void recordTimeout(@NotNull MatchTimeout timeout) {
+        timeoutCount.incrementAndGet();
+        synchronized (timeouts) {
+            if (timeouts.size() < MAX_RECORDED_TIMEOUTS)
+                timeouts.add(timeout);
+        }
+    }
+
+    /**
+     * @return Recorded timeouts, in the order they occurred.
+     */
+    @NotNull
+    public List<MatchTimeout> getTimeouts() {
+        synchronized (timeouts) {
+            return new ArrayList<>(timeouts);
+        }
+    }
+
+    /**
+     * @return Total number of timeouts, including those not recorded.
+     */
+    public long countTimeouts() {
+        return timeoutCount.get();
+    }
+}
@@ -0,0 +1,12 @@
+package com.cyanoth.secretwarden.matching;
+
+/**
+ * Thrown (from within the regex engine) when evaluating a rule against a line has used more steps than its budget allows.
+ * Unchecked, as it must pass through java.util.regex which only calls CharSequence methods.
+ */
+public class MatchBudgetExceededException extends RuntimeException {
+
+    public MatchBudgetExceededException(long stepLimit) {
+        super(String.format("Rule evaluation exceeded its budget of %d steps.", stepLimit), null, false, false);
+    }
+}
@@ -0,0 +1,364 @@
+package com.cyanoth.secretwarden.matching;
+
+import com.cyanoth.secretwarden.structures.MatchRule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.validation.constraints.NotNull;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A compiled, immutable (thread-safe) form of the enabled rules in a ruleset, which finds every rule that matches a line.
+ *
+ * Rather than running every regular expression against every line, each rule which has literal anchors (literal strings
+ * of which one must appear in any text the rule matches, see LiteralAnchorExtractor) has its anchors added to a single
+ * combined automaton. A line is read once by the automaton and only the rules with an anchor present are evaluated with java.util.regex.
+ * Rules which do not have an anchor (i.e. constructs that cannot be reduced to a literal) are always evaluated.
+ *
+ * A line longer than the long line threshold is matched in windows (see LongLineWindows). The automaton reports where each
+ * anchor is, so an anchored rule is only evaluated in the windows around its anchors, rather than across the whole line.
+ * A rule whose matches may not fit in a window is evaluated across the whole line, as it would be below the threshold.
+ *
+ * Rules which span more than one line (see MatchRule.getLineSpan) are not evaluated per line. They have their own automaton &
+ * are evaluated over the recent lines of a file by a LineSpanWindow, so only those rules pay for the extra work.
+ */
+public class MatchRuleEngine {
+    private static final Logger log = LoggerFactory.getLogger(MatchRuleEngine.class);
+    private static final Pattern TRAILING_AT_LEAST = Pattern.compile("\\{(\\d+),}$"); // e.g. [0-9A-Z]{16,}
+
+    private final MatchRule[] rules; // Enabled rules only, ordered by rule number so the output is deterministic
+    private final boolean[] alwaysEvaluate; // Indexed as rules. True when the rule has no anchor in the automaton
+    private final int[] maxMatchLengths; // Indexed as rules. Longest text the window pattern can match, -1 if unbounded
+    private final Pattern[] windowPatterns; // Indexed as rules. Evaluated in the windows of a long line, see toWindowPattern
+    private final LiteralAutomaton anchors;
+    private final MatchRule[] lineSpanRules; // Enabled rules which span more than one line, ordered by rule number
+    private final boolean[] lineSpanAlwaysEvaluate; // Indexed as lineSpanRules
+    private final LiteralAutomaton lineSpanAnchors;
+    private final int maxLineSpan;
+    private final int anchoredRuleCount;
+
+    /**
+     * @param matchRules Rules to compile, disabled rules are excluded.
+     */
+    public MatchRuleEngine(@NotNull Collection<MatchRule> matchRules) {
+        List<MatchRule> enabledRules = new ArrayList<>();
+        for (MatchRule rule : matchRules) {
+            if (!rule.getIsEnabled())
+                continue;
+
+            try {
+                rule.getCompiledRegexPattern(); // Compile now, rather than on the first line of a scan
+                enabledRules.add(rule);
+            }
+            catch (PatternSyntaxException e) {
+                log.warn(String.format("SecretWarden rule # %d has an invalid pattern & will not be used: %s",
+                        rule.getRuleNumber(), e.getMessage()));
+            }
+        }
+        enabledRules.sort(Comparator.comparing(MatchRule::getRuleNumber));
+
+        final List<MatchRule> singleLineRules = new ArrayList<>();
+        final List<MatchRule> multiLineRules = new ArrayList<>();
+        for (MatchRule rule : enabledRules)
+            (rule.getLineSpan() > 1 ? multiLineRules : singleLineRules).add(rule);
+
+        this.rules = singleLineRules.toArray(new MatchRule[0]);
+        this.alwaysEvaluate = new boolean[rules.length];
+        this.maxMatchLengths = new int[rules.length];
+        this.windowPatterns = new Pattern[rules.length];
+
+        final LiteralAutomaton.Builder anchorBuilder = new LiteralAutomaton.Builder();
+        int anchored = 0;
+
+        for (int i = 0; i < rules.length; i++) {
+            windowPatterns[i] = toWindowPattern(rules[i]);
+            maxMatchLengths[i] = LiteralAnchorExtractor.maxMatchLength(windowPatterns[i].pattern());
+            final Set<String> ruleAnchors = rules[i].getLiteralAnchors();
+            alwaysEvaluate[i] = ruleAnchors.isEmpty() || !ruleAnchors.stream().allMatch(LiteralAutomaton::isSupportedLiteral);
+
+            if (alwaysEvaluate[i])
+                continue;
+
+            for (String anchor : ruleAnchors)
+                anchorBuilder.add(anchor, i);
+            anchored++;
+        }
+
+        this.anchors = anchorBuilder.build();
+
+        // The anchors of a rule spanning lines are found line by line, so an anchor with a line terminator is never found
+        this.lineSpanRules = multiLineRules.toArray(new MatchRule[0]);
+        this.lineSpanAlwaysEvaluate = new boolean[lineSpanRules.length];
+        final LiteralAutomaton.Builder lineSpanAnchorBuilder = new LiteralAutomaton.Builder();
+        int maxSpan = 1;
+
+        for (int i = 0; i < lineSpanRules.length; i++) {
+            maxSpan = Math.max(maxSpan, lineSpanRules[i].getLineSpan());
+            final Set<String> ruleAnchors = lineSpanRules[i].getLiteralAnchors();
+            lineSpanAlwaysEvaluate[i] = ruleAnchors.isEmpty() || !ruleAnchors.stream().allMatch(anchor ->
+                    LiteralAutomaton.isSupportedLiteral(anchor) && anchor.indexOf('\n') == -1 && anchor.indexOf('\r') == -1);
+
+            if (lineSpanAlwaysEvaluate[i])
+                continue;
+
+            for (String anchor : ruleAnchors)
+                lineSpanAnchorBuilder.add(anchor, i);
+            anchored++;
+        }
+
+        this.lineSpanAnchors = lineSpanAnchorBuilder.build();
+        this.maxLineSpan = maxSpan;
+        this.anchoredRuleCount = anchored;
+    }
+
+    /**
+     * Find every enabled rule which matches the line. Rules which span more than one line are not evaluated, see newLineSpanWindow().
+     * @param line Line of text to check
+     * @return Matching rules, in rule number order. Empty if no rules match.
+     */
+    @NotNull
+    public List<MatchRule> match(@NotNull String line) {
+        final boolean[] candidates = new boolean[rules.length];
+        anchors.scan(line, candidates);
+
+        List<MatchRule> matched = null;
+        for (int i = 0; i < rules.length; i++) {
+            if ((candidates[i] || alwaysEvaluate[i]) && rules[i].checkMatch(line)) {
+                if (matched == null)
+                    matched = new ArrayList<>(2);
+                matched.add(rules[i]);
+            }
+        }
+
+        return matched == null ? Collections.emptyList() : matched;
+    }
+
+    /**
+     * Find every enabled rule which matches the line, without exceeding the budget. Rules that exceed the budget don't
+     * stop the other rules from being evaluated. Once the scan budget is used up, no further rules are evaluated.
+     * @param line Line of text to check
+     * @param budget Budget of the scan the line belongs to
+     * @param timedOut Output, rules which exceeded the budget (or could not be evaluated as it has ran out) are added to this
+     * @return Matching rules, in rule number order. Empty if no rules match.
+     */
+    @NotNull
+    public List<MatchRule> match(@NotNull String line, @NotNull MatchBudget budget, @NotNull List<MatchRule> timedOut) {
+        return match(line, budget, timedOut, LongLineWindows.disabled());
+    }
+
+    /**
+     * Find every enabled rule which matches the line as match(line, budget, timedOut) does, but a line over the long line
+     * threshold is matched in windows.
+     * @param longLines How lines over the long line threshold are matched
+     */
+    @NotNull
+    public List<MatchRule> match(@NotNull String line, @NotNull MatchBudget budget, @NotNull List<MatchRule> timedOut,
+                                 @NotNull LongLineWindows longLines) {
+        if (longLines.applies(line.length()))
+            return matchWindows(line, budget, timedOut, longLines);
+
+        final boolean[] candidates = new boolean[rules.length];
+        anchors.scan(line, candidates);
+
+        List<MatchRule> matched = null;
+        for (int i = 0; i < rules.length; i++) {
+            if (!candidates[i] && !alwaysEvaluate[i])
+                continue;
+
+            if (budget.isExhausted()) {
+                timedOut.add(rules[i]);
+                continue;
+            }
+
+            try {
+                if (rules[i].checkMatch(line, budget)) {
+                    if (matched == null)
+                        matched = new ArrayList<>(2);
+                    matched.add(rules[i]);
+                }
+            }
+            catch (MatchBudgetExceededException e) {
+                timedOut.add(rules[i]);
+            }
+        }
+
+        return matched == null ? Collections.emptyList() : matched;
+    }
+
+    private List<MatchRule> matchWindows(String line, MatchBudget budget, List<MatchRule> timedOut, LongLineWindows longLines) {
+        // The text around each anchor which a match containing it could span, merged into spans per rule
+        final LineSpans[] anchorSpans = new LineSpans[rules.length];
+        anchors.scan(line, (owner, end) -> {
+            if (anchorSpans[owner] == null)
+                anchorSpans[owner] = new LineSpans();
+            if (longLines.fitsWindow(maxMatchLengths[owner]))
+                anchorSpans[owner].add(Math.max(0, end - maxMatchLengths[owner]), Math.min(line.length(), end + maxMatchLengths[owner]));
+        });
+
+        List<MatchRule> matched = null;
+        for (int i = 0; i < rules.length; i++) {
+            final LineSpans spans = alwaysEvaluate[i] ? LineSpans.of(0, line.length()) : anchorSpans[i];
+            if (spans == null)
+                continue;
+
+            if (budget.isExhausted()) {
+                timedOut.add(rules[i]);
+                continue;
+            }
+
+            // A match which may be longer than half a window could span windows, so such a rule is evaluated over the whole
+            // line instead. It either matches or times out within the line step limit, a long match isn't missed silently
+            try {
+                if (longLines.fitsWindow(maxMatchLengths[i])
+                        ? matchesInWindows(windowPatterns[i], line, spans, longLines.getWindowLength(), maxMatchLengths[i], budget)
+                        : budget.matches(windowPatterns[i], line, 0, line.length())) {
+                    if (matched == null)
+                        matched = new ArrayList<>(2);
+                    matched.add(rules[i]);
+                }
+            }
+            catch (MatchBudgetExceededException e) {
+                timedOut.add(rules[i]);
+            }
+        }
+
+        return matched == null ? Collections.emptyList() : matched;
+    }
+
+    /**
+     * Windows of each span start at the span & are windowLength - overlap apart, so any match no longer than the overlap
+     * is entirely within one of them. The last window of a span ends at the end of the span.
+     */
+    private static boolean matchesInWindows(Pattern pattern, String line, LineSpans spans, int windowLength, int overlap,
+                                            MatchBudget budget) throws MatchBudgetExceededException {
+        for (int s = 0; s < spans.count; s += 2) {
+            final int spanEnd = spans.bounds[s + 1];
+            for (int start = spans.bounds[s]; ; start += windowLength - overlap) {
+                final int end = Math.min(spanEnd, start + windowLength);
+                if (budget.matches(pattern, line, start, end))
+                    return true;
+                if (end == spanEnd)
+                    break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether a rule matches anywhere doesn't depend on a leading or trailing .* (it may match nothing), only where the
+     * match starts & ends does. A leading .* is tried from every position of a window though, which makes evaluating the
+     * window quadratic (or worse), so it is removed from the pattern evaluated in windows. For the same reason a trailing
+     * X+ only needs to match X & a trailing X{n,} only X{n}, which bounds the length of the match (see maxMatchLengths).
+     * @return The pattern of the rule, without a leading or trailing .* (greedy or lazy, not possessive) & its trailing
+     *         quantifier without an upper bound reduced
+     */
+    private static Pattern toWindowPattern(MatchRule rule) {
+        String regex = rule.getRegexPattern();
+        if (regex.contains("\\Q")) // A quoted .* is literal
+            return rule.getCompiledRegexPattern();
+
+        if (regex.startsWith(".*?"))
+            regex = regex.substring(3);
+        else if (regex.startsWith(".*") && !regex.startsWith(".*+"))
+            regex = regex.substring(2);
+
+        if (regex.endsWith(".*?") && isUnescaped(regex, regex.length() - 3))
+            regex = regex.substring(0, regex.length() - 3);
+        else if (regex.endsWith(".*") && isUnescaped(regex, regex.length() - 2))
+            regex = regex.substring(0, regex.length() - 2);
+
+        final Matcher atLeast = TRAILING_AT_LEAST.matcher(regex);
+        if (atLeast.find() && isUnescaped(regex, atLeast.start()))
+            regex = regex.substring(0, atLeast.start()) + "{" + atLeast.group(1) + "}";
+        else if (regex.endsWith("+") && regex.length() > 1 && isUnescaped(regex, regex.length() - 1))
+            regex = regex.substring(0, regex.length() - 1);
+
+        if (regex.isEmpty() || regex.equals(rule.getRegexPattern()))
+            return rule.getCompiledRegexPattern();
+
+        try {
+            return Pattern.compile(regex, rule.getCompiledRegexPattern().flags());
+        }
+        catch (PatternSyntaxException e) {
+            return rule.getCompiledRegexPattern();
+        }
+    }
+
+    /**
+     * @return True, if the character at the index is not escaped (preceded by an odd number of backslashes)
+     */
+    private static boolean isUnescaped(String regex, int index) {
+        int backslashes = 0;
+        for (int i = index - 1; i >= 0 && regex.charAt(i) == '\\'; i--)
+            backslashes++;
+        return backslashes % 2 == 0;
+    }
+
+    /**
+     * @return A new, empty window of lines to evaluate the rules which span more than one line over, one per matcher (it is not
+     *         thread-safe). Null if no enabled rule spans more than one line.
+     */
+    @Nullable
+    public LineSpanWindow newLineSpanWindow() {
+        if (lineSpanRules.length == 0)
+            return null;
+        return new LineSpanWindow(lineSpanRules, lineSpanAlwaysEvaluate, lineSpanAnchors, maxLineSpan);
+    }
+
+    /**
+     * @return Number of enabled rules compiled into this engine
+     */
+    public int countRules() {
+        return rules.length + lineSpanRules.length;
+    }
+
+    /**
+     * @return Number of enabled rules which span more than one line
+     */
+    public int countLineSpanRules() {
+        return lineSpanRules.length;
+    }
+
+    /**
+     * @return Number of rules which are only evaluated when their literal anchor is present in a line.
+     */
+    public int countAnchoredRules() {
+        return anchoredRuleCount;
+    }
+
+    /**
+     * INTERNAL: Start & end (exclusive) offsets of spans of a line, in order. A span which overlaps the previous one is merged into it.
+     */
+    private static final class LineSpans {
+        private int[] bounds = new int[8];
+        private int count = 0;
+
+        static LineSpans of(int start, int end) {
+            final LineSpans spans = new LineSpans();
+            spans.add(start, end);
+            return spans;
+        }
+
+        void add(int start, int end) {
+            if (count > 0 && start <= bounds[count - 1]) {
+                bounds[count - 1] = Math.max(bounds[count - 1], end);
+                return;
+            }
+
+            if (count == bounds.length)
+                bounds = Arrays.copyOf(bounds, count * 2);
+            bounds[count++] = start;
+            bounds[count++] = end;
+        }
+    }
+}
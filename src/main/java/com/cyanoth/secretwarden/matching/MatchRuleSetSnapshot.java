@@ -0,0 +1,45 @@
+package com.cyanoth.secretwarden.matching;
+
+import com.cyanoth.secretwarden.collections.MatchRuleSet;
+
+import javax.validation.constraints.NotNull;
+
+/**
+ * An immutable, precompiled view of the ruleset on this node at a given ruleset version.
+ * Scans take a snapshot once and use it for their entirety, even if the ruleset is reloaded part-way through.
+ */
+public final class MatchRuleSetSnapshot {
+    private final long version;
+    private final MatchRuleSet ruleSet;
+    private final MatchRuleEngine matchEngine;
+
+    /**
+     * @param version The cluster-wide ruleset version this snapshot was compiled for
+     * @param ruleSet All rules (enabled & disabled). Must not be modified after the snapshot is taken.
+     */
+    public MatchRuleSetSnapshot(long version, @NotNull MatchRuleSet ruleSet) {
+        this.version = version;
+        this.ruleSet = ruleSet;
+        this.matchEngine = new MatchRuleEngine(ruleSet.getAllRules());
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return All rules (enabled & disabled) in this snapshot, i.e. for the configuration page.
+     */
+    @NotNull
+    public MatchRuleSet getRuleSet() {
+        return ruleSet;
+    }
+
+    /**
+     * @return The enabled rules of this snapshot compiled into a single engine
+     */
+    @NotNull
+    public MatchRuleEngine getMatchEngine() {
+        return matchEngine;
+    }
+}
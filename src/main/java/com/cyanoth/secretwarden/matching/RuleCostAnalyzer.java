@@ -0,0 +1,461 @@
+package com.cyanoth.secretwarden.matching;
+
+import com.cyanoth.secretwarden.structures.MatchRule;
+import com.cyanoth.secretwarden.structures.RuleCost;
+
+import javax.validation.constraints.NotNull;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Estimates how expensive a rule pattern is to evaluate, so that a slow rule can be caught when it is saved rather than
+ * during every merge check.
+ *    Static analysis - Flags pattern structures prone to catastrophic backtracking (ReDoS) [1]: nested quantifiers,
+ *                      repeated alternations with overlapping branches & a leading .* (retried from every position of a line)
+ *    Benchmark       - Evaluates the pattern against the SyntheticCorpus through a MatchRuleEngine, the same way lines are
+ *                      evaluated during a scan (anchor prefilter, long line windows & within a MatchBudget), and measures
+ *                      the throughput. The literal anchors of the rule are inserted into the corpus lines (one per line,
+ *                      in the middle), so the pattern itself is evaluated on every line rather than skipped by the prefilter.
+ *                      A rule which spans more than one line is evaluated over its line span of the corpus, as consecutive
+ *                      lines (see LineSpanWindow), so the throughput includes evaluating each line more than once.
+ *
+ * The static analysis is a heuristic, it may flag patterns which are fine in practice. So warnings are informational
+ * and only the benchmark decides whether a rule is too slow. The corpus is evaluated up to BENCHMARK_RUNS times & the
+ * fastest run is kept as the measured throughput. The elapsed time depends on the load of the node (GC, other requests),
+ * so whether the rule is too slow is decided by its steps per character instead, which are the same on every run: the
+ * minimum throughput is converted to a maximum of steps per character at NOMINAL_STEPS_PER_SECOND.
+ *
+ * [1] https://owasp.org/www-community/attacks/Regular_expression_Denial_of_Service_-_ReDoS
+ */
+public final class RuleCostAnalyzer {
+    private static final int WARMUP_LINES = 500; // Ordinary source lines, at the start of the corpus
+    private static final int BENCHMARK_RUNS = 3;
+    private static final long MAX_BENCHMARK_NANOS = 2_000_000_000L; // Of every run, the request which saves the rule waits for it
+    private static final int MAX_BOUNDED_REPEAT = 32; // {n,m} with m above this is considered as good as unbounded
+    private static final double NOMINAL_STEPS_PER_SECOND = 100_000_000; // About half the rate of a typical server, so the minimum holds on a busy one
+
+    private static final Pattern LEADING_DOT_STAR = Pattern.compile("^(\\(\\?[a-zA-Z-]+\\))*(\\((\\?:)?)*\\.[*+]");
+
+    private RuleCostAnalyzer() {
+    }
+
+    /**
+     * Measure the cost of a rule pattern.
+     * @param rule The rule to measure (over its line span), it does not need to be saved or enabled.
+     * @param lineStepLimit Maximum regex steps of a single line, as used during scans (see ScanSettings)
+     * @param longLines How lines over the long line threshold are matched during scans (see ScanSettings)
+     * @param minimumThroughputMBps The rule is too slow below this throughput (at NOMINAL_STEPS_PER_SECOND). 0 or less only
+     *                             checks for timeouts.
+     * @return The measured cost
+     * @throws PatternSyntaxException The rule pattern is not a valid regular expression
+     */
+    @NotNull
+    public static RuleCost analyze(@NotNull MatchRule rule, long lineStepLimit, @NotNull LongLineWindows longLines,
+                                   double minimumThroughputMBps) throws PatternSyntaxException {
+        rule.getCompiledRegexPattern(); // Fail now if the pattern does not compile
+        final List<String> warnings = findWarnings(rule.getRegexPattern());
+        final List<String> corpus = withAnchors(SyntheticCorpus.lines(), rule.getLiteralAnchors());
+        final MatchRuleEngine engine = new MatchRuleEngine(Collections.singletonList(rule));
+        final LineSpanWindow lineSpanWindow = engine.newLineSpanWindow(); // Null unless the rule spans more than one line
+        final List<MatchRule> timedOut = new ArrayList<>();
+
+        // Warm up (JIT) on ordinary lines first, so the timed run measures the pattern rather than the interpreter
+        for (int i = 0; i < Math.min(WARMUP_LINES, corpus.size()); i++) {
+            evaluate(engine, lineSpanWindow, corpus.get(i), i + 1, new MatchBudget(lineStepLimit, lineStepLimit), timedOut, longLines);
+            timedOut.clear();
+        }
+
+        final long benchmarkStart = System.nanoTime();
+        long bestNanos = Long.MAX_VALUE;
+        long chars = 0;
+        long steps = 0;
+        int timedOutLines = 0;
+
+        for (int run = 0; run < BENCHMARK_RUNS && System.nanoTime() - benchmarkStart < MAX_BENCHMARK_NANOS; run++) {
+            final MatchBudget budget = new MatchBudget(lineStepLimit, Long.MAX_VALUE);
+            final long start = System.nanoTime();
+            long runChars = 0;
+            int runTimedOutLines = 0;
+            int lineNumber = 0;
+            if (lineSpanWindow != null)
+                lineSpanWindow.clear();
+
+            for (String line : corpus) {
+                if (System.nanoTime() - benchmarkStart > MAX_BENCHMARK_NANOS) {
+                    if (run == 0)
+                        warnings.add(String.format("The benchmark was stopped after %d ms, only %d of %d characters were evaluated.",
+                                MAX_BENCHMARK_NANOS / 1_000_000, runChars, countChars(corpus)));
+                    break; // Otherwise a complete run has been measured already, this one is discarded
+                }
+
+                evaluate(engine, lineSpanWindow, line, ++lineNumber, budget, timedOut, longLines);
+                if (!timedOut.isEmpty()) {
+                    runTimedOutLines++;
+                    timedOut.clear();
+                }
+                runChars += line.length();
+            }
+
+            if (run == 0) { // Steps & timeouts are the same every run
+                chars = runChars;
+                steps = budget.countUsedSteps();
+                timedOutLines = runTimedOutLines;
+                bestNanos = Math.max(1, System.nanoTime() - start);
+            }
+            else if (runChars == chars) {
+                bestNanos = Math.min(bestNanos, Math.max(1, System.nanoTime() - start));
+            }
+        }
+
+        final double throughputMBps = (chars / 1_000_000.0) / (bestNanos / 1_000_000_000.0); // Corpus is US-ASCII, 1 char = 1 byte
+        final double stepsPerChar = chars == 0 ? 0 : (double) steps / chars;
+
+        final double maxStepsPerChar = minimumThroughputMBps > 0 ? NOMINAL_STEPS_PER_SECOND / (minimumThroughputMBps * 1_000_000) : 0;
+
+        return new RuleCost(throughputMBps, stepsPerChar, (System.nanoTime() - benchmarkStart) / 1_000_000, timedOutLines,
+                Math.max(0, minimumThroughputMBps), maxStepsPerChar, warnings);
+    }
+
+    /**
+     * Evaluate the rule against the next line of the corpus, as a scan would: over the recent lines if it spans more than one
+     */
+    private static void evaluate(MatchRuleEngine engine, LineSpanWindow lineSpanWindow, String line, int lineNumber,
+                                 MatchBudget budget, List<MatchRule> timedOut, LongLineWindows longLines) {
+        if (lineSpanWindow != null)
+            lineSpanWindow.add(line, lineNumber, budget, timedOut);
+        else
+            engine.match(line, budget, timedOut, longLines);
+    }
+
+    /**
+     * @return The corpus with one of the anchors (in turn) inserted into the middle of every line. The corpus if there are none.
+     */
+    private static List<String> withAnchors(List<String> corpus, Set<String> anchors) {
+        if (anchors.isEmpty())
+            return corpus;
+
+        final List<String> anchorList = new ArrayList<>(anchors);
+        final List<String> anchored = new ArrayList<>(corpus.size());
+        for (int i = 0; i < corpus.size(); i++) {
+            final String line = corpus.get(i);
+            final int middle = line.length() / 2;
+            anchored.add(line.substring(0, middle) + anchorList.get(i % anchorList.size()) + line.substring(middle));
+        }
+        return anchored;
+    }
+
+    private static long countChars(List<String> lines) {
+        long total = 0;
+        for (String line : lines)
+            total += line.length();
+        return total;
+    }
+
+    /**
+     * Statically find structures in a pattern which are prone to catastrophic backtracking.
+     * @param regexPattern The pattern to check, assumed to compile.
+     * @return Description of every structure found. Empty if none.
+     */
+    @NotNull
+    public static List<String> findWarnings(@NotNull String regexPattern) {
+        final Set<String> warnings = new LinkedHashSet<>();
+
+        if (LEADING_DOT_STAR.matcher(regexPattern).find())
+            warnings.add("Leading .* or .+ : the pattern is retried from every position of a line, which is quadratic on long lines. " +
+                    "Remove it or anchor the pattern with ^");
+
+        new StructureScanner(regexPattern, warnings).scan();
+        return new ArrayList<>(warnings);
+    }
+
+    /**
+     * INTERNAL: A single pass over the pattern, tracking groups (and their alternation branches) on a stack.
+     * Only enough of the regex syntax is understood to find atoms, groups & quantifiers.
+     */
+    private static final class StructureScanner {
+        private static final String ANY = "*"; // First atom key of anything which is not a single literal character
+
+        private final String pattern;
+        private final Set<String> warnings;
+        private final Deque<Group> groups = new ArrayDeque<>();
+        private int pos = 0;
+        private boolean hasAtom = false; // Whether there is an atom a quantifier could apply to
+        private Group lastGroup = null; // The last atom, if it was a group
+
+        StructureScanner(String pattern, Set<String> warnings) {
+            this.pattern = pattern;
+            this.warnings = warnings;
+            groups.push(new Group(false, -1));
+        }
+
+        void scan() {
+            while (pos < pattern.length()) {
+                final char c = pattern.charAt(pos);
+                switch (c) {
+                    case '\\':
+                        scanEscape();
+                        break;
+                    case '[':
+                        skipClass();
+                        atom(ANY);
+                        break;
+                    case '(':
+                        openGroup();
+                        break;
+                    case ')':
+                        closeGroup();
+                        break;
+                    case '|':
+                        groups.peek().endBranch();
+                        hasAtom = false;
+                        lastGroup = null;
+                        pos++;
+                        break;
+                    case '^':
+                    case '$':
+                        hasAtom = false;
+                        lastGroup = null;
+                        pos++;
+                        break;
+                    case '.':
+                        pos++;
+                        atom(ANY);
+                        break;
+                    case '*':
+                    case '+':
+                    case '?':
+                    case '{':
+                        scanQuantifier();
+                        break;
+                    default:
+                        pos++;
+                        atom(String.valueOf(Character.toLowerCase(c)));
+                }
+            }
+        }
+
+        private void atom(String key) {
+            groups.peek().addAtom(key);
+            hasAtom = true;
+            lastGroup = null;
+        }
+
+        private void scanEscape() {
+            if (pos + 1 >= pattern.length()) {
+                pos++;
+                return;
+            }
+
+            final char e = pattern.charAt(pos + 1);
+            pos += 2;
+            switch (e) {
+                case 'b': case 'B': case 'A': case 'z': case 'Z': case 'G': // Zero-width
+                    hasAtom = false;
+                    lastGroup = null;
+                    return;
+                case 'Q': { // Quoted literal until \E
+                    int end = pattern.indexOf("\\E", pos);
+                    end = (end == -1) ? pattern.length() : end;
+                    if (end > pos)
+                        atom(String.valueOf(Character.toLowerCase(pattern.charAt(pos))));
+                    pos = (end == pattern.length()) ? end : end + 2;
+                    return;
+                }
+                case 'p': case 'P': case 'x': case 'N':
+                    if (pos < pattern.length() && pattern.charAt(pos) == '{')
+                        pos = skipPast('}');
+                    else if (e == 'x')
+                        pos = Math.min(pattern.length(), pos + 2);
+                    else if (e != 'N')
+                        pos = Math.min(pattern.length(), pos + 1);
+                    atom(ANY);
+                    return;
+                case 'k':
+                    pos = skipPast('>');
+                    atom(ANY);
+                    return;
+                case 'u':
+                    pos = Math.min(pattern.length(), pos + 4);
+                    atom(ANY);
+                    return;
+                case 'c':
+                    pos = Math.min(pattern.length(), pos + 1);
+                    atom(ANY);
+                    return;
+                default:
+                    if (Character.isLetterOrDigit(e))
+                        atom(ANY); // Character classes (\d \w \s ...), back references, octal etc.
+                    else
+                        atom(String.valueOf(e));
+            }
+        }
+
+        private void skipClass() {
+            int depth = 0;
+            pos++; // [
+            if (pos < pattern.length() && pattern.charAt(pos) == '^')
+                pos++;
+            if (pos < pattern.length() && pattern.charAt(pos) == ']')
+                pos++; // A leading ] is a literal
+
+            while (pos < pattern.length()) {
+                final char c = pattern.charAt(pos++);
+                if (c == '\\')
+                    pos++;
+                else if (c == '[')
+                    depth++;
+                else if (c == ']' && depth-- == 0)
+                    return;
+            }
+        }
+
+        private void openGroup() {
+            pos++;
+            boolean atomic = false;
+
+            if (pos < pattern.length() && pattern.charAt(pos) == '?') {
+                pos++;
+                final char type = pos < pattern.length() ? pattern.charAt(pos) : ')';
+                if (type == '>') {
+                    atomic = true;
+                    pos++;
+                } else if (type == ':' || type == '=' || type == '!') {
+                    pos++;
+                } else if (type == '<') {
+                    pos++;
+                    if (pos < pattern.length() && (pattern.charAt(pos) == '=' || pattern.charAt(pos) == '!'))
+                        pos++;
+                    else
+                        pos = skipPast('>'); // Named group
+                } else { // Inline flags (?i) or (?i:...)
+                    while (pos < pattern.length() && pattern.charAt(pos) != ')' && pattern.charAt(pos) != ':')
+                        pos++;
+                    if (pos < pattern.length() && pattern.charAt(pos) == ')') {
+                        pos++;
+                        return; // Not a group, only sets flags
+                    }
+                    pos++;
+                }
+            }
+
+            groups.push(new Group(atomic, pos));
+            hasAtom = false;
+            lastGroup = null;
+        }
+
+        private void closeGroup() {
+            pos++;
+            if (groups.size() == 1)
+                return; // Unbalanced, would not have compiled
+
+            final Group group = groups.pop();
+            group.endBranch();
+            groups.peek().addAtom(group.branchFirsts.size() == 1 ? group.branchFirsts.get(0) : ANY);
+            groups.peek().hasRepetition |= group.hasRepetition;
+            hasAtom = true;
+            lastGroup = group;
+        }
+
+        private void scanQuantifier() {
+            final char q = pattern.charAt(pos);
+            int max;
+
+            if (q == '{') {
+                final int end = pattern.indexOf('}', pos);
+                if (end == -1) {
+                    pos++;
+                    return;
+                }
+                final String bounds = pattern.substring(pos + 1, end);
+                pos = end + 1;
+                final int comma = bounds.indexOf(',');
+                try {
+                    if (comma == -1)
+                        max = Integer.parseInt(bounds.trim());
+                    else
+                        max = bounds.substring(comma + 1).trim().isEmpty() ? -1 : Integer.parseInt(bounds.substring(comma + 1).trim());
+                } catch (NumberFormatException e) {
+                    return;
+                }
+            } else {
+                max = (q == '?') ? 1 : -1;
+                pos++;
+            }
+
+            boolean possessive = false;
+            if (pos < pattern.length() && (pattern.charAt(pos) == '+' || pattern.charAt(pos) == '?')) {
+                possessive = pattern.charAt(pos) == '+';
+                pos++;
+            }
+
+            if (!hasAtom)
+                return;
+
+            final boolean unbounded = max == -1 || max > MAX_BOUNDED_REPEAT;
+            if (unbounded && !possessive) {
+                if (lastGroup != null && !lastGroup.atomic) {
+                    if (lastGroup.hasRepetition)
+                        warnings.add(String.format("Nested quantifier: the repeated group at position %d contains a repeated element, " +
+                                "for example (a+)+", lastGroup.start));
+                    if (lastGroup.hasOverlappingBranches())
+                        warnings.add(String.format("Overlapping alternation: the repeated group at position %d has branches which " +
+                                "can start with the same character, for example (a|ab)*", lastGroup.start));
+                }
+                groups.peek().hasRepetition = true;
+            }
+
+            hasAtom = false;
+            lastGroup = null;
+        }
+
+        private int skipPast(char c) {
+            final int end = pattern.indexOf(c, pos);
+            return (end == -1) ? pattern.length() : end + 1;
+        }
+    }
+
+    /**
+     * INTERNAL: A group being scanned. Keeps the key of the first atom of each branch, to check if branches overlap.
+     */
+    private static final class Group {
+        private final boolean atomic;
+        private final int start;
+        private final List<String> branchFirsts = new ArrayList<>();
+        private String currentFirst = null;
+        private boolean hasRepetition = false;
+
+        Group(boolean atomic, int start) {
+            this.atomic = atomic;
+            this.start = start;
+        }
+
+        void addAtom(String key) {
+            if (currentFirst == null)
+                currentFirst = key;
+        }
+
+        void endBranch() {
+            branchFirsts.add(currentFirst == null ? "" : currentFirst);
+            currentFirst = null;
+        }
+
+        boolean hasOverlappingBranches() {
+            for (int i = 0; i < branchFirsts.size(); i++) {
+                for (int j = i + 1; j < branchFirsts.size(); j++) {
+                    final String a = branchFirsts.get(i);
+                    final String b = branchFirsts.get(j);
+                    if (a.equals(b) || a.isEmpty() || b.isEmpty() || a.equals(StructureScanner.ANY) || b.equals(StructureScanner.ANY))
+                        return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.cyanoth.secretwarden.matching;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * INTERNAL: A generated (deterministic) corpus of lines which are known to be expensive for regular expressions in source
+ * code, used to benchmark rule patterns before they are saved. It is generated rather than bundled as a resource, so
+ * the plugin jar stays small & the content is the same on every node.
+ *    Source code    - Ordinary lines of code, the common case
+ *    Long lines     - Very long lines of code/data (e.g. generated files)
+ *    Minified JS    - Very long lines with no whitespace & many short tokens
+ *    Base64 blobs   - Embedded binary data, both as a single line (data URI) & wrapped at 76 characters
+ */
+final class SyntheticCorpus {
+    private static final long SEED = 0x5EC12E7L; // Fixed, so every benchmark reads exactly the same corpus
+
+    private static final int SOURCE_LINES = 2000;
+    private static final int LONG_LINES = 8;
+    private static final int LONG_LINE_CHARS = 16 * 1024;
+    private static final int MINIFIED_LINES = 4;
+    private static final int BASE64_BLOB_LINES = 4;
+    private static final int BASE64_WRAPPED_LINES = 400;
+    private static final int VERY_LONG_LINE_CHARS = 32 * 1024;
+
+    private static final String BASE64_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    private static final String[] KEYWORDS = { "public", "private", "static", "final", "return", "if", "else", "for",
+            "while", "new", "import", "class", "def", "function", "var", "let", "const", "null", "true", "false" };
+    private static final String[] IDENTIFIERS = { "config", "value", "result", "request", "response", "user", "name",
+            "index", "count", "buffer", "settings", "client", "service", "handler", "builder", "options", "path", "id" };
+    private static final String[] OPERATORS = { " = ", " == ", " + ", " - ", ", ", ".", "(", ")", "[", "]", " && ", "; " };
+
+    private static volatile List<String> lines;
+
+    private SyntheticCorpus() {
+    }
+
+    /**
+     * @return Every line of the corpus (generated once, on first use).
+     */
+    static List<String> lines() {
+        if (lines == null) {
+            synchronized (SyntheticCorpus.class) {
+                if (lines == null)
+                    lines = Collections.unmodifiableList(generate());
+            }
+        }
+        return lines;
+    }
+
+    private static List<String> generate() {
+        final Random random = new Random(SEED);
+        final List<String> corpus = new ArrayList<>();
+
+        for (int i = 0; i < SOURCE_LINES; i++)
+            corpus.add(sourceLine(random, 20 + random.nextInt(100)));
+
+        for (int i = 0; i < LONG_LINES; i++)
+            corpus.add(sourceLine(random, LONG_LINE_CHARS));
+
+        for (int i = 0; i < MINIFIED_LINES; i++)
+            corpus.add(minifiedLine(random, VERY_LONG_LINE_CHARS));
+
+        for (int i = 0; i < BASE64_BLOB_LINES; i++)
+            corpus.add("\"data:image/png;base64," + base64(random, VERY_LONG_LINE_CHARS) + "\"");
+
+        for (int i = 0; i < BASE64_WRAPPED_LINES; i++)
+            corpus.add(base64(random, 76));
+
+        return corpus;
+    }
+
+    private static String sourceLine(Random random, int length) {
+        final StringBuilder line = new StringBuilder(length + 32);
+        for (int indent = random.nextInt(4); indent > 0; indent--)
+            line.append("    ");
+
+        while (line.length() < length) {
+            switch (random.nextInt(6)) {
+                case 0:
+                    line.append(pick(random, KEYWORDS)).append(' ');
+                    break;
+                case 1:
+                    line.append('"').append(pick(random, IDENTIFIERS)).append('_').append(random.nextInt(1000)).append('"');
+                    break;
+                case 2:
+                    line.append(random.nextInt(100000));
+                    break;
+                case 3:
+                    line.append(pick(random, OPERATORS));
+                    break;
+                default:
+                    line.append(pick(random, IDENTIFIERS));
+            }
+        }
+        return line.toString();
+    }
+
+    private static String minifiedLine(Random random, int length) {
+        final StringBuilder line = new StringBuilder(length + 32);
+        while (line.length() < length) {
+            switch (random.nextInt(5)) {
+                case 0:
+                    line.append("function(").append(shortName(random)).append(',').append(shortName(random)).append("){");
+                    break;
+                case 1:
+                    line.append("return ").append(shortName(random)).append('.').append(pick(random, IDENTIFIERS)).append("};");
+                    break;
+                case 2:
+                    line.append("var ").append(shortName(random)).append('=').append(random.nextInt(1000)).append(',');
+                    break;
+                case 3:
+                    line.append('"').append(pick(random, IDENTIFIERS)).append("\":").append(shortName(random)).append(',');
+                    break;
+                default:
+                    line.append(shortName(random)).append('(').append(shortName(random)).append(")&&");
+            }
+        }
+        return line.toString();
+    }
+
+    private static String base64(Random random, int length) {
+        final StringBuilder data = new StringBuilder(length);
+        for (int i = 0; i < length; i++)
+            data.append(BASE64_CHARS.charAt(random.nextInt(BASE64_CHARS.length())));
+        return data.toString();
+    }
+
+    private static String shortName(Random random) {
+        return String.valueOf((char) ('a' + random.nextInt(26))) + (random.nextBoolean() ? "" : random.nextInt(10));
+    }
+
+    private static String pick(Random random, String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+}
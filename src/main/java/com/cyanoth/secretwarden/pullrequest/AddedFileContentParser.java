@@ -0,0 +1,72 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+import com.atlassian.bitbucket.content.DiffSegmentType;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * INTERNAL: Passes every line of the content of a file added by a pull request to a DiffMatcher, numbered from 1.
+ *
+ * Every line of an added file is an added line, so the content is read as it is (see GitDiffStreamer.streamAddedFile)
+ * rather than as a diff against nothing: no diff to compute & no hunk/segment per line. The content is read in chunks
+ * into a reusable buffer (see ByteLineReader) & each line is decoded only to be matched.
+ *
+ * Like git & Bitbucket, content with a NUL byte near its start is considered binary and is not scanned. A line longer
+ * than ByteLineReader.MAX_LINE_LENGTH is cut short, which truncates the file (see DiffMatcher.isTruncated).
+ *
+ * The watchdog of the git process is reset every WATCHDOG_RESET_LINES lines (see ZeroContextDiffParser), so a huge
+ * added file isn't timed out whilst its content is still being read.
+ */
+final class AddedFileContentParser {
+    private static final int BINARY_CHECK_BYTES = 8000; // The same as git
+
+    private final DiffMatcher matcher;
+    private final Runnable resetWatchdog;
+
+    /**
+     * @param matcher Matcher to pass the lines of the file to
+     * @param resetWatchdog Resets the watchdog of the git process, called as the content is read
+     */
+    AddedFileContentParser(@Nonnull DiffMatcher matcher, @Nonnull Runnable resetWatchdog) {
+        this.matcher = matcher;
+        this.resetWatchdog = resetWatchdog;
+    }
+
+    /**
+     * Parse the content until the end of the stream (or the matcher stops it by throwing ScanStoppedException)
+     * @param content Content of the file
+     * @param path Path of the file in the pull request
+     */
+    void parse(@Nonnull InputStream content, @Nonnull String path) throws IOException {
+        final ByteLineReader reader = new ByteLineReader(content);
+        matcher.onFileStart(path);
+
+        if (!isBinary(reader)) {
+            matcher.onHunkStart(0, 0, 1, 0, null);
+            matcher.onSegmentStart(DiffSegmentType.ADDED);
+            int linesSinceReset = 0;
+            while (reader.readLine()) {
+                matcher.onSegmentLine(reader.decode(reader.lineStart(), reader.lineEnd()), null, reader.isLineTruncated());
+
+                if (++linesSinceReset >= ZeroContextDiffParser.WATCHDOG_RESET_LINES) {
+                    resetWatchdog.run();
+                    linesSinceReset = 0;
+                }
+            }
+        }
+
+        matcher.onDiffEnd(false);
+    }
+
+    private static boolean isBinary(ByteLineReader reader) throws IOException {
+        final int count = reader.peek(BINARY_CHECK_BYTES);
+        final byte[] start = reader.buffer();
+        for (int i = 0; i < count; i++) {
+            if (start[i] == 0)
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,131 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+import com.atlassian.cache.Cache;
+import com.atlassian.cache.CacheFactory;
+import com.atlassian.cache.CacheSettingsBuilder;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.cyanoth.secretwarden.ScanMetrics;
+import com.cyanoth.secretwarden.config.ScanSettings;
+import com.cyanoth.secretwarden.matching.LongLineWindows;
+import com.cyanoth.secretwarden.structures.FoundSecret;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A node-local cache of what was found in the added lines of a single file version, shared by every pull request.
+ * The same file versions appear in many pull requests (forks, rebased & release branches, vendored files) so a file
+ * version which has already been scanned doesn't need to be streamed from git again.
+ *
+ * An entry is keyed by the content (blob) id of the file before & after the change, the ruleset version and the matching
+ * settings which can change what is found (the long line threshold & window, see LongLineWindows). The added lines depend
+ * on both versions of the file, so both are part of the key. An entry is the secrets found, or empty if clean.
+ * The number of entries is bounded (blob_cache_max_entries setting, 0 disables the cache), the least recently used are evicted.
+ * The setting is checked on every use. When it changes, the cache is emptied & built again with the new size (under a
+ * name including the size, as the settings of an existing cache can't be changed).
+ */
+@Component
+public class BlobFindingsCache {
+    private static final Logger log = LoggerFactory.getLogger(BlobFindingsCache.class);
+    private static final String CACHE_NAME = "com.cyanoth.secretwarden:BlobFindingsCache";
+
+    private final CacheFactory cacheFactory;
+    private final ScanSettings scanSettings;
+    private final ScanMetrics scanMetrics;
+
+    private Cache<String, ArrayList<FoundSecret>> _blobFindingsCache = null; // Use cache() for access
+    private int cacheMaxEntries = 0; // The size _blobFindingsCache was built with, 0 if there is none (disabled)
+
+    @Autowired
+    public BlobFindingsCache(@ComponentImport final CacheFactory cacheFactory,
+                             final ScanSettings scanSettings,
+                             final ScanMetrics scanMetrics) {
+        this.cacheFactory = cacheFactory;
+        this.scanSettings = scanSettings;
+        this.scanMetrics = scanMetrics;
+    }
+
+    /**
+     * @param fromContentId Content id of the file before the change, null if the file was added
+     * @param contentId Content id of the file after the change
+     * @param ruleSetVersion Version of the ruleset used to scan
+     * @param longLines How long lines are matched by the scan
+     * @return Secrets found in the added lines of the file (empty if clean). Null if the file version hasn't been scanned.
+     *         The destination file path of each secret is the path of the file when it was scanned, which may differ.
+     */
+    @Nullable
+    Collection<FoundSecret> get(@Nullable String fromContentId, @Nullable String contentId, long ruleSetVersion,
+                                @Nonnull LongLineWindows longLines) {
+        final Cache<String, ArrayList<FoundSecret>> cache = cache();
+        if (cache == null || contentId == null)
+            return null;
+
+        final Collection<FoundSecret> findings = cache.get(genCacheKey(fromContentId, contentId, ruleSetVersion, longLines));
+        scanMetrics.increment(findings != null ? ScanMetrics.BLOB_CACHE_HITS : ScanMetrics.BLOB_CACHE_MISSES);
+        return findings;
+    }
+
+    /**
+     * @param fromContentId Content id of the file before the change, null if the file was added
+     * @param contentId Content id of the file after the change
+     * @param ruleSetVersion Version of the ruleset used to scan
+     * @param longLines How long lines were matched by the scan
+     * @param findings Secrets found in the added lines of the file, empty if clean. Only complete scans of a file must be put.
+     */
+    void put(@Nullable String fromContentId, @Nullable String contentId, long ruleSetVersion, @Nonnull LongLineWindows longLines,
+             @Nonnull Collection<FoundSecret> findings) {
+        final Cache<String, ArrayList<FoundSecret>> cache = cache();
+        if (cache == null || contentId == null)
+            return;
+
+        cache.put(genCacheKey(fromContentId, contentId, ruleSetVersion, longLines), new ArrayList<>(findings));
+        scanMetrics.increment(ScanMetrics.BLOB_CACHE_PUTS);
+    }
+
+    public void clear() {
+        final Cache<String, ArrayList<FoundSecret>> cache = cache();
+        if (cache != null) {
+            cache.removeAll();
+            log.info("SecretWarden blob findings cache cleared!");
+        }
+    }
+
+    private String genCacheKey(String fromContentId, String contentId, long ruleSetVersion, LongLineWindows longLines) {
+        return (fromContentId == null ? "-" : fromContentId) + "__" + contentId + "__" + ruleSetVersion + "__" +
+                longLines.getThreshold() + "_" + longLines.getWindowLength();
+    }
+
+    /**
+     * Apply the blob_cache_max_entries setting, in case it has changed since the cache was built.
+     * @return The cache, null if it is disabled.
+     */
+    @Nullable
+    private Cache<String, ArrayList<FoundSecret>> cache() {
+        final int maxEntries = Math.max(0, scanSettings.getBlobCacheMaxEntries());
+        synchronized (this) {
+            if (maxEntries != this.cacheMaxEntries) {
+                if (this._blobFindingsCache != null)
+                    this._blobFindingsCache.removeAll(); // Release the entries, the cache itself can't be removed
+
+                this._blobFindingsCache = (maxEntries == 0) ? null : this.cacheFactory.getCache(CACHE_NAME + ":" + maxEntries,
+                        null, new CacheSettingsBuilder()
+                            .local()
+                            .expireAfterAccess(7, TimeUnit.DAYS)
+                            .maxEntries(maxEntries)
+                            .build());
+                log.debug(String.format("SecretWarden: BlobFindingsCache max entries changed from %d to %d (0 is disabled)",
+                        this.cacheMaxEntries, maxEntries));
+                this.cacheMaxEntries = maxEntries;
+            }
+
+            return this._blobFindingsCache;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * INTERNAL: Reads a stream line by line into a reusable byte buffer, so a line is only decoded into a string if it is
+ * needed. Read in chunks, a line longer than the buffer grows it. Used to parse the output of git (see GitDiffStreamer).
+ * Lines end with \n, or another delimiter (e.g. NUL for the -z output of git).
+ *
+ * The buffer grows up to MAX_LINE_LENGTH, so a file which is one huge line (e.g. a data dump without line breaks) can't
+ * exhaust the heap. A longer line is cut at the limit & the rest of it is skipped: isLineTruncated is then true, like
+ * the lines Bitbucket cuts short in its diff stream.
+ *
+ * After readLine, the line is buffer()[lineStart() .. lineEnd()), without its delimiter. The buffer is only valid until
+ * the next readLine.
+ */
+final class ByteLineReader {
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    static final int MAX_LINE_LENGTH = 8 * 1024 * 1024; // Bytes
+
+    private final InputStream input;
+    private final byte delimiter;
+    private final int maxLineLength;
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    private int position = 0; // Start of the next line in the buffer
+    private int limit = 0; // End of the bytes read into the buffer
+    private int lineStart = 0;
+    private int lineEnd = 0;
+    private boolean lineTruncated = false;
+    private boolean skipToDelimiter = false; // The rest of a truncated line hasn't been read yet
+
+    ByteLineReader(@Nonnull InputStream input) {
+        this(input, (byte) '\n');
+    }
+
+    ByteLineReader(@Nonnull InputStream input, byte delimiter) {
+        this(input, delimiter, MAX_LINE_LENGTH);
+    }
+
+    /**
+     * @param maxLineLength Longest line in bytes, a longer line is cut (see isLineTruncated)
+     */
+    ByteLineReader(@Nonnull InputStream input, byte delimiter, int maxLineLength) {
+        this.input = input;
+        this.delimiter = delimiter;
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * @return True, if a line has been read. False, once the stream has ended.
+     */
+    boolean readLine() throws IOException {
+        if (skipToDelimiter && !skipRestOfLine())
+            return false;
+
+        lineTruncated = false;
+        int scanned = position;
+        while (true) {
+            for (int i = scanned; i < limit; i++) {
+                if (buffer[i] == delimiter) {
+                    lineStart = position;
+                    lineEnd = i;
+                    position = i + 1;
+                    return true;
+                }
+            }
+            scanned = limit;
+
+            if (position > 0) { // Move the partial line to the start of the buffer
+                System.arraycopy(buffer, position, buffer, 0, limit - position);
+                scanned -= position;
+                limit -= position;
+                position = 0;
+            }
+            if (limit > maxLineLength) { // A line longer than the limit, cut it
+                lineStart = 0;
+                lineEnd = maxLineLength;
+                position = limit;
+                lineTruncated = true;
+                skipToDelimiter = true;
+                return true;
+            }
+            if (limit == buffer.length) { // A line longer than the buffer
+                final byte[] larger = new byte[Math.min(buffer.length * 2, maxLineLength + 1)];
+                System.arraycopy(buffer, 0, larger, 0, limit);
+                buffer = larger;
+            }
+
+            final int read = input.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                if (limit == position)
+                    return false;
+
+                lineStart = position; // The last line has no delimiter
+                lineEnd = limit;
+                position = limit;
+                return true;
+            }
+            limit += read;
+        }
+    }
+
+    /**
+     * @return True, if the line read was longer than the limit & has been cut (the rest of it is skipped)
+     */
+    boolean isLineTruncated() {
+        return lineTruncated;
+    }
+
+    byte[] buffer() {
+        return buffer;
+    }
+
+    int lineStart() {
+        return lineStart;
+    }
+
+    int lineEnd() {
+        return lineEnd;
+    }
+
+    /**
+     * Read the first bytes of the stream into the buffer without consuming them (e.g. to detect binary content).
+     * Only before the first readLine.
+     * @param count Bytes to read ahead
+     * @return Number of bytes read ahead, at the start of the buffer. Fewer than count if the stream is shorter.
+     */
+    int peek(int count) throws IOException {
+        while (limit < count) {
+            if (limit == buffer.length) {
+                final byte[] larger = new byte[Math.max(buffer.length * 2, count)];
+                System.arraycopy(buffer, 0, larger, 0, limit);
+                buffer = larger;
+            }
+
+            final int read = input.read(buffer, limit, buffer.length - limit);
+            if (read < 0)
+                break;
+            limit += read;
+        }
+        return Math.min(limit, count);
+    }
+
+    /**
+     * Skip the bytes up to & including the next delimiter, the rest of a truncated line
+     * @return False, if the stream ended first
+     */
+    private boolean skipRestOfLine() throws IOException {
+        while (true) {
+            for (int i = position; i < limit; i++) {
+                if (buffer[i] == delimiter) {
+                    position = i + 1;
+                    skipToDelimiter = false;
+                    return true;
+                }
+            }
+
+            position = 0;
+            limit = 0;
+            final int read = input.read(buffer, 0, buffer.length);
+            if (read < 0)
+                return false;
+            limit = read;
+        }
+    }
+
+    String decode(int start, int end) {
+        return new String(buffer, start, end - start, StandardCharsets.UTF_8);
+    }
+}
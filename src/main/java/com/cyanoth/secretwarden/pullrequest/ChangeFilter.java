@@ -0,0 +1,171 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+import com.cyanoth.secretwarden.config.FileFilterSettings;
+import com.cyanoth.secretwarden.structures.SkippedFile;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * INTERNAL: Decides which changed files of a pull request are not scanned at all, from the file filter of its repository
+ * (see FileFilterSettings). Built once per scan.
+ *
+ * Path patterns are globs, matched against the destination path of the file:
+ *    *   - Any characters except /
+ *    **  - Any characters, including / (followed by a /, it also matches no directory at all)
+ *    ?   - One character except /
+ * A pattern without a / matches the file name in any directory (e.g. *.min.js), otherwise the path from the root of the
+ * repository (e.g. docs/generated/**). A path is excluded if it matches an excluded pattern & no included pattern.
+ *
+ * The size, added lines & whether a file is binary come from git (see GitDiffStreamer.getChangedFileStats), a file
+ * without stats is only filtered by its path.
+ */
+final class ChangeFilter {
+    private final Pattern excludePaths;
+    private final Pattern includePaths;
+    private final long maxFileBytes;
+    private final long maxChangedLines;
+    private final boolean skipBinary;
+
+    /**
+     * @param maxFileBytes Size over which a file is not scanned, 0 for no limit
+     * @param maxChangedLines Added lines over which a file is not scanned, 0 for no limit
+     */
+    ChangeFilter(@Nonnull List<String> excludePaths, @Nonnull List<String> includePaths, long maxFileBytes,
+                 long maxChangedLines, boolean skipBinary) {
+        this.excludePaths = compileGlobs(excludePaths);
+        this.includePaths = compileGlobs(includePaths);
+        this.maxFileBytes = maxFileBytes;
+        this.maxChangedLines = maxChangedLines;
+        this.skipBinary = skipBinary;
+    }
+
+    /**
+     * @return The file filter of the repository
+     */
+    @Nonnull
+    static ChangeFilter of(@Nonnull FileFilterSettings settings, int repositoryId) {
+        return new ChangeFilter(settings.getExcludePaths(repositoryId), settings.getIncludePaths(repositoryId),
+                settings.getMaxFileKilobytes(repositoryId) * 1024, settings.getMaxChangedLines(repositoryId),
+                settings.isSkipBinary(repositoryId));
+    }
+
+    /**
+     * @return True, if the stats of changed files are needed to apply this filter (limits or binary detection)
+     */
+    boolean needsFileStats() {
+        return maxFileBytes > 0 || maxChangedLines > 0 || skipBinary;
+    }
+
+    /**
+     * @return True, if nothing can be excluded by this filter
+     */
+    boolean isEmpty() {
+        return excludePaths == null && !needsFileStats();
+    }
+
+    /**
+     * @param path Destination path of the changed file
+     * @param stats Stats of the changed file, null if unknown
+     * @return Why the file must not be scanned, null if it must be scanned
+     */
+    @Nullable
+    SkippedFile.Reason check(@Nonnull String path, @Nullable ChangedFileStats stats) {
+        if (excludePaths != null && excludePaths.matcher(path).matches()
+                && (includePaths == null || !includePaths.matcher(path).matches()))
+            return SkippedFile.Reason.EXCLUDED_PATH;
+
+        if (stats == null)
+            return null;
+        if (skipBinary && stats.isBinary())
+            return SkippedFile.Reason.BINARY;
+        if (maxFileBytes > 0 && stats.getBytes() > maxFileBytes)
+            return SkippedFile.Reason.TOO_LARGE;
+        if (maxChangedLines > 0 && stats.getAddedLines() > maxChangedLines)
+            return SkippedFile.Reason.TOO_MANY_CHANGED_LINES;
+        return null;
+    }
+
+    /**
+     * @return One pattern matching any of the globs, null if there are none
+     */
+    @Nullable
+    private static Pattern compileGlobs(List<String> globs) {
+        if (globs.isEmpty())
+            return null;
+
+        final StringBuilder regex = new StringBuilder();
+        for (String glob : globs) {
+            if (regex.length() > 0)
+                regex.append('|');
+            regex.append(globToRegex(glob));
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    private static String globToRegex(String glob) {
+        final String path = glob.startsWith("/") ? glob.substring(1) : glob;
+        final StringBuilder regex = new StringBuilder("(?:");
+        if (!glob.contains("/"))
+            regex.append("(?:.*/)?"); // A file name, in any directory
+
+        for (int i = 0; i < path.length(); i++) {
+            final char c = path.charAt(i);
+            if (c == '*' && i + 1 < path.length() && path.charAt(i + 1) == '*') {
+                i++;
+                if (i + 1 < path.length() && path.charAt(i + 1) == '/') {
+                    i++;
+                    regex.append("(?:.*/)?"); // **/ - Any directories, or none
+                } else {
+                    regex.append(".*");
+                }
+            } else if (c == '*') {
+                regex.append("[^/]*");
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else {
+                if ("\\.[]{}()+-^$|".indexOf(c) >= 0)
+                    regex.append('\\');
+                regex.append(c);
+            }
+        }
+        return regex.append(')').toString();
+    }
+
+    /**
+     * INTERNAL: What git knows about a changed file, before its diff is streamed
+     */
+    static final class ChangedFileStats {
+        private final long bytes;
+        private final long addedLines;
+        private final boolean binary;
+
+        /**
+         * @param bytes Size of the file after the change, -1 if unknown
+         * @param addedLines Lines added by the change, -1 if unknown (binary)
+         */
+        ChangedFileStats(long bytes, long addedLines, boolean binary) {
+            this.bytes = bytes;
+            this.addedLines = addedLines;
+            this.binary = binary;
+        }
+
+        long getBytes() {
+            return bytes;
+        }
+
+        long getAddedLines() {
+            return addedLines;
+        }
+
+        boolean isBinary() {
+            return binary;
+        }
+
+        ChangedFileStats withBytes(long bytes) {
+            return new ChangedFileStats(bytes, addedLines, binary);
+        }
+    }
+}
@@ -5,28 +5,102 @@ import com.atlassian.bitbucket.content.Change;
 import com.atlassian.bitbucket.content.ChangeType;
 import com.atlassian.bitbucket.pull.*;
 import com.cyanoth.secretwarden.collections.FoundSecretCollection;
-import com.cyanoth.secretwarden.collections.MatchRuleSet;
+import com.cyanoth.secretwarden.config.ScanSettings.DiffStreamMode;
+import com.cyanoth.secretwarden.matching.LongLineWindows;
+import com.cyanoth.secretwarden.matching.MatchBudget;
+import com.cyanoth.secretwarden.matching.MatchRuleEngine;
+import com.cyanoth.secretwarden.matching.MatchRuleSetSnapshot;
+import com.cyanoth.secretwarden.structures.FoundSecret;
+import com.cyanoth.secretwarden.structures.SkippedFile;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.validation.constraints.NotNull;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * INTERNAL! Class which streams differences (think different files) of a pull request before passing that information onto DiffMatcher
+ *    PER_FILE       - List the changes of the pull request, then stream the diff of each added/modified file separately.
+ *                     That is one git process & round trip per file.
+ *    SINGLE_STREAM  - Stream the diff of the whole pull request once (no path filter), DiffMatcher switches file on each diff.
+ *                     If Bitbucket truncates the stream, the files which were not completely streamed are scanned PER_FILE.
+ *    GIT_ZERO_CONTEXT - Run git diff for the whole pull request without context lines (see GitDiffStreamer), so only the
+ *                     added lines are read. If git fails, the pull request is scanned SINGLE_STREAM instead.
+ *
+ * Files scanned PER_FILE are spread over the shared ScanExecutor (up to the scan parallelism at once). The secrets of each
+ * file are merged in the order of the changes once every file has been scanned, regardless of which finished first.
+ *
+ * Before a file is streamed PER_FILE, the BlobFindingsCache is checked for the same file version (when its content ids
+ * are known). Complete scans of a file are added to that cache. A file added by the pull request is scanned from its content
+ * (see GitDiffStreamer.streamAddedFile) rather than diffed against nothing, unless git fails to read it.
+ *
+ * Files which the file filter of the repository excludes (see ChangeFilter) are recorded as skipped & never scanned: they are
+ * not streamed PER_FILE at all, a stream of the whole pull request passes over them. The stats of the changed files the
+ * filter needs (size, added lines, binary) are read from git once, before anything is streamed.
+ *
+ * A verdict-only scan (stopAtFirstSecret) stops streaming changes & diffs as soon as any file finds a secret, files which
+ * haven't started are skipped. Only whether the pull request contains a secret is known, not every secret it contains.
  */
 class ChangeStreamer {
+    private static final Logger log = LoggerFactory.getLogger(ChangeStreamer.class);
     private final PullRequestService pullRequestService;
     private final FoundSecretCollection totalFoundSecrets;
-    private final MatchRuleSet matchRuleSet;
+    private final MatchRuleEngine matchEngine;
+    private final long ruleSetVersion;
+    private final MatchBudget matchBudget;
+    private final LongLineWindows longLines;
+    private final DiffStreamMode diffStreamMode;
+    private final ScanExecutor scanExecutor;
+    private final int parallelism;
+    private final BlobFindingsCache blobFindingsCache;
+    private final GitDiffStreamer gitDiffStreamer;
+    private final ChangeFilter changeFilter;
+    private final AtomicBoolean stopSignal;
+    private Map<String, ChangeFilter.ChangedFileStats> fileStats = Collections.emptyMap();
+    private final Map<String, SkippedFile> skippedFiles = new LinkedHashMap<>(); // By path, recorded on the scanning thread
 
     /**
      * INTERNAL! Class which streams differences (think different files) of a pull request before passing that information onto DiffMatcher
      * @param pullRequestService Initialised Bitbucket PullRequestService for PR operations (stream)
-     * @param matchRuleSet Collection of rules to find secrets in text.
+     * @param ruleSet Compiled rules to find secrets in text.
+     * @param matchBudget Budget of the scan, limits how long rules may take to evaluate a line
+     * @param longLines How lines over the long line threshold are matched (in windows)
+     * @param diffStreamMode How the differences of the pull request are streamed
+     * @param scanExecutor Shared executor to scan files in parallel
+     * @param parallelism Maximum files of this scan to scan in parallel, 1 scans every file on the calling thread.
+     * @param blobFindingsCache Cache of secrets found in file versions which have been scanned before
+     * @param gitDiffStreamer Streams the diff (GIT_ZERO_CONTEXT), the content of added files & file stats from git directly
+     * @param changeFilter File filter of the repository, decides which changed files are not scanned
+     * @param stopAtFirstSecret True, stop the scan as soon as a secret is found (verdict-only). False, find every secret.
      */
-    ChangeStreamer(PullRequestService pullRequestService, MatchRuleSet matchRuleSet) {
+    ChangeStreamer(PullRequestService pullRequestService, MatchRuleSetSnapshot ruleSet, MatchBudget matchBudget,
+                   LongLineWindows longLines, DiffStreamMode diffStreamMode, ScanExecutor scanExecutor, int parallelism,
+                   BlobFindingsCache blobFindingsCache, GitDiffStreamer gitDiffStreamer, ChangeFilter changeFilter, boolean stopAtFirstSecret) {
         this.pullRequestService = pullRequestService;
         totalFoundSecrets = new FoundSecretCollection();
-        this.matchRuleSet = matchRuleSet;
+        this.matchEngine = ruleSet.getMatchEngine();
+        this.ruleSetVersion = ruleSet.getVersion();
+        this.matchBudget = matchBudget;
+        this.longLines = longLines;
+        this.diffStreamMode = diffStreamMode;
+        this.scanExecutor = scanExecutor;
+        this.parallelism = parallelism;
+        this.blobFindingsCache = blobFindingsCache;
+        this.gitDiffStreamer = gitDiffStreamer;
+        this.changeFilter = changeFilter;
+        this.stopSignal = stopAtFirstSecret ? new AtomicBoolean(false) : null;
     }
 
     /**
@@ -35,9 +109,41 @@ class ChangeStreamer {
      * any FoundSecret, all of which get collected into a single set and returned
      * @param pullRequest The pull request to stream changes and search for secrets
      * @return This object for chaining. Returns once the scan is complete.
+     * @throws ExecutionException Scanning a file has failed
+     * @throws InterruptedException Interrupted waiting for files to be scanned
      */
-    public ChangeStreamer scan(PullRequest pullRequest) {
-        scanPullRequestChangesForSecrets(pullRequest);
+    public ChangeStreamer scan(PullRequest pullRequest) throws ExecutionException, InterruptedException {
+        loadFileStats(pullRequest);
+        switch (diffStreamMode) {
+            case GIT_ZERO_CONTEXT:
+                if (scanPullRequestGitDiffForSecrets(pullRequest))
+                    break;
+                // Otherwise git could not diff the pull request, fall through to Bitbucket's diff stream
+            case SINGLE_STREAM:
+                scanPullRequestDiffForSecrets(pullRequest);
+                break;
+            default:
+                scanPullRequestChangesForSecrets(pullRequest, null);
+        }
+        return this;
+    }
+
+    /**
+     * Scan only some files of a pull-request (e.g. those changed since it was last scanned) for secrets.
+     * @param pullRequest The pull request to stream differences of
+     * @param paths Destination paths of the files to scan. Files which are no longer different in the pull request are skipped.
+     * @return This object for chaining. Returns once the scan is complete.
+     * @throws ExecutionException Scanning a file has failed
+     * @throws InterruptedException Interrupted waiting for files to be scanned
+     */
+    ChangeStreamer scanFiles(PullRequest pullRequest, Collection<String> paths) throws ExecutionException, InterruptedException {
+        loadFileStats(pullRequest);
+        final List<ChangedFile> changedFiles = new ArrayList<>(paths.size());
+        for (String path : paths) {
+            if (!isSkipped(path))
+                changedFiles.add(new ChangedFile(path, null, null, false)); // Content ids unknown, don't use the blob cache
+        }
+        scanFilesForSecrets(pullRequest, changedFiles);
         return this;
     }
 
@@ -46,8 +152,71 @@ class ChangeStreamer {
         return totalFoundSecrets;
     }
 
+    /**
+     * @return Changed files which were not scanned, because the file filter excludes them
+     */
     @NotNull
-    private void scanPullRequestChangesForSecrets(PullRequest pullRequest) {
+    List<SkippedFile> getSkippedFiles() {
+        return new ArrayList<>(skippedFiles.values());
+    }
+
+    /**
+     * @return True, if a verdict-only scan stopped at a secret, so the found secrets are not every secret of the pull request
+     */
+    boolean isStopped() {
+        return stopSignal != null && stopSignal.get();
+    }
+
+    /**
+     * @return True, if the pull request has been scanned. False, if git failed (nothing found is kept, rescan the pull request)
+     */
+    private boolean scanPullRequestGitDiffForSecrets(PullRequest pullRequest) {
+        // If git fails part-way, the pull request is scanned again from the start, so the steps & timeouts of this attempt
+        // must not count (twice) towards the budget of the scan
+        final MatchBudget attemptBudget = matchBudget.newAttempt();
+        final DiffMatcher matchSecretCallback = new DiffMatcher(matchEngine, attemptBudget, longLines, true, stopSignal,
+                path -> !isSkipped(path));
+        try {
+            gitDiffStreamer.streamAddedLines(pullRequest, matchSecretCallback);
+        }
+        catch (RuntimeException e) {
+            if (!matchSecretCallback.isStopped()) {
+                log.warn(String.format("Failed to diff pull request %d with git, streaming the diff from Bitbucket instead",
+                        pullRequest.getId()), e);
+                return false;
+            }
+        }
+
+        matchBudget.commit(attemptBudget);
+        totalFoundSecrets.merge(matchSecretCallback.getFoundSecrets());
+        return true;
+    }
+
+    private void scanPullRequestDiffForSecrets(PullRequest pullRequest) throws ExecutionException, InterruptedException {
+        final PullRequestDiffRequest pullRequestDifference = new PullRequestDiffRequest.Builder(pullRequest, null)
+                .withComments(false)
+                .build();
+
+        final DiffMatcher matchSecretCallback = new DiffMatcher(matchEngine, matchBudget, longLines, false, stopSignal,
+                path -> !isSkipped(path));
+        streamDiff(pullRequestDifference, matchSecretCallback);
+        totalFoundSecrets.merge(matchSecretCallback.getFoundSecrets());
+
+        if (matchSecretCallback.isTruncated() && !isStopped()) {
+            log.debug(String.format("The diff of pull request %d was truncated after %d file(s), scanning the remaining files separately",
+                    pullRequest.getId(), matchSecretCallback.getCompletedFiles().size()));
+            scanPullRequestChangesForSecrets(pullRequest, matchSecretCallback.getCompletedFiles());
+        }
+    }
+
+    /**
+     * @param pullRequest The pull request to stream changes of
+     * @param skipFiles Destination paths of files which have already been scanned. Null to scan every added/modified file.
+     */
+    private void scanPullRequestChangesForSecrets(PullRequest pullRequest, Set<String> skipFiles)
+            throws ExecutionException, InterruptedException {
+        final List<ChangedFile> changedFiles = new ArrayList<>();
+
         PullRequestChangesRequest changeRequest = new PullRequestChangesRequest.Builder(pullRequest).
                 changeScope(PullRequestChangeScope.ALL)  // With Scope ALL, it becomes unnecessary to specify the since/until commit range
                 .withComments(false)
@@ -57,22 +226,159 @@ class ChangeStreamer {
             @Override
             public boolean onChange(@Nonnull Change change) {
                 if (change.getType() == ChangeType.ADD || change.getType() == ChangeType.MODIFY) {
-                    totalFoundSecrets.merge(scanChangedFileDifferencesForSecrets(pullRequest, change.getPath().toString()));
+                    final String path = change.getPath().toString();
+                    if ((skipFiles == null || !skipFiles.contains(path)) && !isSkipped(path))
+                        changedFiles.add(new ChangedFile(path, change.getFromContentId(), change.getContentId(),
+                                change.getType() == ChangeType.ADD));
                 }
-                return true; // _Really_ do not care about this value, but its super() requires returning something
+                return !isStopped(); // False stops streaming the changes
             }
         });
+
+        scanFilesForSecrets(pullRequest, changedFiles);
+    }
+
+    /**
+     * Read the stats of the changed files from git, if the file filter needs them. Without them (git failed), files are
+     * only filtered by path.
+     */
+    private void loadFileStats(PullRequest pullRequest) {
+        if (!changeFilter.needsFileStats())
+            return;
+
+        try {
+            fileStats = gitDiffStreamer.getChangedFileStats(pullRequest);
+        }
+        catch (RuntimeException e) {
+            log.warn(String.format("Failed to read the stats of the files changed by pull request %d with git, " +
+                    "files are only filtered by path", pullRequest.getId()), e);
+        }
+    }
+
+    /**
+     * @param path Destination path of a changed file
+     * @return True, if the file filter excludes the file, which is recorded as skipped
+     */
+    private boolean isSkipped(String path) {
+        if (changeFilter.isEmpty())
+            return false;
+
+        final ChangeFilter.ChangedFileStats stats = fileStats.get(path);
+        final SkippedFile.Reason reason = changeFilter.check(path, stats);
+        if (reason == null)
+            return false;
+
+        skippedFiles.putIfAbsent(path, new SkippedFile(path, reason, stats != null ? stats.getBytes() : -1));
+        return true;
+    }
+
+    private void scanFilesForSecrets(PullRequest pullRequest, List<ChangedFile> changedFiles)
+            throws ExecutionException, InterruptedException {
+        final List<Callable<FoundSecretCollection>> fileScans = new ArrayList<>(changedFiles.size());
+        for (ChangedFile changedFile : changedFiles)
+            fileScans.add(() -> scanChangedFileForSecrets(pullRequest, changedFile));
+
+        try {
+            for (FoundSecretCollection fileSecrets : scanExecutor.invokeAll(fileScans, parallelism))
+                totalFoundSecrets.merge(fileSecrets);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw e;
+        }
+    }
+
+    /**
+     * Scan a file, unless the same version of the file has been scanned before (by any pull request).
+     */
+    @NotNull
+    private FoundSecretCollection scanChangedFileForSecrets(PullRequest pullRequest, ChangedFile changedFile) {
+        if (isStopped()) // A verdict-only scan has already found a secret in another file
+            return new FoundSecretCollection();
+
+        final Collection<FoundSecret> cachedSecrets = blobFindingsCache.get(changedFile.fromContentId, changedFile.contentId, ruleSetVersion, longLines);
+        if (cachedSecrets != null) {
+            // The file version may have been scanned at another path, so the secrets must be moved to this path
+            final FoundSecretCollection foundSecrets = new FoundSecretCollection();
+            for (FoundSecret secret : cachedSecrets)
+                foundSecrets.add(new FoundSecret(secret.getmatchedRuleName(), changedFile.path, secret.getSourceContext(),
+                        secret.getOccurrenceLine()));
+
+            if (stopSignal != null && foundSecrets.count() > 0)
+                stopSignal.set(true);
+            return foundSecrets;
+        }
+
+        DiffMatcher matchSecretCallback = null;
+        if (changedFile.added && changedFile.contentId != null)
+            matchSecretCallback = scanAddedFileContentForSecrets(pullRequest, changedFile);
+        if (matchSecretCallback == null)
+            matchSecretCallback = scanChangedFileDifferencesForSecrets(pullRequest, changedFile.path);
+
+        // Only cache a complete scan of the file. A truncated/stopped diff or timed out rules would leave lines unchecked
+        if (!matchSecretCallback.isTruncated() && !matchSecretCallback.isStopped() && matchSecretCallback.countTimedOutLines() == 0)
+            blobFindingsCache.put(changedFile.fromContentId, changedFile.contentId, ruleSetVersion, longLines,
+                    matchSecretCallback.getFoundSecrets().getSecrets());
+
+        return matchSecretCallback.getFoundSecrets();
+    }
+
+    /**
+     * @return The matcher of the scanned content. Null, if git failed to read the content (nothing found is kept, diff the file)
+     */
+    @Nullable
+    private DiffMatcher scanAddedFileContentForSecrets(PullRequest pullRequest, ChangedFile changedFile) {
+        final DiffMatcher matchSecretCallback = new DiffMatcher(matchEngine, matchBudget, longLines, true, stopSignal);
+        try {
+            gitDiffStreamer.streamAddedFile(pullRequest, changedFile.contentId, changedFile.path, matchSecretCallback);
+        }
+        catch (RuntimeException e) {
+            if (!matchSecretCallback.isStopped()) {
+                log.warn(String.format("Failed to read added file %s of pull request %d with git, streaming its diff instead",
+                        changedFile.path, pullRequest.getId()), e);
+                return null;
+            }
+        }
+        return matchSecretCallback;
     }
 
     @NotNull
-    private FoundSecretCollection scanChangedFileDifferencesForSecrets(PullRequest pullRequest, String targetFilePath) {
+    private DiffMatcher scanChangedFileDifferencesForSecrets(PullRequest pullRequest, String targetFilePath) {
         final PullRequestDiffRequest fileDifference = new PullRequestDiffRequest.Builder(pullRequest, targetFilePath)
                 .withComments(false)
                 .build();
 
-        final DiffMatcher matchSecretCallback = new DiffMatcher(matchRuleSet);
-        pullRequestService.streamDiff(fileDifference, matchSecretCallback);
-        return matchSecretCallback.getFoundSecrets();
+        final DiffMatcher matchSecretCallback = new DiffMatcher(matchEngine, matchBudget, longLines, true, stopSignal);
+        streamDiff(fileDifference, matchSecretCallback);
+        return matchSecretCallback;
+    }
+
+    private void streamDiff(PullRequestDiffRequest diffRequest, DiffMatcher matchSecretCallback) {
+        try {
+            pullRequestService.streamDiff(diffRequest, matchSecretCallback);
+        }
+        catch (RuntimeException e) {
+            // The matcher stopped the stream on purpose (Bitbucket may have wrapped the ScanStoppedException)
+            if (!matchSecretCallback.isStopped())
+                throw e;
+        }
+    }
+
+    /**
+     * INTERNAL: A file to scan, (if known) its content ids before/after the change & whether the change added it.
+     */
+    private static class ChangedFile {
+        private final String path;
+        private final String fromContentId;
+        private final String contentId;
+        private final boolean added;
+
+        ChangedFile(String path, @Nullable String fromContentId, @Nullable String contentId, boolean added) {
+            this.path = path;
+            this.fromContentId = fromContentId;
+            this.contentId = contentId;
+            this.added = added;
+        }
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,127 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * INTERNAL: Building blocks of the compact binary form of a scan result (see PullRequestSecretScanResult.writeExternal),
+ * which is what the result cache replicates to every node.
+ *    Varints      - Integers are written 7 bits per byte, so small numbers (line numbers, counts) take one or two bytes.
+ *                   Signed values are zigzag encoded first, so small negative numbers (e.g. -1) are small too.
+ *    String table - Every distinct string (paths, rule names, contexts...) is written once, then referred to by its index.
+ *                   A pull request with thousands of secrets in a few files repeats the same few strings thousands of times.
+ */
+final class CompactEncoding {
+    private static final int MAX_STRING_TABLE_SIZE = 1 << 24; // Guards against allocating a huge table from a corrupt stream
+
+    private CompactEncoding() {
+    }
+
+    static void writeVarInt(@Nonnull DataOutput out, int value) throws IOException {
+        writeVarLong(out, value & 0xFFFFFFFFL);
+    }
+
+    static int readVarInt(@Nonnull DataInput in) throws IOException {
+        final long value = readVarLong(in);
+        if ((value >>> 32) != 0)
+            throw new StreamCorruptedException("Varint is too large for an int");
+        return (int) value;
+    }
+
+    static void writeSignedVarLong(@Nonnull DataOutput out, long value) throws IOException {
+        writeVarLong(out, (value << 1) ^ (value >> 63));
+    }
+
+    static long readSignedVarLong(@Nonnull DataInput in) throws IOException {
+        final long value = readVarLong(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new StreamCorruptedException("Varint is longer than 10 bytes");
+    }
+
+    /**
+     * Collects every string to be written up front, so each is written once (write) & referred to by index (writeRef).
+     * Null is always reference 0, so it never needs a table entry.
+     */
+    static final class StringTableWriter {
+        private final Map<String, Integer> indexes = new LinkedHashMap<>();
+
+        void add(@Nullable String value) {
+            if (value != null)
+                indexes.putIfAbsent(value, indexes.size() + 1);
+        }
+
+        void write(@Nonnull DataOutput out) throws IOException {
+            writeVarInt(out, indexes.size());
+            for (String value : indexes.keySet()) {
+                final byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+                writeVarInt(out, utf8.length);
+                out.write(utf8);
+            }
+        }
+
+        void writeRef(@Nonnull DataOutput out, @Nullable String value) throws IOException {
+            if (value == null) {
+                writeVarInt(out, 0);
+                return;
+            }
+
+            final Integer index = indexes.get(value);
+            if (index == null)
+                throw new IllegalStateException("String was not added to the string table before being written: " + value);
+            writeVarInt(out, index);
+        }
+    }
+
+    /**
+     * The string table written by StringTableWriter.write, resolving the references written by StringTableWriter.writeRef.
+     */
+    static final class StringTableReader {
+        private final String[] values;
+
+        StringTableReader(@Nonnull DataInput in) throws IOException {
+            final int size = readVarInt(in);
+            if (size < 0 || size > MAX_STRING_TABLE_SIZE)
+                throw new StreamCorruptedException(String.format("Invalid string table size: %d", size));
+
+            values = new String[size + 1]; // Index 0 is null
+            for (int i = 1; i <= size; i++) {
+                final byte[] utf8 = new byte[readVarInt(in)];
+                in.readFully(utf8);
+                values[i] = new String(utf8, StandardCharsets.UTF_8);
+            }
+        }
+
+        @Nullable
+        String readRef(@Nonnull DataInput in) throws IOException {
+            final int index = readVarInt(in);
+            if (index < 0 || index >= values.length)
+                throw new StreamCorruptedException(String.format("Invalid string table reference: %d", index));
+            return values[index];
+        }
+    }
+}
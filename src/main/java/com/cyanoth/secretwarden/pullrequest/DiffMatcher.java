@@ -3,17 +3,29 @@ package com.cyanoth.secretwarden.pullrequest;
 import com.atlassian.bitbucket.content.AbstractDiffContentCallback;
 import com.atlassian.bitbucket.content.ConflictMarker;
 import com.atlassian.bitbucket.content.DiffSegmentType;
+import com.atlassian.bitbucket.content.DiffSummary;
 import com.atlassian.bitbucket.content.Path;
 import com.cyanoth.secretwarden.collections.FoundSecretCollection;
-import com.cyanoth.secretwarden.collections.MatchRuleSet;
+import com.cyanoth.secretwarden.matching.LineSpanWindow;
+import com.cyanoth.secretwarden.matching.LongLineWindows;
+import com.cyanoth.secretwarden.matching.MatchBudget;
+import com.cyanoth.secretwarden.matching.MatchRuleEngine;
 import com.cyanoth.secretwarden.structures.FoundSecret;
 import com.cyanoth.secretwarden.structures.MatchRule;
+import com.cyanoth.secretwarden.structures.MatchTimeout;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
 
 /**
  * INTERNAL: Finds & collect secrets that match rules in the ruleset in a given hunk of changes.
+ * A diff of one file or of many files (a whole pull request) can be streamed to the same matcher.
  *
  *    Segment - A collection of one or more content lines sharing the same DiffSegmentType
  *    Hunk - A collection of segments, pinned to starting lines within the source and destination, representing contiguous lines within the files being compared
@@ -23,13 +35,40 @@ import javax.annotation.Nullable;
  * skipping the removed lines. It also allows for users to remove secrets from repositories without flagging it as a found secret.
  *
  * Callback Flow (only implementing ones we're interested in): onDiffStart(...) -> onHunkStart(...) -> onSegmentStart(...) -> onSegmentLine(...)
+ *                                                               ... -> onDiffEnd(...) -> (next file: onDiffStart(...)) ... -> onEnd(...)
+ *
+ * Bitbucket limits how many lines are streamed in one request, the rest of the diff is truncated. Secrets found in a file are
+ * only collected once the diff of that file ends, so a truncated file can either be kept (partially scanned) or discarded
+ * & streamed again by itself. A line which was cut short (by Bitbucket, or see ByteLineReader) truncates its file too.
+ *
+ * Rules with a line span (see MatchRule.getLineSpan) are also evaluated over the most recent consecutive added lines of the
+ * file. The window is emptied whenever the added lines stop being consecutive in the destination: another file, hunk or
+ * context (unchanged) lines. Removed lines in between do not empty it.
+ *
+ * A verdict-only scan passes a stop signal, shared by every file of the scan. The first secret found is collected
+ * immediately, the signal is raised & ScanStoppedException is thrown to stop the stream. Every other file of the scan
+ * stops at its next line.
  *
  * [1] https://docs.atlassian.com/bitbucket-server/javadoc/5.16.4/api/reference/com/atlassian/bitbucket/content/DiffContentCallback.html
  */
 class DiffMatcher extends AbstractDiffContentCallback {
     private final FoundSecretCollection foundSecrets = new FoundSecretCollection();
-    private final MatchRuleSet matchRuleSet;
+    private final MatchRuleEngine matchEngine;
+    private final MatchBudget matchBudget;
+    private final LongLineWindows longLines;
+    private final LineSpanWindow lineSpanWindow; // Null if no rule spans more than one line
+    private final List<MatchRule> timedOutRules = new ArrayList<>(); // Reused for every line
+    private final boolean keepTruncatedFiles;
+    private final List<FoundSecret> fileSecrets = new ArrayList<>(); // Secrets of the current file, until its diff ends
+    private final Set<String> completedFiles = new HashSet<>();
+    private boolean truncated = false;
+    private boolean fileLineTruncated = false; // A line of the current file was cut short
+    private int timedOutLines = 0;
+    private final AtomicBoolean stopSignal;
+    private final Predicate<String> scanFile;
+    private boolean stopped = false;
 
+    private boolean flagScanFile = false;
     private boolean flagScanSegment= false;
 
     // These properties are set during various stages of the callback flow and used for found secret information
@@ -41,27 +80,93 @@ class DiffMatcher extends AbstractDiffContentCallback {
 
     /**
      * INTERNAL: Finds & collect secrets that match rules in the ruleset in a given hunk of changes.
-     * @param matchRuleSet Collection of rules to find secrets in text.
+     * @param matchEngine Compiled rules to find secrets in text.
+     * @param matchBudget Budget of the scan, limits how long rules may take to evaluate a line
+     * @param longLines How lines over the long line threshold are matched (in windows)
+     * @param keepTruncatedFiles True, keep secrets found in a file whose diff was truncated. False, discard them (to be scanned again)
+     */
+    DiffMatcher(MatchRuleEngine matchEngine, MatchBudget matchBudget, LongLineWindows longLines, boolean keepTruncatedFiles) {
+        this(matchEngine, matchBudget, longLines, keepTruncatedFiles, null);
+    }
+
+    /**
+     * @param stopSignal Stop at the first secret found (by this or any matcher sharing the signal). Null to find every secret.
      */
-    DiffMatcher(MatchRuleSet matchRuleSet) {
-        this.matchRuleSet = matchRuleSet;
+    DiffMatcher(MatchRuleEngine matchEngine, MatchBudget matchBudget, LongLineWindows longLines, boolean keepTruncatedFiles,
+                @Nullable AtomicBoolean stopSignal) {
+        this(matchEngine, matchBudget, longLines, keepTruncatedFiles, stopSignal, null);
+    }
+
+    /**
+     * @param scanFile Decides whether the file at a destination path is scanned (e.g. the file filter). Null to scan every file.
+     */
+    DiffMatcher(MatchRuleEngine matchEngine, MatchBudget matchBudget, LongLineWindows longLines, boolean keepTruncatedFiles,
+                @Nullable AtomicBoolean stopSignal, @Nullable Predicate<String> scanFile) {
+        this.matchEngine = matchEngine;
+        this.matchBudget = matchBudget;
+        this.longLines = longLines;
+        this.lineSpanWindow = matchEngine.newLineSpanWindow();
+        this.keepTruncatedFiles = keepTruncatedFiles;
+        this.stopSignal = stopSignal;
+        this.scanFile = scanFile;
     }
 
     @Override
     public void onDiffStart(@Nullable Path src, @Nullable Path dst) {
+        onFileStart(dst != null ? dst.toString() : null);
+    }
+
+    /**
+     * The diff of another file starts, for diffs which aren't streamed by Bitbucket (see ZeroContextDiffParser)
+     * @param destinationPath Path of the file in the destination, null if the file is being deleted
+     */
+    void onFileStart(@Nullable String destinationPath) {
         // dst will be null if the file is being deleted. We're not interested in the deleted files at all, so flag false to not scan this change
-        destinationFilePath = dst != null ? dst.toString() : null;
-        flagScanSegment = dst != null;
+        destinationFilePath = destinationPath;
+        flagScanFile = destinationPath != null && (scanFile == null || scanFile.test(destinationPath));
+        flagScanSegment = false;
+
+        // Another file in the same stream, reset everything which belonged to the previous file
+        fileSecrets.clear();
+        fileLineTruncated = false;
+        sourceContext = null;
+        lineCounter = 0;
+        countLine = true;
+        clearLineSpanWindow();
+    }
+
+    @Override
+    public void onDiffEnd(boolean diffTruncated) {
+        final boolean truncated = diffTruncated || fileLineTruncated;
+        if (truncated)
+            this.truncated = true;
+
+        if (!truncated || keepTruncatedFiles) {
+            for (FoundSecret secret : fileSecrets)
+                foundSecrets.add(secret);
+        }
+
+        if (!truncated && destinationFilePath != null)
+            completedFiles.add(destinationFilePath);
+
+        fileSecrets.clear();
+    }
+
+    @Override
+    public void onEnd(@Nonnull DiffSummary summary) {
+        if (summary.isTruncated())
+            truncated = true;
     }
 
     @Override
     public void onHunkStart(int srcLine, int srcSpan, int dstLine, int dstSpan, @Nullable String context) {
         lineCounter = dstLine - 1; // The first ++ occurs before the line is compared, so will always be off-by-one without -1
         sourceContext = context;
+        clearLineSpanWindow();
     }
 
     @Override
-    public void onSegmentLine(@Nonnull String s, @Nullable ConflictMarker conflictMarker, boolean b) {
+    public void onSegmentLine(@Nonnull String s, @Nullable ConflictMarker conflictMarker, boolean lineTruncated) {
 
         // The line counter logic must consider only Added Lines _AND_ Context (unchanged) lines on the Destination File.
         // Lines which are being removed will not be in the destination file, otherwise the occurrence line number
@@ -69,25 +174,59 @@ class DiffMatcher extends AbstractDiffContentCallback {
         if (countLine)
             lineCounter++;
 
-        if (!flagScanSegment || conflictMarker != null) // Don't scan this code segment if preconditions for a scan is false or in conflict.
+        if (!flagScanSegment || conflictMarker != null) { // Don't scan this code segment if preconditions for a scan is false or in conflict.
+            if (conflictMarker != null)
+                clearLineSpanWindow();
             return;
+        }
+
+        if (lineTruncated) // Whatever was cut off the line can't be checked
+            fileLineTruncated = true;
 
-        for (MatchRule rule : matchRuleSet.getAllRules()) {
-            if (!rule.getIsEnabled())
-                continue;
+        if (stopSignal != null && stopSignal.get()) // Another file of a verdict-only scan has already found a secret
+            stop();
 
-            if (rule.checkMatch(s)) {
-                foundSecrets.add(new FoundSecret(rule.getFriendlyName(), destinationFilePath,
-                        sourceContext, lineCounter));
+        // Every enabled rule is checked against the line in a single pass of the engine
+        for (MatchRule rule : matchEngine.match(s, matchBudget, timedOutRules, longLines)) {
+            fileSecrets.add(new FoundSecret(rule.getFriendlyName(), destinationFilePath,
+                    sourceContext, lineCounter));
+        }
+
+        // Rules spanning more than one line, reported on the line where the match starts
+        if (lineSpanWindow != null) {
+            for (LineSpanWindow.Match match : lineSpanWindow.add(s, lineCounter, matchBudget, timedOutRules)) {
+                fileSecrets.add(new FoundSecret(match.getRule().getFriendlyName(), destinationFilePath,
+                        sourceContext, match.getLineNumber()));
             }
         }
+
+        if (stopSignal != null && !fileSecrets.isEmpty()) {
+            // The verdict is known, keep what was found on this line (the file won't reach onDiffEnd) then stop
+            for (FoundSecret secret : fileSecrets)
+                foundSecrets.add(secret);
+            fileSecrets.clear();
+            stopSignal.set(true);
+            stop();
+        }
+
+        // A rule which takes too long on a line is recorded, rather than stalling the scan
+        if (!timedOutRules.isEmpty()) {
+            timedOutLines++;
+            for (MatchRule rule : timedOutRules)
+                matchBudget.recordTimeout(new MatchTimeout(rule.getFriendlyName(), destinationFilePath, lineCounter));
+            timedOutRules.clear();
+        }
     }
 
     @Override
     public void onSegmentStart(@Nonnull DiffSegmentType type) {
-        // Only care about added (changed) lines. Precondition for scan will be false on context/deleted lines.
-        flagScanSegment = type == DiffSegmentType.ADDED;
+        // Only care about added (changed) lines. Precondition for scan will be false on context/deleted lines (or deleted files).
+        flagScanSegment = flagScanFile && type == DiffSegmentType.ADDED;
         countLine = type != DiffSegmentType.REMOVED;
+
+        // Added lines either side of context lines aren't consecutive in the destination, either side of removed lines they are
+        if (type == DiffSegmentType.CONTEXT)
+            clearLineSpanWindow();
     }
 
     /*
@@ -96,4 +235,43 @@ class DiffMatcher extends AbstractDiffContentCallback {
     FoundSecretCollection getFoundSecrets() {
         return foundSecrets;
     }
+
+    /**
+     * @return Destination path of every file whose diff was streamed completely (not truncated)
+     */
+    Set<String> getCompletedFiles() {
+        return completedFiles;
+    }
+
+    /**
+     * @return True, if Bitbucket truncated the streamed diff (so some files may not have been scanned, or only partially)
+     */
+    boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * @return True, if this matcher stopped the stream before the diff ended (verdict-only scan)
+     */
+    boolean isStopped() {
+        return stopped;
+    }
+
+    private void stop() {
+        stopped = true;
+        timedOutRules.clear();
+        throw new ScanStoppedException();
+    }
+
+    private void clearLineSpanWindow() {
+        if (lineSpanWindow != null)
+            lineSpanWindow.clear();
+    }
+
+    /**
+     * @return Number of lines on which one or more rules timed out (so those lines were not fully checked)
+     */
+    int countTimedOutLines() {
+        return timedOutLines;
+    }
 }
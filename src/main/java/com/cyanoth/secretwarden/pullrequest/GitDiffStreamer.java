@@ -0,0 +1,258 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+import com.atlassian.bitbucket.pull.PullRequest;
+import com.atlassian.bitbucket.scm.CommandInputHandler;
+import com.atlassian.bitbucket.scm.CommandOutputHandler;
+import com.atlassian.bitbucket.scm.Watchdog;
+import com.atlassian.bitbucket.scm.git.command.GitCommandBuilderFactory;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streams what is scanned of a pull request by running git directly, rather than through PullRequestService.streamDiff:
+ *    streamAddedLines    - The diff of the pull request without context lines, so only the lines which are scanned
+ *                          (added) & the headers needed to number them are produced, moved & parsed (see
+ *                          ZeroContextDiffParser). Used by the GIT_ZERO_CONTEXT diff stream mode.
+ *    streamAddedFile     - The content of a file added by the pull request, as it is (see AddedFileContentParser).
+ *    getChangedFileStats - The added lines, size & whether git considers it binary of each changed file, before any
+ *                          diff is streamed (see ChangeFilter).
+ *
+ * The diff is the same one Bitbucket shows for the pull request: the changes of the source branch since it diverged from
+ * the target branch (toCommit...fromCommit), with renames detected. Git runs in the target repository, where Bitbucket
+ * keeps the commits of the source branch, including those of pull requests from forks.
+ */
+@Component
+public class GitDiffStreamer {
+    private final GitCommandBuilderFactory gitCommandBuilderFactory;
+
+    @Autowired
+    public GitDiffStreamer(@ComponentImport final GitCommandBuilderFactory gitCommandBuilderFactory) {
+        this.gitCommandBuilderFactory = gitCommandBuilderFactory;
+    }
+
+    /**
+     * Stream the added lines of every added, modified or renamed file of the pull request to the matcher.
+     * Unlike Bitbucket's diff stream, the diff is never truncated.
+     * @param pullRequest The pull request to diff
+     * @param matcher Matcher to pass the added lines to
+     * @throws RuntimeException git failed, or the matcher stopped the stream (ScanStoppedException, see DiffMatcher.isStopped)
+     */
+    void streamAddedLines(@Nonnull PullRequest pullRequest, @Nonnull DiffMatcher matcher) {
+        gitCommandBuilderFactory.builder(pullRequest.getToRef().getRepository())
+                .command("diff")
+                .argument("-U0")
+                .argument("--find-renames")
+                .argument("--diff-filter=AMR")
+                .argument("--no-color")
+                .argument("--no-ext-diff")
+                .argument("--no-textconv")
+                .argument("--src-prefix=a/")
+                .argument("--dst-prefix=b/")
+                .argument(pullRequest.getToRef().getLatestCommit() + "..." + pullRequest.getFromRef().getLatestCommit())
+                .argument("--")
+                .build(new ParsingOutputHandler((output, resetWatchdog) ->
+                        new ZeroContextDiffParser(matcher, resetWatchdog).parse(output)))
+                .call();
+    }
+
+    /**
+     * Stream every line of a file added by the pull request to the matcher.
+     * @param pullRequest The pull request which adds the file
+     * @param contentId Blob id of the added file
+     * @param path Path of the added file
+     * @param matcher Matcher to pass the lines to
+     * @throws RuntimeException git failed, or the matcher stopped the stream (ScanStoppedException, see DiffMatcher.isStopped)
+     */
+    void streamAddedFile(@Nonnull PullRequest pullRequest, @Nonnull String contentId, @Nonnull String path,
+                         @Nonnull DiffMatcher matcher) {
+        gitCommandBuilderFactory.builder(pullRequest.getToRef().getRepository())
+                .command("cat-file")
+                .argument("blob")
+                .argument(contentId)
+                .build(new ParsingOutputHandler((output, resetWatchdog) ->
+                        new AddedFileContentParser(matcher, resetWatchdog).parse(output, path)))
+                .call();
+    }
+
+    /**
+     * Stats of every added, modified or renamed file of the pull request (the same files as streamAddedLines), by their
+     * destination path. Runs git diff --raw --numstat for the added lines, binary files & blob ids, then git cat-file
+     * --batch-check for the sizes of those blobs.
+     * @param pullRequest The pull request to diff
+     * @return Stats of each changed file
+     * @throws RuntimeException git failed
+     */
+    @Nonnull
+    Map<String, ChangeFilter.ChangedFileStats> getChangedFileStats(@Nonnull PullRequest pullRequest) {
+        final Map<String, ChangeFilter.ChangedFileStats> stats = new HashMap<>();
+        final Map<String, String> blobIds = new HashMap<>();
+
+        gitCommandBuilderFactory.builder(pullRequest.getToRef().getRepository())
+                .command("diff")
+                .argument("--raw")
+                .argument("--numstat")
+                .argument("-z")
+                .argument("--no-abbrev")
+                .argument("--find-renames")
+                .argument("--diff-filter=AMR")
+                .argument("--no-ext-diff")
+                .argument("--no-textconv")
+                .argument(pullRequest.getToRef().getLatestCommit() + "..." + pullRequest.getFromRef().getLatestCommit())
+                .argument("--")
+                .build(new ParsingOutputHandler((output, resetWatchdog) -> parseRawNumstat(output, stats, blobIds)))
+                .call();
+
+        if (blobIds.isEmpty())
+            return stats;
+
+        final List<String> paths = new ArrayList<>(blobIds.keySet());
+        final List<String> ids = new ArrayList<>(paths.size());
+        for (String path : paths)
+            ids.add(blobIds.get(path));
+
+        gitCommandBuilderFactory.builder(pullRequest.getToRef().getRepository())
+                .command("cat-file")
+                .argument("--batch-check=%(objectsize)")
+                .inputHandler(new LinesInputHandler(ids))
+                .build(new ParsingOutputHandler((output, resetWatchdog) -> {
+                    final ByteLineReader reader = new ByteLineReader(output);
+                    for (int i = 0; i < paths.size() && reader.readLine(); i++) {
+                        final ChangeFilter.ChangedFileStats fileStats = stats.get(paths.get(i));
+                        final String size = reader.decode(reader.lineStart(), reader.lineEnd());
+                        if (fileStats != null && !size.endsWith(" missing"))
+                            stats.put(paths.get(i), fileStats.withBytes(Long.parseLong(size)));
+                    }
+                }))
+                .call();
+        return stats;
+    }
+
+    /**
+     * Records of git diff --raw --numstat -z, each NUL terminated (paths are not quoted):
+     *    :srcMode dstMode srcId dstId status, path (or source path, destination path if renamed)
+     *    added TAB removed TAB path (or added TAB removed TAB, source path, destination path if renamed). - - if binary.
+     */
+    private static void parseRawNumstat(InputStream output, Map<String, ChangeFilter.ChangedFileStats> stats,
+                                        Map<String, String> blobIds) throws IOException {
+        final ByteLineReader reader = new ByteLineReader(output, (byte) 0);
+        while (reader.readLine()) {
+            final String record = reader.decode(reader.lineStart(), reader.lineEnd());
+            if (record.startsWith(":")) {
+                final String[] fields = record.split(" ");
+                final char status = fields[4].charAt(0);
+                if (!reader.readLine())
+                    break;
+                if ((status == 'R' || status == 'C') && !reader.readLine())
+                    break;
+                blobIds.put(reader.decode(reader.lineStart(), reader.lineEnd()), fields[3]);
+            } else {
+                final String[] fields = record.split("\t", 3);
+                if (fields.length < 3)
+                    continue;
+
+                String path = fields[2];
+                if (path.isEmpty()) { // Renamed
+                    if (!reader.readLine() || !reader.readLine())
+                        break;
+                    path = reader.decode(reader.lineStart(), reader.lineEnd());
+                }
+
+                final boolean binary = fields[0].equals("-");
+                stats.put(path, new ChangeFilter.ChangedFileStats(-1, binary ? -1 : Long.parseLong(fields[0]), binary));
+            }
+        }
+    }
+
+    /**
+     * INTERNAL: Writes lines to the input of git
+     */
+    private static class LinesInputHandler implements CommandInputHandler {
+        private final List<String> lines;
+
+        LinesInputHandler(List<String> lines) {
+            this.lines = lines;
+        }
+
+        @Override
+        public void process(@Nonnull OutputStream input) {
+            try (OutputStream buffered = new BufferedOutputStream(input)) {
+                for (String line : lines) {
+                    buffered.write(line.getBytes(StandardCharsets.UTF_8));
+                    buffered.write('\n');
+                }
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException("Failed to write the git input", e);
+            }
+        }
+
+        @Override
+        public void setWatchdog(@Nonnull Watchdog watchdog) {
+        }
+
+        @Override
+        public void complete() {
+        }
+    }
+
+    /**
+     * INTERNAL: Parses the output of git as it is produced
+     */
+    private interface OutputParser {
+        void parse(InputStream output, Runnable resetWatchdog) throws IOException;
+    }
+
+    private static class ParsingOutputHandler implements CommandOutputHandler<Void> {
+        private final OutputParser parser;
+        private Watchdog watchdog;
+
+        ParsingOutputHandler(OutputParser parser) {
+            this.parser = parser;
+        }
+
+        @Override
+        public void process(@Nonnull InputStream output) {
+            try {
+                parser.parse(output, this::resetWatchdog);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException("Failed to read the git output", e);
+            }
+        }
+
+        // Scanning a large file can take longer than the idle timeout of the git process, which waits whilst lines are matched
+        private void resetWatchdog() {
+            if (watchdog != null)
+                watchdog.resetWatchdog();
+        }
+
+        @Override
+        public void setWatchdog(@Nonnull Watchdog watchdog) {
+            this.watchdog = watchdog;
+        }
+
+        @Override
+        public void complete() {
+        }
+
+        @Nullable
+        @Override
+        public Void getOutput() {
+            return null;
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package com.cyanoth.secretwarden.pullrequest;
 
-import com.atlassian.bitbucket.concurrent.LockService;
 import com.atlassian.bitbucket.hook.repository.*;
 import com.atlassian.bitbucket.permission.Permission;
 import com.atlassian.bitbucket.permission.PermissionService;
@@ -10,7 +9,7 @@ import com.atlassian.plugin.spring.scanner.annotation.component.Scanned;
 import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
 
 import com.cyanoth.secretwarden.SecretScanException;
-import com.cyanoth.secretwarden.config.MatchRuleSetCache;
+import com.cyanoth.secretwarden.config.ScanSettings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -21,28 +20,32 @@ import javax.annotation.Nonnull;
  * Bitbucket Merge Check class. If enabled on project/repository, on a new pull request this gets invoked.
  * The merge check will invoke a secret scan, check how many secrets were found.
  * If one or more secrets were found, the merge will be blocked unless the user is a project/repository administrator.
+ *
+ * Only whether there is a secret matters here. In FAIL_FAST merge check mode, the scan stops at the first secret found
+ * & every secret (for the pull request overview) is found in the background.
+ *
+ * By default the merge check waits for the scan. When a merge check latency budget is set, it waits at most that long:
+ * if it runs out, the merge is vetoed as "still scanning" (unless the user is an administrator) and the scan continues
+ * in the background, so checking again shortly after will find the result in the cache.
+ *
+ * Changed files which the file filter excludes (see FileFilterSettings) are not scanned, so a merge which is vetoed says
+ * how many files were skipped: a secret in one of them would not have been found.
  */
 @Component("HasSecretMergeCheck")
 @Scanned
 public class HasSecretMergeCheck implements RepositoryMergeCheck {
     private static final Logger log = LoggerFactory.getLogger(HasSecretMergeCheck.class);
     private final PermissionService permissionService;
-    private final PullRequestService pullRequestService;
-    private final LockService lockService;
-    private final PullRequestSecretScanResultCache pullRequestSecretScanResultCache;
-    private final MatchRuleSetCache matchRuleSetCache;
+    private final PullRequestScanService pullRequestScanService;
+    private final ScanSettings scanSettings;
 
     @Autowired
     public HasSecretMergeCheck(@ComponentImport PermissionService permissionService,
-                               @ComponentImport PullRequestService pullRequestService,
-                               @ComponentImport LockService lockService,
-                               PullRequestSecretScanResultCache pullRequestSecretScanResultCache,
-                               MatchRuleSetCache matchRuleSetCache) {
+                               PullRequestScanService pullRequestScanService,
+                               ScanSettings scanSettings) {
         this.permissionService = permissionService;
-        this.pullRequestService = pullRequestService;
-        this.lockService = lockService;
-        this.pullRequestSecretScanResultCache = pullRequestSecretScanResultCache;
-        this.matchRuleSetCache = matchRuleSetCache;
+        this.pullRequestScanService = pullRequestScanService;
+        this.scanSettings = scanSettings;
     }
 
     @Nonnull
@@ -54,17 +57,35 @@ public class HasSecretMergeCheck implements RepositoryMergeCheck {
             final PullRequest pullRequest = request.getPullRequest();
             final Repository repository = pullRequest.getToRef().getRepository();
 
-            PullRequestSecretScanResult pullRequestScan = new PullRequestSecretScanner(pullRequestService, pullRequest,
-                    lockService, pullRequestSecretScanResultCache, matchRuleSetCache).scan(false);
+            PullRequestSecretScanResult pullRequestScan = pullRequestScanService.scanWithinBudget(pullRequest,
+                    scanSettings.getMergeCheckMode() == ScanSettings.MergeCheckMode.FAIL_FAST, scanSettings.getMergeCheckLatencyBudget());
+
+            if (pullRequestScan == null) {
+                if (!permissionService.hasRepositoryPermission(repository, Permission.REPO_ADMIN)) {
+                    return RepositoryHookResult.rejected("SecretWarden is still scanning this pull-request for secrets.",
+                            "The secret scan of this PR has not finished yet. Please try again shortly.");
+                }
+                return RepositoryHookResult.accepted();
+            }
 
             int secretCount = pullRequestScan.countFoundSecrets();
             if (secretCount > 0) {
                 if (!permissionService.hasRepositoryPermission(repository, Permission.REPO_ADMIN)) {
                     String s =  (secretCount > 1) ? "secrets" : "secret";
+                    if (pullRequestScan.isPartialVerdict()) // Not every secret has been found (yet)
+                        return RepositoryHookResult.rejected(String.format("At least %d %s identified in this pull-request.", secretCount, s),
+                                "This PR contains secrets, therefore only a repository admin may merge this pull request." +
+                                        describeSkippedFiles(pullRequestScan));
+
                     return RepositoryHookResult.rejected(String.format("%d %s identified in this pull-request.", secretCount, s),
-                            String.format("This PR contains %d %s, therefore only a repository admin may merge this pull request.", secretCount, s));
+                            String.format("This PR contains %d %s, therefore only a repository admin may merge this pull request.", secretCount, s) +
+                                    describeSkippedFiles(pullRequestScan));
                 }
             }
+
+            if (pullRequestScan.getSkippedFileCount() > 0)
+                log.debug(String.format("Pull request %d was merge checked without scanning %d file(s) excluded by the file filter",
+                        pullRequest.getId(), pullRequestScan.getSkippedFileCount()));
         }
         // If an exception occurs performing this merge check, don't block the pull request from being merged - just log the exception that occurred.
         catch (SecretScanException e) {
@@ -77,6 +98,17 @@ public class HasSecretMergeCheck implements RepositoryMergeCheck {
 
         return RepositoryHookResult.accepted();
     }
+
+    /**
+     * @return A sentence saying how many changed files the file filter excluded from the scan, empty if none were
+     */
+    private static String describeSkippedFiles(PullRequestSecretScanResult pullRequestScan) {
+        final int skippedFileCount = pullRequestScan.getSkippedFileCount();
+        if (skippedFileCount == 0)
+            return "";
+        return String.format(" %d changed %s not scanned, as the file filter excludes %s.", skippedFileCount,
+                (skippedFileCount > 1) ? "files were" : "file was", (skippedFileCount > 1) ? "them" : "it");
+    }
 }
 
 
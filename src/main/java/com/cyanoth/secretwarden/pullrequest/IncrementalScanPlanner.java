@@ -0,0 +1,115 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+import com.atlassian.bitbucket.commit.CommitService;
+import com.atlassian.bitbucket.commit.CommitsBetweenRequest;
+import com.atlassian.bitbucket.content.AbstractChangeCallback;
+import com.atlassian.bitbucket.content.Change;
+import com.atlassian.bitbucket.content.ChangeSummary;
+import com.atlassian.bitbucket.content.ChangesRequest;
+import com.atlassian.bitbucket.pull.PullRequest;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.util.PageRequestImpl;
+import com.cyanoth.secretwarden.SecretScanStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * INTERNAL: Decides whether a pull request can be rescanned incrementally, that is only the files touched by the commits
+ * pushed to the source branch since the previous scan, rather than every file of the pull request.
+ *
+ * An incremental rescan is only possible when the previous scan completed with the same ruleset, the target branch has
+ * not moved & the source branch only moved forward (the previously scanned commit is an ancestor of the latest commit).
+ * Otherwise (e.g. target branch updated, history rewritten by a force push or rebase), the whole pull request is rescanned.
+ */
+class IncrementalScanPlanner {
+    private static final Logger log = LoggerFactory.getLogger(IncrementalScanPlanner.class);
+    private final CommitService commitService;
+
+    IncrementalScanPlanner(CommitService commitService) {
+        this.commitService = commitService;
+    }
+
+    /**
+     * @param pullRequest The pull request to be scanned
+     * @param previousScan The previous scan result of the pull request
+     * @param ruleSetVersion Version of the ruleset the pull request will be scanned with
+     * @return Paths of files touched since the previous scan (empty if the source branch hasn't changed).
+     *         Null if an incremental rescan is not possible, so the whole pull request must be rescanned.
+     */
+    @Nullable
+    Set<String> findChangedPaths(@Nonnull PullRequest pullRequest, @Nullable PullRequestSecretScanResult previousScan,
+                                 long ruleSetVersion) {
+        // A partial verdict stopped at the first secret, the files it didn't reach were never scanned
+        if (previousScan == null || previousScan.getSecretScanStatus() != SecretScanStatus.COMPLETED || previousScan.isPartialVerdict() ||
+                previousScan.getFromCommit() == null || previousScan.getToCommit() == null)
+            return null;
+
+        if (previousScan.getRuleSetVersion() != ruleSetVersion) {
+            log.debug("The ruleset has changed since the previous scan, a full rescan is required");
+            return null;
+        }
+
+        if (!previousScan.getToCommit().equals(pullRequest.getToRef().getLatestCommit())) {
+            log.debug("The target branch has moved since the previous scan, a full rescan is required");
+            return null;
+        }
+
+        final String previousFromCommit = previousScan.getFromCommit();
+        final String latestFromCommit = pullRequest.getFromRef().getLatestCommit();
+        if (previousFromCommit.equals(latestFromCommit))
+            return Collections.emptySet();
+
+        final Repository fromRepository = pullRequest.getFromRef().getRepository();
+        if (!isAncestor(fromRepository, previousFromCommit, latestFromCommit)) {
+            log.debug("The source branch history has been rewritten since the previous scan, a full rescan is required");
+            return null;
+        }
+
+        final Set<String> changedPaths = new LinkedHashSet<>();
+        final boolean[] truncated = { false };
+        final ChangesRequest changesRequest = new ChangesRequest.Builder(fromRepository, latestFromCommit)
+                .sinceId(previousFromCommit)
+                .build();
+
+        commitService.streamChanges(changesRequest, new AbstractChangeCallback() {
+            @Override
+            public boolean onChange(@Nonnull Change change) {
+                changedPaths.add(change.getPath().toString());
+                if (change.getSrcPath() != null) // Moved or copied, the old path is touched too
+                    changedPaths.add(change.getSrcPath().toString());
+                return true;
+            }
+
+            @Override
+            public void onEnd(@Nonnull ChangeSummary summary) {
+                truncated[0] = summary.isTruncated();
+            }
+        });
+
+        if (truncated[0]) {
+            log.debug("Too many files have changed since the previous scan to list them all, a full rescan is required");
+            return null;
+        }
+
+        log.debug(String.format("%d file(s) have changed between %s and %s", changedPaths.size(), previousFromCommit, latestFromCommit));
+        return changedPaths;
+    }
+
+    /**
+     * @return True, if every commit reachable from ancestor is also reachable from descendant.
+     */
+    private boolean isAncestor(Repository repository, String ancestor, String descendant) {
+        final CommitsBetweenRequest notInDescendant = new CommitsBetweenRequest.Builder(repository)
+                .include(ancestor)
+                .exclude(descendant)
+                .build();
+
+        return commitService.getCommitsBetween(notInDescendant, new PageRequestImpl(0, 1)).getSize() == 0;
+    }
+}
@@ -0,0 +1,118 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import net.java.ao.Query;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Persists the latest finished scan result of each pull request in the database (Active Objects), so results survive a
+ * full cluster restart or the result cache being cleared. Used by PullRequestSecretScanResultCache when the
+ * result_store_enabled setting is on: results are written through on put & loaded lazily on a cache miss.
+ *
+ * Each row records the revision (source/target commit & ruleset version) of its result, so a loaded result is only used
+ * while the pull request & ruleset are unchanged, exactly like a cached one. Results are stored in their compact form
+ * (see PullRequestSecretScanResult.writeExternal), a row which can no longer be read is ignored.
+ *
+ * A row is deleted once its pull request can no longer be merged (see PullRequestClosedListener), so the table only
+ * grows with the number of open pull requests.
+ */
+@Component
+public class PersistentScanResultStore {
+    private static final Logger log = LoggerFactory.getLogger(PersistentScanResultStore.class);
+    private static final String PULL_REQUEST_CRITERIA = ScanResultEntity.REPOSITORY_ID + " = ? AND " +
+            ScanResultEntity.PULL_REQUEST_ID + " = ?";
+
+    private final ActiveObjects activeObjects;
+
+    @Autowired
+    public PersistentScanResultStore(@ComponentImport final ActiveObjects activeObjects) {
+        this.activeObjects = activeObjects;
+    }
+
+    /**
+     * @return The latest stored result of the pull request, which may be out of date. Null if none is stored (or readable).
+     */
+    @Nullable
+    public PullRequestSecretScanResult load(int repositoryId, long pullRequestId) {
+        final ScanResultEntity[] rows = activeObjects.executeInTransaction(() ->
+                activeObjects.find(ScanResultEntity.class, Query.select()
+                        .where(PULL_REQUEST_CRITERIA, repositoryId, pullRequestId)
+                        .order(ScanResultEntity.STORED_AT + " DESC")
+                        .limit(1)));
+
+        if (rows.length == 0)
+            return null;
+
+        try {
+            return decode(rows[0].getEncodedResult());
+        }
+        catch (IOException | IllegalArgumentException e) {
+            log.warn(String.format("Ignoring the unreadable stored SecretWarden scan result of Repository: %d PR: %d",
+                    repositoryId, pullRequestId), e);
+            return null;
+        }
+    }
+
+    /**
+     * Store the result of a pull request, replacing its previous result.
+     * @param result A finished result (not IN_PROGRESS)
+     */
+    public void store(int repositoryId, long pullRequestId, @Nonnull PullRequestSecretScanResult result) throws IOException {
+        final Map<String, Object> row = new HashMap<>();
+        row.put(ScanResultEntity.REPOSITORY_ID, repositoryId);
+        row.put(ScanResultEntity.PULL_REQUEST_ID, pullRequestId);
+        row.put(ScanResultEntity.FROM_COMMIT, result.getFromCommit());
+        row.put(ScanResultEntity.TO_COMMIT, result.getToCommit());
+        row.put(ScanResultEntity.RULE_SET_VERSION, result.getRuleSetVersion());
+        row.put(ScanResultEntity.STORED_AT, System.currentTimeMillis());
+        row.put(ScanResultEntity.ENCODED_RESULT, encode(result));
+
+        activeObjects.executeInTransaction(() -> {
+            activeObjects.deleteWithSQL(ScanResultEntity.class, PULL_REQUEST_CRITERIA, repositoryId, pullRequestId);
+            return activeObjects.create(ScanResultEntity.class, row);
+        });
+    }
+
+    /**
+     * Delete the stored result of a pull request, if any.
+     * @return True if a result was stored
+     */
+    public boolean delete(int repositoryId, long pullRequestId) {
+        final int deleted = activeObjects.executeInTransaction(() ->
+                activeObjects.deleteWithSQL(ScanResultEntity.class, PULL_REQUEST_CRITERIA, repositoryId, pullRequestId));
+        return deleted > 0;
+    }
+
+    @Nonnull
+    private static String encode(PullRequestSecretScanResult result) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            result.writeExternal(out);
+        }
+        return Base64.getEncoder().encodeToString(bytes.toByteArray());
+    }
+
+    @Nonnull
+    private static PullRequestSecretScanResult decode(String encoded) throws IOException {
+        final PullRequestSecretScanResult result = new PullRequestSecretScanResult();
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(Base64.getDecoder().decode(encoded)))) {
+            result.readExternal(in);
+        }
+        return result;
+    }
+}
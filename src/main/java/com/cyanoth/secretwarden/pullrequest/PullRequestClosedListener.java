@@ -0,0 +1,47 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+import com.atlassian.bitbucket.event.pull.PullRequestDeclinedEvent;
+import com.atlassian.bitbucket.event.pull.PullRequestDeletedEvent;
+import com.atlassian.bitbucket.event.pull.PullRequestMergedEvent;
+import com.atlassian.bitbucket.pull.PullRequest;
+import com.atlassian.event.api.EventListener;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Removes the scan result of a pull request once it can no longer be merged (merged, declined or deleted), from the
+ * result cache & the database (see PersistentScanResultStore). Otherwise the stored results would grow without bound.
+ * A declined pull request which is reopened is prescanned again (see PullRequestPrescanListener).
+ *
+ * Bitbucket registers plugin components with @EventListener methods as event listeners automatically.
+ */
+@Component
+public class PullRequestClosedListener {
+    private final PullRequestSecretScanResultCache pullRequestSecretScanResultCache;
+
+    @Autowired
+    public PullRequestClosedListener(PullRequestSecretScanResultCache pullRequestSecretScanResultCache) {
+        this.pullRequestSecretScanResultCache = pullRequestSecretScanResultCache;
+    }
+
+    @EventListener
+    public void onPullRequestMerged(PullRequestMergedEvent event) {
+        removeResult(event.getPullRequest());
+    }
+
+    @EventListener
+    public void onPullRequestDeclined(PullRequestDeclinedEvent event) {
+        removeResult(event.getPullRequest());
+    }
+
+    @EventListener
+    public void onPullRequestDeleted(PullRequestDeletedEvent event) {
+        removeResult(event.getPullRequest());
+    }
+
+    private void removeResult(@Nonnull PullRequest pullRequest) {
+        pullRequestSecretScanResultCache.remove(pullRequest.getToRef().getRepository().getId(), pullRequest.getId());
+    }
+}
@@ -0,0 +1,132 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+import com.atlassian.bitbucket.event.pull.PullRequestOpenedEvent;
+import com.atlassian.bitbucket.event.pull.PullRequestReopenedEvent;
+import com.atlassian.bitbucket.event.pull.PullRequestRescopedEvent;
+import com.atlassian.bitbucket.hook.repository.RepositoryHook;
+import com.atlassian.bitbucket.hook.repository.RepositoryHookService;
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.pull.PullRequest;
+import com.atlassian.bitbucket.pull.PullRequestService;
+import com.atlassian.bitbucket.pull.PullRequestState;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.scope.RepositoryScope;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.bitbucket.util.Operation;
+import com.atlassian.event.api.EventListener;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.cyanoth.secretwarden.ScanMetrics;
+import com.cyanoth.secretwarden.conditions.PullRequestMergeCheckEnabled;
+import com.cyanoth.secretwarden.config.ScanSettings;
+import com.cyanoth.secretwarden.pullrequest.ScanScheduler.ScanPriority;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nonnull;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Scans a pull request in the background as soon as its code is known or changes (opened, reopened, rescoped - the source
+ * or target branch updated), so the result cache already holds a COMPLETED result when someone views or merges it.
+ *
+ * Prescans are queued with the lowest priority on the ScanScheduler. Events for a pull request which already has a prescan
+ * queued (e.g. several pushes in quick succession) are coalesced into that prescan, which scans whatever the latest
+ * revision of the pull request is when it starts. Pull requests are only prescanned if the merge check is enabled for them.
+ *
+ * Bitbucket registers plugin components with @EventListener methods as event listeners automatically.
+ */
+@Component
+public class PullRequestPrescanListener {
+    private static final Logger log = LoggerFactory.getLogger(PullRequestPrescanListener.class);
+
+    private final PullRequestService pullRequestService;
+    private final RepositoryHookService repositoryHookService;
+    private final SecurityService securityService;
+    private final PullRequestScanService pullRequestScanService;
+    private final ScanScheduler scanScheduler;
+    private final ScanSettings scanSettings;
+    private final ScanMetrics scanMetrics;
+    private final Set<String> queuedPrescans = ConcurrentHashMap.newKeySet();
+
+    @Autowired
+    public PullRequestPrescanListener(@ComponentImport PullRequestService pullRequestService,
+                                      @ComponentImport RepositoryHookService repositoryHookService,
+                                      @ComponentImport SecurityService securityService,
+                                      PullRequestScanService pullRequestScanService,
+                                      ScanScheduler scanScheduler,
+                                      ScanSettings scanSettings,
+                                      ScanMetrics scanMetrics) {
+        this.pullRequestService = pullRequestService;
+        this.repositoryHookService = repositoryHookService;
+        this.securityService = securityService;
+        this.pullRequestScanService = pullRequestScanService;
+        this.scanScheduler = scanScheduler;
+        this.scanSettings = scanSettings;
+        this.scanMetrics = scanMetrics;
+    }
+
+    @EventListener
+    public void onPullRequestOpened(PullRequestOpenedEvent event) {
+        prescan(event.getPullRequest());
+    }
+
+    @EventListener
+    public void onPullRequestReopened(PullRequestReopenedEvent event) {
+        prescan(event.getPullRequest());
+    }
+
+    @EventListener
+    public void onPullRequestRescoped(PullRequestRescopedEvent event) {
+        prescan(event.getPullRequest());
+    }
+
+    /**
+     * Queue a prescan of the pull request, unless one is already queued.
+     */
+    void prescan(@Nonnull PullRequest pullRequest) {
+        if (!scanSettings.isPrescanEnabled())
+            return;
+
+        final int repositoryId = pullRequest.getToRef().getRepository().getId();
+        final long pullRequestId = pullRequest.getId();
+        final String prescanKey = repositoryId + "__" + pullRequestId;
+
+        if (!queuedPrescans.add(prescanKey)) {
+            scanMetrics.increment(ScanMetrics.PRESCANS_COALESCED);
+            return;
+        }
+
+        scanScheduler.submit(ScanPriority.BACKGROUND_PRESCAN, repositoryId, () -> {
+            queuedPrescans.remove(prescanKey); // Any event from now on is for a revision this prescan may not see
+
+            // The pull request may have changed (or closed) whilst queued, scan it as it is now
+            final PullRequest latestPullRequest = pullRequestService.getById(repositoryId, pullRequestId);
+            if (latestPullRequest == null || latestPullRequest.getState() != PullRequestState.OPEN ||
+                    !isMergeCheckEnabled(latestPullRequest.getToRef().getRepository()))
+                return null;
+
+            scanMetrics.increment(ScanMetrics.PRESCANS);
+            log.debug(String.format("SecretWarden is prescanning the pull request: %s (PR: %d)", latestPullRequest.getToRef(), pullRequestId));
+            return pullRequestScanService.scan(latestPullRequest, false);
+        }).whenComplete((result, e) -> {
+            if (e != null) {
+                queuedPrescans.remove(prescanKey);
+                log.warn(String.format("SecretWarden failed to prescan the pull request: %d in repository: %d. %s",
+                        pullRequestId, repositoryId, e.getMessage()));
+            }
+        });
+    }
+
+    private boolean isMergeCheckEnabled(Repository repository) throws Exception {
+        // We have to escalate to repository administrator level to check whether or not the merge check is enabled.
+        return securityService.withPermission(Permission.REPO_ADMIN, "SecretWarden Retrieving Merge Check State")
+                .call((Operation<Boolean, Exception>) () -> {
+                    RepositoryHook hook = repositoryHookService.getByKey(new RepositoryScope(repository),
+                            PullRequestMergeCheckEnabled.HOOK_KEY);
+                    return hook != null && hook.isEnabled();
+                });
+    }
+}
@@ -0,0 +1,96 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+import com.atlassian.bitbucket.pull.PullRequest;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * Identifies exactly what a pull request scan covered: the code of the pull request (latest commit of the source & target
+ * branch) and the ruleset it was scanned with. A scan result is valid for as long as the revision is unchanged, so
+ * comments, approvals etc. (which update the pull request, but not its code) don't invalidate it, while a ruleset
+ * change does. Intentionally immutable.
+ */
+public final class PullRequestScanRevision implements Serializable {
+    private final int repositoryId;
+    private final long pullRequestId;
+    private final String fromCommit;
+    private final String toCommit;
+    private final long ruleSetVersion;
+
+    public PullRequestScanRevision(int repositoryId, long pullRequestId, @Nullable String fromCommit, @Nullable String toCommit,
+                                   long ruleSetVersion) {
+        this.repositoryId = repositoryId;
+        this.pullRequestId = pullRequestId;
+        this.fromCommit = fromCommit;
+        this.toCommit = toCommit;
+        this.ruleSetVersion = ruleSetVersion;
+    }
+
+    /**
+     * @param pullRequest The pull request, as it currently is
+     * @param ruleSetVersion Version of the ruleset (see MatchRuleSetSnapshot)
+     * @return The current revision of the pull request
+     */
+    @Nonnull
+    public static PullRequestScanRevision of(@Nonnull PullRequest pullRequest, long ruleSetVersion) {
+        return new PullRequestScanRevision(pullRequest.getToRef().getRepository().getId(), pullRequest.getId(),
+                pullRequest.getFromRef().getLatestCommit(), pullRequest.getToRef().getLatestCommit(), ruleSetVersion);
+    }
+
+    public int getRepositoryId() {
+        return repositoryId;
+    }
+
+    public long getPullRequestId() {
+        return pullRequestId;
+    }
+
+    /**
+     * @return Latest commit of the source branch (fromRef)
+     */
+    @Nullable
+    public String getFromCommit() {
+        return fromCommit;
+    }
+
+    /**
+     * @return Latest commit of the target branch (toRef)
+     */
+    @Nullable
+    public String getToCommit() {
+        return toCommit;
+    }
+
+    public long getRuleSetVersion() {
+        return ruleSetVersion;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof PullRequestScanRevision))
+            return false;
+
+        PullRequestScanRevision other = (PullRequestScanRevision) o;
+        return repositoryId == other.repositoryId && pullRequestId == other.pullRequestId &&
+                ruleSetVersion == other.ruleSetVersion && Objects.equals(fromCommit, other.fromCommit) &&
+                Objects.equals(toCommit, other.toCommit);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(repositoryId, pullRequestId, fromCommit, toCommit, ruleSetVersion);
+    }
+
+    /**
+     * @return Friendly string describing the revision
+     */
+    public String toString() {
+        return String.format("Repository: %d PR: %d From: %s To: %s RuleSet Version: %d", repositoryId, pullRequestId,
+                fromCommit, toCommit, ruleSetVersion);
+    }
+}
@@ -0,0 +1,295 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+import com.atlassian.bitbucket.commit.CommitService;
+import com.atlassian.bitbucket.concurrent.LockService;
+import com.atlassian.bitbucket.pull.PullRequest;
+import com.atlassian.bitbucket.pull.PullRequestService;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.cyanoth.secretwarden.ScanMetrics;
+import com.cyanoth.secretwarden.SecretScanException;
+import com.cyanoth.secretwarden.SecretScanStatus;
+import com.cyanoth.secretwarden.config.FileFilterSettings;
+import com.cyanoth.secretwarden.config.MatchRuleSetCache;
+import com.cyanoth.secretwarden.config.ScanSettings;
+import com.cyanoth.secretwarden.pullrequest.ScanScheduler.ScanPriority;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Entry point to scan pull requests, either on the calling thread or in the background.
+ * Background scans are queued on the ScanScheduler (not the ScanExecutor, whose threads scan the files of a scan), by
+ * priority: the merge check first, then full scans for the overview panel.
+ *
+ * The merge check runs on a Bitbucket request thread, so it can scan within a latency budget: the scan runs in the
+ * background & the request thread only waits up to the budget for its result. A scan which takes longer carries on.
+ * Only one merge check scan of a revision is queued at a time, every other merge check of it waits for that one.
+ *
+ * Scans are single-flight on this node: concurrent callers for the same revision of a pull request (the overview panel,
+ * the merge check of every reviewer, REST) share one in-flight scan, and so one attempt at its cluster lock. Forced scans
+ * are never shared.
+ */
+@Component
+public class PullRequestScanService {
+    private static final Logger log = LoggerFactory.getLogger(PullRequestScanService.class);
+    private static final long SHARED_SCAN_TIMEOUT = 60_000; // Milliseconds to wait for a scan started by another caller
+
+    private final PullRequestService pullRequestService;
+    private final LockService lockService;
+    private final CommitService commitService;
+    private final PullRequestSecretScanResultCache pullRequestSecretScanResultCache;
+    private final MatchRuleSetCache matchRuleSetCache;
+    private final ScanSettings scanSettings;
+    private final ScanExecutor scanExecutor;
+    private final BlobFindingsCache blobFindingsCache;
+    private final ScanMetrics scanMetrics;
+    private final ScanScheduler scanScheduler;
+    private final ScanLeaseManager scanLeaseManager;
+    private final GitDiffStreamer gitDiffStreamer;
+    private final FileFilterSettings fileFilterSettings;
+    private final ConcurrentMap<PullRequestScanRevision, CompletableFuture<PullRequestSecretScanResult>> inFlightScans = new ConcurrentHashMap<>();
+    private final ConcurrentMap<PullRequestScanRevision, CompletableFuture<PullRequestSecretScanResult>> inFlightVerdicts = new ConcurrentHashMap<>();
+    private final ConcurrentMap<PullRequestScanRevision, CompletableFuture<PullRequestSecretScanResult>> queuedMergeChecks = new ConcurrentHashMap<>();
+    private final ConcurrentMap<PullRequestScanRevision, CompletableFuture<PullRequestSecretScanResult>> queuedMergeCheckVerdicts = new ConcurrentHashMap<>();
+
+    @Autowired
+    public PullRequestScanService(@ComponentImport PullRequestService pullRequestService,
+                                  @ComponentImport LockService lockService,
+                                  @ComponentImport CommitService commitService,
+                                  PullRequestSecretScanResultCache pullRequestSecretScanResultCache,
+                                  MatchRuleSetCache matchRuleSetCache,
+                                  ScanSettings scanSettings,
+                                  ScanExecutor scanExecutor,
+                                  BlobFindingsCache blobFindingsCache,
+                                  ScanMetrics scanMetrics,
+                                  ScanScheduler scanScheduler,
+                                  ScanLeaseManager scanLeaseManager,
+                                  GitDiffStreamer gitDiffStreamer,
+                                  FileFilterSettings fileFilterSettings) {
+        this.pullRequestService = pullRequestService;
+        this.lockService = lockService;
+        this.commitService = commitService;
+        this.pullRequestSecretScanResultCache = pullRequestSecretScanResultCache;
+        this.matchRuleSetCache = matchRuleSetCache;
+        this.scanSettings = scanSettings;
+        this.scanExecutor = scanExecutor;
+        this.blobFindingsCache = blobFindingsCache;
+        this.scanMetrics = scanMetrics;
+        this.scanScheduler = scanScheduler;
+        this.scanLeaseManager = scanLeaseManager;
+        this.gitDiffStreamer = gitDiffStreamer;
+        this.fileFilterSettings = fileFilterSettings;
+    }
+
+    /**
+     * Find every secret of the pull request, on the calling thread (see PullRequestSecretScanner.scan)
+     * @param pullRequest Pull request to scan
+     * @param force Do not check cache. Scan even if the result is in the cache
+     * @return Results of the secret scan
+     * @throws SecretScanException An handled exception occurred during the scan but means results are incomplete
+     */
+    public PullRequestSecretScanResult scan(@Nonnull PullRequest pullRequest, boolean force) throws SecretScanException {
+        if (force)
+            return newScanner(pullRequest).scan(true);
+
+        return singleFlight(inFlightScans, pullRequest, () -> newScanner(pullRequest).scan(false));
+    }
+
+    /**
+     * Decide whether the pull request contains a secret on the calling thread, stopping at the first secret found.
+     * If the scan stopped at a secret, every secret of the pull request is then found in the background (for the overview).
+     * @param pullRequest Pull request to scan
+     * @return Results of the secret scan, which may be a partial verdict (see PullRequestSecretScanner.scanForVerdict)
+     * @throws SecretScanException An handled exception occurred during the scan but means results are incomplete
+     */
+    public PullRequestSecretScanResult scanForVerdict(@Nonnull PullRequest pullRequest) throws SecretScanException {
+        return singleFlight(inFlightVerdicts, pullRequest, () -> {
+            final PullRequestSecretScanResult verdict = newScanner(pullRequest).scanForVerdict();
+            if (verdict.isPartialVerdict())
+                scanInBackground(pullRequest, ScanPriority.UI_OVERVIEW);
+            return verdict;
+        });
+    }
+
+    /**
+     * Scan the pull request for the merge check (see ScanSettings.MergeCheckMode), waiting at most the latency budget.
+     * A completed result of the current revision in the cache is returned straight away.
+     * @param pullRequest Pull request to scan
+     * @param verdictOnly True, stop at the first secret (see scanForVerdict). False, find every secret.
+     * @param budgetMillis Maximum milliseconds to wait for the result. 0 to scan on the calling thread without a limit.
+     * @return Results of the secret scan. Null if the budget ran out, the scan is still running in the background.
+     * @throws SecretScanException An handled exception occurred during the scan but means results are incomplete
+     */
+    @Nullable
+    public PullRequestSecretScanResult scanWithinBudget(@Nonnull PullRequest pullRequest, boolean verdictOnly, long budgetMillis)
+            throws SecretScanException {
+        scanMetrics.increment(ScanMetrics.MERGE_CHECK_SCANS);
+        final Callable<PullRequestSecretScanResult> scan = () -> verdictOnly ? scanForVerdict(pullRequest) : scan(pullRequest, false);
+
+        try {
+            if (budgetMillis <= 0)
+                return scan.call();
+
+            final PullRequestScanRevision revision = PullRequestScanRevision.of(pullRequest, matchRuleSetCache.getSnapshot().getVersion());
+            final PullRequestSecretScanResult completedScan = getCompletedScan(revision);
+            if (completedScan != null)
+                return completedScan;
+
+            final CompletableFuture<PullRequestSecretScanResult> pendingScan = queueMergeCheck(
+                    verdictOnly ? queuedMergeCheckVerdicts : queuedMergeChecks, revision, pullRequest, scan);
+            try {
+                return pendingScan.get(budgetMillis, TimeUnit.MILLISECONDS);
+            }
+            catch (TimeoutException e) {
+                scanMetrics.increment(ScanMetrics.MERGE_CHECK_BUDGET_EXHAUSTED);
+                log.debug(String.format("SecretWarden is still scanning the pull request: %s (PR: %d) after %d milliseconds, " +
+                        "the scan continues in the background", pullRequest.getToRef(), pullRequest.getId(), budgetMillis));
+                return null;
+            }
+        }
+        catch (SecretScanException e) {
+            throw e;
+        }
+        catch (ExecutionException e) {
+            throw (e.getCause() instanceof SecretScanException) ? (SecretScanException) e.getCause() : new SecretScanException(e);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SecretScanException(e);
+        }
+        catch (Exception e) {
+            throw new SecretScanException(e);
+        }
+    }
+
+    /**
+     * Queue a scan finding every secret of the pull request & return immediately. The result is put in the result cache.
+     * @param pullRequest Pull request to scan
+     * @param priority Priority class of the scan on the ScanScheduler
+     * @return Future of the result of the scan
+     */
+    @Nonnull
+    public CompletableFuture<PullRequestSecretScanResult> scanInBackground(@Nonnull PullRequest pullRequest, @Nonnull ScanPriority priority) {
+        final CompletableFuture<PullRequestSecretScanResult> pendingScan = scanScheduler.submit(priority,
+                pullRequest.getToRef().getRepository().getId(), () -> scan(pullRequest, false));
+
+        pendingScan.whenComplete((result, e) -> {
+            if (e != null)
+                log.error(String.format("SecretWarden failed to scan the pull request: %s (PR: %d) in the background",
+                        pullRequest.getToRef(), pullRequest.getId()), e);
+        });
+        return pendingScan;
+    }
+
+    /**
+     * Queue the merge check scan, unless one of the same revision of the pull request is already queued (or running) on
+     * this node, in which case the caller waits for that one. Otherwise every merge check (every page load) would take
+     * a scheduler worker, only to wait for the same scan (see singleFlight).
+     * @param queued Merge check scans queued of the same kind (full or verdict-only)
+     * @return Future of the result of the queued scan
+     */
+    private CompletableFuture<PullRequestSecretScanResult> queueMergeCheck(ConcurrentMap<PullRequestScanRevision, CompletableFuture<PullRequestSecretScanResult>> queued,
+                                                                           PullRequestScanRevision revision, PullRequest pullRequest,
+                                                                           Callable<PullRequestSecretScanResult> scan) {
+        final CompletableFuture<PullRequestSecretScanResult> ownScan = new CompletableFuture<>();
+        final CompletableFuture<PullRequestSecretScanResult> queuedScan = queued.putIfAbsent(revision, ownScan);
+        if (queuedScan != null) {
+            scanMetrics.increment(ScanMetrics.SINGLE_FLIGHT_MERGED);
+            return queuedScan;
+        }
+
+        try {
+            scanScheduler.submit(ScanPriority.MERGE_CHECK, pullRequest.getToRef().getRepository().getId(), scan)
+                    .whenComplete((result, e) -> {
+                        queued.remove(revision, ownScan); // Before completing, so a later merge check finds the result in the cache
+                        if (e != null)
+                            ownScan.completeExceptionally(e);
+                        else
+                            ownScan.complete(result);
+                    });
+        }
+        catch (RuntimeException e) {
+            queued.remove(revision, ownScan);
+            ownScan.completeExceptionally(e);
+        }
+        return ownScan;
+    }
+
+    /**
+     * Run the scan, unless a scan of the same revision of the pull request is already in flight on this node, in which
+     * case wait for (and return) the result of that scan instead.
+     * @param inFlight Scans in flight of the same kind (full or verdict-only)
+     * @param pullRequest Pull request to scan
+     * @param scan The scan to run if there is none in flight
+     */
+    private PullRequestSecretScanResult singleFlight(ConcurrentMap<PullRequestScanRevision, CompletableFuture<PullRequestSecretScanResult>> inFlight,
+                                                     PullRequest pullRequest, Callable<PullRequestSecretScanResult> scan)
+            throws SecretScanException {
+        final PullRequestScanRevision revision = PullRequestScanRevision.of(pullRequest, matchRuleSetCache.getSnapshot().getVersion());
+        final CompletableFuture<PullRequestSecretScanResult> ownScan = new CompletableFuture<>();
+        final CompletableFuture<PullRequestSecretScanResult> sharedScan = inFlight.putIfAbsent(revision, ownScan);
+
+        if (sharedScan != null) {
+            scanMetrics.increment(ScanMetrics.SINGLE_FLIGHT_MERGED);
+            log.debug(String.format("SecretWarden is already scanning the pull request: %s (PR: %d), waiting for that scan",
+                    pullRequest.getToRef(), pullRequest.getId()));
+            try {
+                return sharedScan.get(SHARED_SCAN_TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+            catch (ExecutionException e) {
+                throw (e.getCause() instanceof SecretScanException) ? (SecretScanException) e.getCause() : new SecretScanException(e);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SecretScanException(e);
+            }
+            catch (TimeoutException e) {
+                throw new SecretScanException(e);
+            }
+        }
+
+        try {
+            final PullRequestSecretScanResult result = scan.call();
+            ownScan.complete(result);
+            return result;
+        }
+        catch (SecretScanException e) {
+            ownScan.completeExceptionally(e);
+            throw e;
+        }
+        catch (Exception e) {
+            ownScan.completeExceptionally(e);
+            throw new SecretScanException(e);
+        }
+        finally {
+            inFlight.remove(revision, ownScan);
+        }
+    }
+
+    /**
+     * @return The completed scan result of the revision of the pull request from the cache (which may be a partial verdict,
+     *         enough to decide the merge check), null if there isn't one.
+     */
+    @Nullable
+    private PullRequestSecretScanResult getCompletedScan(PullRequestScanRevision revision) {
+        final PullRequestSecretScanResult cachedScan = pullRequestSecretScanResultCache.get(revision);
+        return (cachedScan != null && cachedScan.getSecretScanStatus() == SecretScanStatus.COMPLETED) ? cachedScan : null;
+    }
+
+    private PullRequestSecretScanner newScanner(PullRequest pullRequest) {
+        return new PullRequestSecretScanner(pullRequestService, pullRequest, lockService, pullRequestSecretScanResultCache,
+                matchRuleSetCache, scanSettings, scanExecutor, commitService, blobFindingsCache, scanLeaseManager,
+                gitDiffStreamer, fileFilterSettings);
+    }
+}
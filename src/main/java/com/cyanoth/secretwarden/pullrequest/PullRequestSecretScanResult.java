@@ -1,23 +1,315 @@
 package com.cyanoth.secretwarden.pullrequest;
 
 import com.cyanoth.secretwarden.SecretScanResult;
+import com.cyanoth.secretwarden.SecretScanStatus;
+import com.cyanoth.secretwarden.collections.FoundSecretCollection;
+import com.cyanoth.secretwarden.structures.FoundSecret;
+import com.cyanoth.secretwarden.structures.MatchTimeout;
+import com.cyanoth.secretwarden.structures.SkippedFile;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
 
+/**
+ * Scan result of a pull request, as stored in (and replicated across the cluster by) PullRequestSecretScanResultCache.
+ *
+ * It is Externalizable rather than default Serializable because every put is copied to every node, and the default form
+ * writes an object (with its field headers) per found secret. The compact form (see writeExternal) writes each distinct
+ * string once & every number as a varint, so a found secret is typically 4-6 bytes. Bump FORMAT_VERSION whenever the
+ * layout changes - a node cannot read another format, so the cache treats the entry as missing & the pull request is rescanned.
+ */
+public class PullRequestSecretScanResult extends SecretScanResult implements Externalizable {
+    private static final long serialVersionUID = 1L;
+    private static final int FORMAT_VERSION = 1;
 
-public class PullRequestSecretScanResult extends SecretScanResult implements Serializable {
+    private static final int FLAG_PARTIAL_VERDICT = 1;
+    private static final int FLAG_HAS_FOUND_SECRETS = 1 << 1;
+    private static final int FLAG_HAS_MATCH_TIMEOUTS = 1 << 2;
+    private static final int FLAG_HAS_REVISION = 1 << 3;
+    private static final int FLAG_HAS_LAST_UPDATED = 1 << 4;
+    private static final int FLAG_HAS_SKIPPED_FILES = 1 << 5;
 
     // Keep a record of when the pull request was lasted updated (scanned) so incase of any changes
     // The scan can be voided and re-ran.
-    private final Date pullRequestLastUpdated;
+    private Date pullRequestLastUpdated;
 
-    public PullRequestSecretScanResult(Date prLastUpdated) {
+    // The revision (code & ruleset) of the pull request the scan covered. The result is valid for as long as the revision
+    // is unchanged, and a later scan can only rescan what has changed since.
+    private PullRequestScanRevision revision;
+
+    // True if the scan stopped at the first secret (verdict-only), so found secrets are not every secret of the pull request
+    private boolean partialVerdict = false;
+
+    // Whilst IN_PROGRESS: The node scanning & when its lease expires (epoch milliseconds), unless renewed. See ScanLeaseManager
+    private String ownerNodeId = null;
+    private long leaseExpiry = 0;
+
+    public PullRequestSecretScanResult(Date prLastUpdated, PullRequestScanRevision revision) {
         this.pullRequestLastUpdated = prLastUpdated;
+        this.revision = revision;
+    }
+
+    /**
+     * Only for deserialization (Externalizable), which then populates the result with readExternal
+     */
+    public PullRequestSecretScanResult() {
     }
 
     public Date getPullRequestLastUpdated() {
         return pullRequestLastUpdated;
     }
 
+    public PullRequestScanRevision getRevision() {
+        return revision;
+    }
+
+    /**
+     * @return Latest commit of the source branch (fromRef) when scanned
+     */
+    public String getFromCommit() {
+        return revision != null ? revision.getFromCommit() : null;
+    }
+
+    /**
+     * @return Latest commit of the target branch (toRef) when scanned
+     */
+    public String getToCommit() {
+        return revision != null ? revision.getToCommit() : null;
+    }
+
+    /**
+     * @return Version of the ruleset the scan was performed with
+     */
+    public long getRuleSetVersion() {
+        return revision != null ? revision.getRuleSetVersion() : -1;
+    }
+
+    public boolean isPartialVerdict() {
+        return partialVerdict;
+    }
+
+    public void setPartialVerdict(boolean partialVerdict) {
+        this.partialVerdict = partialVerdict;
+    }
+
+    public String getOwnerNodeId() {
+        return ownerNodeId;
+    }
+
+    public long getLeaseExpiry() {
+        return leaseExpiry;
+    }
+
+    public void setLease(String ownerNodeId, long leaseExpiry) {
+        this.ownerNodeId = ownerNodeId;
+        this.leaseExpiry = leaseExpiry;
+    }
+
+    /**
+     * @param now Current time (epoch milliseconds)
+     * @return True, if the scan is in progress but its owner has stopped renewing the lease (node down or scan hung)
+     */
+    public boolean isLeaseExpired(long now) {
+        return getSecretScanStatus() == SecretScanStatus.IN_PROGRESS && leaseExpiry > 0 && now > leaseExpiry;
+    }
+
+    /**
+     * @param currentRevision The current revision of the pull request
+     * @return True, if this result still applies to the pull request (the code & ruleset are unchanged since the scan)
+     */
+    public boolean isValidFor(PullRequestScanRevision currentRevision) {
+        return revision != null && revision.equals(currentRevision);
+    }
+
+    /**
+     * Layout (FORMAT_VERSION 1), where ref is a varint index into the string table (0 = null):
+     *    version (byte), flags (byte), string table,
+     *    status (ref), pullRequestLastUpdated (long) if FLAG_HAS_LAST_UPDATED,
+     *    repositoryId (varint), pullRequestId, ruleSetVersion (signed varlong), fromCommit, toCommit (ref) if FLAG_HAS_REVISION,
+     *    ownerNodeId (ref), leaseExpiry (signed varlong),
+     *    count (varint), then each: rule name, path, context (ref), line (signed varlong) if FLAG_HAS_FOUND_SECRETS,
+     *    count (varint), then each: rule name, path (ref), line (signed varlong) if FLAG_HAS_MATCH_TIMEOUTS,
+     *    count (varint), then each: path, reason (ref), bytes (signed varlong) if FLAG_HAS_SKIPPED_FILES
+     */
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        final FoundSecretCollection foundSecrets = getFoundSecrets();
+        final List<MatchTimeout> matchTimeouts = getMatchTimeouts();
+        final List<SkippedFile> skippedFiles = getSkippedFiles();
+
+        final CompactEncoding.StringTableWriter strings = new CompactEncoding.StringTableWriter();
+        strings.add(getSecretScanStatus().name());
+        if (revision != null) {
+            strings.add(revision.getFromCommit());
+            strings.add(revision.getToCommit());
+        }
+        strings.add(ownerNodeId);
+        if (foundSecrets != null) {
+            for (FoundSecret secret : foundSecrets.getSecrets()) {
+                strings.add(secret.getmatchedRuleName());
+                strings.add(secret.getDestinationFilePath());
+                strings.add(secret.getSourceContext());
+            }
+        }
+        if (matchTimeouts != null) {
+            for (MatchTimeout timeout : matchTimeouts) {
+                strings.add(timeout.getMatchedRuleName());
+                strings.add(timeout.getDestinationFilePath());
+            }
+        }
+        if (skippedFiles != null) {
+            for (SkippedFile file : skippedFiles) {
+                strings.add(file.getDestinationFilePath());
+                strings.add(file.getReason().name());
+            }
+        }
+
+        int flags = 0;
+        if (partialVerdict)
+            flags |= FLAG_PARTIAL_VERDICT;
+        if (foundSecrets != null)
+            flags |= FLAG_HAS_FOUND_SECRETS;
+        if (matchTimeouts != null)
+            flags |= FLAG_HAS_MATCH_TIMEOUTS;
+        if (revision != null)
+            flags |= FLAG_HAS_REVISION;
+        if (pullRequestLastUpdated != null)
+            flags |= FLAG_HAS_LAST_UPDATED;
+        if (skippedFiles != null)
+            flags |= FLAG_HAS_SKIPPED_FILES;
+
+        out.writeByte(FORMAT_VERSION);
+        out.writeByte(flags);
+        strings.write(out);
+
+        strings.writeRef(out, getSecretScanStatus().name());
+        if (pullRequestLastUpdated != null)
+            out.writeLong(pullRequestLastUpdated.getTime());
+
+        if (revision != null) {
+            CompactEncoding.writeVarInt(out, revision.getRepositoryId());
+            CompactEncoding.writeSignedVarLong(out, revision.getPullRequestId());
+            CompactEncoding.writeSignedVarLong(out, revision.getRuleSetVersion());
+            strings.writeRef(out, revision.getFromCommit());
+            strings.writeRef(out, revision.getToCommit());
+        }
+
+        strings.writeRef(out, ownerNodeId);
+        CompactEncoding.writeSignedVarLong(out, leaseExpiry);
+
+        if (foundSecrets != null) {
+            CompactEncoding.writeVarInt(out, foundSecrets.count());
+            for (FoundSecret secret : foundSecrets.getSecrets()) {
+                strings.writeRef(out, secret.getmatchedRuleName());
+                strings.writeRef(out, secret.getDestinationFilePath());
+                strings.writeRef(out, secret.getSourceContext());
+                CompactEncoding.writeSignedVarLong(out, secret.getOccurrenceLine());
+            }
+        }
+
+        if (matchTimeouts != null) {
+            CompactEncoding.writeVarInt(out, matchTimeouts.size());
+            for (MatchTimeout timeout : matchTimeouts) {
+                strings.writeRef(out, timeout.getMatchedRuleName());
+                strings.writeRef(out, timeout.getDestinationFilePath());
+                CompactEncoding.writeSignedVarLong(out, timeout.getOccurrenceLine());
+            }
+        }
+
+        if (skippedFiles != null) {
+            CompactEncoding.writeVarInt(out, skippedFiles.size());
+            for (SkippedFile file : skippedFiles) {
+                strings.writeRef(out, file.getDestinationFilePath());
+                strings.writeRef(out, file.getReason().name());
+                CompactEncoding.writeSignedVarLong(out, file.getBytes());
+            }
+        }
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        final int version = in.readUnsignedByte();
+        if (version != FORMAT_VERSION)
+            throw new InvalidClassException(PullRequestSecretScanResult.class.getName(),
+                    String.format("Unsupported scan result format version: %d (supported: %d)", version, FORMAT_VERSION));
+
+        final int flags = in.readUnsignedByte();
+        final CompactEncoding.StringTableReader strings = new CompactEncoding.StringTableReader(in);
+
+        final String status = strings.readRef(in);
+        try {
+            setSecretScanStatus(SecretScanStatus.valueOf(status));
+        }
+        catch (IllegalArgumentException | NullPointerException e) {
+            throw new StreamCorruptedException(String.format("Unknown scan status: %s", status));
+        }
+
+        pullRequestLastUpdated = (flags & FLAG_HAS_LAST_UPDATED) != 0 ? new Date(in.readLong()) : null;
+
+        if ((flags & FLAG_HAS_REVISION) != 0) {
+            final int repositoryId = CompactEncoding.readVarInt(in);
+            final long pullRequestId = CompactEncoding.readSignedVarLong(in);
+            final long ruleSetVersion = CompactEncoding.readSignedVarLong(in);
+            final String fromCommit = strings.readRef(in);
+            final String toCommit = strings.readRef(in);
+            revision = new PullRequestScanRevision(repositoryId, pullRequestId, fromCommit, toCommit, ruleSetVersion);
+        }
+
+        partialVerdict = (flags & FLAG_PARTIAL_VERDICT) != 0;
+        ownerNodeId = strings.readRef(in);
+        leaseExpiry = CompactEncoding.readSignedVarLong(in);
+
+        if ((flags & FLAG_HAS_FOUND_SECRETS) != 0) {
+            final int count = CompactEncoding.readVarInt(in);
+            final HashSet<FoundSecret> secrets = new HashSet<>();
+            for (int i = 0; i < count; i++)
+                secrets.add(new FoundSecret(strings.readRef(in), strings.readRef(in), strings.readRef(in),
+                        (int) CompactEncoding.readSignedVarLong(in)));
+            setFoundSecrets(new FoundSecretCollection(secrets));
+        }
+        else {
+            setFoundSecrets(null);
+        }
+
+        if ((flags & FLAG_HAS_MATCH_TIMEOUTS) != 0) {
+            final int count = CompactEncoding.readVarInt(in);
+            final List<MatchTimeout> matchTimeouts = new ArrayList<>(Math.min(count, 1024));
+            for (int i = 0; i < count; i++)
+                matchTimeouts.add(new MatchTimeout(strings.readRef(in), strings.readRef(in),
+                        (int) CompactEncoding.readSignedVarLong(in)));
+            setMatchTimeouts(matchTimeouts);
+        }
+        else {
+            setMatchTimeouts(null);
+        }
+
+        if ((flags & FLAG_HAS_SKIPPED_FILES) != 0) {
+            final int count = CompactEncoding.readVarInt(in);
+            final List<SkippedFile> skippedFiles = new ArrayList<>(Math.min(count, 1024));
+            for (int i = 0; i < count; i++) {
+                final String path = strings.readRef(in);
+                final String reason = strings.readRef(in);
+                try {
+                    skippedFiles.add(new SkippedFile(path, SkippedFile.Reason.valueOf(reason),
+                            CompactEncoding.readSignedVarLong(in)));
+                }
+                catch (IllegalArgumentException | NullPointerException e) {
+                    throw new StreamCorruptedException(String.format("Unknown skipped file reason: %s", reason));
+                }
+            }
+            setSkippedFiles(skippedFiles);
+        }
+        else {
+            setSkippedFiles(null);
+        }
+    }
+
 }
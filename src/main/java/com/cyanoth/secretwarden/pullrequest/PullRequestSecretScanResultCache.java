@@ -2,10 +2,15 @@ package com.cyanoth.secretwarden.pullrequest;
 
 import com.atlassian.bitbucket.pull.PullRequest;
 import com.atlassian.cache.Cache;
+import com.atlassian.cache.CacheEntryAdapter;
+import com.atlassian.cache.CacheEntryEvent;
 import com.atlassian.cache.CacheFactory;
 import com.atlassian.cache.CacheSettings;
 import com.atlassian.cache.CacheSettingsBuilder;
 import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.cyanoth.secretwarden.ScanMetrics;
+import com.cyanoth.secretwarden.SecretScanStatus;
+import com.cyanoth.secretwarden.config.ScanSettings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -14,12 +19,33 @@ import org.springframework.stereotype.Component;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.validation.constraints.NotNull;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 /**
  * An exposed component uses the Atlassian Cache API to cache in memory a single instance of collection of pull request secret scan results
  * With this, we can ensure that the scan results are replicated across all nodes in the cluster & remains in memory.
  *
+ * There is one entry per pull request (repository id, pull request id), holding the latest result. Whether that result is
+ * still valid is decided by its PullRequestScanRevision (source/target commit & ruleset version), see get(revision).
+ * The latest result is kept even once out of date, so the next scan can reuse what hasn't changed. A partial verdict
+ * (see putPartialVerdict) is only kept until the revision is scanned completely, it is never reused by a full scan.
+ *
+ * A listener on the cache is notified when any node writes a result, which wakes the threads on this node waiting for
+ * that pull request to finish scanning (see awaitCompletion).
+ *
+ * The cache has no size limit of its own, so the estimated memory retained by the results is accounted for on each node
+ * (see ResultCacheAccounting). When a put takes it over the byte budget (result_cache_max_megabytes setting), the least
+ * recently used results are removed - from every node, as the cache is replicated. Recency is per node, so it is the
+ * node writing the result which decides what is evicted.
+ *
+ * When the result_store_enabled setting is on, finished results are also written through to the database
+ * (see PersistentScanResultStore) & loaded back lazily on a cache miss, so a restart or clearing the cache doesn't
+ * cause every open pull request to be rescanned at once.
+ *
  * [1] https://docs.atlassian.com/atlassian-cache-api/2.2.0/atlassian-cache-api/apidocs/com/atlassian/cache/CacheFactory.html
  * [2] https://bitbucket.org/atlassian/atlassian-spring-scanner/src/1.2.x/
  */
@@ -28,12 +54,23 @@ public class PullRequestSecretScanResultCache {
     private static final Logger log = LoggerFactory.getLogger(PullRequestSecretScanResultCache.class);
     private final CacheFactory cacheFactory;
     private final CacheSettings cacheSettings;
+    private final ScanSettings scanSettings;
+    private final ScanMetrics scanMetrics;
+    private final PersistentScanResultStore persistentStore;
+    private final ScanCompletionRegistry scanCompletionRegistry = new ScanCompletionRegistry();
+    private final ResultCacheAccounting accounting = new ResultCacheAccounting();
 
     private Cache<String, PullRequestSecretScanResult> _scanResultCache = null; // Use cache() for access
 
     @Autowired
-    public PullRequestSecretScanResultCache(@ComponentImport final CacheFactory cacheFactory) {
+    public PullRequestSecretScanResultCache(@ComponentImport final CacheFactory cacheFactory,
+                                            final ScanSettings scanSettings,
+                                            final ScanMetrics scanMetrics,
+                                            final PersistentScanResultStore persistentStore) {
         this.cacheFactory = cacheFactory;
+        this.scanSettings = scanSettings;
+        this.scanMetrics = scanMetrics;
+        this.persistentStore = persistentStore;
         this.cacheSettings = new CacheSettingsBuilder().remote().
                 replicateViaCopy().
                 expireAfterAccess(3, TimeUnit.DAYS).
@@ -45,10 +82,34 @@ public class PullRequestSecretScanResultCache {
         return get(pullRequest.getToRef().getRepository().getId(), pullRequest.getId());
     }
 
+    /**
+     * @param revision The current revision of a pull request
+     * @return The scan result of the pull request, only if it is (or is being) scanned at that exact revision. Null otherwise.
+     */
+    @Nullable
+    public PullRequestSecretScanResult get(@Nonnull PullRequestScanRevision revision) {
+        final PullRequestSecretScanResult result = get(revision.getRepositoryId(), revision.getPullRequestId());
+        return (result != null && result.isValidFor(revision)) ? result : null;
+    }
+
+    /**
+     * @return The latest scan result of the pull request, which may be out of date. Null if it has not been scanned.
+     */
     @Nullable
     public PullRequestSecretScanResult get(int repositoryId, long pullRequestId) {
         final String cacheKey = genCacheKey(repositoryId, pullRequestId);
-        return cache().containsKey(cacheKey) ? cache().get(cacheKey): null;
+        try {
+            if (!cache().containsKey(cacheKey))
+                return scanSettings.isResultStoreEnabled() ? loadFromStore(cacheKey, repositoryId, pullRequestId) : null;
+
+            accounting.onAccessed(cacheKey);
+            return cache().get(cacheKey);
+        }
+        catch (RuntimeException e) {
+            // e.g. Written by a node with a newer format of PullRequestSecretScanResult (during a rolling upgrade)
+            log.warn(String.format("Unable to read the SecretWarden scan result of %s, it will be treated as not scanned", cacheKey), e);
+            return null;
+        }
     }
 
     public void put(@Nonnull PullRequest pullRequest, @Nonnull PullRequestSecretScanResult scanResult) {
@@ -56,11 +117,164 @@ public class PullRequestSecretScanResultCache {
     }
 
     public void put(int repositoryId, long pullRequestId, @Nonnull PullRequestSecretScanResult scanResult) {
-        cache().put(genCacheKey(repositoryId, pullRequestId), scanResult);
+        final String cacheKey = genCacheKey(repositoryId, pullRequestId);
+        cache().put(cacheKey, scanResult);
+        onWritten(cacheKey, scanResult);
+
+        if (scanResult.getSecretScanStatus() == SecretScanStatus.COMPLETED && !scanResult.isPartialVerdict() &&
+                scanSettings.isResultStoreEnabled()) {
+            try {
+                persistentStore.store(repositoryId, pullRequestId, scanResult);
+            }
+            catch (Exception e) { // The cached result is still usable, it just won't survive a restart
+                log.warn(String.format("Unable to store the SecretWarden scan result of %s in the database", cacheKey), e);
+            }
+        }
+    }
+
+    /**
+     * Replace the result of the pull request, only if it is still the expected result (as read by get). The replace is
+     * conditional in the cache, so a result written by another node in between is never overwritten.
+     * @return True, if replaced
+     */
+    boolean replace(@Nonnull PullRequest pullRequest, @Nonnull PullRequestSecretScanResult expected,
+                    @Nonnull PullRequestSecretScanResult replacement) {
+        final String cacheKey = genCacheKey(pullRequest.getToRef().getRepository().getId(), pullRequest.getId());
+        if (!cache().replace(cacheKey, expected, replacement))
+            return false;
+
+        onWritten(cacheKey, replacement);
+        return true;
+    }
+
+    /**
+     * Cache a partial verdict (see PullRequestSecretScanResult.isPartialVerdict), so the next merge check of the same
+     * revision can reuse it. It never replaces a scan in progress or the complete result of the revision, and it is not
+     * written to the database. The write is conditional (putIfAbsent/replace), so a result written by another node in
+     * the meantime wins & the verdict simply isn't cached.
+     * @return True, if the partial verdict was cached
+     */
+    boolean putPartialVerdict(@Nonnull PullRequest pullRequest, @Nonnull PullRequestSecretScanResult verdict) {
+        final int repositoryId = pullRequest.getToRef().getRepository().getId();
+        final String cacheKey = genCacheKey(repositoryId, pullRequest.getId());
+        final PullRequestSecretScanResult existing = get(repositoryId, pullRequest.getId());
+        if (existing != null && (existing.getSecretScanStatus() == SecretScanStatus.IN_PROGRESS ||
+                (existing.isValidFor(verdict.getRevision()) && existing.getSecretScanStatus() == SecretScanStatus.COMPLETED &&
+                        !existing.isPartialVerdict())))
+            return false;
+
+        final boolean written = existing == null ? cache().putIfAbsent(cacheKey, verdict) == null :
+                cache().replace(cacheKey, existing, verdict);
+        if (written)
+            onWritten(cacheKey, verdict);
+        return written;
+    }
+
+    /**
+     * Remove the result of a pull request from the cache & the database (whatever the result_store_enabled setting, so
+     * results stored whilst it was on don't linger). For pull requests which can no longer be merged.
+     */
+    public void remove(int repositoryId, long pullRequestId) {
+        final String cacheKey = genCacheKey(repositoryId, pullRequestId);
+        cache().remove(cacheKey);
+        scanCompletionRegistry.onResultWritten(cacheKey, null);
+        accounting.onWritten(cacheKey, null);
+
+        try {
+            if (persistentStore.delete(repositoryId, pullRequestId))
+                log.debug(String.format("Deleted the stored SecretWarden scan result of %s", cacheKey));
+        }
+        catch (RuntimeException e) {
+            log.warn(String.format("Unable to delete the stored SecretWarden scan result of %s from the database", cacheKey), e);
+        }
+    }
+
+    private void onWritten(String cacheKey, PullRequestSecretScanResult scanResult) {
+        scanCompletionRegistry.onResultWritten(cacheKey, scanResult); // Don't rely on the listener for writes by this node
+        accounting.onWritten(cacheKey, scanResult);
+        evictOverBudget(cacheKey);
+    }
+
+    /**
+     * Cache miss: Load the stored result of the pull request (if any) into the cache. If another node has written an
+     * entry (e.g. IN_PROGRESS) in the meantime, that entry wins.
+     */
+    @Nullable
+    private PullRequestSecretScanResult loadFromStore(String cacheKey, int repositoryId, long pullRequestId) {
+        final PullRequestSecretScanResult stored;
+        try {
+            stored = persistentStore.load(repositoryId, pullRequestId);
+        }
+        catch (RuntimeException e) {
+            log.warn(String.format("Unable to load the SecretWarden scan result of %s from the database", cacheKey), e);
+            return null;
+        }
+
+        if (stored == null)
+            return null;
+
+        final PullRequestSecretScanResult existing = cache().putIfAbsent(cacheKey, stored);
+        if (existing != null)
+            return existing;
+
+        log.debug(String.format("Loaded the SecretWarden scan result of %s from the database", cacheKey));
+        scanMetrics.increment(ScanMetrics.RESULT_STORE_LOADS);
+        onWritten(cacheKey, stored);
+        return stored;
+    }
+
+    /**
+     * Remove the least recently used results until the cache fits its byte budget again. The result just written is kept.
+     */
+    private void evictOverBudget(String writtenKey) {
+        final long maxBytes = scanSettings.getResultCacheMaxMegabytes() * 1024L * 1024L;
+        if (maxBytes <= 0)
+            return;
+
+        final List<ResultCacheAccounting.Eviction> evictions = accounting.evictOverBudget(maxBytes, writtenKey);
+        for (ResultCacheAccounting.Eviction eviction : evictions) {
+            cache().remove(eviction.key);
+            scanMetrics.increment(ScanMetrics.RESULT_CACHE_EVICTIONS);
+            scanMetrics.add(ScanMetrics.RESULT_CACHE_EVICTED_BYTES, eviction.bytes);
+        }
+
+        if (!evictions.isEmpty())
+            log.debug(String.format("Evicted %d SecretWarden scan result(s) to keep the result cache within %d bytes",
+                    evictions.size(), maxBytes));
+    }
+
+    /**
+     * @return Statistics of the result cache on this node: entries, estimated bytes retained (by finished results),
+     *         the byte budget & evictions since the node was started.
+     */
+    @Nonnull
+    public Map<String, Object> getStatistics() {
+        final Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("entries", cache().getKeys().size());
+        statistics.put("accounted_entries", accounting.countEntries());
+        statistics.put("estimated_bytes", accounting.getTotalBytes());
+        statistics.put("max_bytes", scanSettings.getResultCacheMaxMegabytes() * 1024L * 1024L);
+        statistics.put("evictions", scanMetrics.get(ScanMetrics.RESULT_CACHE_EVICTIONS));
+        statistics.put("evicted_bytes", scanMetrics.get(ScanMetrics.RESULT_CACHE_EVICTED_BYTES));
+        return statistics;
+    }
+
+    /**
+     * Wait for the scan of a pull request to finish. Register BEFORE checking the cache, so a result written in between
+     * isn't missed. Registering also adds the listener of this node if it hasn't used the cache yet, otherwise a write by
+     * another node would only be seen by polling.
+     * @return Future completed when a result which isn't IN_PROGRESS is written (on any node), or null if the entry is removed
+     */
+    @Nonnull
+    CompletableFuture<PullRequestSecretScanResult> awaitCompletion(@Nonnull PullRequest pullRequest) {
+        cache();
+        return scanCompletionRegistry.awaitCompletion(genCacheKey(pullRequest.getToRef().getRepository().getId(), pullRequest.getId()));
     }
 
     public void clear() {
         cache().removeAll();
+        scanCompletionRegistry.completeAll();
+        accounting.clear();
         log.info("SecretWarden PullRequestSecretScan result cache cleared!");
     }
 
@@ -74,10 +288,57 @@ public class PullRequestSecretScanResultCache {
             if (this._scanResultCache == null) {
                 final String CACHE_NAME = "com.cyanoth.secretwarden:PullRequestSecretScanResultCache";
                 this._scanResultCache = this.cacheFactory.getCache(CACHE_NAME, null, cacheSettings);
+                this._scanResultCache.addListener(new ScanResultListener(), true);
+                accountExistingEntries(this._scanResultCache);
                 log.debug("SecretWarden: PullRequestSecretScanResult scan initialised!");
             }
 
             return this._scanResultCache;
         }
     }
+
+    /**
+     * Results already in the cache when this node joins (or the plugin restarts) were written before the listener was
+     * added, so they are accounted for once here instead.
+     */
+    private void accountExistingEntries(Cache<String, PullRequestSecretScanResult> cache) {
+        for (String key : cache.getKeys()) {
+            try {
+                accounting.onWritten(key, cache.get(key));
+            }
+            catch (RuntimeException e) {
+                log.debug(String.format("Unable to account for the SecretWarden scan result of %s", key), e);
+            }
+        }
+    }
+
+    /**
+     * When a result is written or removed on any node, wake the threads on this node waiting for that pull request
+     * & account for the change in memory retained.
+     */
+    private class ScanResultListener extends CacheEntryAdapter<String, PullRequestSecretScanResult> {
+        @Override
+        public void onAdd(@Nonnull CacheEntryEvent<String, PullRequestSecretScanResult> event) {
+            scanCompletionRegistry.onResultWritten(event.getKey(), event.getValue());
+            accounting.onWritten(event.getKey(), event.getValue());
+        }
+
+        @Override
+        public void onUpdate(@Nonnull CacheEntryEvent<String, PullRequestSecretScanResult> event) {
+            scanCompletionRegistry.onResultWritten(event.getKey(), event.getValue());
+            accounting.onWritten(event.getKey(), event.getValue());
+        }
+
+        @Override
+        public void onRemove(@Nonnull CacheEntryEvent<String, PullRequestSecretScanResult> event) {
+            scanCompletionRegistry.onResultWritten(event.getKey(), null);
+            accounting.onWritten(event.getKey(), null);
+        }
+
+        @Override
+        public void onEvict(@Nonnull CacheEntryEvent<String, PullRequestSecretScanResult> event) {
+            scanCompletionRegistry.onResultWritten(event.getKey(), null);
+            accounting.onWritten(event.getKey(), null);
+        }
+    }
 }
@@ -1,17 +1,33 @@
 package com.cyanoth.secretwarden.pullrequest;
 
+import com.atlassian.bitbucket.commit.CommitService;
 import com.atlassian.bitbucket.concurrent.LockService;
 import com.atlassian.bitbucket.pull.PullRequest;
 import com.atlassian.bitbucket.pull.PullRequestService;
-import com.cyanoth.secretwarden.collections.MatchRuleSet;
 import com.cyanoth.secretwarden.SecretScanException;
 import com.cyanoth.secretwarden.SecretScanStatus;
 import com.cyanoth.secretwarden.SecretScanner;
+import com.cyanoth.secretwarden.collections.FoundSecretCollection;
+import com.cyanoth.secretwarden.config.FileFilterSettings;
 import com.cyanoth.secretwarden.config.MatchRuleSetCache;
+import com.cyanoth.secretwarden.config.ScanSettings;
+import com.cyanoth.secretwarden.matching.LongLineWindows;
+import com.cyanoth.secretwarden.matching.MatchBudget;
+import com.cyanoth.secretwarden.matching.MatchRuleSetSnapshot;
+import com.cyanoth.secretwarden.structures.FoundSecret;
+import com.cyanoth.secretwarden.structures.MatchTimeout;
+import com.cyanoth.secretwarden.structures.SkippedFile;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.locks.Lock;
 
 /**
@@ -21,6 +37,13 @@ public class PullRequestSecretScanner implements SecretScanner {
     private static final Logger log = LoggerFactory.getLogger(PullRequestSecretScanner.class);
     private final PullRequestSecretScanResultCache pullRequestSecretScanCache;
     private final MatchRuleSetCache matchRuleSetCache;
+    private final ScanSettings scanSettings;
+    private final ScanExecutor scanExecutor;
+    private final IncrementalScanPlanner incrementalScanPlanner;
+    private final BlobFindingsCache blobFindingsCache;
+    private final ScanLeaseManager scanLeaseManager;
+    private final GitDiffStreamer gitDiffStreamer;
+    private final FileFilterSettings fileFilterSettings;
     private final LockService lockService;
     private final PullRequestService pullRequestService;
     private final PullRequest pullRequest;
@@ -29,11 +52,25 @@ public class PullRequestSecretScanner implements SecretScanner {
                              PullRequest pullRequest,
                              LockService lockService,
                              PullRequestSecretScanResultCache pullRequestSecretScanCache,
-                             MatchRuleSetCache matchRuleSetCache) {
+                             MatchRuleSetCache matchRuleSetCache,
+                             ScanSettings scanSettings,
+                             ScanExecutor scanExecutor,
+                             CommitService commitService,
+                             BlobFindingsCache blobFindingsCache,
+                             ScanLeaseManager scanLeaseManager,
+                             GitDiffStreamer gitDiffStreamer,
+                             FileFilterSettings fileFilterSettings) {
         this.pullRequestService = service;
         this.pullRequest = pullRequest;
         this.pullRequestSecretScanCache = pullRequestSecretScanCache;
         this.matchRuleSetCache = matchRuleSetCache;
+        this.scanSettings = scanSettings;
+        this.scanExecutor = scanExecutor;
+        this.incrementalScanPlanner = new IncrementalScanPlanner(commitService);
+        this.blobFindingsCache = blobFindingsCache;
+        this.scanLeaseManager = scanLeaseManager;
+        this.gitDiffStreamer = gitDiffStreamer;
+        this.fileFilterSettings = fileFilterSettings;
         this.lockService = lockService;
     }
 
@@ -46,22 +83,31 @@ public class PullRequestSecretScanner implements SecretScanner {
     public PullRequestSecretScanResult scan(Boolean force) throws SecretScanException {
         log.debug(String.format("SecretWarden scanning pull request: %s", prString()));
         PullRequestSecretScanResult scan = null;
+        PullRequestSecretScanResult previousScan = null;
+        boolean takeOver = false;
 
         try {
-            if (!force)
-                scan = getCachedSecretScan(pullRequest);
-
-            // Check if the entry in the cache still represents the latest version of the the pull-request. If so, use that, skip scan.
-            if (scan != null) {
-                if (scan.getPullRequestLastUpdated().compareTo(pullRequest.getUpdatedDate()) == 0) {
+            if (!force) {
+                // Check if the cache has an entry for the latest revision of the the pull-request. If so, use that, skip scan.
+                // A revision is the source & target commits and the ruleset, so comments, approvals etc. don't cause a rescan
+                // A failed scan of the revision is retried.
+                PullRequestScanRevision currentRevision = PullRequestScanRevision.of(pullRequest, matchRuleSetCache.getSnapshot().getVersion());
+                // A partial verdict of the revision (see scanForVerdict) is not every secret, so the revision is scanned.
+                PullRequestSecretScanResult cachedScan = pullRequestSecretScanCache.get(currentRevision);
+                if (cachedScan != null && cachedScan.getSecretScanStatus() != SecretScanStatus.FAILED && !cachedScan.isPartialVerdict()) {
                     // In a multi-node setup, a scan might be taking place on another node. So we need to check its state
                     scan = checkOngoingScan(pullRequest);
-                    return scan;
-                } else {
-                    // When the pull request is updated for any reason (commits added/removed, and not wanted but: comments added)
+                    if (scan != null)
+                        return scan;
+
+                    takeOver = true; // The lease of the scan in progress expired, its node is down or the scan has hung
+                }
+
+                // When the code of the pull request has changed (commits added/removed, target branch moved) or the ruleset has
+                previousScan = getCachedSecretScan(pullRequest);
+                if (previousScan != null && !takeOver)
                     log.debug(String.format("SecretWarden has already scanned the pull request: %s but the information is out of date." +
                             " The pull request will be rescanned for secrets", prString()));
-                }
             }
 
             Lock scanLock = getScanLock(pullRequest);
@@ -74,17 +120,23 @@ public class PullRequestSecretScanner implements SecretScanner {
             if (scanLock != null && scanLock.tryLock()) {
                 try {
                     log.debug(String.format("SecretWarden has obtained a clusterlock to scan the pull-request %s", prString()));
-                    scan = doSecretScan(pullRequest);
+                    scan = doSecretScan(pullRequest, previousScan, false);
 
                 } finally {
                     scanLock.unlock();
                 }
+            } else if (takeOver) {
+                // The lease expired but the lock is still held, so the scan holding it has hung. Scan regardless
+                log.warn(String.format("SecretWarden is taking over the scan of the pull-request %s without the clusterlock", prString()));
+                scan = doSecretScan(pullRequest, previousScan, false);
             } else {
                 // This block is very unlikely. Since an IN_PROGRESS scan will be found in the cache before this.
                 // But there is a small possibility if the cache entry hasn't been made (race condition), so we must handle it
                 log.info(String.format("SecretWarden failed to obtain a clusterlock to scan the pull-request %s (another node scanning?)",
                         prString()));
                 scan = checkOngoingScan(pullRequest);
+                if (scan == null) // The lease of that scan expired whilst waiting, take it over
+                    scan = doSecretScan(pullRequest, previousScan, false);
             }
 
             return scan;
@@ -96,12 +148,47 @@ public class PullRequestSecretScanner implements SecretScanner {
     }
 
     /**
-     * Performs a secret scan on a pull request.
+     * Decide whether the pull request contains a secret, as quickly as possible. A completed result of the current revision
+     * in the cache (a partial verdict included) is used if there is one. Otherwise the pull request is scanned only until
+     * the first secret is found, without waiting for (or taking the lock of) any other scan of the pull request.
+     * @return Results of the scan. If it is a partial verdict, the scan stopped at a secret & the result was cached as
+     *         such (see PullRequestSecretScanResultCache.putPartialVerdict).
+     *         Otherwise the pull request has been completely scanned (and cached), as if scan(false) had been called.
+     * @throws SecretScanException An handled exception occurred during the scan but means results are incomplete
+     */
+    PullRequestSecretScanResult scanForVerdict() throws SecretScanException {
+        log.debug(String.format("SecretWarden scanning pull request: %s for a verdict", prString()));
+
+        try {
+            PullRequestScanRevision currentRevision = PullRequestScanRevision.of(pullRequest, matchRuleSetCache.getSnapshot().getVersion());
+            PullRequestSecretScanResult cachedScan = pullRequestSecretScanCache.get(currentRevision);
+            if (cachedScan != null && cachedScan.getSecretScanStatus() == SecretScanStatus.COMPLETED)
+                return cachedScan;
+
+            return doSecretScan(pullRequest, getCachedSecretScan(pullRequest), true);
+        } catch (Exception e) {
+            throw new SecretScanException(e);
+        }
+    }
+
+    /**
+     * Performs a secret scan on a pull request. If possible, only the files changed since the previous scan are scanned
+     * and the findings of the other files are kept from the previous scan (see IncrementalScanPlanner).
+     *
+     * A verdict-only scan stops at the first secret found. That result is marked as a partial verdict & is cached as such,
+     * for verdicts only: it is never shown as every secret of the pull request. If no secret is found, the scan was
+     * complete & is cached.
      *
      * @param pullRequest Pull request in question to scan
+     * @param previousScan Out of date result of the previous scan of the pull request, null if there isn't one
+     * @param verdictOnly True, stop at the first secret found. False, find every secret.
      * @return Secret Scan Results (includes FoundSecrets)
+     * @throws ExecutionException Scanning a file of the pull request failed
+     * @throws InterruptedException Interrupted waiting for the files of the pull request to be scanned
      */
-    private PullRequestSecretScanResult doSecretScan(PullRequest pullRequest) {
+    private PullRequestSecretScanResult doSecretScan(PullRequest pullRequest, @Nullable PullRequestSecretScanResult previousScan,
+                                                     boolean verdictOnly)
+            throws ExecutionException, InterruptedException {
         long scanStartTime = 0;
         PullRequestSecretScanResult scanResult;
 
@@ -110,43 +197,143 @@ public class PullRequestSecretScanner implements SecretScanner {
 
         log.debug(String.format("SecretWarden is performing a scan on pull-request %s", prString()));
 
-        scanResult = new PullRequestSecretScanResult(pullRequest.getUpdatedDate());
-        scanResult.setSecretScanStatus(SecretScanStatus.IN_PROGRESS);
-        pullRequestSecretScanCache.put(pullRequest, scanResult);
-
-        MatchRuleSet matchRuleSet = matchRuleSetCache.getRuleSet(); // Load once for entirety of the scan
+        MatchRuleSetSnapshot ruleSet = matchRuleSetCache.getSnapshot(); // Load once for entirety of the scan
 
-        scanResult.setFoundSecrets(new ChangeStreamer(pullRequestService, matchRuleSet).scan(pullRequest).getFoundSecrets());
-        scanResult.setSecretScanStatus(SecretScanStatus.COMPLETED);
-        pullRequestSecretScanCache.put(pullRequest, scanResult);
+        scanResult = new PullRequestSecretScanResult(pullRequest.getUpdatedDate(),
+                PullRequestScanRevision.of(pullRequest, ruleSet.getVersion()));
+        scanResult.setSecretScanStatus(SecretScanStatus.IN_PROGRESS);
 
-        log.info(String.format("SecretWarden scanned the pull request: %s and has found %d secret(s).",
-                prString(), scanResult.countFoundSecrets()));
+        // Other nodes see the scan is IN_PROGRESS (and by which node) for as long as this node keeps renewing the lease
+        ScanLeaseManager.ScanLease lease = verdictOnly ? null :
+                scanLeaseManager.start(pullRequest, scanResult.getRevision(), pullRequestSecretScanCache);
+        try {
+            scanResult = scanForSecrets(pullRequest, previousScan, verdictOnly, ruleSet, scanResult, lease);
+        }
+        catch (ExecutionException | InterruptedException | RuntimeException e) {
+            if (lease != null) { // Wake anyone waiting for this scan, rather than leave them waiting for the lease to expire
+                lease.close();
+                scanResult.setFoundSecrets(new FoundSecretCollection());
+                scanResult.setSecretScanStatus(SecretScanStatus.FAILED);
+                pullRequestSecretScanCache.put(pullRequest, scanResult);
+            }
+            throw e;
+        }
 
         if (log.isDebugEnabled()) {
             long elapsedTime = System.currentTimeMillis() - scanStartTime;
-            log.debug(String.format("SecretWarden took %d milliseconds to scan the pull request: %s", elapsedTime, prString()));
+            log.debug(String.format("SecretWarden took %d milliseconds to scan the pull request: %s (diff stream mode: %s, verdict-only: %s)",
+                    elapsedTime, prString(), scanSettings.getDiffStreamMode(), verdictOnly));
         }
 
         return scanResult;
     }
 
     /**
-     * Retrieves a scan result from a cache, then check the scan status. Continue polling if scan is in progress
+     * Scan the pull request into scanResult, see doSecretScan
+     * @param lease Lease of the IN_PROGRESS entry, which is closed before the result is cached. Null if not cached (verdict-only)
+     */
+    private PullRequestSecretScanResult scanForSecrets(PullRequest pullRequest, @Nullable PullRequestSecretScanResult previousScan,
+                                                       boolean verdictOnly, MatchRuleSetSnapshot ruleSet,
+                                                       PullRequestSecretScanResult scanResult, @Nullable ScanLeaseManager.ScanLease lease)
+            throws ExecutionException, InterruptedException {
+        MatchBudget matchBudget = new MatchBudget(scanSettings.getLineStepBudget(), scanSettings.getScanStepBudget());
+        LongLineWindows longLines = new LongLineWindows(scanSettings.getLongLineThreshold(), scanSettings.getLongLineWindow());
+
+        ScanSettings.DiffStreamMode diffStreamMode = scanSettings.getDiffStreamMode();
+        ChangeFilter changeFilter = ChangeFilter.of(fileFilterSettings, pullRequest.getToRef().getRepository().getId());
+        ChangeStreamer changeStreamer = new ChangeStreamer(pullRequestService, ruleSet, matchBudget, longLines, diffStreamMode,
+                scanExecutor, scanSettings.getScanParallelism(), blobFindingsCache, gitDiffStreamer, changeFilter, verdictOnly);
+        boolean partialVerdict = false;
+
+        Set<String> changedPaths = incrementalScanPlanner.findChangedPaths(pullRequest, previousScan, ruleSet.getVersion());
+
+        if (changedPaths == null) {
+            scanResult.setFoundSecrets(changeStreamer.scan(pullRequest).getFoundSecrets());
+            scanResult.setMatchTimeouts(matchBudget.getTimeouts());
+            scanResult.setSkippedFiles(changeStreamer.getSkippedFiles());
+        } else {
+            // Keep what was found in the files which haven't changed since the previous scan, only rescan the changed files
+            FoundSecretCollection foundSecrets = new FoundSecretCollection();
+            for (FoundSecret secret : previousScan.getFoundSecrets().getSecrets()) {
+                if (!changedPaths.contains(secret.getDestinationFilePath()))
+                    foundSecrets.add(secret);
+            }
+
+            List<MatchTimeout> matchTimeouts = new ArrayList<>();
+            for (MatchTimeout timeout : previousScan.getMatchTimeouts()) {
+                if (!changedPaths.contains(timeout.getDestinationFilePath()))
+                    matchTimeouts.add(timeout);
+            }
+
+            List<SkippedFile> skippedFiles = new ArrayList<>();
+            if (previousScan.getSkippedFiles() != null) {
+                for (SkippedFile file : previousScan.getSkippedFiles()) {
+                    if (!changedPaths.contains(file.getDestinationFilePath()))
+                        skippedFiles.add(file);
+                }
+            }
+
+            if (verdictOnly && foundSecrets.count() > 0) // Files which haven't changed already contain a secret
+                partialVerdict = true;
+            else
+                foundSecrets.merge(changeStreamer.scanFiles(pullRequest, changedPaths).getFoundSecrets());
+
+            matchTimeouts.addAll(matchBudget.getTimeouts());
+            skippedFiles.addAll(changeStreamer.getSkippedFiles());
+            scanResult.setFoundSecrets(foundSecrets);
+            scanResult.setMatchTimeouts(matchTimeouts);
+            scanResult.setSkippedFiles(skippedFiles);
+        }
+
+        partialVerdict = partialVerdict || changeStreamer.isStopped();
+        scanResult.setPartialVerdict(partialVerdict);
+        scanResult.setSecretScanStatus(SecretScanStatus.COMPLETED);
+        if (lease != null)
+            lease.close();
+        if (partialVerdict)
+            pullRequestSecretScanCache.putPartialVerdict(pullRequest, scanResult);
+        else
+            pullRequestSecretScanCache.put(pullRequest, scanResult);
+
+        if (partialVerdict)
+            log.info(String.format("SecretWarden found a secret in the pull request: %s and stopped the verdict-only scan.",
+                    prString()));
+        else if (changedPaths == null)
+            log.info(String.format("SecretWarden scanned the pull request: %s and has found %d secret(s) (skipped %d file(s)).",
+                    prString(), scanResult.countFoundSecrets(), scanResult.getSkippedFileCount()));
+        else
+            log.info(String.format("SecretWarden rescanned %d changed file(s) of the pull request: %s and has found %d secret(s).",
+                    changedPaths.size(), prString(), scanResult.countFoundSecrets()));
+
+        if (matchBudget.countTimeouts() > 0) {
+            log.warn(String.format("SecretWarden rules timed out %d time(s) whilst scanning the pull request: %s (scan budget exhausted: %s)." +
+                    " First timeout: %s", matchBudget.countTimeouts(), prString(), matchBudget.isExhausted(), matchBudget.getTimeouts().get(0)));
+        }
+
+        return scanResult;
+    }
+
+    /**
+     * Retrieves a scan result from a cache, then check the scan status. Wait for the scan to finish if it is in progress.
      * This is important in a multi-node setup, where another node may be scanning.
      * This is also important on large scans, where a user views a PR backs-out and the scan continues.
-     * Need to periodically poll whether the scan has completed or not. Timeout logic is a fail-safe
+     * The wait ends as soon as the result is written to the cache by any node (see PullRequestSecretScanResultCache.awaitCompletion)
+     * The cache is also re-read every RECHECK_DELAY, in case that notification is lost. Timeout logic is a fail-safe
+     * If the lease of the scan in progress expires (see ScanLeaseManager), its node has stopped scanning & the wait ends.
      * @param pullRequest The pull-request a secret scan should or is taking place on
-     * @return ScanResult
+     * @return ScanResult. Null if the lease of the scan in progress has expired, so the caller should take the scan over.
      */
     private PullRequestSecretScanResult checkOngoingScan(PullRequest pullRequest) throws SecretScanException {
-        final int MAX_ATTEMPTS = 300; // = 60 second timeout
-        final int DELAY = 200;
-        int curAttempts = 0;
+        final long TIMEOUT = 60_000; // Milliseconds
+        final long RECHECK_DELAY = 5_000;
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        boolean timedOut = false;
 
         PullRequestSecretScanResult scan = null;
         try {
-            while (curAttempts <= MAX_ATTEMPTS) {
+            while (true) {
+                // Register before reading the cache, so a result written in between still completes the wait
+                CompletableFuture<PullRequestSecretScanResult> completion = pullRequestSecretScanCache.awaitCompletion(pullRequest);
                 scan = getCachedSecretScan(pullRequest);
                 if (scan == null)
                     throw new Exception(String.format("SecretWarden couldn't find the cached entry for PR: %s", prString()));
@@ -154,11 +341,31 @@ public class PullRequestSecretScanner implements SecretScanner {
                 SecretScanStatus status = scan.getSecretScanStatus();
 
                 if (status == SecretScanStatus.IN_PROGRESS) {
-                    if (curAttempts % 10 == 0)
-                        log.debug(String.format("SecretWarden is reportedly still scanning the pull request: %s", prString()));
-
-                    Thread.sleep(DELAY); // The scan is still on-going, wait a little bit then try again
-                    curAttempts++;
+                    long now = System.currentTimeMillis();
+                    if (scan.isLeaseExpired(now)) {
+                        log.warn(String.format("SecretWarden node %s stopped renewing its lease to scan the pull request: %s " +
+                                "(node down or scan hung), taking over the scan", scan.getOwnerNodeId(), prString()));
+                        return null;
+                    }
+
+                    long remaining = deadline - now;
+                    if (remaining <= 0) {
+                        timedOut = true;
+                        break;
+                    }
+
+                    long wait = Math.min(remaining, RECHECK_DELAY);
+                    if (scan.getLeaseExpiry() > 0) // Check again as soon as the lease would expire
+                        wait = Math.min(wait, Math.max(1, scan.getLeaseExpiry() - now + 1));
+
+                    log.debug(String.format("SecretWarden is reportedly still scanning the pull request: %s (node: %s)",
+                            prString(), scan.getOwnerNodeId()));
+                    try {
+                        completion.get(wait, TimeUnit.MILLISECONDS);
+                    }
+                    catch (TimeoutException e) {
+                        // No notification yet, read the cache again in case it was missed
+                    }
                 } else if (status == SecretScanStatus.FAILED || status == SecretScanStatus.UNKNOWN) {
                     log.debug(String.format("SecretWarden had previously attempted to scan a pull request: %s but failed",
                             prString()));
@@ -170,7 +377,7 @@ public class PullRequestSecretScanner implements SecretScanner {
                 }
             }
 
-            if (curAttempts >= MAX_ATTEMPTS) {
+            if (timedOut) {
                 throw new Exception(String.format("SecretScan has timed-out waiting for scan results for pull request: %s", prString()));
             }
 
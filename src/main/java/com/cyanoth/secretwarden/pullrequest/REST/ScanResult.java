@@ -42,6 +42,7 @@ public class ScanResult{
      * Retrieve the secret scan result from the pull request cache. If the secret scan result does not exist in cache
      * then 404 will be returned. This API does _NOT_ trigger a secret scan.
      * The intention for this is to serve data to the UI on the pull-request overview - hence why this is not a public API.
+     * A partial verdict (see PullRequestSecretScanResult.isPartialVerdict) is not every secret, so it is treated as not scanned.
      * @param projectKey Bitbucket Project Key where the pull-request applies too.
      * @param repoSlug Bitbucket Repository Slug where the pull-request applies too.
      * @param pullRequestId Numeric ID of the pull-request
@@ -64,7 +65,7 @@ public class ScanResult{
 
             PullRequestSecretScanResult result = pullRequestSecretScanResultCache.get(repo.getId(), pullRequestId);
 
-            if (result == null) {
+            if (result == null || result.isPartialVerdict()) {
                 return Response.status(Response.Status.NOT_FOUND).build();
             } else {
                 return Response.ok(new Gson().toJson(result)).build();
@@ -0,0 +1,147 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+import com.cyanoth.secretwarden.SecretScanStatus;
+import com.cyanoth.secretwarden.structures.FoundSecret;
+import com.cyanoth.secretwarden.structures.MatchTimeout;
+import com.cyanoth.secretwarden.structures.SkippedFile;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * INTERNAL: Node-local accounting of the (estimated) memory retained by the scan result cache, in least recently used
+ * order, so the cache can evict the least recently used results once over its byte budget (see PullRequestSecretScanResultCache).
+ *
+ * Only finished results are accounted for. IN_PROGRESS entries are tiny & must never be evicted, otherwise the threads
+ * waiting for that scan would be woken with no result.
+ */
+class ResultCacheAccounting {
+    // Rough (64-bit JVM, compressed oops) sizes of the objects a result retains. Only needs to be in the right ballpark.
+    private static final long RESULT_OVERHEAD_BYTES = 256;     // The result, its revision, date, collection & list
+    private static final long FOUND_SECRET_BYTES = 80;         // FoundSecret + its HashSet entry
+    private static final long MATCH_TIMEOUT_BYTES = 40;        // MatchTimeout + its list slot
+    private static final long SKIPPED_FILE_BYTES = 40;         // SkippedFile + its list slot
+    private static final long STRING_OVERHEAD_BYTES = 40;      // String + its char array header
+
+    private final Map<String, Long> entryBytes = new LinkedHashMap<>(16, 0.75f, true); // Access ordered, eldest first
+    private long totalBytes = 0;
+
+    /**
+     * @param result A scan result
+     * @return Estimate of the heap retained by the result. Strings shared between its found secrets (paths, rule names...)
+     *         are only counted once, as they are after deserialization (see PullRequestSecretScanResult.readExternal).
+     */
+    static long estimateRetainedBytes(@Nonnull PullRequestSecretScanResult result) {
+        long bytes = RESULT_OVERHEAD_BYTES;
+        final Set<String> strings = Collections.newSetFromMap(new IdentityHashMap<>());
+        strings.add(result.getFromCommit());
+        strings.add(result.getToCommit());
+
+        if (result.getFoundSecrets() != null) {
+            for (FoundSecret secret : result.getFoundSecrets().getSecrets()) {
+                bytes += FOUND_SECRET_BYTES;
+                strings.add(secret.getmatchedRuleName());
+                strings.add(secret.getDestinationFilePath());
+                strings.add(secret.getSourceContext());
+            }
+        }
+
+        if (result.getMatchTimeouts() != null) {
+            for (MatchTimeout timeout : result.getMatchTimeouts()) {
+                bytes += MATCH_TIMEOUT_BYTES;
+                strings.add(timeout.getMatchedRuleName());
+                strings.add(timeout.getDestinationFilePath());
+            }
+        }
+
+        if (result.getSkippedFiles() != null) {
+            for (SkippedFile file : result.getSkippedFiles()) {
+                bytes += SKIPPED_FILE_BYTES;
+                strings.add(file.getDestinationFilePath());
+            }
+        }
+
+        for (String value : strings) {
+            if (value != null)
+                bytes += STRING_OVERHEAD_BYTES + 2L * value.length();
+        }
+        return bytes;
+    }
+
+    /**
+     * @param key Cache key of the pull request
+     * @param result The result written to the cache (by any node), null if the entry was removed or evicted
+     */
+    synchronized void onWritten(@Nonnull String key, @Nullable PullRequestSecretScanResult result) {
+        final Long previous = entryBytes.remove(key);
+        if (previous != null)
+            totalBytes -= previous;
+
+        if (result != null && result.getSecretScanStatus() != SecretScanStatus.IN_PROGRESS) {
+            final long bytes = estimateRetainedBytes(result);
+            entryBytes.put(key, bytes);
+            totalBytes += bytes;
+        }
+    }
+
+    /**
+     * @param key Cache key of a pull request whose result was read, so it becomes the most recently used
+     */
+    synchronized void onAccessed(@Nonnull String key) {
+        entryBytes.get(key);
+    }
+
+    /**
+     * @param maxBytes The byte budget
+     * @param keep Cache key which must not be evicted (the result just written), null for none
+     * @return Cache keys to evict, least recently used first, so the remaining entries fit the budget. They are no longer
+     *         accounted for, the caller must remove them from the cache.
+     */
+    @Nonnull
+    synchronized List<Eviction> evictOverBudget(long maxBytes, @Nullable String keep) {
+        final List<Eviction> evictions = new ArrayList<>();
+        final Iterator<Map.Entry<String, Long>> eldest = entryBytes.entrySet().iterator();
+
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            final Map.Entry<String, Long> entry = eldest.next();
+            if (entry.getKey().equals(keep))
+                continue;
+
+            evictions.add(new Eviction(entry.getKey(), entry.getValue()));
+            totalBytes -= entry.getValue();
+            eldest.remove();
+        }
+        return evictions;
+    }
+
+    synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    synchronized int countEntries() {
+        return entryBytes.size();
+    }
+
+    synchronized void clear() {
+        entryBytes.clear();
+        totalBytes = 0;
+    }
+
+    static final class Eviction {
+        final String key;
+        final long bytes;
+
+        Eviction(String key, long bytes) {
+            this.key = key;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+import com.cyanoth.secretwarden.SecretScanStatus;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * INTERNAL: Node-local registry of threads waiting for an in progress scan (on any node) to finish, so they resume as
+ * soon as the result is written rather than polling the result cache.
+ *
+ * Every waiter of the same pull request shares one future. It is completed by onResultWritten, which the result cache
+ * calls whenever an entry is written or removed on any node (see PullRequestSecretScanResultCache). The registry knows
+ * nothing about the cluster, so it works the same with a local stand-in for the cache.
+ */
+class ScanCompletionRegistry {
+    private final ConcurrentMap<String, CompletableFuture<PullRequestSecretScanResult>> waiting = new ConcurrentHashMap<>();
+
+    /**
+     * Register interest in the next scan result of a pull request. The caller must check the cache AFTER registering,
+     * otherwise a result written in between is missed.
+     * @param key Cache key of the pull request
+     * @return Future completed with the next result which isn't IN_PROGRESS, or with null if the entry is removed.
+     */
+    @Nonnull
+    CompletableFuture<PullRequestSecretScanResult> awaitCompletion(@Nonnull String key) {
+        return waiting.computeIfAbsent(key, k -> new CompletableFuture<>());
+    }
+
+    /**
+     * @param key Cache key of the pull request
+     * @param result The result written to the cache, null if the entry was removed or evicted
+     */
+    void onResultWritten(@Nonnull String key, @Nullable PullRequestSecretScanResult result) {
+        if (result != null && result.getSecretScanStatus() == SecretScanStatus.IN_PROGRESS)
+            return; // Not finished, keep waiting
+
+        final CompletableFuture<PullRequestSecretScanResult> completion = waiting.remove(key);
+        if (completion != null)
+            completion.complete(result);
+    }
+
+    /**
+     * Wake every waiter (e.g. the whole cache has been cleared), they will find there is no result.
+     */
+    void completeAll() {
+        for (String key : waiting.keySet())
+            onResultWritten(key, null);
+    }
+
+    /**
+     * @return Number of pull requests which currently have a waiter on this node
+     */
+    int countWaiting() {
+        return waiting.size();
+    }
+}
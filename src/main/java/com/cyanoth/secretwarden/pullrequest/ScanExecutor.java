@@ -0,0 +1,157 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.bitbucket.util.Operation;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.cyanoth.secretwarden.config.ScanSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.validation.constraints.NotNull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded thread pool shared by every scan on this node, used to scan the files of a pull request in parallel.
+ *    Global cap   - The pool size (scan_threads setting), so scans never use more than this many threads in total.
+ *    Per-scan cap - Each scan may only have scan_parallelism files in the pool (running or queued) at once,
+ *                   so one huge pull request cannot fill the queue & starve the others.
+ *
+ * Worker threads have no user, so tasks run with (global) REPO_READ permission. This is only used after the calling
+ * thread has been permitted to scan the pull request.
+ */
+@Component
+public class ScanExecutor implements DisposableBean {
+    private static final Logger log = LoggerFactory.getLogger(ScanExecutor.class);
+    private static final String SECURITY_REASON = "SecretWarden Scanning Pull Request Files";
+
+    private final ScanSettings scanSettings;
+    private final SecurityService securityService;
+    private final ThreadPoolExecutor executor;
+
+    @Autowired
+    public ScanExecutor(@ComponentImport final SecurityService securityService,
+                        final ScanSettings scanSettings) {
+        this.securityService = securityService;
+        this.scanSettings = scanSettings;
+
+        final int threads = scanSettings.getScanThreads();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                new ScanThreadFactory("secretwarden-scan-"));
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Run every task, at most maxParallel at once, and wait for all of them to complete.
+     * If there is only one task (or maxParallel is 1) the tasks are run on the calling thread instead.
+     * @param tasks Tasks to run
+     * @param maxParallel Maximum tasks of these tasks in the pool at once (the per-scan cap)
+     * @return The result of each task, in the same order as the tasks (regardless of the order they completed)
+     * @throws ExecutionException A task has failed, the remaining tasks are cancelled.
+     * @throws InterruptedException The calling thread was interrupted, the remaining tasks are cancelled.
+     */
+    @NotNull
+    public <T> List<T> invokeAll(@NotNull List<Callable<T>> tasks, int maxParallel) throws ExecutionException, InterruptedException {
+        final List<T> results = new ArrayList<>(tasks.size());
+
+        if (maxParallel <= 1 || tasks.size() <= 1) {
+            for (Callable<T> task : tasks) {
+                try {
+                    results.add(task.call());
+                }
+                catch (Exception e) {
+                    throw new ExecutionException(e);
+                }
+            }
+            return results;
+        }
+
+        resizePool();
+        final Semaphore permits = new Semaphore(maxParallel);
+        final List<Future<T>> futures = new ArrayList<>(tasks.size());
+
+        try {
+            for (Callable<T> task : tasks) {
+                permits.acquire();
+                futures.add(executor.submit(() -> {
+                    try {
+                        return securityService.withPermission(Permission.REPO_READ, SECURITY_REASON)
+                                .call((Operation<T, Exception>) task::call);
+                    }
+                    finally {
+                        permits.release();
+                    }
+                }));
+            }
+
+            for (Future<T> future : futures)
+                results.add(future.get());
+
+            return results;
+        }
+        finally {
+            if (results.size() != tasks.size()) { // Failed or interrupted, don't leave the remaining tasks running
+                for (Future<T> future : futures)
+                    future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Apply the scan_threads setting, in case it has changed since the pool was created.
+     */
+    private void resizePool() {
+        final int threads = scanSettings.getScanThreads();
+        if (threads == executor.getMaximumPoolSize())
+            return;
+
+        log.debug(String.format("Resizing the SecretWarden scan thread pool from %d to %d thread(s)", executor.getMaximumPoolSize(), threads));
+        synchronized (executor) {
+            if (threads > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(threads);
+                executor.setCorePoolSize(threads);
+            } else {
+                executor.setCorePoolSize(threads);
+                executor.setMaximumPoolSize(threads);
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        log.debug("Shutting down the SecretWarden scan thread pool");
+        executor.shutdownNow();
+    }
+
+    /**
+     * INTERNAL: Named daemon threads, so they are identifiable in thread dumps & never hold up shutdown.
+     */
+    static class ScanThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+        private final String namePrefix;
+
+        ScanThreadFactory(String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        @Override
+        public Thread newThread(@NotNull Runnable runnable) {
+            Thread thread = new Thread(runnable, namePrefix + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+import com.atlassian.bitbucket.cluster.ClusterService;
+import com.atlassian.bitbucket.pull.PullRequest;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.cyanoth.secretwarden.SecretScanStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Leases of the IN_PROGRESS result cache entries written by the scans of this node.
+ *
+ * An IN_PROGRESS entry names the node scanning (owner) & when its lease expires. Whilst the scan runs, this node renews
+ * the lease (rewrites the entry) every third of the lease duration. If the node dies, the lease is no longer renewed,
+ * and a scan which runs for longer than the maximum scan duration (e.g. a hung thread) stops renewing its lease too.
+ * A lease is only renewed whilst the entry is still the one it last wrote (a conditional replace): once anything else
+ * has been written (a node taking the scan over, the result, a scan of a newer revision), the lease stops for good.
+ * Once the lease has expired, a node waiting for that scan takes it over (see PullRequestSecretScanner.checkOngoingScan)
+ * rather than waiting for the full timeout.
+ *
+ * Every node of a cluster has its own instance, so nodes can be simulated in one JVM with one instance per node.
+ */
+@Component
+public class ScanLeaseManager implements DisposableBean {
+    private static final Logger log = LoggerFactory.getLogger(ScanLeaseManager.class);
+    private static final long DEFAULT_LEASE_DURATION = 30_000; // Milliseconds
+    private static final long DEFAULT_MAX_SCAN_DURATION = 30 * 60_000;
+
+    private final String nodeId;
+    private final long leaseDuration;
+    private final long maxScanDuration;
+    private final ScheduledThreadPoolExecutor heartbeats;
+
+    @Autowired
+    public ScanLeaseManager(@ComponentImport ClusterService clusterService) {
+        this(clusterService.getInformation().getLocalNode().getId(), DEFAULT_LEASE_DURATION, DEFAULT_MAX_SCAN_DURATION);
+    }
+
+    /**
+     * @param nodeId Identifier of this node, written as the owner of IN_PROGRESS entries
+     * @param leaseDuration Milliseconds an IN_PROGRESS entry is valid for, unless renewed
+     * @param maxScanDuration Milliseconds after which a scan is assumed to be hung, so its lease is no longer renewed
+     */
+    ScanLeaseManager(@Nonnull String nodeId, long leaseDuration, long maxScanDuration) {
+        this.nodeId = nodeId;
+        this.leaseDuration = leaseDuration;
+        this.maxScanDuration = maxScanDuration;
+        this.heartbeats = new ScheduledThreadPoolExecutor(1, new ScanExecutor.ScanThreadFactory("secretwarden-scan-lease-"));
+        this.heartbeats.setRemoveOnCancelPolicy(true);
+    }
+
+    @Nonnull
+    String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Write an IN_PROGRESS entry owned by this node for the pull request & keep renewing its lease until closed.
+     * @param pullRequest The pull request being scanned
+     * @param revision The revision of the pull request being scanned
+     * @param cache The result cache to write the entry to
+     * @return The lease, which must be closed before the result of the scan is written
+     */
+    @Nonnull
+    ScanLease start(@Nonnull PullRequest pullRequest, @Nonnull PullRequestScanRevision revision,
+                    @Nonnull PullRequestSecretScanResultCache cache) {
+        final ScanLease lease = new ScanLease(pullRequest, revision, cache);
+        lease.renew();
+        final long renewInterval = Math.max(1, leaseDuration / 3);
+        lease.heartbeat = heartbeats.scheduleWithFixedDelay(lease::renew, renewInterval, renewInterval, TimeUnit.MILLISECONDS);
+        return lease;
+    }
+
+    @Override
+    public void destroy() {
+        heartbeats.shutdownNow();
+    }
+
+    /**
+     * INTERNAL: The lease of one scan's IN_PROGRESS entry.
+     */
+    class ScanLease implements AutoCloseable {
+        private final PullRequest pullRequest;
+        private final PullRequestScanRevision revision;
+        private final PullRequestSecretScanResultCache cache;
+        private final long startedAt = System.currentTimeMillis();
+        private ScheduledFuture<?> heartbeat = null;
+        private boolean closed = false;
+        private PullRequestSecretScanResult written = null; // The entry as last written by this lease
+
+        private ScanLease(PullRequest pullRequest, PullRequestScanRevision revision, PullRequestSecretScanResultCache cache) {
+            this.pullRequest = pullRequest;
+            this.revision = revision;
+            this.cache = cache;
+        }
+
+        private synchronized void renew() {
+            if (closed)
+                return;
+
+            final long now = System.currentTimeMillis();
+            if (now - startedAt > maxScanDuration) {
+                log.warn(String.format("SecretWarden has been scanning the pull request: %s (PR: %d) for over %d ms, its lease will " +
+                        "no longer be renewed so another node may take over", pullRequest.getToRef(), pullRequest.getId(), maxScanDuration));
+                heartbeat.cancel(false);
+                return;
+            }
+
+            final PullRequestSecretScanResult inProgress = new PullRequestSecretScanResult(pullRequest.getUpdatedDate(), revision);
+            inProgress.setSecretScanStatus(SecretScanStatus.IN_PROGRESS);
+            inProgress.setLease(nodeId, now + leaseDuration);
+            if (written == null) { // Start of the scan, whatever result the pull request had is replaced
+                cache.put(pullRequest, inProgress);
+                written = inProgress;
+                return;
+            }
+
+            final PullRequestSecretScanResult current = cache.get(pullRequest);
+            if (!isOwnLease(current) || !cache.replace(pullRequest, current, inProgress)) {
+                log.debug(String.format("The SecretWarden scan of the pull request: %s (PR: %d) is no longer this node's lease, " +
+                        "it will no longer be renewed", pullRequest.getToRef(), pullRequest.getId()));
+                closed = true;
+                heartbeat.cancel(false);
+                return;
+            }
+            written = inProgress;
+        }
+
+        /**
+         * @return True, if the entry is still the IN_PROGRESS lease of this node for the revision, as last written
+         */
+        private boolean isOwnLease(PullRequestSecretScanResult current) {
+            return current != null && current.getSecretScanStatus() == SecretScanStatus.IN_PROGRESS &&
+                    nodeId.equals(current.getOwnerNodeId()) && current.isValidFor(revision) &&
+                    current.getLeaseExpiry() == written.getLeaseExpiry();
+        }
+
+        /**
+         * Stop renewing the lease. The entry is left for the caller to overwrite with the result.
+         */
+        @Override
+        public synchronized void close() {
+            closed = true;
+            if (heartbeat != null)
+                heartbeat.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+import net.java.ao.Entity;
+import net.java.ao.schema.Indexed;
+import net.java.ao.schema.StringLength;
+import net.java.ao.schema.Table;
+
+/**
+ * Active Objects entity of a scan result persisted by PersistentScanResultStore. There is (at most) one row per pull
+ * request, holding its latest finished result & the revision (source/target commit, ruleset version) it was scanned at.
+ */
+@Table("ScanResult")
+public interface ScanResultEntity extends Entity {
+    String REPOSITORY_ID = "REPOSITORY_ID";
+    String PULL_REQUEST_ID = "PULL_REQUEST_ID";
+    String FROM_COMMIT = "FROM_COMMIT";
+    String TO_COMMIT = "TO_COMMIT";
+    String RULE_SET_VERSION = "RULE_SET_VERSION";
+    String STORED_AT = "STORED_AT";
+    String ENCODED_RESULT = "ENCODED_RESULT";
+
+    @Indexed
+    int getRepositoryId();
+    void setRepositoryId(int repositoryId);
+
+    @Indexed
+    long getPullRequestId();
+    void setPullRequestId(long pullRequestId);
+
+    String getFromCommit();
+    void setFromCommit(String fromCommit);
+
+    String getToCommit();
+    void setToCommit(String toCommit);
+
+    long getRuleSetVersion();
+    void setRuleSetVersion(long ruleSetVersion);
+
+    /**
+     * @return When the result was stored (epoch milliseconds)
+     */
+    long getStoredAt();
+    void setStoredAt(long storedAt);
+
+    /**
+     * @return The result in its compact form (see PullRequestSecretScanResult.writeExternal), Base64 encoded
+     */
+    @StringLength(StringLength.UNLIMITED)
+    String getEncodedResult();
+    void setEncodedResult(String encodedResult);
+}
@@ -0,0 +1,257 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.bitbucket.util.Operation;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.cyanoth.secretwarden.ScanMetrics;
+import com.cyanoth.secretwarden.config.ScanSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admission control for whole pull request scans which don't run on the thread asking for them (the merge check within
+ * its latency budget, the full scan after a partial verdict, prescans). A bounded pool of workers runs the queued scans:
+ *    Priority  - A worker always takes a scan of the highest priority class queued, see ScanPriority.
+ *    Fairness  - Within a priority class, repositories take turns (round robin), so hundreds of scans queued for one
+ *                repository (e.g. after a force push to a target branch) don't hold up the scans of other repositories.
+ *    Limits    - Each priority class (scan_queue_limit) & each repository within it (scan_queue_repository_limit) may only
+ *                queue so many scans. Once full, new scans of that class/repository are rejected. Except MERGE_CHECK:
+ *                the merge check lets a pull request through when its scan fails, so rejecting one would let an unscanned
+ *                pull request be merged. Its queue is bounded by the people waiting to merge instead.
+ *
+ * The queue depth, rejections & time spent queued of each priority class are recorded in ScanMetrics.
+ * Workers have no user, so scans run with (global) REPO_READ permission. Only submit scans the caller may perform.
+ */
+@Component
+public class ScanScheduler implements DisposableBean {
+    private static final Logger log = LoggerFactory.getLogger(ScanScheduler.class);
+    private static final String SECURITY_REASON = "SecretWarden Scanning Pull Request In Background";
+
+    /**
+     * Priority classes of scans, highest priority first
+     */
+    public enum ScanPriority {
+        MERGE_CHECK,        // Someone is waiting to merge
+        UI_OVERVIEW,        // Every secret of a pull request, for the overview panel
+        BACKGROUND_PRESCAN  // Nobody is waiting yet
+    }
+
+    private final ScanSettings scanSettings;
+    private final ScanMetrics scanMetrics;
+    private final SecurityService securityService;
+    private final ThreadPoolExecutor workers;
+    private final Map<ScanPriority, FairQueue> queues = new EnumMap<>(ScanPriority.class); // Guarded by itself
+
+    @Autowired
+    public ScanScheduler(@ComponentImport SecurityService securityService,
+                         ScanSettings scanSettings,
+                         ScanMetrics scanMetrics) {
+        this.securityService = securityService;
+        this.scanSettings = scanSettings;
+        this.scanMetrics = scanMetrics;
+
+        for (ScanPriority priority : ScanPriority.values())
+            queues.put(priority, new FairQueue());
+
+        final int threads = scanSettings.getSchedulerThreads();
+        this.workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                new ScanExecutor.ScanThreadFactory("secretwarden-background-scan-"));
+        this.workers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queue a scan & return immediately.
+     * @param priority Priority class of the scan
+     * @param repositoryId Repository the scan belongs to (the fairness key)
+     * @param scan The scan to run
+     * @return Future of the result of the scan. Completed exceptionally with RejectedExecutionException if the queue is full
+     *         (never for MERGE_CHECK scans).
+     */
+    @Nonnull
+    public <T> CompletableFuture<T> submit(@Nonnull ScanPriority priority, int repositoryId, @Nonnull Callable<T> scan) {
+        final QueuedScan<T> queuedScan = new QueuedScan<>(priority, repositoryId, scan);
+
+        synchronized (queues) {
+            final FairQueue queue = queues.get(priority);
+            if (priority != ScanPriority.MERGE_CHECK && (queue.size >= scanSettings.getScanQueueLimit() ||
+                    queue.size(repositoryId) >= scanSettings.getScanQueueRepositoryLimit())) {
+                scanMetrics.increment(metricName("scan_queue_rejected", priority));
+                queuedScan.result.completeExceptionally(new RejectedExecutionException(String.format(
+                        "The SecretWarden %s scan queue is full (repository: %d)", priority, repositoryId)));
+                return queuedScan.result;
+            }
+            queue.add(queuedScan);
+        }
+        scanMetrics.increment(metricName("scan_queue_depth", priority));
+
+        try {
+            resizePool();
+            workers.execute(this::runNext); // Each worker run takes whichever scan is next, not necessarily this one
+        }
+        catch (RejectedExecutionException e) { // Shutting down
+            cancelQueued();
+        }
+        return queuedScan.result;
+    }
+
+    /**
+     * Run the next queued scan: the highest priority class, then the next repository in turn.
+     */
+    private void runNext() {
+        final QueuedScan<?> next;
+        synchronized (queues) {
+            next = poll();
+        }
+        if (next == null)
+            return;
+
+        final long waitedMillis = System.currentTimeMillis() - next.queuedAt;
+        scanMetrics.add(metricName("scan_queue_depth", next.priority), -1);
+        scanMetrics.increment(metricName("scan_queue_started", next.priority));
+        scanMetrics.add(metricName("scan_queue_wait_millis", next.priority), waitedMillis);
+        scanMetrics.max(metricName("scan_queue_max_wait_millis", next.priority), waitedMillis);
+
+        if (next.result.isDone()) // Cancelled whilst queued
+            return;
+
+        next.run(securityService);
+    }
+
+    @Nullable
+    private QueuedScan<?> poll() {
+        for (ScanPriority priority : ScanPriority.values()) {
+            final QueuedScan<?> next = queues.get(priority).poll();
+            if (next != null)
+                return next;
+        }
+        return null;
+    }
+
+    /**
+     * Apply the scan_scheduler_threads setting, in case it has changed since the pool was created.
+     */
+    private void resizePool() {
+        final int threads = scanSettings.getSchedulerThreads();
+        if (threads == workers.getMaximumPoolSize())
+            return;
+
+        log.debug(String.format("Resizing the SecretWarden background scan thread pool from %d to %d thread(s)", workers.getMaximumPoolSize(), threads));
+        synchronized (workers) {
+            if (threads > workers.getMaximumPoolSize()) {
+                workers.setMaximumPoolSize(threads);
+                workers.setCorePoolSize(threads);
+            } else {
+                workers.setCorePoolSize(threads);
+                workers.setMaximumPoolSize(threads);
+            }
+        }
+    }
+
+    private void cancelQueued() {
+        synchronized (queues) {
+            for (QueuedScan<?> queuedScan = poll(); queuedScan != null; queuedScan = poll()) {
+                scanMetrics.add(metricName("scan_queue_depth", queuedScan.priority), -1);
+                queuedScan.result.completeExceptionally(new CancellationException("SecretWarden is shutting down"));
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        log.debug("Shutting down the SecretWarden background scan thread pool");
+        workers.shutdownNow();
+        cancelQueued();
+    }
+
+    private static String metricName(String metric, ScanPriority priority) {
+        return metric + "_" + priority.name().toLowerCase();
+    }
+
+    /**
+     * INTERNAL: The queued scans of one priority class. Each repository has a queue of its own, and repositories with
+     * scans queued take turns in the order they first queued one.
+     */
+    private static class FairQueue {
+        private final Map<Integer, Deque<QueuedScan<?>>> repositoryQueues = new HashMap<>();
+        private final Deque<Integer> turns = new ArrayDeque<>();
+        private int size = 0;
+
+        void add(QueuedScan<?> queuedScan) {
+            Deque<QueuedScan<?>> repositoryQueue = repositoryQueues.get(queuedScan.repositoryId);
+            if (repositoryQueue == null) {
+                repositoryQueue = new ArrayDeque<>();
+                repositoryQueues.put(queuedScan.repositoryId, repositoryQueue);
+                turns.addLast(queuedScan.repositoryId);
+            }
+            repositoryQueue.addLast(queuedScan);
+            size++;
+        }
+
+        @Nullable
+        QueuedScan<?> poll() {
+            final Integer repositoryId = turns.pollFirst();
+            if (repositoryId == null)
+                return null;
+
+            final Deque<QueuedScan<?>> repositoryQueue = repositoryQueues.get(repositoryId);
+            final QueuedScan<?> next = repositoryQueue.pollFirst();
+            if (repositoryQueue.isEmpty())
+                repositoryQueues.remove(repositoryId);
+            else
+                turns.addLast(repositoryId); // Back of the line
+            size--;
+            return next;
+        }
+
+        int size(int repositoryId) {
+            final Deque<QueuedScan<?>> repositoryQueue = repositoryQueues.get(repositoryId);
+            return repositoryQueue == null ? 0 : repositoryQueue.size();
+        }
+    }
+
+    /**
+     * INTERNAL: A scan waiting for a worker
+     */
+    private static class QueuedScan<T> {
+        private final ScanPriority priority;
+        private final int repositoryId;
+        private final Callable<T> scan;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private final long queuedAt = System.currentTimeMillis();
+
+        QueuedScan(ScanPriority priority, int repositoryId, Callable<T> scan) {
+            this.priority = priority;
+            this.repositoryId = repositoryId;
+            this.scan = scan;
+        }
+
+        void run(SecurityService securityService) {
+            try {
+                result.complete(securityService.withPermission(Permission.REPO_READ, SECURITY_REASON)
+                        .call((Operation<T, Exception>) scan::call));
+            }
+            catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+/**
+ * INTERNAL: Thrown from a stream callback to stop Bitbucket streaming the rest of a diff, once a verdict-only scan has
+ * found a secret. Deliberately unchecked, the streaming callbacks cannot throw checked exceptions.
+ */
+class ScanStoppedException extends RuntimeException {
+    ScanStoppedException() {
+        super("SecretWarden stopped streaming, a secret has already been found", null, false, false);
+    }
+}
@@ -0,0 +1,207 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+import com.atlassian.bitbucket.content.DiffSegmentType;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * INTERNAL: Streaming parser of the output of git diff -U0 (no context lines, see GitDiffStreamer), which passes only the
+ * added lines of each file to a DiffMatcher, with their line number in the destination file.
+ *
+ * The output is read as bytes into a reusable buffer (see ByteLineReader). Only added lines (and the few header lines which are needed) are
+ * decoded into strings, removed lines are skipped without being decoded. Without context lines the destination line
+ * numbers come from the hunk headers alone: @@ -srcLine[,srcSpan] +dstLine[,dstSpan] @@ context
+ *
+ * The DiffMatcher is driven through the same callbacks Bitbucket's diff stream uses:
+ *    onFileStart -> onHunkStart -> onSegmentStart(ADDED) -> onSegmentLine ... -> onDiffEnd -> (next file) ...
+ *
+ * The watchdog of the git process is reset when each file starts & every WATCHDOG_RESET_LINES lines, so a single file
+ * with a huge diff isn't timed out whilst its output is still being read. An added line longer than
+ * ByteLineReader.MAX_LINE_LENGTH is cut short, which truncates its file (see DiffMatcher.isTruncated).
+ */
+final class ZeroContextDiffParser {
+    static final int WATCHDOG_RESET_LINES = 1_000;
+
+    private final DiffMatcher matcher;
+    private final Runnable resetWatchdog;
+
+    private byte[] buffer; // Buffer of the line being parsed
+    private boolean lineTruncated = false; // The line being parsed was cut short (see ByteLineReader)
+    private boolean inFile = false;
+    private boolean inHunk = false;
+
+    /**
+     * @param matcher Matcher to pass the added lines of each file to
+     * @param resetWatchdog Resets the watchdog of the git process, called as the output is read
+     */
+    ZeroContextDiffParser(@Nonnull DiffMatcher matcher, @Nonnull Runnable resetWatchdog) {
+        this.matcher = matcher;
+        this.resetWatchdog = resetWatchdog;
+    }
+
+    /**
+     * Parse the diff until the end of the stream (or the matcher stops it by throwing ScanStoppedException)
+     */
+    void parse(@Nonnull InputStream diff) throws IOException {
+        final ByteLineReader reader = new ByteLineReader(diff);
+        int linesSinceReset = 0;
+        while (reader.readLine()) {
+            buffer = reader.buffer();
+            lineTruncated = reader.isLineTruncated();
+            parseLine(reader.lineStart(), reader.lineEnd());
+
+            if (++linesSinceReset >= WATCHDOG_RESET_LINES) {
+                resetWatchdog.run();
+                linesSinceReset = 0;
+            }
+        }
+
+        if (inFile)
+            matcher.onDiffEnd(false);
+    }
+
+    private void parseLine(int start, int end) {
+        if (inHunk) {
+            switch (buffer[start]) {
+                case '+':
+                    matcher.onSegmentLine(decode(start + 1, end), null, lineTruncated);
+                    return;
+                case '-':
+                case '\\': // \ No newline at end of file
+                    return;
+                default:
+                    inHunk = false; // Anything else ends the hunk, it must be a header
+            }
+        }
+
+        if (startsWith(start, end, "@@ ")) {
+            parseHunkHeader(start, end);
+        } else if (startsWith(start, end, "diff --git ")) {
+            if (inFile)
+                matcher.onDiffEnd(false);
+            inFile = false;
+            resetWatchdog.run();
+        } else if (startsWith(start, end, "+++ ")) {
+            matcher.onFileStart(parseDestinationPath(start + 4, end));
+            inFile = true;
+        }
+        // Other extended header lines (index, mode, rename from/to, --- , Binary files ...) are not needed
+    }
+
+    /**
+     * @@ -srcLine[,srcSpan] +dstLine[,dstSpan] @@ [context]
+     */
+    private void parseHunkHeader(int start, int end) {
+        final int[] cursor = { start + 3 };
+        expect(cursor, end, '-');
+        final int srcLine = parseNumber(cursor, end);
+        final int srcSpan = parseOptionalSpan(cursor, end);
+        expect(cursor, end, ' ');
+        expect(cursor, end, '+');
+        final int dstLine = parseNumber(cursor, end);
+        final int dstSpan = parseOptionalSpan(cursor, end);
+        expect(cursor, end, ' ');
+        expect(cursor, end, '@');
+        expect(cursor, end, '@');
+
+        String context = null;
+        if (cursor[0] + 1 < end) // " context"
+            context = decode(cursor[0] + 1, end);
+
+        matcher.onHunkStart(srcLine, srcSpan, dstLine, dstSpan, context);
+        if (dstSpan > 0)
+            matcher.onSegmentStart(DiffSegmentType.ADDED);
+        inHunk = true;
+    }
+
+    private int parseOptionalSpan(int[] cursor, int end) {
+        if (cursor[0] < end && buffer[cursor[0]] == ',') {
+            cursor[0]++;
+            return parseNumber(cursor, end);
+        }
+        return 1; // A span is omitted when it is 1
+    }
+
+    private int parseNumber(int[] cursor, int end) {
+        int value = 0;
+        final int first = cursor[0];
+        while (cursor[0] < end && buffer[cursor[0]] >= '0' && buffer[cursor[0]] <= '9')
+            value = value * 10 + (buffer[cursor[0]++] - '0');
+
+        if (cursor[0] == first)
+            throw new IllegalStateException("Malformed hunk header in the git diff output: " + decode(first, end));
+        return value;
+    }
+
+    private void expect(int[] cursor, int end, char expected) {
+        if (cursor[0] >= end || buffer[cursor[0]] != expected)
+            throw new IllegalStateException("Malformed hunk header in the git diff output: " + decode(cursor[0], end));
+        cursor[0]++;
+    }
+
+    /**
+     * +++ b/path, +++ "b/quoted\tpath" or +++ /dev/null (deleted, which is filtered out anyway)
+     */
+    @Nullable
+    private String parseDestinationPath(int start, int end) {
+        if (end > start && buffer[end - 1] == '\t') // Git appends a tab to paths containing a space
+            end--;
+
+        final String path = buffer[start] == '"' ? unquote(start + 1, end - 1) : decode(start, end);
+        if (path.equals("/dev/null"))
+            return null;
+        return path.startsWith("b/") ? path.substring(2) : path;
+    }
+
+    /**
+     * Git quotes paths with unusual characters C-style, with non-ASCII bytes as octal escapes (\303\251)
+     */
+    private String unquote(int start, int end) {
+        final ByteArrayOutputStream path = new ByteArrayOutputStream(end - start);
+        for (int i = start; i < end; i++) {
+            final byte b = buffer[i];
+            if (b != '\\' || i + 1 >= end) {
+                path.write(b);
+                continue;
+            }
+
+            final byte escaped = buffer[++i];
+            switch (escaped) {
+                case 'a': path.write(7); break;
+                case 'b': path.write('\b'); break;
+                case 't': path.write('\t'); break;
+                case 'n': path.write('\n'); break;
+                case 'v': path.write(11); break;
+                case 'f': path.write('\f'); break;
+                case 'r': path.write('\r'); break;
+                default:
+                    if (escaped >= '0' && escaped <= '3' && i + 2 < end) {
+                        path.write(((escaped - '0') << 6) | ((buffer[i + 1] - '0') << 3) | (buffer[i + 2] - '0'));
+                        i += 2;
+                    } else {
+                        path.write(escaped); // \" and \\
+                    }
+            }
+        }
+        return new String(path.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private boolean startsWith(int start, int end, String prefix) {
+        if (end - start < prefix.length())
+            return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buffer[start + i] != prefix.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private String decode(int start, int end) {
+        return new String(buffer, start, end - start, StandardCharsets.UTF_8);
+    }
+}
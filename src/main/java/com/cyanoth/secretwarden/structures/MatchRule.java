@@ -1,33 +1,55 @@
 package com.cyanoth.secretwarden.structures;
 
+import com.cyanoth.secretwarden.matching.LiteralAnchorExtractor;
+import com.cyanoth.secretwarden.matching.MatchBudget;
+import com.cyanoth.secretwarden.matching.MatchBudgetExceededException;
 import org.codehaus.jackson.annotate.JsonProperty;
 import java.io.Serializable;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 /**
  * A match rule is metadata onto of a regular expression, such as a friendly name that would appear to a user.
  */
 public class MatchRule implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     private final int ruleNumber;
     private final String friendlyName;
     private final String regexPattern; // Used only on configuration page. Use the pre-compiled compiledRegexPattern elsewhere
     private transient Pattern compiledRegexPattern;
+    private transient Set<String> literalAnchors;
     private final Boolean enabled;
+    private final int lineSpan;
+
+    public MatchRule(int ruleNumber, String friendlyName, String regexPattern, Boolean enabled) {
+        this(ruleNumber, friendlyName, regexPattern, enabled, 1);
+    }
 
+    /**
+     * @param lineSpan Number of consecutive added lines the rule is evaluated over, null (or less than 2) for a single line
+     */
     public MatchRule(@JsonProperty("ruleNumber") int ruleNumber,
                      @JsonProperty("friendlyName") String friendlyName,
                      @JsonProperty("regexPattern") String regexPattern,
-                     @JsonProperty("enabled") Boolean enabled) {
+                     @JsonProperty("enabled") Boolean enabled,
+                     @JsonProperty("lineSpan") Integer lineSpan) {
         this.ruleNumber = ruleNumber;
         this.friendlyName = friendlyName;
         this.regexPattern = regexPattern;
         this.enabled = enabled;
+        this.lineSpan = (lineSpan == null) ? 1 : lineSpan;
+        this.literalAnchors = LiteralAnchorExtractor.extract(regexPattern);
     }
 
     public String getFriendlyName() {
         return friendlyName;
     }
 
+    public String getRegexPattern() {
+        return regexPattern;
+    }
+
     public Pattern getCompiledRegexPattern() {
         // Incase THIS object gets deserialized (constructor isn't called). The compiled pattern might not be initialised.
         if (compiledRegexPattern == null)
@@ -36,6 +58,18 @@ public class MatchRule implements Serializable {
         return compiledRegexPattern;
     }
 
+    /**
+     * @return Lower-case literals of which at least one must appear in any line this rule matches.
+     *         Empty if the pattern has no such literals, in which case the rule must always be evaluated.
+     */
+    public Set<String> getLiteralAnchors() {
+        // Incase THIS object gets deserialized (constructor isn't called). The anchors might not be initialised.
+        if (literalAnchors == null)
+            literalAnchors = LiteralAnchorExtractor.extract(regexPattern);
+
+        return literalAnchors;
+    }
+
     public Integer getRuleNumber() {
         return ruleNumber;
     }
@@ -44,6 +78,14 @@ public class MatchRule implements Serializable {
         return enabled;
     }
 
+    /**
+     * @return Number of consecutive added lines the rule is evaluated over, joined by \n (see LineSpanWindow). 1 is a single line.
+     */
+    public int getLineSpan() {
+        // Less than 1 (e.g. 0 in a request to save the rule) is a single line
+        return Math.max(1, lineSpan);
+    }
+
     /**
      * Check whether a string matches this rule
      * @param str String to test rule against
@@ -53,4 +95,15 @@ public class MatchRule implements Serializable {
         return this.getCompiledRegexPattern().matcher(str).find();
     }
 
+    /**
+     * Check whether a string matches this rule, without taking more steps than the budget allows
+     * @param str String to test rule against
+     * @param budget Budget of the scan, the steps taken are deducted from it
+     * @return True. String matches rule. False otherwise.
+     * @throws MatchBudgetExceededException The rule took too many steps, it is unknown whether the string matches.
+     */
+    public boolean checkMatch(String str, MatchBudget budget) throws MatchBudgetExceededException {
+        return budget.matches(this.getCompiledRegexPattern(), str);
+    }
+
 }
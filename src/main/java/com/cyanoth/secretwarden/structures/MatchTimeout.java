@@ -0,0 +1,38 @@
+package com.cyanoth.secretwarden.structures;
+
+import java.io.Serializable;
+
+/**
+ * Details about a rule which timed out (exceeded its match budget) on a line, so that line was not fully checked by that rule.
+ * Intentionally immutable (no setters) after initialization.
+ */
+public class MatchTimeout implements Serializable {
+    private final String matchedRuleName;
+    private final String destinationFilePath;
+    private final int occurrenceLine;
+
+    public MatchTimeout(String matchedRuleName, String destinationFilePath, int occurrenceLine) {
+        this.matchedRuleName = matchedRuleName;
+        this.destinationFilePath = destinationFilePath;
+        this.occurrenceLine = occurrenceLine;
+    }
+
+    public String getMatchedRuleName() {
+        return matchedRuleName;
+    }
+
+    public String getDestinationFilePath() {
+        return destinationFilePath;
+    }
+
+    public int getOccurrenceLine() {
+        return occurrenceLine;
+    }
+
+    /**
+     * @return Friendly string describing the timeout
+     */
+    public String toString() {
+        return String.format("Rule %s timed out on file %s line %d", matchedRuleName, destinationFilePath, occurrenceLine);
+    }
+}
@@ -0,0 +1,86 @@
+package com.cyanoth.secretwarden.structures;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The measured cost of evaluating a rule pattern, see RuleCostAnalyzer.
+ * Intentionally immutable (no setters) after initialization.
+ */
+public class RuleCost implements Serializable {
+    private final double throughputMBps; // Megabytes (of the benchmark corpus) per second
+    private final double stepsPerChar; // Regex steps per character of the benchmark corpus
+    private final long benchmarkMillis;
+    private final int timedOutLines;
+    private final double minimumThroughputMBps;
+    private final double maxStepsPerChar; // The minimum throughput as steps, 0 if there is no minimum
+    private final boolean tooSlow;
+    private final List<String> warnings;
+
+    /**
+     * @param maxStepsPerChar Steps per character above which the pattern is too slow (the minimum throughput at a nominal
+     *                        rate of steps, see RuleCostAnalyzer). 0 only checks for timeouts.
+     */
+    public RuleCost(double throughputMBps, double stepsPerChar, long benchmarkMillis, int timedOutLines,
+                    double minimumThroughputMBps, double maxStepsPerChar, List<String> warnings) {
+        this.throughputMBps = throughputMBps;
+        this.stepsPerChar = stepsPerChar;
+        this.benchmarkMillis = benchmarkMillis;
+        this.timedOutLines = timedOutLines;
+        this.minimumThroughputMBps = minimumThroughputMBps;
+        this.maxStepsPerChar = maxStepsPerChar;
+        this.tooSlow = timedOutLines > 0 || (maxStepsPerChar > 0 && stepsPerChar > maxStepsPerChar);
+        this.warnings = Collections.unmodifiableList(warnings);
+    }
+
+    public double getThroughputMBps() {
+        return throughputMBps;
+    }
+
+    public double getStepsPerChar() {
+        return stepsPerChar;
+    }
+
+    public long getBenchmarkMillis() {
+        return benchmarkMillis;
+    }
+
+    /**
+     * @return Number of corpus lines on which the pattern exceeded the line step budget
+     */
+    public int getTimedOutLines() {
+        return timedOutLines;
+    }
+
+    public double getMinimumThroughputMBps() {
+        return minimumThroughputMBps;
+    }
+
+    public double getMaxStepsPerChar() {
+        return maxStepsPerChar;
+    }
+
+    /**
+     * @return True, if the pattern timed out on any line or takes more steps per character than the minimum throughput
+     *         allows. Decided by steps (which are the same on every run) rather than the elapsed time.
+     */
+    public boolean isTooSlow() {
+        return tooSlow;
+    }
+
+    /**
+     * @return Pattern structures which are prone to catastrophic backtracking. Informational, they do not make a rule too slow.
+     */
+    public List<String> getWarnings() {
+        return warnings;
+    }
+
+    /**
+     * @return Friendly string describing the cost
+     */
+    public String toString() {
+        return String.format("%.2f MB/s (minimum: %.2f MB/s), %.2f steps per character (maximum: %.2f), %d line(s) timed out, %d warning(s)",
+                throughputMBps, minimumThroughputMBps, stepsPerChar, maxStepsPerChar, timedOutLines, warnings.size());
+    }
+}
@@ -0,0 +1,55 @@
+package com.cyanoth.secretwarden.structures;
+
+import java.io.Serializable;
+
+/**
+ * Details about a changed file which was not scanned, because the file filter of its repository excludes it.
+ * Intentionally immutable (no setters) after initialization.
+ */
+public class SkippedFile implements Serializable {
+
+    /**
+     * Why a file was not scanned
+     */
+    public enum Reason {
+        EXCLUDED_PATH,          // The path matches an excluded path pattern (and no included path pattern)
+        BINARY,                 // Git considers the file binary
+        TOO_LARGE,              // The file is larger than the maximum file size
+        TOO_MANY_CHANGED_LINES  // More lines of the file were added than the maximum changed lines
+    }
+
+    private final String destinationFilePath;
+    private final Reason reason;
+    private final long bytes;
+
+    /**
+     * @param bytes Size of the file, -1 if unknown
+     */
+    public SkippedFile(String destinationFilePath, Reason reason, long bytes) {
+        this.destinationFilePath = destinationFilePath;
+        this.reason = reason;
+        this.bytes = bytes;
+    }
+
+    public String getDestinationFilePath() {
+        return destinationFilePath;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+
+    /**
+     * @return Size of the file, -1 if unknown
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return Friendly string describing the skipped file
+     */
+    public String toString() {
+        return String.format("Skipped file %s (%s, %d bytes)", destinationFilePath, reason, bytes);
+    }
+}
@@ -124,6 +124,10 @@ define('SecretWarden/GlobalConfig', [
                     id: "regexPattern",
                     header: "Regular Expression Pattern"
                 },
+                {
+                    id: "lineSpan",
+                    header: "Line Span"
+                },
                 {
                     id: "enabled",
                     header: "Enabled",
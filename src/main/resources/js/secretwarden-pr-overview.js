@@ -74,15 +74,19 @@ define('SecretWarden/PullRequestUIOverview', [
 
             var secretCount = foundSecrets.length;
 
+            // Changed files which the file filter excludes were not scanned, a secret in them would not have been found
+            var skippedFiles = scanResult["skippedFiles"] || [];
+            var skippedText = skippedFiles.length > 0 ? " (" + skippedFiles.length + " files not scanned)" : "";
+
             if (secretCount > 0) {
                 linkEle.addClass("hassecrets");
-                labEle.text(secretCount + " secrets found.");
-                setOnClickHandler(foundSecrets, prurl)
+                labEle.text(secretCount + " secrets found." + skippedText);
+                setOnClickHandler(foundSecrets, skippedFiles, prurl)
 
             } else if (secretCount === 0) {
                 linkEle.addClass("nosecrets");
-                labEle.text("No secrets were found");
-                setOnClickHandler(foundSecrets, prurl)
+                labEle.text("No secrets were found" + skippedText);
+                setOnClickHandler(foundSecrets, skippedFiles, prurl)
             } else {
                 updateOverviewLinkAsFailed();
             }
@@ -99,7 +103,7 @@ define('SecretWarden/PullRequestUIOverview', [
         }
 
         // When secret have been found, handle on click so that they are displayed in a dialog
-        function setOnClickHandler(foundSecrets, prurl) {
+        function setOnClickHandler(foundSecrets, skippedFiles, prurl) {
 
             if (onLinkClickHasBeenSet)
                 return;
@@ -108,9 +112,10 @@ define('SecretWarden/PullRequestUIOverview', [
                 e.preventDefault();
 
                 if (foundSecrets.length > 0)
-                    var dialog = AJS.dialog2($(com.cyanoth.secretwarden.overviewDialog({foundSecrets: foundSecrets, prurl: prurl})));
+                    var dialog = AJS.dialog2($(com.cyanoth.secretwarden.overviewDialog({foundSecrets: foundSecrets,
+                        skippedFiles: skippedFiles, prurl: prurl})));
                 else
-                    var dialog = AJS.dialog2($(com.cyanoth.secretwarden.noSecretsDialog()));
+                    var dialog = AJS.dialog2($(com.cyanoth.secretwarden.noSecretsDialog({skippedFiles: skippedFiles})));
 
                 dialog.show();
             });
@@ -0,0 +1,221 @@
+package com.cyanoth.secretwarden;
+
+import com.atlassian.cache.Cache;
+import com.atlassian.cache.CacheEntryEvent;
+import com.atlassian.cache.CacheEntryListener;
+import com.atlassian.cache.CacheFactory;
+import com.atlassian.cache.CacheLoader;
+import com.atlassian.cache.CacheSettings;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.nullable;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test stand-in for a remote (replicateViaCopy) Atlassian cache shared by the nodes of a cluster: one map, whose values
+ * are copied on every write & read as if sent to another node, and whose listeners (of every node) are all notified
+ * of every write. Each node gets its own CacheFactory (see newNode) which returns this same cache. A conditional replace
+ * compares the serialized values, as a replicated cache does (the values read are copies, never the same instance).
+ *
+ * The maxEntries of the settings the cache was last got with is applied: over it, the least recently used entries are
+ * evicted (listeners are notified with onEvict).
+ */
+public class LocalCache<K, V extends Serializable> {
+    private final ConcurrentMap<K, V> entries = new ConcurrentHashMap<>();
+    private final List<CacheEntryListener<K, V>> listeners = new CopyOnWriteArrayList<>();
+    private final Map<K, Boolean> recency = new LinkedHashMap<>(16, 0.75f, true); // Least recently used first
+    private final Cache<K, V> cache;
+    private volatile int maxEntries = Integer.MAX_VALUE;
+
+    @SuppressWarnings("unchecked")
+    public LocalCache() {
+        cache = mock(Cache.class);
+        when(cache.containsKey(any())).thenAnswer(invocation -> entries.containsKey(invocation.<K>getArgument(0)));
+        when(cache.get(any())).thenAnswer(invocation -> {
+            touch(invocation.getArgument(0));
+            return copy(entries.get(invocation.<K>getArgument(0)));
+        });
+        when(cache.getKeys()).thenAnswer(invocation -> new ArrayList<>(entries.keySet()));
+        doAnswer(invocation -> {
+            put(invocation.getArgument(0), invocation.getArgument(1));
+            return null;
+        }).when(cache).put(any(), any());
+        when(cache.putIfAbsent(any(), any())).thenAnswer(invocation -> putIfAbsent(invocation.getArgument(0), invocation.getArgument(1)));
+        when(cache.replace(any(), any(), any())).thenAnswer(invocation ->
+                replace(invocation.getArgument(0), invocation.getArgument(1), invocation.getArgument(2)));
+        doAnswer(invocation -> {
+            remove(invocation.getArgument(0));
+            return null;
+        }).when(cache).remove(any());
+        doAnswer(invocation -> {
+            for (K key : new ArrayList<>(entries.keySet()))
+                remove(key);
+            return null;
+        }).when(cache).removeAll();
+        doAnswer(invocation -> {
+            listeners.add(invocation.getArgument(0));
+            return null;
+        }).when(cache).addListener(any(), anyBoolean());
+    }
+
+    /**
+     * @return A CacheFactory of one node, returning this cache whatever its name
+     */
+    @SuppressWarnings("unchecked")
+    public CacheFactory newNode() {
+        final CacheFactory cacheFactory = mock(CacheFactory.class);
+        when(cacheFactory.getCache(anyString(), nullable(CacheLoader.class), nullable(CacheSettings.class))).thenAnswer(invocation -> {
+            final CacheSettings settings = invocation.getArgument(2);
+            if (settings != null && settings.getMaxEntries() != null)
+                maxEntries = settings.getMaxEntries();
+            return (Cache) cache;
+        });
+        return cacheFactory;
+    }
+
+    /**
+     * @return The value of the key as currently in the cache (a copy), null if none
+     */
+    public V peek(K key) {
+        return copy(entries.get(key));
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private void put(K key, V value) {
+        final V written = copy(value);
+        final V old = entries.put(key, written);
+        for (CacheEntryListener<K, V> listener : listeners) {
+            if (old == null)
+                listener.onAdd(event(key, written, null));
+            else
+                listener.onUpdate(event(key, written, old));
+        }
+        touch(key);
+        evictOverMaxEntries();
+    }
+
+    private V putIfAbsent(K key, V value) {
+        final V written = copy(value);
+        final V existing = entries.putIfAbsent(key, written);
+        if (existing != null)
+            return copy(existing);
+
+        for (CacheEntryListener<K, V> listener : listeners)
+            listener.onAdd(event(key, written, null));
+        touch(key);
+        evictOverMaxEntries();
+        return null;
+    }
+
+    private boolean replace(K key, V expected, V value) {
+        final V existing = entries.get(key);
+        if (existing == null || !Arrays.equals(serialize(existing), serialize(expected)))
+            return false;
+
+        final V written = copy(value);
+        if (!entries.replace(key, existing, written)) // Written in the meantime
+            return false;
+        for (CacheEntryListener<K, V> listener : listeners)
+            listener.onUpdate(event(key, written, existing));
+        touch(key);
+        return true;
+    }
+
+    private void remove(K key) {
+        final V old = entries.remove(key);
+        if (old == null)
+            return;
+
+        for (CacheEntryListener<K, V> listener : listeners)
+            listener.onRemove(event(key, null, old));
+    }
+
+    private void touch(K key) {
+        synchronized (recency) {
+            if (entries.containsKey(key))
+                recency.put(key, Boolean.TRUE);
+            else
+                recency.remove(key);
+        }
+    }
+
+    private void evictOverMaxEntries() {
+        final List<K> evicted = new ArrayList<>();
+        synchronized (recency) {
+            recency.keySet().retainAll(entries.keySet());
+            final Iterator<K> leastRecent = recency.keySet().iterator();
+            for (int over = entries.size() - maxEntries; over > 0 && leastRecent.hasNext(); over--) {
+                evicted.add(leastRecent.next());
+                leastRecent.remove();
+            }
+        }
+
+        for (K key : evicted) {
+            final V old = entries.remove(key);
+            if (old == null)
+                continue;
+            for (CacheEntryListener<K, V> listener : listeners)
+                listener.onEvict(event(key, null, old));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private CacheEntryEvent<K, V> event(K key, V value, V oldValue) {
+        final CacheEntryEvent<K, V> event = mock(CacheEntryEvent.class);
+        when(event.getKey()).thenReturn(key);
+        when(event.getValue()).thenReturn(copy(value));
+        when(event.getOldValue()).thenReturn(copy(oldValue));
+        return event;
+    }
+
+    @SuppressWarnings("unchecked")
+    private V copy(V value) {
+        if (value == null)
+            return null;
+
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialize(value)))) {
+            return (V) in.readObject();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] serialize(Serializable value) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+}
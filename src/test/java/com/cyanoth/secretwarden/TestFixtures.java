@@ -0,0 +1,96 @@
+package com.cyanoth.secretwarden;
+
+import com.atlassian.bitbucket.pull.PullRequest;
+import com.atlassian.sal.api.pluginsettings.PluginSettings;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import com.cyanoth.secretwarden.config.ScanSettings;
+import com.cyanoth.secretwarden.structures.MatchRule;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Components & pull requests shared by the unit tests, without a running Bitbucket.
+ */
+public final class TestFixtures {
+    private TestFixtures() {
+    }
+
+    /**
+     * @param values Plugin settings, by their full key (changes made by the plugin are written back to it)
+     * @return ScanSettings over the given plugin settings, every setting not in it has its default
+     */
+    public static ScanSettings scanSettings(Map<String, Object> values) {
+        return new ScanSettings(pluginSettingsFactory(values));
+    }
+
+    /**
+     * @return ScanSettings where every setting has its default
+     */
+    public static ScanSettings scanSettings() {
+        return scanSettings(new ConcurrentHashMap<>());
+    }
+
+    /**
+     * @param values Plugin settings, by their full key (changes are written back to it)
+     * @return A factory whose global & namespaced plugin settings are all the given values
+     */
+    public static PluginSettingsFactory pluginSettingsFactory(Map<String, Object> values) {
+        final PluginSettings pluginSettings = mock(PluginSettings.class);
+        when(pluginSettings.get(anyString())).thenAnswer(invocation -> values.get(invocation.<String>getArgument(0)));
+        when(pluginSettings.put(anyString(), any())).thenAnswer(invocation ->
+                values.put(invocation.getArgument(0), invocation.getArgument(1)));
+        when(pluginSettings.remove(anyString())).thenAnswer(invocation -> values.remove(invocation.<String>getArgument(0)));
+
+        final PluginSettingsFactory pluginSettingsFactory = mock(PluginSettingsFactory.class);
+        when(pluginSettingsFactory.createSettingsForKey(anyString())).thenReturn(pluginSettings);
+        when(pluginSettingsFactory.createGlobalSettings()).thenReturn(pluginSettings);
+        return pluginSettingsFactory;
+    }
+
+    /**
+     * @return An open pull request, from commit "from-1" to commit "to-1"
+     */
+    public static PullRequest pullRequest(int repositoryId, long pullRequestId) {
+        final PullRequest pullRequest = mock(PullRequest.class, RETURNS_DEEP_STUBS);
+        when(pullRequest.getId()).thenReturn(pullRequestId);
+        when(pullRequest.getToRef().getRepository().getId()).thenReturn(repositoryId);
+        when(pullRequest.getFromRef().getLatestCommit()).thenReturn("from-1");
+        when(pullRequest.getToRef().getLatestCommit()).thenReturn("to-1");
+        when(pullRequest.getUpdatedDate()).thenReturn(new Date(0));
+        return pullRequest;
+    }
+
+    /**
+     * @return The built-in ruleset (defaults/secret_ruleset.json), every rule enabled, without any changes made in settings
+     */
+    public static List<MatchRule> defaultRules() throws IOException {
+        final List<MatchRule> rules = new ArrayList<>();
+        try (Reader in = new InputStreamReader(TestFixtures.class.getResourceAsStream("/defaults/secret_ruleset.json"),
+                StandardCharsets.UTF_8)) {
+            for (JsonElement rule : new JsonParser().parse(in).getAsJsonObject().getAsJsonArray("rules")) {
+                final JsonObject ruleObj = rule.getAsJsonObject();
+                rules.add(new MatchRule(ruleObj.get("rule_number").getAsInt(), ruleObj.get("friendly_name").getAsString(),
+                        ruleObj.get("regex_pattern").getAsString(), true,
+                        ruleObj.has("line_span") ? ruleObj.get("line_span").getAsInt() : 1));
+            }
+        }
+        return rules;
+    }
+}
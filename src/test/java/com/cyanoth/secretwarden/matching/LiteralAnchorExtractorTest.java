@@ -0,0 +1,132 @@
+package com.cyanoth.secretwarden.matching;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * An anchor must be in every line its pattern matches (case-insensitively, as rules are compiled), otherwise the engine
+ * would skip a rule which matches. Every expectation below is also checked against a line the pattern matches.
+ */
+public class LiteralAnchorExtractorTest {
+    @Test
+    public void alternationsAndOptionalGroupsAreExpanded() {
+        assertAnchors("(api|secret)_?key", "API_KEY", "api_key", "apikey", "secret_key", "secretkey");
+        assertAnchors("token(_id)?=", "token_id=", "token=", "token_id=");
+        assertAnchors("pass(word|phrase|wd){0,1}:", "pass:", "password:", "passphrase:", "passwd:", "pass:");
+        assertAnchors("(password|(?:pwd)?token)", "PwdToken", "password", "pwdtoken", "token");
+        assertAnchors("ghp_\\w+|gho_\\w+", "gho_abc", "ghp_", "gho_");
+    }
+
+    @Test
+    public void optionalRepetitionIsNotRequired() {
+        assertAnchors("x{0,3}auth", "auth", "auth");
+        assertAnchors("(ab){0,2}cd", "cd", "cd");
+        assertAnchors("(a|b)*key", "key", "key");
+        assertAnchors("(secret)?", "");
+        assertAnchors("ghp_\\w+|\\d+", "1234"); // One branch requires nothing
+    }
+
+    @Test
+    public void characterClassesAreExpanded() {
+        // The default rules write case-insensitive letters as [k|K], which also allows a |
+        final Set<String> anchors = anchors("[k|K][e|E][y|Y]", "KeY");
+        assertEquals(8, anchors.size());
+        assertTrue(anchors.containsAll(Arrays.asList("key", "|||", "k|y")));
+
+        assertAnchors("[a-c]x", "BX", "ax", "bx", "cx");
+        assertAnchors("[^a]x", "bx", "x");
+        assertAnchors("[a-z]x", "qx", "x"); // Too many characters
+        assertAnchors("[\\d_]x", "5x", "x");
+    }
+
+    @Test
+    public void inlineFlagsAndGroupsAreUnderstood() {
+        assertAnchors("(?i)bearer ", "BEARER ", "bearer ");
+        assertAnchors("(?-i)CaseSensitiveToken", "CaseSensitiveToken", "casesensitivetoken");
+        assertAnchors("(?i:SECRET)_key", "secret_KEY", "secret_key");
+        assertAnchors("(?<name>abc)d", "abcd", "abcd");
+        assertAnchors("(?=.*user)pwd", "pwd=x user=y", "pwd");
+        assertAnchors("(?x)a b c", "abc"); // Comments mode isn't parsed
+    }
+
+    @Test
+    public void nonAsciiLettersAreNeverInAnAnchor() {
+        // Without Unicode case, ü only matches itself, but the anchors are folded as US-ASCII only
+        assertAnchors("schlüssel=", "SCHLüSSEL=", "ssel=");
+        assertAnchors("[éÉ]t", "Ét", "t");
+        assertAnchors("\\Qa.b\\Eß", "A.Bß", "a.b");
+    }
+
+    @Test
+    public void unicodeCaseHasNoAnchors() {
+        // Unicode case folds the Kelvin sign onto k & the long s onto s, which an ASCII anchor would miss
+        assertAnchors("(?u)key", "\u212Aey");
+        assertAnchors("(?U)secret", "\u017Fecret");
+        assertAnchors("(?iu:key)=", "\u212AEY=");
+        assertAnchors("(?-u)key", "KEY"); // Conservative: any mention of the flag
+    }
+
+    @Test
+    public void tooManyExactStringsFallBackToTheirPrefix() {
+        assertEquals(64, anchors("[a-h][a-h]", "ab").size()); // MAX_EXACT_STRINGS
+
+        final Set<String> anchors = anchors("[a-h][a-h][a-h]", "abc");
+        assertEquals(64, anchors.size());
+        assertTrue(anchors.stream().allMatch(anchor -> anchor.length() == 2));
+
+        assertAnchors("([a-h][a-h])?z", "z", "z"); // Too many to make optional
+    }
+
+    @Test
+    public void tooManyRequiredStringsFallBackToNoAnchor() {
+        // Each branch requires 64 other strings, MAX_REQUIRED_STRINGS is 256
+        final String branches = "[a-h][a-h]v+|[i-p][i-p]w+|[q-x][q-x]x+|[0-7][0-7]y+";
+        assertEquals(256, anchors(branches, "00y").size());
+        assertAnchors(branches + "|[!-(][!-(]z+", "00y");
+    }
+
+    @Test
+    public void unsupportedPatternsHaveNoAnchor() {
+        assertAnchors("(key)\\1", "keykey");
+        assertAnchors("\\x41KIA", "AKIA");
+        assertAnchors("(key", null);
+        assertAnchors("", null);
+    }
+
+    /**
+     * @param expected The anchors of the pattern, none if it has no anchor
+     */
+    private static void assertAnchors(String pattern, String matchingLine, String... expected) {
+        assertEquals(pattern, new HashSet<>(Arrays.asList(expected)), anchors(pattern, matchingLine));
+    }
+
+    /**
+     * @param matchingLine A line the pattern matches, which must contain one of the anchors. Null if the pattern doesn't compile.
+     */
+    private static Set<String> anchors(String pattern, String matchingLine) {
+        final Set<String> anchors = LiteralAnchorExtractor.extract(pattern);
+
+        if (matchingLine != null) {
+            assertTrue(pattern + " must match: " + matchingLine,
+                    Pattern.compile(pattern, Pattern.CASE_INSENSITIVE).matcher(matchingLine).find());
+
+            final String folded = foldAscii(matchingLine);
+            assertTrue(pattern + " has no anchor in: " + matchingLine, anchors.isEmpty() || anchors.stream().anyMatch(folded::contains));
+        }
+        return anchors;
+    }
+
+    private static String foldAscii(String line) {
+        final StringBuilder folded = new StringBuilder(line.length());
+        for (char c : line.toCharArray())
+            folded.append((c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c);
+        return folded.toString();
+    }
+}
@@ -0,0 +1,133 @@
+package com.cyanoth.secretwarden.matching;
+
+import com.cyanoth.secretwarden.TestFixtures;
+import com.cyanoth.secretwarden.structures.MatchRule;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Time, steps & timeouts of matching the default rules against long single lines (minified code, base64 & text full of
+ * the words rules look for), as a whole against in windows (see LongLineWindows). Each line is matched with the default
+ * line step limit, then without any limit, where matching a line is abandoned after UNLIMITED_TIMEOUT_MS (& longer lines
+ * are not tried).
+ *
+ * Before timing, random lines of 11-16k characters are matched both ways without a limit, which must match the same rules
+ * (see LongLineWindowsTest).
+ * Not run by the build, run the main method:
+ *    java -cp target/classes:target/test-classes:... com.cyanoth.secretwarden.matching.LongLineWindowsBenchmark
+ */
+public class LongLineWindowsBenchmark {
+    private static final long LINE_STEP_LIMIT = 5_000_000L; // The default of ScanSettings
+    private static final LongLineWindows WINDOWS = new LongLineWindows(10_000, 1_024); // The defaults of ScanSettings
+    private static final int[] LENGTHS = {20_000, 100_000, 500_000, 2_000_000};
+    private static final long UNLIMITED_TIMEOUT_MS = 30_000;
+
+    private static final String[] MINIFIED = {"var ", "a", "b", "=", "function(e,t){", "return ", "}", ";", "\"", "token",
+            "key", ".", "(", ")", "secret", "0x1f", "&&", "||", "this.", "apiKey:", "\"abcdef0123456789\"", ","};
+    private static final String[] KEYWORDS = {"facebook", "password", "heroku", "github", "twitter", "appsecret", "secret",
+            ".", ";", "(", ")", ":", " "};
+    private static final String BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+    public static void main(String[] args) throws Exception {
+        final MatchRuleEngine engine = new MatchRuleEngine(TestFixtures.defaultRules());
+        final Random random = new Random(7);
+
+        final Map<String, Integer> onlyWhole = new TreeMap<>();
+        final Map<String, Integer> onlyWindows = new TreeMap<>();
+        for (int i = 0; i < 50; i++) {
+            final String line = minified(11_000 + random.nextInt(5_000), random);
+            final List<MatchRule> whole = engine.match(line, MatchBudget.unlimited(), new ArrayList<>(), LongLineWindows.disabled());
+            final List<MatchRule> windows = engine.match(line, MatchBudget.unlimited(), new ArrayList<>(), WINDOWS);
+            count(whole, windows, onlyWhole);
+            count(windows, whole, onlyWindows);
+        }
+        if (!onlyWhole.isEmpty() || !onlyWindows.isEmpty())
+            throw new IllegalStateException("Rules only matched as a whole: " + onlyWhole + ", only in windows: " + onlyWindows);
+        System.out.println("50 random long lines matched the same rules as a whole & in windows");
+        System.out.println();
+
+        System.out.println("line                 length   whole: ms, matched, timed out, steps   windows: ms, matched, timed out, steps");
+        for (int length : LENGTHS) {
+            final String[][] lines = {{"minified", minified(length, random)}, {"keywords", keywords(length, random)},
+                    {"base64", base64(length, random)}};
+            for (String[] line : lines) {
+                measure(engine, line[1], LongLineWindows.disabled(), LINE_STEP_LIMIT); // Warm up
+                System.out.printf("%-9s %,12d   %s   %s%n", line[0], length,
+                        measure(engine, line[1], LongLineWindows.disabled(), LINE_STEP_LIMIT),
+                        measure(engine, line[1], WINDOWS, LINE_STEP_LIMIT));
+            }
+        }
+
+        System.out.println();
+        System.out.println("Without a line step limit");
+        boolean wholeTimedOut = false;
+        for (int length : LENGTHS) {
+            final String line = keywords(length, random);
+            final String whole = wholeTimedOut ? "(not tried)" : measure(engine, line, LongLineWindows.disabled(), Long.MAX_VALUE);
+            wholeTimedOut = whole.startsWith(">") || wholeTimedOut;
+            System.out.printf("%-9s %,12d   %s   %s%n", "keywords", length, whole, measure(engine, line, WINDOWS, Long.MAX_VALUE));
+        }
+    }
+
+    private static void count(List<MatchRule> matched, List<MatchRule> other, Map<String, Integer> onlyMatched) {
+        for (MatchRule rule : matched) {
+            if (!other.contains(rule))
+                onlyMatched.merge(rule.getRegexPattern(), 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Matched on another thread, which is abandoned if it takes longer than UNLIMITED_TIMEOUT_MS
+     */
+    private static String measure(MatchRuleEngine engine, String line, LongLineWindows windows, long lineStepLimit)
+            throws InterruptedException {
+        final MatchBudget budget = new MatchBudget(lineStepLimit, Long.MAX_VALUE);
+        final List<MatchRule> timedOut = new ArrayList<>();
+        final int[] matched = {0};
+        final Thread matching = new Thread(() -> matched[0] = engine.match(line, budget, timedOut, windows).size());
+        matching.setDaemon(true);
+
+        final long started = System.nanoTime();
+        matching.start();
+        matching.join(UNLIMITED_TIMEOUT_MS);
+        if (matching.isAlive())
+            return String.format(">%d ms, steps %,d", UNLIMITED_TIMEOUT_MS, budget.countUsedSteps());
+
+        return String.format("%6d ms, %2d, %2d, %,14d", (System.nanoTime() - started) / 1_000_000, matched[0],
+                timedOut.size(), budget.countUsedSteps());
+    }
+
+    private static String minified(int length, Random random) {
+        final StringBuilder line = new StringBuilder(length + 20);
+        while (line.length() < length)
+            line.append(MINIFIED[random.nextInt(MINIFIED.length)]);
+        return line.toString();
+    }
+
+    /**
+     * Words rules look for, between runs of letters which don't complete a match (the worst case for backtracking rules)
+     */
+    private static String keywords(int length, Random random) {
+        final StringBuilder line = new StringBuilder(length + 30);
+        while (line.length() < length) {
+            if (random.nextInt(3) == 0) {
+                line.append(KEYWORDS[random.nextInt(KEYWORDS.length)]);
+            } else {
+                for (int i = random.nextInt(30); i >= 0; i--)
+                    line.append((char) ('g' + random.nextInt(20)));
+            }
+        }
+        return line.toString();
+    }
+
+    private static String base64(int length, Random random) {
+        final StringBuilder line = new StringBuilder(length);
+        while (line.length() < length)
+            line.append(BASE64.charAt(random.nextInt(BASE64.length())));
+        return line.toString();
+    }
+}
@@ -0,0 +1,73 @@
+package com.cyanoth.secretwarden.matching;
+
+import com.cyanoth.secretwarden.structures.MatchTimeout;
+import org.junit.Test;
+
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MatchBudgetTest {
+    private static final Pattern PASSWORD = Pattern.compile("password\\s*=\\s*\\S+");
+
+    @Test
+    public void committedAttemptCountsTowardsTheBudget() throws Exception {
+        final MatchBudget budget = new MatchBudget(1_000, 10_000);
+        final MatchBudget attempt = budget.newAttempt();
+        assertTrue(attempt.matches(PASSWORD, "password = hunter2"));
+        attempt.recordTimeout(new MatchTimeout("Generic Password", "config/application.properties", 3));
+        final long attemptSteps = attempt.countUsedSteps();
+
+        assertEquals("Nothing counts until the attempt is committed", 0, budget.countUsedSteps());
+        assertEquals(0, budget.countTimeouts());
+
+        budget.commit(attempt);
+
+        assertEquals(attemptSteps, budget.countUsedSteps());
+        assertEquals(1, budget.countTimeouts());
+        assertEquals(3, budget.getTimeouts().get(0).getOccurrenceLine());
+    }
+
+    @Test
+    public void abandonedAttemptDoesNotCount() throws Exception {
+        final MatchBudget budget = new MatchBudget(1_000, 10_000);
+        final MatchBudget attempt = budget.newAttempt();
+        attempt.matches(PASSWORD, "no secret on this line");
+        attempt.recordTimeout(new MatchTimeout("Generic Password", "config/application.properties", 3));
+
+        // The attempt is abandoned, the same lines are matched again against the budget itself
+        assertFalse(budget.matches(PASSWORD, "no secret on this line"));
+
+        assertEquals(attempt.countUsedSteps(), budget.countUsedSteps());
+        assertEquals(0, budget.countTimeouts());
+    }
+
+    @Test
+    public void attemptOnlyHasWhatRemainsOfTheBudget() {
+        final MatchBudget budget = new MatchBudget(1_000, 5);
+        try {
+            budget.matches(PASSWORD, "no secret on this line, only some text which is long enough to use up the budget");
+        }
+        catch (MatchBudgetExceededException e) {
+            // Expected, the scan step limit is used up
+        }
+        assertTrue(budget.isExhausted());
+
+        assertTrue(budget.newAttempt().isExhausted());
+    }
+
+    @Test
+    public void committedTimeoutsWhichWereNotRecordedAreCounted() {
+        final MatchBudget budget = new MatchBudget(1_000, 10_000);
+        final MatchBudget attempt = budget.newAttempt();
+        for (int line = 1; line <= 150; line++)
+            attempt.recordTimeout(new MatchTimeout("Generic Password", "config/application.properties", line));
+
+        budget.commit(attempt);
+
+        assertEquals(150, budget.countTimeouts());
+        assertEquals(100, budget.getTimeouts().size());
+    }
+}
@@ -0,0 +1,53 @@
+package com.cyanoth.secretwarden.matching;
+
+import com.cyanoth.secretwarden.TestFixtures;
+import com.cyanoth.secretwarden.structures.MatchRule;
+import com.cyanoth.secretwarden.structures.RuleCost;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RuleCostAnalyzerTest {
+    private static final String PATTERN = "[a-z]+\\s*=\\s*[0-9a-f]{40}"; // No literal anchor, evaluated on every line
+    private static final LongLineWindows LONG_LINES = new LongLineWindows(10_000, 1_024);
+
+    @Test
+    public void ruleIsMeasuredOverItsLineSpan() {
+        final RuleCost singleLine = RuleCostAnalyzer.analyze(new MatchRule(0, "Validation", PATTERN, true, 1),
+                5_000_000L, LONG_LINES, 0);
+        final RuleCost tenLines = RuleCostAnalyzer.analyze(new MatchRule(0, "Validation", PATTERN, true, 10),
+                5_000_000L, LONG_LINES, 0);
+
+        assertTrue(String.format("Expected more steps per character over 10 lines, was %.2f against %.2f on a single line",
+                tenLines.getStepsPerChar(), singleLine.getStepsPerChar()),
+                tenLines.getStepsPerChar() > singleLine.getStepsPerChar() * 3);
+    }
+
+    @Test
+    public void defaultRulesAreNotTooSlow() throws Exception {
+        for (MatchRule rule : TestFixtures.defaultRules()) {
+            final RuleCost cost = RuleCostAnalyzer.analyze(rule, 5_000_000L, LONG_LINES, 2.0); // The defaults of ScanSettings
+            assertFalse(rule.getFriendlyName() + ": " + cost, cost.isTooSlow());
+        }
+    }
+
+    @Test
+    public void minimumThroughputIsAppliedToTheSteps() {
+        final MatchRule rule = new MatchRule(0, "Validation", "\\w+@\\w+\\.com", true, 1); // Retried from every word character
+        final RuleCost cost = RuleCostAnalyzer.analyze(rule, 5_000_000L, LONG_LINES, 20.0);
+
+        assertEquals(5.0, cost.getMaxStepsPerChar(), 0.001);
+        assertTrue(cost.toString(), cost.getStepsPerChar() > 10 && cost.isTooSlow());
+        assertEquals(0, cost.getTimedOutLines());
+        assertFalse(RuleCostAnalyzer.analyze(rule, 5_000_000L, LONG_LINES, 2.0).isTooSlow());
+        assertFalse(RuleCostAnalyzer.analyze(rule, 5_000_000L, LONG_LINES, 0).isTooSlow());
+    }
+
+    @Test
+    public void nestedQuantifierIsWarnedAbout() {
+        assertTrue(RuleCostAnalyzer.findWarnings("(a+)+b").get(0).startsWith("Nested quantifier"));
+        assertTrue(RuleCostAnalyzer.findWarnings("password\\s*=\\s*\\S+").isEmpty());
+    }
+}
@@ -0,0 +1,109 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+import com.cyanoth.secretwarden.TestFixtures;
+import com.cyanoth.secretwarden.matching.LongLineWindows;
+import com.cyanoth.secretwarden.matching.MatchBudget;
+import com.cyanoth.secretwarden.matching.MatchRuleEngine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Throughput & allocation of scanning a file added by a pull request from its content (git cat-file, parsed by
+ * AddedFileContentParser) against the diff of the file against nothing, as Bitbucket streams it (a "+" line for every
+ * line, see ZeroContextDiffParserBenchmark.streamLikeBitbucket). Both must find the same secrets. The watchdog resets
+ * made whilst reading the content are counted too.
+ *
+ * The file is SIZE bytes of generated source, with an AWS access key every SECRET_EVERY lines. Measured with an empty
+ * ruleset & with the default rules. Not run by the build, run the main method:
+ *    java -cp target/classes:target/test-classes:... com.cyanoth.secretwarden.pullrequest.AddedFileContentParserBenchmark
+ */
+public class AddedFileContentParserBenchmark {
+    private static final String PATH = "src/main/java/com/example/service/Generated.java";
+    private static final int SIZE = 50_000_000;
+    private static final int SECRET_EVERY = 10_000;
+
+    public static void main(String[] args) throws Exception {
+        final byte[] content = content();
+        final byte[] diff = asDiff(content);
+
+        final MatchRuleEngine defaultRules = new MatchRuleEngine(TestFixtures.defaultRules());
+        final AtomicInteger watchdogResets = new AtomicInteger();
+        final Set<String> expected = ZeroContextDiffParserBenchmark.describe(
+                ZeroContextDiffParserBenchmark.streamLikeBitbucket(defaultRules, diff));
+        final Set<String> found = ZeroContextDiffParserBenchmark.describe(
+                parseContent(defaultRules, content, watchdogResets::incrementAndGet));
+        if (!expected.equals(found))
+            throw new IllegalStateException("Found " + found.size() + " secrets but expected " + expected.size());
+        System.out.printf("%d secrets found by both, %d watchdog resets whilst reading %.1f MB%n",
+                found.size(), watchdogResets.get(), content.length / 1e6);
+
+        final MatchRuleEngine noRules = new MatchRuleEngine(new ArrayList<>());
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long thread = Thread.currentThread().getId();
+        for (MatchRuleEngine engine : new MatchRuleEngine[] { noRules, noRules, defaultRules, defaultRules }) {
+            final long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+            final long started = System.nanoTime();
+            ZeroContextDiffParserBenchmark.streamLikeBitbucket(engine, diff);
+            final long streamed = System.nanoTime();
+            final long allocatedStreaming = threads.getThreadAllocatedBytes(thread);
+            parseContent(engine, content, () -> { });
+            final long parsed = System.nanoTime();
+            final long allocatedParsing = threads.getThreadAllocatedBytes(thread);
+
+            System.out.printf("%-13s diff: %.0f MB/s, %.0f MB allocated   content: %.0f MB/s, %.0f MB allocated%n",
+                    engine == noRules ? "No rules" : "Default rules",
+                    content.length / 1e3 / ((streamed - started) / 1e6), (allocatedStreaming - allocatedBefore) / 1e6,
+                    content.length / 1e3 / ((parsed - streamed) / 1e6), (allocatedParsing - allocatedStreaming) / 1e6);
+        }
+    }
+
+    private static DiffMatcher parseContent(MatchRuleEngine engine, byte[] content, Runnable resetWatchdog) throws IOException {
+        final DiffMatcher matcher = new DiffMatcher(engine, MatchBudget.unlimited(), LongLineWindows.disabled(), true);
+        new AddedFileContentParser(matcher, resetWatchdog).parse(new ByteArrayInputStream(content), PATH);
+        return matcher;
+    }
+
+    private static byte[] content() {
+        final StringBuilder content = new StringBuilder(SIZE + 100);
+        for (int line = 1; content.length() < SIZE; line++) {
+            if (line % SECRET_EVERY == 0)
+                content.append("    private static final String AWS_KEY = \"AKIAIOSFODNN7").append(1_000_000 + line % 1_000_000).append("\";\n");
+            else
+                content.append("        final int value").append(line).append(" = compute(\"field-").append(line).append("\", ")
+                        .append(line % 97).append("); // Generated\n");
+        }
+        return content.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return The diff of a new file: a header & one hunk with a "+" line for every line of the content
+     */
+    private static byte[] asDiff(byte[] content) {
+        int lines = 0;
+        for (byte b : content) {
+            if (b == '\n')
+                lines++;
+        }
+
+        final ByteArrayOutputStream diff = new ByteArrayOutputStream(content.length + lines + 200);
+        final byte[] header = ("diff --git a/" + PATH + " b/" + PATH + "\nnew file mode 100644\n--- /dev/null\n+++ b/" + PATH +
+                "\n@@ -0,0 +1," + lines + " @@\n").getBytes(StandardCharsets.UTF_8);
+        diff.write(header, 0, header.length);
+        int lineStart = 0;
+        for (int i = 0; i < content.length; i++) {
+            if (content[i] == '\n') {
+                diff.write('+');
+                diff.write(content, lineStart, i - lineStart + 1);
+                lineStart = i + 1;
+            }
+        }
+        return diff.toByteArray();
+    }
+}
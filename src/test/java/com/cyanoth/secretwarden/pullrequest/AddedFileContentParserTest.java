@@ -0,0 +1,81 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+import com.cyanoth.secretwarden.matching.LongLineWindows;
+import com.cyanoth.secretwarden.matching.MatchBudget;
+import com.cyanoth.secretwarden.matching.MatchRuleEngine;
+import com.cyanoth.secretwarden.structures.FoundSecret;
+import com.cyanoth.secretwarden.structures.MatchRule;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AddedFileContentParserTest {
+    private static final MatchRuleEngine ENGINE = new MatchRuleEngine(Collections.singletonList(
+            new MatchRule(1, "Generic Password", "password\\s*=\\s*\\S+", true)));
+
+    @Test
+    public void linesAreNumberedFromOne() throws Exception {
+        final String content = "password = hunter2\nuser = admin\n\npassword = letmein";
+
+        assertEquals(new TreeSet<>(Arrays.asList("config/application.properties:1", "config/application.properties:4")),
+                parse(content.getBytes(StandardCharsets.UTF_8), () -> { }));
+    }
+
+    @Test
+    public void binaryContentIsNotScanned() throws Exception {
+        final byte[] content = "\u0000\u0001password = hunter2\n".getBytes(StandardCharsets.UTF_8);
+
+        assertTrue(parse(content, () -> { }).isEmpty());
+    }
+
+    @Test
+    public void watchdogIsResetWhilstAHugeFileIsRead() throws Exception {
+        final StringBuilder content = new StringBuilder();
+        for (int line = 1; line <= 5_000; line++)
+            content.append("row ").append(line).append('\n');
+        final AtomicInteger resets = new AtomicInteger();
+
+        parse(content.toString().getBytes(StandardCharsets.UTF_8), resets::incrementAndGet);
+
+        assertEquals(5_000 / ZeroContextDiffParser.WATCHDOG_RESET_LINES, resets.get());
+    }
+
+    @Test
+    public void lineLongerThanTheLimitIsCutAndTruncatesTheFile() throws Exception {
+        final StringBuilder content = new StringBuilder("password = ");
+        while (content.length() < ByteLineReader.MAX_LINE_LENGTH + 1_000)
+            content.append("0123456789abcdef");
+        content.append("\npassword = hunter2\n");
+        final DiffMatcher matcher = new DiffMatcher(ENGINE, MatchBudget.unlimited(), LongLineWindows.disabled(), true);
+
+        new AddedFileContentParser(matcher, () -> { }).parse(
+                new ByteArrayInputStream(content.toString().getBytes(StandardCharsets.UTF_8)), "dump.sql");
+
+        final Set<Integer> lines = new TreeSet<>();
+        for (FoundSecret secret : matcher.getFoundSecrets().getSecrets())
+            lines.add(secret.getOccurrenceLine());
+        assertEquals("The cut line is still matched, the next line keeps its number", new TreeSet<>(Arrays.asList(1, 2)), lines);
+        assertTrue("A cut line leaves the file partially scanned", matcher.isTruncated());
+        assertFalse(matcher.getCompletedFiles().contains("dump.sql"));
+    }
+
+    private static Set<String> parse(byte[] content, Runnable resetWatchdog) throws Exception {
+        final DiffMatcher matcher = new DiffMatcher(ENGINE, MatchBudget.unlimited(), LongLineWindows.disabled(), true);
+        new AddedFileContentParser(matcher, resetWatchdog).parse(new ByteArrayInputStream(content), "config/application.properties");
+
+        final Set<String> found = new TreeSet<>();
+        for (FoundSecret secret : matcher.getFoundSecrets().getSecrets())
+            found.add(secret.getDestinationFilePath() + ":" + secret.getOccurrenceLine());
+        return found;
+    }
+}
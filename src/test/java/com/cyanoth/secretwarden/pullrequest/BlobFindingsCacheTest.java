@@ -0,0 +1,70 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+import com.cyanoth.secretwarden.LocalCache;
+import com.cyanoth.secretwarden.ScanMetrics;
+import com.cyanoth.secretwarden.TestFixtures;
+import com.cyanoth.secretwarden.config.ScanSettings;
+import com.cyanoth.secretwarden.matching.LongLineWindows;
+import com.cyanoth.secretwarden.structures.FoundSecret;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class BlobFindingsCacheTest {
+    private static final LongLineWindows WINDOWS = new LongLineWindows(10_000, 1_024); // The defaults of ScanSettings
+    private static final List<FoundSecret> FINDINGS = Collections.singletonList(
+            new FoundSecret("AWS API Key", "src/Config.java", null, 3));
+
+    private final ScanSettings scanSettings = TestFixtures.scanSettings();
+    private final ScanMetrics scanMetrics = new ScanMetrics();
+    private final BlobFindingsCache cache = new BlobFindingsCache(new LocalCache<String, ArrayList<FoundSecret>>().newNode(),
+            scanSettings, scanMetrics);
+
+    @Test
+    public void findingsAreOnlyReusedWithTheSameMatchingSettings() {
+        cache.put("base", "blob", 1, WINDOWS, FINDINGS);
+
+        assertEquals(FINDINGS.size(), cache.get("base", "blob", 1, new LongLineWindows(10_000, 1_024)).size());
+        assertNull("Another ruleset", cache.get("base", "blob", 2, WINDOWS));
+        assertNull("Another version before the change", cache.get(null, "blob", 1, WINDOWS));
+        assertNull("Another long line threshold", cache.get("base", "blob", 1, new LongLineWindows(20_000, 1_024)));
+        assertNull("Another long line window", cache.get("base", "blob", 1, new LongLineWindows(10_000, 4_096)));
+        assertNull("Long lines matched as a whole", cache.get("base", "blob", 1, LongLineWindows.disabled()));
+
+        assertEquals(1, scanMetrics.get(ScanMetrics.BLOB_CACHE_HITS));
+        assertEquals(5, scanMetrics.get(ScanMetrics.BLOB_CACHE_MISSES));
+    }
+
+    @Test
+    public void leastRecentlyUsedFindingsAreEvicted() {
+        scanSettings.updateSetting(ScanSettings.BLOB_CACHE_MAX_ENTRIES, "2");
+        cache.put(null, "blob-a", 1, WINDOWS, FINDINGS);
+        cache.put(null, "blob-b", 1, WINDOWS, Collections.emptyList());
+        assertNotNull(cache.get(null, "blob-a", 1, WINDOWS));
+
+        cache.put(null, "blob-c", 1, WINDOWS, Collections.emptyList());
+
+        assertNull(cache.get(null, "blob-b", 1, WINDOWS));
+        assertNotNull(cache.get(null, "blob-a", 1, WINDOWS));
+        assertNotNull(cache.get(null, "blob-c", 1, WINDOWS));
+    }
+
+    @Test
+    public void changingTheMaxEntriesEmptiesTheCache() {
+        cache.put(null, "blob-a", 1, WINDOWS, FINDINGS);
+        assertNotNull(cache.get(null, "blob-a", 1, WINDOWS));
+
+        scanSettings.updateSetting(ScanSettings.BLOB_CACHE_MAX_ENTRIES, "10");
+        assertNull(cache.get(null, "blob-a", 1, WINDOWS));
+
+        scanSettings.updateSetting(ScanSettings.BLOB_CACHE_MAX_ENTRIES, "0");
+        cache.put(null, "blob-a", 1, WINDOWS, FINDINGS);
+        assertNull("Disabled", cache.get(null, "blob-a", 1, WINDOWS));
+    }
+}
@@ -0,0 +1,70 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+import com.cyanoth.secretwarden.TestFixtures;
+import com.cyanoth.secretwarden.config.FileFilterSettings;
+import com.cyanoth.secretwarden.structures.SkippedFile;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChangeFilterTest {
+
+    @Test
+    public void defaultFileFilterScansEveryFile() {
+        final FileFilterSettings settings = new FileFilterSettings(TestFixtures.pluginSettingsFactory(new ConcurrentHashMap<>()));
+
+        final ChangeFilter filter = ChangeFilter.of(settings, 1);
+
+        assertTrue(filter.isEmpty());
+        assertFalse("Stats are only needed once a limit is set", filter.needsFileStats());
+        assertNull(filter.check("package-lock.json", new ChangeFilter.ChangedFileStats(50_000_000, 1_000_000, false)));
+        assertNull(filter.check("images/logo.png", new ChangeFilter.ChangedFileStats(2048, -1, true)));
+    }
+
+    @Test
+    public void repositoryOverridesTheGlobalFileFilter() {
+        final FileFilterSettings settings = new FileFilterSettings(TestFixtures.pluginSettingsFactory(new ConcurrentHashMap<>()));
+        settings.updateSetting(null, FileFilterSettings.EXCLUDE_PATHS, "*.min.js");
+        settings.updateSetting(1, FileFilterSettings.EXCLUDE_PATHS, "**/vendor/**");
+        settings.updateSetting(1, FileFilterSettings.SKIP_BINARY, "true");
+
+        assertEquals(SkippedFile.Reason.EXCLUDED_PATH, ChangeFilter.of(settings, 2).check("web/app.min.js", null));
+        assertNull(ChangeFilter.of(settings, 2).check("lib/vendor/jquery.js", null));
+
+        final ChangeFilter repositoryFilter = ChangeFilter.of(settings, 1);
+        assertNull(repositoryFilter.check("web/app.min.js", null));
+        assertEquals(SkippedFile.Reason.EXCLUDED_PATH, repositoryFilter.check("lib/vendor/jquery.js", null));
+        assertEquals(SkippedFile.Reason.BINARY, repositoryFilter.check("images/logo.png",
+                new ChangeFilter.ChangedFileStats(2048, -1, true)));
+    }
+
+    @Test
+    public void includedPathIsScannedEvenThoughItIsExcluded() {
+        final ChangeFilter filter = new ChangeFilter(Arrays.asList("**/vendor/**", "docs/generated/**"),
+                Collections.singletonList("vendor/company/**"), 0, 0, false);
+
+        assertEquals(SkippedFile.Reason.EXCLUDED_PATH, filter.check("vendor/jquery/jquery.js", null));
+        assertEquals(SkippedFile.Reason.EXCLUDED_PATH, filter.check("docs/generated/api/index.html", null));
+        assertNull(filter.check("vendor/company/settings.properties", null));
+        assertNull(filter.check("src/docs/generated/notes.md", null));
+    }
+
+    @Test
+    public void limitsApplyOnlyWhenSet() {
+        final ChangeFilter filter = new ChangeFilter(Collections.emptyList(), Collections.emptyList(), 1024, 100, false);
+
+        assertEquals(SkippedFile.Reason.TOO_LARGE, filter.check("data.csv", new ChangeFilter.ChangedFileStats(1025, 10, false)));
+        assertEquals(SkippedFile.Reason.TOO_MANY_CHANGED_LINES, filter.check("data.csv",
+                new ChangeFilter.ChangedFileStats(1000, 101, false)));
+        assertNull(filter.check("data.csv", new ChangeFilter.ChangedFileStats(1024, 100, false)));
+        assertNull("A binary file is scanned unless binary files are skipped",
+                filter.check("images/logo.png", new ChangeFilter.ChangedFileStats(512, -1, true)));
+    }
+}
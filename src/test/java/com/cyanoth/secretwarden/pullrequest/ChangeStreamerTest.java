@@ -0,0 +1,116 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+import com.cyanoth.secretwarden.config.ScanSettings;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Files of a pull request are scanned PER_FILE (the default diff stream mode) over the shared ScanExecutor.
+ */
+public class ChangeStreamerTest {
+    private static final int FILES = 8;
+
+    private final ExecutorService background = Executors.newSingleThreadExecutor();
+    private LocalPullRequest localPullRequest;
+    private LocalScanNode node;
+
+    @Before
+    public void setUp() {
+        localPullRequest = new LocalPullRequest(1, 1);
+        for (int file = 1; file <= FILES; file++)
+            localPullRequest.modifyFile("src/File" + file + ".java", "int a = 1;", "String awsKey = \"AKIAIOSFODNN7EXAMPL" + file + "\";");
+        node = new LocalScanNode(localPullRequest);
+    }
+
+    @After
+    public void tearDown() {
+        node.close();
+        background.shutdownNow();
+    }
+
+    @Test
+    public void filesAreScannedUpToTheScanParallelismAtOnce() throws Exception {
+        node.getScanSettings().updateSetting(ScanSettings.SCAN_THREADS, "8");
+        node.getScanSettings().updateSetting(ScanSettings.SCAN_PARALLELISM, "3");
+
+        assertEquals(FILES, scanWhilstDiffsAreHeld(3).countFoundSecrets());
+        assertEquals(3, localPullRequest.getMaxStreaming());
+        assertEquals(FILES, localPullRequest.getStreamedDiffs().size());
+    }
+
+    @Test
+    public void scanThreadsCapTheFilesScannedAtOnce() throws Exception {
+        node.getScanSettings().updateSetting(ScanSettings.SCAN_THREADS, "2");
+        node.getScanSettings().updateSetting(ScanSettings.SCAN_PARALLELISM, "4");
+
+        assertEquals(FILES, scanWhilstDiffsAreHeld(2).countFoundSecrets());
+        assertEquals(2, localPullRequest.getMaxStreaming());
+    }
+
+    @Test
+    public void parallelismOfOneScansOnTheCallingThread() throws Exception {
+        node.getScanSettings().updateSetting(ScanSettings.SCAN_PARALLELISM, "1");
+
+        assertEquals(FILES, node.newScanner().scan(false).countFoundSecrets());
+        assertEquals(1, localPullRequest.getMaxStreaming());
+        assertEquals(1, localPullRequest.countStreamingThreads());
+    }
+
+    @Test
+    public void parallelScanFindsTheSecretsOfASequentialScan() throws Exception {
+        node.getScanSettings().updateSetting(ScanSettings.SCAN_PARALLELISM, "1");
+        final List<String> sequential = describe(node.newScanner().scan(true));
+
+        try (LocalScanNode parallelNode = new LocalScanNode(localPullRequest)) { // Nothing cached
+            parallelNode.getScanSettings().updateSetting(ScanSettings.SCAN_THREADS, "4");
+            parallelNode.getScanSettings().updateSetting(ScanSettings.SCAN_PARALLELISM, "4");
+            localPullRequest.clearStreamedDiffs();
+
+            assertEquals(sequential, describe(parallelNode.newScanner().scan(true)));
+            assertTrue(localPullRequest.countStreamingThreads() > 1);
+        }
+    }
+
+    @Test
+    public void verdictOnlyScanDoesNotStartFilesOnceASecretIsFound() throws Exception {
+        node.getScanSettings().updateSetting(ScanSettings.SCAN_PARALLELISM, "1");
+
+        final PullRequestSecretScanResult verdict = node.newScanner().scanForVerdict();
+        assertTrue(verdict.isPartialVerdict());
+        assertEquals(1, verdict.countFoundSecrets());
+        assertEquals(1, localPullRequest.getStreamedDiffs().size());
+    }
+
+    /**
+     * Scan in the background whilst every diff is held, until the expected number of diffs are streamed at once
+     */
+    private PullRequestSecretScanResult scanWhilstDiffsAreHeld(int expectedAtOnce) throws Exception {
+        localPullRequest.holdDiffs();
+        final Future<PullRequestSecretScanResult> scan = background.submit(() -> node.newScanner().scan(false));
+
+        assertTrue(localPullRequest.awaitStreaming(expectedAtOnce));
+        Thread.sleep(100); // No other file starts whilst they are held
+        assertEquals(expectedAtOnce, localPullRequest.getMaxStreaming());
+
+        localPullRequest.releaseDiffs();
+        return scan.get(10, TimeUnit.SECONDS);
+    }
+
+    private static List<String> describe(PullRequestSecretScanResult scan) {
+        return scan.getFoundSecrets().getSecrets().stream()
+                .map(secret -> secret.getDestinationFilePath() + ":" + secret.getOccurrenceLine() + ":" + secret.getmatchedRuleName())
+                .sorted()
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,125 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CompactEncodingTest {
+
+    @Test
+    public void varIntsRoundTrip() throws IOException {
+        final int[] values = {0, 1, 127, 128, 16_383, 16_384, Integer.MAX_VALUE, -1, Integer.MIN_VALUE};
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        for (int value : values)
+            CompactEncoding.writeVarInt(out, value);
+
+        final DataInputStream in = input(bytes.toByteArray());
+        for (int value : values)
+            assertEquals(value, CompactEncoding.readVarInt(in));
+        assertEquals(0, in.available());
+    }
+
+    @Test
+    public void signedVarLongsRoundTrip() throws IOException {
+        final long[] values = {0, 1, -1, 63, -64, 64, Long.MAX_VALUE, Long.MIN_VALUE, System.currentTimeMillis()};
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        for (long value : values)
+            CompactEncoding.writeSignedVarLong(out, value);
+
+        final DataInputStream in = input(bytes.toByteArray());
+        for (long value : values)
+            assertEquals(value, CompactEncoding.readSignedVarLong(in));
+        assertEquals(0, in.available());
+    }
+
+    @Test
+    public void smallNumbersTakeOneByte() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        CompactEncoding.writeVarInt(out, 127);
+        CompactEncoding.writeSignedVarLong(out, -1);
+        CompactEncoding.writeSignedVarLong(out, 63);
+        assertEquals(3, bytes.size());
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void varIntTooLargeForAnIntIsRejected() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CompactEncoding.writeSignedVarLong(new DataOutputStream(bytes), Long.MAX_VALUE);
+        CompactEncoding.readVarInt(input(bytes.toByteArray()));
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void varLongOverTenBytesIsRejected() throws IOException {
+        final byte[] continued = new byte[11];
+        Arrays.fill(continued, (byte) 0x80);
+        CompactEncoding.readSignedVarLong(input(continued));
+    }
+
+    @Test
+    public void stringTableWritesEachStringOnce() throws IOException {
+        final CompactEncoding.StringTableWriter writer = new CompactEncoding.StringTableWriter();
+        final String path = "src/main/resources/application.properties";
+        writer.add(path);
+        writer.add("Generic Password");
+        writer.add(path);
+        writer.add(null);
+        writer.add("\u00e9t\u00e9 \u2603");
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        writer.write(out);
+        final int tableSize = bytes.size();
+        for (int i = 0; i < 100; i++)
+            writer.writeRef(out, path);
+        writer.writeRef(out, null);
+        writer.writeRef(out, "\u00e9t\u00e9 \u2603");
+        assertEquals("Each reference should take one byte", tableSize + 102, bytes.size());
+
+        final DataInputStream in = input(bytes.toByteArray());
+        final CompactEncoding.StringTableReader reader = new CompactEncoding.StringTableReader(in);
+        for (int i = 0; i < 100; i++)
+            assertEquals(path, reader.readRef(in));
+        assertNull(reader.readRef(in));
+        assertEquals("\u00e9t\u00e9 \u2603", reader.readRef(in));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void referenceToStringNotInTableIsAnError() throws IOException {
+        final CompactEncoding.StringTableWriter writer = new CompactEncoding.StringTableWriter();
+        writer.writeRef(new DataOutputStream(new ByteArrayOutputStream()), "missing");
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void invalidReferenceIsRejected() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        CompactEncoding.writeVarInt(out, 0); // Empty table
+        CompactEncoding.writeVarInt(out, 1); // Reference past its end
+
+        final DataInputStream in = input(bytes.toByteArray());
+        new CompactEncoding.StringTableReader(in).readRef(in);
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void hugeStringTableIsRejected() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CompactEncoding.writeVarInt(new DataOutputStream(bytes), Integer.MAX_VALUE);
+        new CompactEncoding.StringTableReader(input(bytes.toByteArray()));
+    }
+
+    private static DataInputStream input(byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+}
@@ -0,0 +1,311 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+import com.atlassian.bitbucket.commit.Commit;
+import com.atlassian.bitbucket.commit.CommitService;
+import com.atlassian.bitbucket.content.Change;
+import com.atlassian.bitbucket.content.ChangeCallback;
+import com.atlassian.bitbucket.content.ChangeSummary;
+import com.atlassian.bitbucket.content.ChangeType;
+import com.atlassian.bitbucket.content.DiffContentCallback;
+import com.atlassian.bitbucket.content.DiffSegmentType;
+import com.atlassian.bitbucket.content.DiffSummary;
+import com.atlassian.bitbucket.content.Path;
+import com.atlassian.bitbucket.pull.PullRequest;
+import com.atlassian.bitbucket.pull.PullRequestDiffRequest;
+import com.atlassian.bitbucket.pull.PullRequestService;
+import com.atlassian.bitbucket.pull.PullRequestState;
+import com.atlassian.bitbucket.util.Page;
+import com.cyanoth.secretwarden.TestFixtures;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test stand-in for a pull request in Bitbucket: the files it changes, held in memory, and the PullRequestService &
+ * CommitService streaming them as a scan reads them. Only added lines are streamed, each file as one hunk.
+ *
+ * Every diff streamed is recorded (see getStreamedDiffs), along with how many were streamed at once. Diffs can be held
+ * (see holdDiffs) to keep a scan running whilst the test lines up other scans of the pull request, or fail (see failDiffs).
+ */
+public class LocalPullRequest {
+    private final PullRequest pullRequest;
+    private final PullRequestService pullRequestService = mock(PullRequestService.class);
+    private final CommitService commitService = mock(CommitService.class);
+    private final Map<String, ChangedFile> files = Collections.synchronizedMap(new LinkedHashMap<>());
+    private final List<String> streamedDiffs = new CopyOnWriteArrayList<>();
+    private final Set<String> streamingThreads = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger streaming = new AtomicInteger();
+    private final AtomicInteger maxStreaming = new AtomicInteger();
+    private volatile List<String> pushedPaths = Collections.emptyList();
+    private volatile boolean historyRewritten = false;
+    private volatile CountDownLatch heldDiffs = null;
+    private volatile boolean failingDiffs = false;
+
+    public LocalPullRequest(int repositoryId, long pullRequestId) {
+        pullRequest = TestFixtures.pullRequest(repositoryId, pullRequestId);
+        when(pullRequest.getState()).thenReturn(PullRequestState.OPEN);
+        when(pullRequestService.getById(anyInt(), anyLong())).thenReturn(pullRequest);
+
+        doAnswer(invocation -> {
+            streamChanges(invocation.getArgument(1), new ArrayList<>(files.values()));
+            return null;
+        }).when(pullRequestService).streamChanges(any(), any());
+        doAnswer(invocation -> {
+            streamDiff(invocation.<PullRequestDiffRequest>getArgument(0).getPath(), invocation.getArgument(1));
+            return null;
+        }).when(pullRequestService).streamDiff(any(), any());
+
+        when(commitService.getCommitsBetween(any(), any())).thenAnswer(invocation -> commitsNotInSource());
+        doAnswer(invocation -> {
+            final List<ChangedFile> pushed = new ArrayList<>();
+            for (String path : pushedPaths)
+                pushed.add(new ChangedFile(ChangeType.MODIFY, path, null, null, Collections.emptyList()));
+            streamChanges(invocation.getArgument(1), pushed);
+            return null;
+        }).when(commitService).streamChanges(any(), any());
+    }
+
+    public PullRequest getPullRequest() {
+        return pullRequest;
+    }
+
+    public PullRequestService getPullRequestService() {
+        return pullRequestService;
+    }
+
+    public CommitService getCommitService() {
+        return commitService;
+    }
+
+    /**
+     * The pull request adds a file (its content id is derived from the lines, so the same content has the same id)
+     */
+    public LocalPullRequest addFile(String path, String... lines) {
+        files.put(path, new ChangedFile(ChangeType.ADD, path, null, contentId(lines), Arrays.asList(lines)));
+        return this;
+    }
+
+    /**
+     * The pull request modifies a file, adding the lines to it
+     */
+    public LocalPullRequest modifyFile(String path, String... addedLines) {
+        files.put(path, new ChangedFile(ChangeType.MODIFY, path, "base-" + path, contentId(addedLines), Arrays.asList(addedLines)));
+        return this;
+    }
+
+    /**
+     * The pull request no longer changes the file
+     */
+    public LocalPullRequest revertFile(String path) {
+        files.remove(path);
+        return this;
+    }
+
+    /**
+     * Commits touching the paths are pushed to the source branch (which only moves forward), the files must be changed
+     * to match. Replaces the paths of any earlier push: they are the paths changed since the previous scan.
+     */
+    public LocalPullRequest push(String fromCommit, String... paths) {
+        pushedPaths = Arrays.asList(paths);
+        historyRewritten = false;
+        when(pullRequest.getFromRef().getLatestCommit()).thenReturn(fromCommit);
+        return this;
+    }
+
+    /**
+     * The source branch is rewritten (force push or rebase), so the previously scanned commit is no longer an ancestor
+     */
+    public LocalPullRequest forcePush(String fromCommit) {
+        historyRewritten = true;
+        when(pullRequest.getFromRef().getLatestCommit()).thenReturn(fromCommit);
+        return this;
+    }
+
+    /**
+     * The target branch moves
+     */
+    public LocalPullRequest updateTarget(String toCommit) {
+        when(pullRequest.getToRef().getLatestCommit()).thenReturn(toCommit);
+        return this;
+    }
+
+    /**
+     * The pull request is declined (or merged)
+     */
+    public LocalPullRequest close(PullRequestState state) {
+        when(pullRequest.getState()).thenReturn(state);
+        return this;
+    }
+
+    /**
+     * Comments, approvals etc. only change when the pull request was last updated
+     */
+    public LocalPullRequest touch(long updatedDate) {
+        when(pullRequest.getUpdatedDate()).thenReturn(new Date(updatedDate));
+        return this;
+    }
+
+    /**
+     * @return Path of every diff streamed (one per file, null for the diff of the whole pull request), in the order started
+     */
+    public List<String> getStreamedDiffs() {
+        return new ArrayList<>(streamedDiffs);
+    }
+
+    public void clearStreamedDiffs() {
+        streamedDiffs.clear();
+        streamingThreads.clear();
+        maxStreaming.set(0);
+    }
+
+    /**
+     * @return Threads which have streamed a diff
+     */
+    public int countStreamingThreads() {
+        return streamingThreads.size();
+    }
+
+    /**
+     * @return The most diffs streamed at once
+     */
+    public int getMaxStreaming() {
+        return maxStreaming.get();
+    }
+
+    /**
+     * Diffs streamed from now on wait (before any line) until releaseDiffs is called
+     */
+    public void holdDiffs() {
+        heldDiffs = new CountDownLatch(1);
+    }
+
+    public void releaseDiffs() {
+        final CountDownLatch held = heldDiffs;
+        heldDiffs = null;
+        if (held != null)
+            held.countDown();
+    }
+
+    /**
+     * Diffs streamed from now on (and held diffs, once released) fail before any line
+     */
+    public void failDiffs() {
+        failingDiffs = true;
+    }
+
+    /**
+     * Wait until at least the number of diffs are being streamed at once (held, see holdDiffs)
+     * @return False if they weren't within 10 seconds
+     */
+    public boolean awaitStreaming(int diffs) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10_000;
+        while (streaming.get() < diffs) {
+            if (System.currentTimeMillis() > deadline)
+                return false;
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    private Page<Commit> commitsNotInSource() {
+        @SuppressWarnings("unchecked")
+        final Page<Commit> page = mock(Page.class);
+        when(page.getSize()).thenReturn(historyRewritten ? 1 : 0);
+        return page;
+    }
+
+    private static void streamChanges(ChangeCallback callback, List<ChangedFile> changes) throws IOException {
+        for (ChangedFile file : changes) {
+            if (!callback.onChange(file.change))
+                break;
+        }
+
+        final ChangeSummary summary = mock(ChangeSummary.class);
+        callback.onEnd(summary);
+    }
+
+    private void streamDiff(String path, DiffContentCallback callback) throws IOException, InterruptedException {
+        streamedDiffs.add(String.valueOf(path));
+        streamingThreads.add(Thread.currentThread().getName());
+        maxStreaming.accumulateAndGet(streaming.incrementAndGet(), Math::max);
+        try {
+            final CountDownLatch held = heldDiffs;
+            if (held != null && !held.await(10, TimeUnit.SECONDS))
+                throw new IllegalStateException("Diffs were held for over 10 seconds");
+            if (failingDiffs)
+                throw new IOException("Diff of " + path + " failed");
+
+            final List<ChangedFile> diffed = new ArrayList<>();
+            synchronized (files) {
+                if (path == null)
+                    diffed.addAll(files.values());
+                else if (files.containsKey(path))
+                    diffed.add(files.get(path));
+            }
+
+            for (ChangedFile file : diffed) {
+                callback.onDiffStart(null, path(file.path));
+                callback.onHunkStart(0, 0, 1, file.lines.size(), null);
+                callback.onSegmentStart(DiffSegmentType.ADDED);
+                for (String line : file.lines)
+                    callback.onSegmentLine(line, null, false);
+                callback.onSegmentEnd(false);
+                callback.onHunkEnd(false);
+                callback.onDiffEnd(false);
+            }
+            callback.onEnd(mock(DiffSummary.class));
+        }
+        finally {
+            streaming.decrementAndGet();
+        }
+    }
+
+    private static String contentId(String... lines) {
+        return "blob-" + Integer.toHexString(Arrays.asList(lines).hashCode());
+    }
+
+    private static Path path(String path) {
+        final Path mocked = mock(Path.class);
+        when(mocked.toString()).thenReturn(path);
+        return mocked;
+    }
+
+    /**
+     * INTERNAL: A file changed by the pull request & the change Bitbucket lists for it.
+     */
+    private static class ChangedFile {
+        private final String path;
+        private final List<String> lines;
+        private final Change change;
+
+        ChangedFile(ChangeType type, String path, String fromContentId, String contentId, List<String> lines) {
+            this.path = path;
+            this.lines = lines;
+            this.change = mock(Change.class);
+            when(change.getType()).thenReturn(type);
+            final Path changePath = path(path);
+            when(change.getPath()).thenReturn(changePath);
+            when(change.getFromContentId()).thenReturn(fromContentId);
+            when(change.getContentId()).thenReturn(contentId);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.bitbucket.concurrent.LockService;
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.scm.git.command.GitCommandBuilderFactory;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.bitbucket.util.Operation;
+import com.cyanoth.secretwarden.LocalCache;
+import com.cyanoth.secretwarden.ScanMetrics;
+import com.cyanoth.secretwarden.TestFixtures;
+import com.cyanoth.secretwarden.config.FileFilterSettings;
+import com.cyanoth.secretwarden.config.MatchRuleSetCache;
+import com.cyanoth.secretwarden.config.MatchRuleSettings;
+import com.cyanoth.secretwarden.config.ScanSettings;
+import com.cyanoth.secretwarden.structures.FoundSecret;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test stand-in for one node of SecretWarden scanning the pull request of a LocalPullRequest: every component a scan
+ * uses, over plugin settings held in memory & LocalCache stand-ins of the caches. Git always fails, so files are diffed
+ * by Bitbucket (see LocalPullRequest) whatever the diff stream mode.
+ *
+ * The settings can be changed by the test at any time, the components read them on every scan as they do in Bitbucket.
+ */
+public class LocalScanNode implements AutoCloseable {
+    private final LocalPullRequest localPullRequest;
+    private final ScanSettings scanSettings;
+    private final ScanMetrics scanMetrics = new ScanMetrics();
+    private final MatchRuleSettings matchRuleSettings;
+    private final MatchRuleSetCache matchRuleSetCache;
+    private final PullRequestSecretScanResultCache resultCache;
+    private final BlobFindingsCache blobFindingsCache;
+    private final FileFilterSettings fileFilterSettings;
+    private final LockService lockService = mock(LockService.class);
+    private final SecurityService securityService = mock(SecurityService.class, RETURNS_DEEP_STUBS);
+    private final ConcurrentMap<String, Lock> locks = new ConcurrentHashMap<>();
+    private final ScanExecutor scanExecutor;
+    private final ScanScheduler scanScheduler;
+    private final ScanLeaseManager scanLeaseManager = new ScanLeaseManager("node-a", 30_000, 60_000);
+    private final GitDiffStreamer gitDiffStreamer;
+
+    /**
+     * @param localPullRequest The pull request (& Bitbucket services) to scan
+     * @param settings Plugin settings, by their full key, every setting not in it has its default
+     */
+    public LocalScanNode(LocalPullRequest localPullRequest, Map<String, Object> settings) {
+        this.localPullRequest = localPullRequest;
+        scanSettings = TestFixtures.scanSettings(settings);
+        matchRuleSettings = new MatchRuleSettings(TestFixtures.pluginSettingsFactory(settings), scanSettings);
+        matchRuleSetCache = new MatchRuleSetCache(new LocalCache<String, Long>().newNode(), matchRuleSettings);
+        resultCache = new PullRequestSecretScanResultCache(new LocalCache<String, PullRequestSecretScanResult>().newNode(),
+                scanSettings, scanMetrics, new PersistentScanResultStore(mock(ActiveObjects.class)));
+        blobFindingsCache = new BlobFindingsCache(new LocalCache<String, ArrayList<FoundSecret>>().newNode(), scanSettings, scanMetrics);
+        fileFilterSettings = new FileFilterSettings(TestFixtures.pluginSettingsFactory(settings));
+        when(lockService.getLock(anyString())).thenAnswer(invocation ->
+                locks.computeIfAbsent(invocation.getArgument(0), name -> new ReentrantLock()));
+
+        when(securityService.withPermission(any(Permission.class), anyString()).call(any())).thenAnswer(invocation ->
+                invocation.<Operation<?, ?>>getArgument(0).perform());
+        scanExecutor = new ScanExecutor(securityService, scanSettings);
+        scanScheduler = new ScanScheduler(securityService, scanSettings, scanMetrics);
+
+        final GitCommandBuilderFactory gitCommandBuilderFactory = mock(GitCommandBuilderFactory.class);
+        when(gitCommandBuilderFactory.builder(any())).thenThrow(new IllegalStateException("No git in tests"));
+        gitDiffStreamer = new GitDiffStreamer(gitCommandBuilderFactory);
+    }
+
+    public LocalScanNode(LocalPullRequest localPullRequest) {
+        this(localPullRequest, new ConcurrentHashMap<>());
+    }
+
+    /**
+     * @return A new scanner of the pull request, as PullRequestScanService creates for each scan
+     */
+    public PullRequestSecretScanner newScanner() {
+        return new PullRequestSecretScanner(localPullRequest.getPullRequestService(), localPullRequest.getPullRequest(),
+                lockService, resultCache, matchRuleSetCache, scanSettings, scanExecutor, localPullRequest.getCommitService(),
+                blobFindingsCache, scanLeaseManager, gitDiffStreamer, fileFilterSettings);
+    }
+
+    /**
+     * @return A new scan service of this node (single-flight state is per service)
+     */
+    public PullRequestScanService newScanService() {
+        return new PullRequestScanService(localPullRequest.getPullRequestService(), lockService,
+                localPullRequest.getCommitService(), resultCache, matchRuleSetCache, scanSettings, scanExecutor,
+                blobFindingsCache, scanMetrics, scanScheduler, scanLeaseManager, gitDiffStreamer, fileFilterSettings);
+    }
+
+    public ScanSettings getScanSettings() {
+        return scanSettings;
+    }
+
+    public ScanMetrics getScanMetrics() {
+        return scanMetrics;
+    }
+
+    public MatchRuleSettings getMatchRuleSettings() {
+        return matchRuleSettings;
+    }
+
+    public MatchRuleSetCache getMatchRuleSetCache() {
+        return matchRuleSetCache;
+    }
+
+    public PullRequestSecretScanResultCache getResultCache() {
+        return resultCache;
+    }
+
+    public BlobFindingsCache getBlobFindingsCache() {
+        return blobFindingsCache;
+    }
+
+    public FileFilterSettings getFileFilterSettings() {
+        return fileFilterSettings;
+    }
+
+    /**
+     * @return SecurityService which runs every operation as is, whatever the permission
+     */
+    public SecurityService getSecurityService() {
+        return securityService;
+    }
+
+    public ScanScheduler getScanScheduler() {
+        return scanScheduler;
+    }
+
+    @Override
+    public void close() {
+        localPullRequest.releaseDiffs();
+        scanScheduler.destroy();
+        scanExecutor.destroy();
+        scanLeaseManager.destroy();
+    }
+}
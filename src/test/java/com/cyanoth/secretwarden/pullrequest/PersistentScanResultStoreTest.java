@@ -0,0 +1,126 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.activeobjects.test.TestActiveObjects;
+import com.cyanoth.secretwarden.SecretScanStatus;
+import com.cyanoth.secretwarden.collections.FoundSecretCollection;
+import com.cyanoth.secretwarden.structures.FoundSecret;
+import net.java.ao.EntityManager;
+import net.java.ao.test.jdbc.Data;
+import net.java.ao.test.jdbc.DatabaseUpdater;
+import net.java.ao.test.jdbc.H2Memory;
+import net.java.ao.test.jdbc.Jdbc;
+import net.java.ao.test.junit.ActiveObjectsJUnitRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs against a real (embedded, in memory H2) database, with the ScanResult table created from ScanResultEntity.
+ */
+@RunWith(ActiveObjectsJUnitRunner.class)
+@Data(PersistentScanResultStoreTest.ScanResultTableUpdater.class)
+@Jdbc(H2Memory.class)
+public class PersistentScanResultStoreTest {
+    private EntityManager entityManager; // Injected by ActiveObjectsJUnitRunner
+    private ActiveObjects activeObjects;
+    private PersistentScanResultStore store;
+
+    @Before
+    public void setUp() {
+        activeObjects = new TestActiveObjects(entityManager);
+        store = new PersistentScanResultStore(activeObjects);
+    }
+
+    @Test
+    public void storedResultIsLoaded() throws Exception {
+        store.store(1, 2, result("from-1", 1, "Generic Password"));
+
+        final PullRequestSecretScanResult loaded = store.load(1, 2);
+
+        assertNotNull(loaded);
+        assertEquals(SecretScanStatus.COMPLETED, loaded.getSecretScanStatus());
+        assertEquals(new PullRequestScanRevision(1, 2, "from-1", "to-1", 1), loaded.getRevision());
+        assertEquals(new Date(1_700_000_000_000L), loaded.getPullRequestLastUpdated());
+        assertEquals(1, loaded.countFoundSecrets());
+        assertEquals("Generic Password", loaded.getFoundSecrets().getSecrets().iterator().next().getmatchedRuleName());
+    }
+
+    @Test
+    public void storeReplacesThePreviousResult() throws Exception {
+        store.store(1, 2, result("from-1", 1, "Generic Password"));
+        store.store(1, 2, result("from-2", 2, "Private Key"));
+
+        final PullRequestSecretScanResult loaded = store.load(1, 2);
+
+        assertEquals("from-2", loaded.getFromCommit());
+        assertEquals(2, loaded.getRuleSetVersion());
+        assertEquals("Private Key", loaded.getFoundSecrets().getSecrets().iterator().next().getmatchedRuleName());
+        assertEquals(1, activeObjects.find(ScanResultEntity.class).length);
+    }
+
+    @Test
+    public void resultsArePerPullRequest() throws Exception {
+        store.store(1, 2, result("from-1", 1, "Generic Password"));
+        store.store(1, 3, result("from-3", 1, "Private Key"));
+        store.store(4, 2, result("from-4", 1, "Slack Token"));
+
+        assertEquals("from-1", store.load(1, 2).getFromCommit());
+        assertEquals("from-3", store.load(1, 3).getFromCommit());
+        assertEquals("from-4", store.load(4, 2).getFromCommit());
+        assertNull(store.load(4, 3));
+    }
+
+    @Test
+    public void deleteRemovesOnlyThatPullRequest() throws Exception {
+        store.store(1, 2, result("from-1", 1, "Generic Password"));
+        store.store(1, 3, result("from-3", 1, "Private Key"));
+
+        assertTrue(store.delete(1, 2));
+        assertFalse("Nothing is left to delete", store.delete(1, 2));
+
+        assertNull(store.load(1, 2));
+        assertNotNull(store.load(1, 3));
+    }
+
+    @Test
+    public void unreadableRowIsIgnored() {
+        final Map<String, Object> row = new HashMap<>();
+        row.put(ScanResultEntity.REPOSITORY_ID, 1);
+        row.put(ScanResultEntity.PULL_REQUEST_ID, 2L);
+        row.put(ScanResultEntity.RULE_SET_VERSION, 1L);
+        row.put(ScanResultEntity.STORED_AT, System.currentTimeMillis());
+        row.put(ScanResultEntity.ENCODED_RESULT, "not a stored result");
+        activeObjects.create(ScanResultEntity.class, row);
+
+        assertNull(store.load(1, 2));
+    }
+
+    private static PullRequestSecretScanResult result(String fromCommit, long ruleSetVersion, String ruleName) {
+        final PullRequestSecretScanResult result = new PullRequestSecretScanResult(new Date(1_700_000_000_000L),
+                new PullRequestScanRevision(1, 2, fromCommit, "to-1", ruleSetVersion));
+        final FoundSecretCollection foundSecrets = new FoundSecretCollection();
+        foundSecrets.add(new FoundSecret(ruleName, "config/application.properties", null, 3));
+        result.setFoundSecrets(foundSecrets);
+        result.setSecretScanStatus(SecretScanStatus.COMPLETED);
+        return result;
+    }
+
+    public static class ScanResultTableUpdater implements DatabaseUpdater {
+        @Override
+        @SuppressWarnings("unchecked")
+        public void update(EntityManager entityManager) throws Exception {
+            entityManager.migrate(ScanResultEntity.class);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.bitbucket.pull.PullRequest;
+import com.atlassian.sal.api.transaction.TransactionCallback;
+import com.cyanoth.secretwarden.LocalCache;
+import com.cyanoth.secretwarden.ScanMetrics;
+import com.cyanoth.secretwarden.SecretScanStatus;
+import com.cyanoth.secretwarden.TestFixtures;
+import com.cyanoth.secretwarden.config.ScanSettings;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Two nodes, each with its own PullRequestSecretScanResultCache, over one shared (replicated) cache.
+ */
+public class PullRequestSecretScanResultCacheTest {
+    private final LocalCache<String, PullRequestSecretScanResult> sharedCache = new LocalCache<>();
+    private final PullRequestSecretScanResultCache nodeA = newNode();
+    private final PullRequestSecretScanResultCache nodeB = newNode();
+    private final PullRequest pullRequest = TestFixtures.pullRequest(1, 2);
+
+    @Test
+    public void writeByAnotherNodeBetweenRegisteringAndReadingWakesWaiter() throws Exception {
+        nodeA.put(pullRequest, result(SecretScanStatus.IN_PROGRESS));
+
+        final CompletableFuture<PullRequestSecretScanResult> completion = nodeB.awaitCompletion(pullRequest);
+        nodeA.put(pullRequest, result(SecretScanStatus.COMPLETED)); // Before node B reads the cache
+        final PullRequestSecretScanResult read = nodeB.get(pullRequest);
+
+        assertEquals(SecretScanStatus.COMPLETED, read.getSecretScanStatus());
+        assertTrue("The listener must complete the waiter of node B", completion.isDone());
+        assertEquals(SecretScanStatus.COMPLETED, completion.get().getSecretScanStatus());
+    }
+
+    @Test
+    public void writeByAnotherNodeAfterReadingInProgressWakesWaiter() throws Exception {
+        nodeA.put(pullRequest, result(SecretScanStatus.IN_PROGRESS));
+
+        final CompletableFuture<PullRequestSecretScanResult> completion = nodeB.awaitCompletion(pullRequest);
+        assertEquals(SecretScanStatus.IN_PROGRESS, nodeB.get(pullRequest).getSecretScanStatus());
+        assertFalse(completion.isDone());
+
+        final Thread scanner = new Thread(() -> nodeA.put(pullRequest, result(SecretScanStatus.COMPLETED)));
+        scanner.start();
+
+        assertEquals(SecretScanStatus.COMPLETED, completion.get(10, TimeUnit.SECONDS).getSecretScanStatus());
+        scanner.join();
+    }
+
+    @Test
+    public void inProgressWriteByAnotherNodeKeepsWaiting() {
+        final CompletableFuture<PullRequestSecretScanResult> completion = nodeB.awaitCompletion(pullRequest);
+
+        nodeA.put(pullRequest, result(SecretScanStatus.IN_PROGRESS)); // e.g. A lease renewal
+
+        assertFalse(completion.isDone());
+    }
+
+    @Test
+    public void clearWakesWaitersOfEveryNode() throws Exception {
+        nodeA.put(pullRequest, result(SecretScanStatus.IN_PROGRESS));
+        final CompletableFuture<PullRequestSecretScanResult> waiterA = nodeA.awaitCompletion(pullRequest);
+        final CompletableFuture<PullRequestSecretScanResult> waiterB = nodeB.awaitCompletion(pullRequest);
+
+        nodeA.clear();
+
+        assertTrue(waiterA.isDone());
+        assertTrue("The removal must reach node B through the listener", waiterB.isDone());
+        assertNull(waiterB.get());
+        assertNull(nodeB.get(pullRequest));
+        assertEquals(0, sharedCache.size());
+    }
+
+    @Test
+    public void removeDeletesStoredResultAndWakesWaiters() throws Exception {
+        final ActiveObjects activeObjects = mock(ActiveObjects.class);
+        final List<Object[]> deletes = new ArrayList<>();
+        when(activeObjects.executeInTransaction(any())).thenAnswer(invocation ->
+                invocation.<TransactionCallback<?>>getArgument(0).doInTransaction());
+        when(activeObjects.deleteWithSQL(eq(ScanResultEntity.class), anyString(), any(), any())).thenAnswer(invocation -> {
+            deletes.add(new Object[]{invocation.getArgument(2), invocation.getArgument(3)});
+            return 1;
+        });
+        final PullRequestSecretScanResultCache node = new PullRequestSecretScanResultCache(sharedCache.newNode(),
+                TestFixtures.scanSettings(), new ScanMetrics(), new PersistentScanResultStore(activeObjects));
+
+        node.put(pullRequest, result(SecretScanStatus.IN_PROGRESS));
+        final CompletableFuture<PullRequestSecretScanResult> waiterA = node.awaitCompletion(pullRequest);
+        final CompletableFuture<PullRequestSecretScanResult> waiterB = nodeB.awaitCompletion(pullRequest);
+
+        node.remove(1, 2);
+
+        assertNull(nodeB.get(pullRequest));
+        assertTrue(waiterA.isDone());
+        assertTrue(waiterB.isDone());
+        assertEquals(1, deletes.size());
+        assertEquals(1, deletes.get(0)[0]);
+        assertEquals(2L, deletes.get(0)[1]);
+    }
+
+    private PullRequestSecretScanResultCache newNode() {
+        final ScanSettings scanSettings = TestFixtures.scanSettings();
+        return new PullRequestSecretScanResultCache(sharedCache.newNode(), scanSettings, new ScanMetrics(),
+                new PersistentScanResultStore(mock(ActiveObjects.class)));
+    }
+
+    private PullRequestSecretScanResult result(SecretScanStatus status) {
+        final PullRequestSecretScanResult result = new PullRequestSecretScanResult(pullRequest.getUpdatedDate(),
+                PullRequestScanRevision.of(pullRequest, 1));
+        result.setSecretScanStatus(status);
+        return result;
+    }
+}
@@ -0,0 +1,201 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+import com.cyanoth.secretwarden.SecretScanStatus;
+import com.cyanoth.secretwarden.collections.FoundSecretCollection;
+import com.cyanoth.secretwarden.structures.FoundSecret;
+import com.cyanoth.secretwarden.structures.MatchTimeout;
+import com.cyanoth.secretwarden.structures.SkippedFile;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PullRequestSecretScanResultTest {
+    private static final PullRequestScanRevision REVISION = new PullRequestScanRevision(42, 1234,
+            "a94a8fe5ccb19ba61c4c0873d391e987982fbbd3", "de9f2c7fd25e1b3afad3e85a0bd17d9b100db4b3", 7);
+    private static final String PATH = "config/application.properties";
+
+    @Test
+    public void resultIsOnlyValidForItsOwnRevision() {
+        final PullRequestSecretScanResult result = new PullRequestSecretScanResult(new Date(1_700_000_000_000L), REVISION);
+
+        assertTrue(result.isValidFor(new PullRequestScanRevision(42, 1234,
+                "a94a8fe5ccb19ba61c4c0873d391e987982fbbd3", "de9f2c7fd25e1b3afad3e85a0bd17d9b100db4b3", 7)));
+        assertFalse("Another source commit", result.isValidFor(new PullRequestScanRevision(42, 1234,
+                "0000000000000000000000000000000000000000", "de9f2c7fd25e1b3afad3e85a0bd17d9b100db4b3", 7)));
+        assertFalse("Another target commit", result.isValidFor(new PullRequestScanRevision(42, 1234,
+                "a94a8fe5ccb19ba61c4c0873d391e987982fbbd3", "0000000000000000000000000000000000000000", 7)));
+        assertFalse("Another ruleset", result.isValidFor(new PullRequestScanRevision(42, 1234,
+                "a94a8fe5ccb19ba61c4c0873d391e987982fbbd3", "de9f2c7fd25e1b3afad3e85a0bd17d9b100db4b3", 8)));
+        assertFalse("Another pull request", result.isValidFor(new PullRequestScanRevision(42, 1235,
+                "a94a8fe5ccb19ba61c4c0873d391e987982fbbd3", "de9f2c7fd25e1b3afad3e85a0bd17d9b100db4b3", 7)));
+        assertFalse("Without a revision", new PullRequestSecretScanResult(new Date(), null).isValidFor(REVISION));
+    }
+
+    @Test
+    public void roundTripKeepsEveryField() throws Exception {
+        final PullRequestSecretScanResult result = new PullRequestSecretScanResult(new Date(1_700_000_000_000L), REVISION);
+        result.setSecretScanStatus(SecretScanStatus.COMPLETED);
+        result.setPartialVerdict(true);
+        result.setLease("node-a", 1_700_000_030_000L);
+        final FoundSecretCollection foundSecrets = new FoundSecretCollection();
+        foundSecrets.add(new FoundSecret("Generic Password", PATH, "@@ -1,2 +1,3 @@", 3));
+        foundSecrets.add(new FoundSecret("Generic Password", PATH, "@@ -1,2 +1,3 @@", 1_000_000));
+        foundSecrets.add(new FoundSecret("Private Key", "keys/id_rsa", null, -1));
+        result.setFoundSecrets(foundSecrets);
+        result.setMatchTimeouts(Collections.singletonList(new MatchTimeout("Generic Password", PATH, 12)));
+        result.setSkippedFiles(Arrays.asList(new SkippedFile("images/logo.png", SkippedFile.Reason.BINARY, 2048),
+                new SkippedFile("vendor/lib.js", SkippedFile.Reason.EXCLUDED_PATH, -1)));
+
+        final PullRequestSecretScanResult read = roundTrip(result);
+
+        assertEquals(SecretScanStatus.COMPLETED, read.getSecretScanStatus());
+        assertEquals(new Date(1_700_000_000_000L), read.getPullRequestLastUpdated());
+        assertEquals(REVISION, read.getRevision());
+        assertTrue(read.isPartialVerdict());
+        assertEquals("node-a", read.getOwnerNodeId());
+        assertEquals(1_700_000_030_000L, read.getLeaseExpiry());
+        assertEquals(describeSecrets(result), describeSecrets(read));
+        assertEquals(describe(result.getMatchTimeouts()), describe(read.getMatchTimeouts()));
+        assertEquals(describe(result.getSkippedFiles()), describe(read.getSkippedFiles()));
+        assertEquals(2, read.getSkippedFileCount());
+        assertEquals(2048, read.getSkippedBytes());
+    }
+
+    @Test
+    public void roundTripKeepsAbsentParts() throws Exception {
+        final PullRequestSecretScanResult result = new PullRequestSecretScanResult();
+        result.setMatchTimeouts(null);
+        result.setSkippedFiles(null);
+
+        final PullRequestSecretScanResult read = roundTrip(result);
+
+        assertEquals(SecretScanStatus.UNKNOWN, read.getSecretScanStatus());
+        assertNull(read.getPullRequestLastUpdated());
+        assertNull(read.getRevision());
+        assertFalse(read.isPartialVerdict());
+        assertNull(read.getOwnerNodeId());
+        assertEquals(0, read.getLeaseExpiry());
+        assertNull(read.getFoundSecrets());
+        assertNull(read.getMatchTimeouts());
+        assertNull(read.getSkippedFiles());
+    }
+
+    @Test
+    public void manyFindingsAreCompact() throws Exception {
+        final PullRequestSecretScanResult result = new PullRequestSecretScanResult(new Date(0), REVISION);
+        result.setSecretScanStatus(SecretScanStatus.COMPLETED);
+        final FoundSecretCollection foundSecrets = new FoundSecretCollection();
+        for (int line = 1; line <= 5_000; line++)
+            foundSecrets.add(new FoundSecret("Generic Password", PATH, "@@ section " + (line / 25), line));
+        result.setFoundSecrets(foundSecrets);
+
+        final byte[] written = write(result);
+
+        assertTrue("Expected under 8 bytes per found secret, was " + written.length, written.length < 5_000 * 8);
+        assertEquals(5_000, read(written).countFoundSecrets());
+    }
+
+    @Test(expected = InvalidClassException.class)
+    public void otherFormatVersionIsRejected() throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeByte(99); // Version
+            out.writeByte(0);
+        }
+        read(bytes.toByteArray());
+    }
+
+    @Test
+    public void truncatedStreamIsRejected() throws Exception {
+        final PullRequestSecretScanResult result = new PullRequestSecretScanResult(new Date(0), REVISION);
+        result.setSecretScanStatus(SecretScanStatus.COMPLETED);
+        final byte[] written = write(result);
+
+        for (int length = headerLength(); length < written.length - 1; length++) {
+            try {
+                read(Arrays.copyOf(written, length));
+                fail("A stream truncated to " + length + " of " + written.length + " bytes was read");
+            }
+            catch (EOFException | StreamCorruptedException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void unknownStatusIsRejected() throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            final CompactEncoding.StringTableWriter strings = new CompactEncoding.StringTableWriter();
+            strings.add("SCANNED_BY_A_NEWER_VERSION");
+            out.writeByte(1); // Version
+            out.writeByte(0);
+            strings.write(out);
+            strings.writeRef(out, "SCANNED_BY_A_NEWER_VERSION");
+        }
+        read(bytes.toByteArray());
+    }
+
+    private static PullRequestSecretScanResult roundTrip(PullRequestSecretScanResult result) throws IOException {
+        return read(write(result));
+    }
+
+    private static byte[] write(PullRequestSecretScanResult result) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            result.writeExternal(out);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static PullRequestSecretScanResult read(byte[] written) throws IOException {
+        final PullRequestSecretScanResult result = new PullRequestSecretScanResult();
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(written))) {
+            result.readExternal(in);
+        }
+        return result;
+    }
+
+    /**
+     * @return Length of the ObjectOutputStream header (magic & version), written before the result itself
+     */
+    private static int headerLength() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new ObjectOutputStream(bytes).close();
+        return bytes.size();
+    }
+
+    private static List<String> describeSecrets(PullRequestSecretScanResult result) {
+        final List<String> described = new ArrayList<>();
+        for (FoundSecret secret : result.getFoundSecrets().getSecrets())
+            described.add(secret.getmatchedRuleName() + "|" + secret.getDestinationFilePath() + "|" +
+                    secret.getSourceContext() + "|" + secret.getOccurrenceLine());
+        Collections.sort(described);
+        return described;
+    }
+
+    private static List<String> describe(List<?> items) {
+        final List<String> described = new ArrayList<>();
+        for (Object item : items)
+            described.add(item.toString());
+        return described;
+    }
+}
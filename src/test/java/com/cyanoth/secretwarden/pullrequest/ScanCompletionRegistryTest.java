@@ -0,0 +1,97 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+import com.cyanoth.secretwarden.SecretScanStatus;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ScanCompletionRegistryTest {
+    private static final String KEY = "1__2";
+
+    private final ScanCompletionRegistry registry = new ScanCompletionRegistry();
+
+    @Test
+    public void resultWrittenAfterRegisteringCompletesWaiter() throws Exception {
+        final CompletableFuture<PullRequestSecretScanResult> completion = registry.awaitCompletion(KEY);
+        final PullRequestSecretScanResult result = result(SecretScanStatus.COMPLETED);
+
+        // The waiter reads the cache only after registering, a result written in between must not be missed
+        registry.onResultWritten(KEY, result);
+
+        assertTrue(completion.isDone());
+        assertSame(result, completion.get());
+        assertEquals(0, registry.countWaiting());
+    }
+
+    @Test
+    public void resultWrittenBeforeRegisteringDoesNotCompleteLaterWaiter() {
+        registry.onResultWritten(KEY, result(SecretScanStatus.COMPLETED));
+
+        // Nobody was waiting, so the waiter must find the result in the cache instead
+        final CompletableFuture<PullRequestSecretScanResult> completion = registry.awaitCompletion(KEY);
+        assertFalse(completion.isDone());
+        assertEquals(1, registry.countWaiting());
+    }
+
+    @Test
+    public void inProgressResultKeepsWaiting() {
+        final CompletableFuture<PullRequestSecretScanResult> completion = registry.awaitCompletion(KEY);
+
+        registry.onResultWritten(KEY, result(SecretScanStatus.IN_PROGRESS));
+
+        assertFalse(completion.isDone());
+        assertEquals(1, registry.countWaiting());
+    }
+
+    @Test
+    public void waitersOfOnePullRequestShareOneFuture() {
+        final CompletableFuture<PullRequestSecretScanResult> first = registry.awaitCompletion(KEY);
+        final CompletableFuture<PullRequestSecretScanResult> second = registry.awaitCompletion(KEY);
+        final CompletableFuture<PullRequestSecretScanResult> other = registry.awaitCompletion("1__3");
+
+        assertSame(first, second);
+        registry.onResultWritten(KEY, result(SecretScanStatus.FAILED));
+
+        assertTrue(first.isDone());
+        assertFalse(other.isDone());
+    }
+
+    @Test
+    public void removedEntryCompletesWithNoResult() throws Exception {
+        final CompletableFuture<PullRequestSecretScanResult> completion = registry.awaitCompletion(KEY);
+
+        registry.onResultWritten(KEY, null);
+
+        assertTrue(completion.isDone());
+        assertNull(completion.get());
+    }
+
+    @Test
+    public void completeAllWakesEveryWaiter() throws Exception {
+        final CompletableFuture<PullRequestSecretScanResult> first = registry.awaitCompletion(KEY);
+        final CompletableFuture<PullRequestSecretScanResult> second = registry.awaitCompletion("1__3");
+
+        registry.completeAll();
+
+        assertTrue(first.isDone());
+        assertTrue(second.isDone());
+        assertNull(first.get());
+        assertNull(second.get());
+        assertEquals(0, registry.countWaiting());
+        assertFalse("A new waiter must not see the cleared futures", registry.awaitCompletion(KEY).isDone());
+    }
+
+    private static PullRequestSecretScanResult result(SecretScanStatus status) {
+        final PullRequestSecretScanResult result = new PullRequestSecretScanResult(new Date(0),
+                new PullRequestScanRevision(1, 2, "from-1", "to-1", 1));
+        result.setSecretScanStatus(status);
+        return result;
+    }
+}
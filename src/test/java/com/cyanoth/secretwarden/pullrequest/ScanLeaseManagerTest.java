@@ -0,0 +1,163 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.bitbucket.pull.PullRequest;
+import com.cyanoth.secretwarden.LocalCache;
+import com.cyanoth.secretwarden.ScanMetrics;
+import com.cyanoth.secretwarden.SecretScanStatus;
+import com.cyanoth.secretwarden.TestFixtures;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Two nodes, each with its own ScanLeaseManager & PullRequestSecretScanResultCache, over one shared (replicated) cache.
+ */
+public class ScanLeaseManagerTest {
+    private static final long LEASE_DURATION = 300; // Milliseconds
+    private static final long WAIT_LIMIT = 10_000;
+
+    private final LocalCache<String, PullRequestSecretScanResult> sharedCache = new LocalCache<>();
+    private final PullRequestSecretScanResultCache cacheA = newCache();
+    private final PullRequestSecretScanResultCache cacheB = newCache();
+    private final PullRequest pullRequest = TestFixtures.pullRequest(1, 2);
+    private final PullRequestScanRevision revision = PullRequestScanRevision.of(pullRequest, 1);
+
+    private ScanLeaseManager nodeA = new ScanLeaseManager("node-a", LEASE_DURATION, 60_000);
+    private final ScanLeaseManager nodeB = new ScanLeaseManager("node-b", LEASE_DURATION, 60_000);
+
+    @After
+    public void tearDown() {
+        nodeA.destroy();
+        nodeB.destroy();
+    }
+
+    @Test
+    public void renewedLeaseIsNotTakenOver() throws Exception {
+        try (ScanLeaseManager.ScanLease ignored = nodeA.start(pullRequest, revision, cacheA)) {
+            final long until = System.currentTimeMillis() + LEASE_DURATION * 4;
+            while (System.currentTimeMillis() < until) {
+                final PullRequestSecretScanResult inProgress = cacheB.get(pullRequest);
+                assertEquals("node-a", inProgress.getOwnerNodeId());
+                assertFalse("The lease was renewed, so must not have expired", inProgress.isLeaseExpired(System.currentTimeMillis()));
+                Thread.sleep(LEASE_DURATION / 10);
+            }
+        }
+    }
+
+    @Test
+    public void waiterTakesOverOnceLeaseExpires() throws Exception {
+        nodeA.start(pullRequest, revision, cacheA);
+        nodeA.destroy(); // Node A goes down mid-scan, its IN_PROGRESS entry is left behind
+
+        final long waitStarted = System.currentTimeMillis();
+        assertNull("Node B should have taken over", waitForCompletionOrExpiredLease(cacheB));
+        assertTrue("Node B should not wait much longer than the lease", System.currentTimeMillis() - waitStarted < LEASE_DURATION * 5);
+
+        final PullRequestSecretScanResult completed = new PullRequestSecretScanResult(pullRequest.getUpdatedDate(), revision);
+        completed.setSecretScanStatus(SecretScanStatus.COMPLETED);
+        try (ScanLeaseManager.ScanLease ignored = nodeB.start(pullRequest, revision, cacheB)) {
+            assertEquals("node-b", cacheA.get(pullRequest).getOwnerNodeId());
+            assertFalse(cacheA.get(pullRequest).isLeaseExpired(System.currentTimeMillis()));
+        }
+        cacheB.put(pullRequest, completed);
+
+        assertEquals(SecretScanStatus.COMPLETED, waitForCompletionOrExpiredLease(cacheA).getSecretScanStatus());
+    }
+
+    @Test
+    public void hungScanStopsRenewingItsLease() throws Exception {
+        nodeA.destroy();
+        nodeA = new ScanLeaseManager("node-a", LEASE_DURATION, LEASE_DURATION * 2);
+        nodeA.start(pullRequest, revision, cacheA); // Never closed, as if the scan hung
+
+        assertNull("Node B should have taken over the hung scan", waitForCompletionOrExpiredLease(cacheB));
+        assertEquals("node-a", cacheB.get(pullRequest).getOwnerNodeId());
+    }
+
+    @Test
+    public void closedLeaseIsNotRenewedOverTheResult() throws Exception {
+        final PullRequestSecretScanResult completed = new PullRequestSecretScanResult(pullRequest.getUpdatedDate(), revision);
+        completed.setSecretScanStatus(SecretScanStatus.COMPLETED);
+
+        final CompletableFuture<PullRequestSecretScanResult> completion = cacheB.awaitCompletion(pullRequest);
+        try (ScanLeaseManager.ScanLease ignored = nodeA.start(pullRequest, revision, cacheA)) {
+            Thread.sleep(LEASE_DURATION);
+        }
+        cacheA.put(pullRequest, completed);
+
+        assertEquals(SecretScanStatus.COMPLETED, completion.get(WAIT_LIMIT, TimeUnit.MILLISECONDS).getSecretScanStatus());
+        Thread.sleep(LEASE_DURATION);
+        assertEquals(SecretScanStatus.COMPLETED, cacheB.get(pullRequest).getSecretScanStatus());
+    }
+
+    @Test
+    public void leaseIsNotRenewedOverAnotherNodesWrite() throws Exception {
+        try (ScanLeaseManager.ScanLease ignored = nodeA.start(pullRequest, revision, cacheA)) {
+            // Node B took the scan over (e.g. node A was paused for longer than the lease) & finished it
+            final PullRequestSecretScanResult completed = new PullRequestSecretScanResult(pullRequest.getUpdatedDate(), revision);
+            completed.setSecretScanStatus(SecretScanStatus.COMPLETED);
+            cacheB.put(pullRequest, completed);
+
+            Thread.sleep(LEASE_DURATION);
+            assertEquals(SecretScanStatus.COMPLETED, cacheB.get(pullRequest).getSecretScanStatus());
+        }
+    }
+
+    @Test
+    public void leaseOfAnOlderRevisionIsNotRenewedOverANewerScan() throws Exception {
+        final PullRequestScanRevision newerRevision = PullRequestScanRevision.of(pullRequest, 2);
+        try (ScanLeaseManager.ScanLease older = nodeA.start(pullRequest, revision, cacheA);
+             ScanLeaseManager.ScanLease newer = nodeA.start(pullRequest, newerRevision, cacheA)) {
+            final long until = System.currentTimeMillis() + LEASE_DURATION * 2;
+            while (System.currentTimeMillis() < until) {
+                final PullRequestSecretScanResult inProgress = cacheB.get(pullRequest);
+                assertTrue("The older lease must not overwrite the newer scan", inProgress.isValidFor(newerRevision));
+                assertFalse(inProgress.isLeaseExpired(System.currentTimeMillis()));
+                Thread.sleep(LEASE_DURATION / 10);
+            }
+        }
+    }
+
+    /**
+     * Wait for the scan in progress like PullRequestSecretScanner.checkOngoingScan does.
+     * @return The finished result, or null once the lease of the scan in progress has expired (the caller takes over)
+     */
+    private PullRequestSecretScanResult waitForCompletionOrExpiredLease(PullRequestSecretScanResultCache cache) throws Exception {
+        final long deadline = System.currentTimeMillis() + WAIT_LIMIT;
+        while (System.currentTimeMillis() < deadline) {
+            final CompletableFuture<PullRequestSecretScanResult> completion = cache.awaitCompletion(pullRequest);
+            final PullRequestSecretScanResult scan = cache.get(pullRequest);
+            assertNotNull(scan);
+            if (scan.getSecretScanStatus() != SecretScanStatus.IN_PROGRESS)
+                return scan;
+
+            final long now = System.currentTimeMillis();
+            if (scan.isLeaseExpired(now))
+                return null;
+
+            try {
+                completion.get(Math.max(1, scan.getLeaseExpiry() - now + 1), TimeUnit.MILLISECONDS);
+            }
+            catch (TimeoutException e) {
+                // Read the cache again, the lease may have expired
+            }
+        }
+        throw new AssertionError("The scan neither finished nor did its lease expire");
+    }
+
+    private PullRequestSecretScanResultCache newCache() {
+        return new PullRequestSecretScanResultCache(sharedCache.newNode(), TestFixtures.scanSettings(), new ScanMetrics(),
+                new PersistentScanResultStore(mock(ActiveObjects.class)));
+    }
+}
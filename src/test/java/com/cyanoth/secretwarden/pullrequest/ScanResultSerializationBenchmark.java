@@ -0,0 +1,140 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+import com.cyanoth.secretwarden.SecretScanStatus;
+import com.cyanoth.secretwarden.collections.FoundSecretCollection;
+import com.cyanoth.secretwarden.structures.FoundSecret;
+import com.cyanoth.secretwarden.structures.MatchTimeout;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Size & encode/decode time of a scan result as replicated by the result cache (an ObjectOutputStream round trip), in
+ * its compact form (PullRequestSecretScanResult.writeExternal) against the default serialized form of the same fields,
+ * which is how results were replicated before they were Externalizable.
+ *
+ * Findings are spread over N files, by 4 rules, with a context per 25 lines. Not run by the build, run the main method:
+ *    java -cp target/classes:target/test-classes:... com.cyanoth.secretwarden.pullrequest.ScanResultSerializationBenchmark
+ */
+public class ScanResultSerializationBenchmark {
+    private static final String[] RULES = {"AWS Access Key", "Generic Password", "Private Key", "Slack Token"};
+    private static final int[][] SHAPES = {{1, 1}, {10, 10}, {20, 250}, {50, 200}}; // Files, findings per file
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("findings (files)   default form: bytes, encode / decode ms   compact form: bytes, encode / decode ms");
+        for (int[] shape : SHAPES) {
+            final PullRequestSecretScanResult result = build(shape[0], shape[1]);
+            final int iterations = Math.min(20_000, Math.max(200, 2_000_000 / (shape[0] * shape[1])));
+
+            final Measurement defaultForm = measure(new DefaultForm(result), iterations);
+            final Measurement compactForm = measure(result, iterations);
+            final PullRequestSecretScanResult read = (PullRequestSecretScanResult) deserialize(serialize(result));
+            if (read.countFoundSecrets() != result.countFoundSecrets() || !read.getRevision().equals(result.getRevision()))
+                throw new IllegalStateException("The compact form did not round trip");
+
+            System.out.printf("%-6d (%d)   %s   %s%n", shape[0] * shape[1], shape[0], defaultForm, compactForm);
+        }
+    }
+
+    private static PullRequestSecretScanResult build(int files, int findingsPerFile) {
+        final PullRequestSecretScanResult result = new PullRequestSecretScanResult(new Date(1_700_000_000_000L),
+                new PullRequestScanRevision(42, 1234, "a94a8fe5ccb19ba61c4c0873d391e987982fbbd3",
+                        "de9f2c7fd25e1b3afad3e85a0bd17d9b100db4b3", 7));
+        final Random random = new Random(1);
+        final FoundSecretCollection foundSecrets = new FoundSecretCollection();
+        for (int file = 0; file < files; file++) {
+            final String path = "services/payment-gateway/src/main/resources/config/environments/file" + file + ".properties";
+            for (int i = 0; i < findingsPerFile; i++)
+                foundSecrets.add(new FoundSecret(RULES[random.nextInt(RULES.length)], path,
+                        "@@ section " + (i / 25) + " of " + path.substring(0, 20), 1 + i * 3 + random.nextInt(3)));
+        }
+        result.setFoundSecrets(foundSecrets);
+
+        final List<MatchTimeout> matchTimeouts = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+            matchTimeouts.add(new MatchTimeout(RULES[1], "services/payment-gateway/src/main/resources/config/environments/file0.properties", 10 + i));
+        result.setMatchTimeouts(matchTimeouts);
+        result.setSecretScanStatus(SecretScanStatus.COMPLETED);
+        return result;
+    }
+
+    private static Measurement measure(Serializable value, int iterations) throws Exception {
+        final byte[] serialized = serialize(value);
+        for (int i = 0; i < iterations; i++) // Warm up
+            deserialize(serialize(value));
+
+        final long started = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            serialize(value);
+        final long encoded = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            deserialize(serialized);
+        final long decoded = System.nanoTime();
+
+        return new Measurement(serialized.length, (encoded - started) / 1e6 / iterations, (decoded - encoded) / 1e6 / iterations);
+    }
+
+    private static byte[] serialize(Serializable value) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] serialized) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+            return in.readObject();
+        }
+    }
+
+    private static class Measurement {
+        private final int bytes;
+        private final double encodeMillis;
+        private final double decodeMillis;
+
+        Measurement(int bytes, double encodeMillis, double decodeMillis) {
+            this.bytes = bytes;
+            this.encodeMillis = encodeMillis;
+            this.decodeMillis = decodeMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%8d B, %.3f / %.3f ms", bytes, encodeMillis, decodeMillis);
+        }
+    }
+
+    /**
+     * The fields of a scan result, written by default serialization
+     */
+    private static class DefaultForm implements Serializable {
+        private final SecretScanStatus secretScanStatus;
+        private final Date pullRequestLastUpdated;
+        private final PullRequestScanRevision revision;
+        private final FoundSecretCollection foundSecrets;
+        private final List<MatchTimeout> matchTimeouts;
+        private final boolean partialVerdict;
+        private final String ownerNodeId;
+        private final long leaseExpiry;
+
+        DefaultForm(PullRequestSecretScanResult result) {
+            secretScanStatus = result.getSecretScanStatus();
+            pullRequestLastUpdated = result.getPullRequestLastUpdated();
+            revision = result.getRevision();
+            foundSecrets = result.getFoundSecrets();
+            matchTimeouts = result.getMatchTimeouts();
+            partialVerdict = result.isPartialVerdict();
+            ownerNodeId = result.getOwnerNodeId();
+            leaseExpiry = result.getLeaseExpiry();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.bitbucket.util.Operation;
+import com.cyanoth.secretwarden.ScanMetrics;
+import com.cyanoth.secretwarden.TestFixtures;
+import com.cyanoth.secretwarden.config.ScanSettings;
+import com.cyanoth.secretwarden.pullrequest.ScanScheduler.ScanPriority;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ScanSchedulerTest {
+    private static final int REPOSITORY_ID = 1;
+
+    private final CountDownLatch workerBusy = new CountDownLatch(1);
+    private final CountDownLatch releaseWorker = new CountDownLatch(1);
+    private ScanScheduler scanScheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        final ScanSettings scanSettings = TestFixtures.scanSettings();
+        scanSettings.updateSetting(ScanSettings.SCHEDULER_THREADS, "1");
+        scanSettings.updateSetting(ScanSettings.SCAN_QUEUE_LIMIT, "2");
+        scanSettings.updateSetting(ScanSettings.SCAN_QUEUE_REPOSITORY_LIMIT, "1");
+
+        final SecurityService securityService = mock(SecurityService.class, RETURNS_DEEP_STUBS);
+        when(securityService.withPermission(any(Permission.class), anyString()).call(any())).thenAnswer(invocation ->
+                invocation.<Operation<?, ?>>getArgument(0).perform());
+
+        scanScheduler = new ScanScheduler(securityService, scanSettings, new ScanMetrics());
+
+        // Occupy the only worker, so everything submitted next stays queued
+        scanScheduler.submit(ScanPriority.BACKGROUND_PRESCAN, REPOSITORY_ID, () -> {
+            workerBusy.countDown();
+            return releaseWorker.await(10, TimeUnit.SECONDS);
+        });
+        assertTrue(workerBusy.await(10, TimeUnit.SECONDS));
+    }
+
+    @After
+    public void tearDown() {
+        releaseWorker.countDown();
+        scanScheduler.destroy();
+    }
+
+    @Test
+    public void scansOverTheRepositoryLimitAreRejected() throws Exception {
+        final CompletableFuture<String> queued = scanScheduler.submit(ScanPriority.BACKGROUND_PRESCAN, REPOSITORY_ID, () -> "queued");
+        final CompletableFuture<String> rejected = scanScheduler.submit(ScanPriority.BACKGROUND_PRESCAN, REPOSITORY_ID, () -> "rejected");
+
+        assertRejected(rejected);
+        releaseWorker.countDown();
+        assertEquals("queued", queued.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void mergeCheckScansAreNeverRejected() throws Exception {
+        final List<CompletableFuture<Integer>> mergeChecks = new ArrayList<>();
+        for (int i = 0; i < 5; i++) { // Over both the queue & the repository limit
+            final int scan = i;
+            mergeChecks.add(scanScheduler.submit(ScanPriority.MERGE_CHECK, REPOSITORY_ID, () -> scan));
+        }
+
+        for (CompletableFuture<Integer> mergeCheck : mergeChecks)
+            assertFalse("A merge check scan was rejected", mergeCheck.isCompletedExceptionally());
+
+        releaseWorker.countDown();
+        for (int i = 0; i < mergeChecks.size(); i++)
+            assertEquals(Integer.valueOf(i), mergeChecks.get(i).get(10, TimeUnit.SECONDS));
+    }
+
+    private static void assertRejected(CompletableFuture<?> scan) throws InterruptedException {
+        try {
+            scan.get(10, TimeUnit.SECONDS);
+            fail("The scan should have been rejected");
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        catch (TimeoutException e) {
+            fail("The scan should have been rejected straight away");
+        }
+    }
+}
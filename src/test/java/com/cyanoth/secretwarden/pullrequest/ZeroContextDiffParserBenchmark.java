@@ -0,0 +1,172 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+import com.atlassian.bitbucket.content.DiffSegmentType;
+import com.cyanoth.secretwarden.TestFixtures;
+import com.cyanoth.secretwarden.matching.LongLineWindows;
+import com.cyanoth.secretwarden.matching.MatchBudget;
+import com.cyanoth.secretwarden.matching.MatchRuleEngine;
+import com.cyanoth.secretwarden.structures.FoundSecret;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Time & allocation of scanning a pull request diff with git (git diff -U0, parsed by ZeroContextDiffParser) against
+ * the diff Bitbucket streams (10 lines of context, every line passed to DiffMatcher as a string, as Bitbucket's diff
+ * callbacks do). Both must find the same secrets. The watchdog resets made whilst parsing are counted too.
+ *
+ * The diff is of FILES files of LINES lines, where every EDIT_EVERY line is changed. Streaming is measured with an
+ * empty ruleset, so the cost of the rules doesn't hide it. Not run by the build, run the main method:
+ *    java -cp target/classes:target/test-classes:... com.cyanoth.secretwarden.pullrequest.ZeroContextDiffParserBenchmark
+ */
+public class ZeroContextDiffParserBenchmark {
+    private static final int FILES = 200;
+    private static final int LINES = 2_000;
+    private static final int EDIT_EVERY = 20;
+    private static final int SECRET_EVERY = 500;
+    private static final int CONTEXT_LINES = 10;
+    private static final int ITERATIONS = 10;
+
+    public static void main(String[] args) throws Exception {
+        final byte[] zeroContextDiff = diff(0);
+        final byte[] bitbucketDiff = diff(CONTEXT_LINES);
+
+        final MatchRuleEngine defaultRules = new MatchRuleEngine(TestFixtures.defaultRules());
+        final AtomicInteger watchdogResets = new AtomicInteger();
+        final Set<String> expected = describe(streamLikeBitbucket(defaultRules, bitbucketDiff));
+        final Set<String> found = describe(parseWithGit(defaultRules, zeroContextDiff, watchdogResets::incrementAndGet));
+        if (!expected.equals(found))
+            throw new IllegalStateException("Found " + found + " but expected " + expected);
+        System.out.printf("%d secrets found by both, %d watchdog resets whilst parsing %d lines%n",
+                found.size(), watchdogResets.get(), countLines(zeroContextDiff));
+
+        final MatchRuleEngine noRules = new MatchRuleEngine(new ArrayList<>());
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long thread = Thread.currentThread().getId();
+        for (int round = 0; round < 3; round++) {
+            final long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+            final long started = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++)
+                streamLikeBitbucket(noRules, bitbucketDiff);
+            final long streamed = System.nanoTime();
+            final long allocatedStreaming = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < ITERATIONS; i++)
+                parseWithGit(noRules, zeroContextDiff, () -> { });
+            final long parsed = System.nanoTime();
+            final long allocatedParsing = threads.getThreadAllocatedBytes(thread);
+
+            System.out.printf("Bitbucket -U%d: %d bytes, %.1f ms, %.1f MB allocated   git -U0: %d bytes, %.1f ms, %.1f MB allocated%n",
+                    CONTEXT_LINES, bitbucketDiff.length, (streamed - started) / 1e6 / ITERATIONS,
+                    (allocatedStreaming - allocatedBefore) / 1e6 / ITERATIONS,
+                    zeroContextDiff.length, (parsed - streamed) / 1e6 / ITERATIONS,
+                    (allocatedParsing - allocatedStreaming) / 1e6 / ITERATIONS);
+        }
+    }
+
+    private static DiffMatcher parseWithGit(MatchRuleEngine engine, byte[] diff, Runnable resetWatchdog) throws IOException {
+        final DiffMatcher matcher = new DiffMatcher(engine, MatchBudget.unlimited(), LongLineWindows.disabled(), true);
+        new ZeroContextDiffParser(matcher, resetWatchdog).parse(new ByteArrayInputStream(diff));
+        return matcher;
+    }
+
+    /**
+     * Every line of a hunk is decoded & passed to the matcher, whichever segment (added, removed, context) it is in
+     */
+    static DiffMatcher streamLikeBitbucket(MatchRuleEngine engine, byte[] diff) throws IOException {
+        final DiffMatcher matcher = new DiffMatcher(engine, MatchBudget.unlimited(), LongLineWindows.disabled(), true);
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(diff), StandardCharsets.UTF_8));
+        boolean inFile = false;
+        boolean inHunk = false;
+        DiffSegmentType segment = null;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith("diff --git ")) {
+                if (inFile)
+                    matcher.onDiffEnd(false);
+                inHunk = false;
+            } else if (line.startsWith("@@ ")) {
+                final String[] destination = line.split(" ")[2].substring(1).split(",");
+                matcher.onHunkStart(0, 0, Integer.parseInt(destination[0]), Integer.parseInt(destination[1]), null);
+                inHunk = true;
+                segment = null;
+            } else if (inHunk) {
+                final DiffSegmentType type = line.charAt(0) == '+' ? DiffSegmentType.ADDED :
+                        line.charAt(0) == '-' ? DiffSegmentType.REMOVED : DiffSegmentType.CONTEXT;
+                if (type != segment)
+                    matcher.onSegmentStart(type);
+                segment = type;
+                matcher.onSegmentLine(line.substring(1), null, false);
+            } else if (line.startsWith("+++ ")) {
+                matcher.onFileStart(line.substring("+++ b/".length()));
+                inFile = true;
+            }
+        }
+        if (inFile)
+            matcher.onDiffEnd(false);
+        return matcher;
+    }
+
+    /**
+     * @param contextLines Unchanged lines either side of each change. Once the hunks of a file would overlap, it is one
+     *                     hunk of the whole file.
+     */
+    private static byte[] diff(int contextLines) {
+        final StringBuilder diff = new StringBuilder();
+        for (int file = 0; file < FILES; file++) {
+            final String path = "src/main/java/com/example/service/Generated" + file + ".java";
+            diff.append("diff --git a/").append(path).append(" b/").append(path).append('\n')
+                    .append("index 3b18e51..a9c2f3d 100644\n")
+                    .append("--- a/").append(path).append('\n')
+                    .append("+++ b/").append(path).append('\n');
+
+            if (contextLines * 2 >= EDIT_EVERY - 1) {
+                diff.append("@@ -1,").append(LINES).append(" +1,").append(LINES).append(" @@\n");
+                for (int line = 1; line <= LINES; line++) {
+                    if (line % EDIT_EVERY == 0)
+                        diff.append('-').append(original(file, line)).append("\n+").append(edited(file, line)).append('\n');
+                    else
+                        diff.append(' ').append(original(file, line)).append('\n');
+                }
+            } else {
+                for (int line = EDIT_EVERY; line <= LINES; line += EDIT_EVERY)
+                    diff.append("@@ -").append(line).append(",1 +").append(line).append(",1 @@\n")
+                            .append('-').append(original(file, line)).append("\n+").append(edited(file, line)).append('\n');
+            }
+        }
+        return diff.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String original(int file, int line) {
+        return "        final int value" + line + " = compute(\"field-" + file + "-" + line + "\", " + line + ");";
+    }
+
+    private static String edited(int file, int line) {
+        if (((file * LINES) + line) % SECRET_EVERY == 0)
+            return "        final String password = \"hunter2-" + file + "-" + line + "\";";
+        return "        final long value" + line + " = computeLong(\"field-" + file + "-" + line + "\", " + line + ");";
+    }
+
+    private static int countLines(byte[] diff) {
+        int lines = 0;
+        for (byte b : diff) {
+            if (b == '\n')
+                lines++;
+        }
+        return lines;
+    }
+
+    static Set<String> describe(DiffMatcher matcher) {
+        final Set<String> described = new TreeSet<>();
+        for (FoundSecret secret : matcher.getFoundSecrets().getSecrets())
+            described.add(secret.getDestinationFilePath() + ":" + secret.getOccurrenceLine() + ":" + secret.getmatchedRuleName());
+        return described;
+    }
+}
@@ -0,0 +1,101 @@
+package com.cyanoth.secretwarden.pullrequest;
+
+import com.cyanoth.secretwarden.matching.LongLineWindows;
+import com.cyanoth.secretwarden.matching.MatchBudget;
+import com.cyanoth.secretwarden.matching.MatchRuleEngine;
+import com.cyanoth.secretwarden.structures.FoundSecret;
+import com.cyanoth.secretwarden.structures.MatchRule;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ZeroContextDiffParserTest {
+    private static final MatchRuleEngine ENGINE = new MatchRuleEngine(Collections.singletonList(
+            new MatchRule(1, "Generic Password", "password\\s*=\\s*\\S+", true)));
+
+    @Test
+    public void addedLinesAreMatchedAtTheirDestinationLine() throws Exception {
+        final String diff =
+                "diff --git a/config/application.properties b/config/application.properties\n" +
+                "index 3b18e51..a9c2f3d 100644\n" +
+                "--- a/config/application.properties\n" +
+                "+++ b/config/application.properties\n" +
+                "@@ -3 +3 @@ server\n" +
+                "-password = changeme\n" +
+                "+password = hunter2\n" +
+                "@@ -10,0 +11,2 @@\n" +
+                "+user = admin\n" +
+                "+password = letmein\n" +
+                "diff --git a/README.md b/README.md\n" +
+                "deleted file mode 100644\n" +
+                "--- a/README.md\n" +
+                "+++ /dev/null\n" +
+                "@@ -1 +0,0 @@\n" +
+                "-password = removed\n";
+
+        assertEquals(new TreeSet<>(Arrays.asList(
+                "config/application.properties:12", "config/application.properties:3")), parse(diff, () -> { }));
+    }
+
+    @Test
+    public void watchdogIsResetWhilstAHugeFileIsRead() throws Exception {
+        final StringBuilder diff = new StringBuilder()
+                .append("diff --git a/data.csv b/data.csv\n")
+                .append("--- a/data.csv\n")
+                .append("+++ b/data.csv\n")
+                .append("@@ -0,0 +1,5000 @@\n");
+        for (int line = 1; line <= 5_000; line++)
+            diff.append("+row ").append(line).append('\n');
+        final AtomicInteger resets = new AtomicInteger();
+
+        parse(diff.toString(), resets::incrementAndGet);
+
+        // Once as the file starts, then every WATCHDOG_RESET_LINES lines of output
+        assertTrue("Reset " + resets.get() + " times", resets.get() >= 5_004 / ZeroContextDiffParser.WATCHDOG_RESET_LINES);
+    }
+
+    @Test
+    public void lineLongerThanTheLimitIsCutAndTruncatesOnlyItsFile() throws Exception {
+        final StringBuilder diff = new StringBuilder()
+                .append("diff --git a/dump.sql b/dump.sql\n")
+                .append("--- a/dump.sql\n")
+                .append("+++ b/dump.sql\n")
+                .append("@@ -0,0 +1 @@\n")
+                .append("+INSERT INTO t VALUES ('");
+        while (diff.length() < ByteLineReader.MAX_LINE_LENGTH + 1_000)
+            diff.append("0123456789abcdef");
+        diff.append("');\n")
+                .append("diff --git a/config/application.properties b/config/application.properties\n")
+                .append("--- a/config/application.properties\n")
+                .append("+++ b/config/application.properties\n")
+                .append("@@ -1,0 +2 @@\n")
+                .append("+password = hunter2\n");
+        final DiffMatcher matcher = new DiffMatcher(ENGINE, MatchBudget.unlimited(), LongLineWindows.disabled(), true);
+
+        new ZeroContextDiffParser(matcher, () -> { }).parse(new ByteArrayInputStream(diff.toString().getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals(1, matcher.getFoundSecrets().count());
+        assertEquals(2, matcher.getFoundSecrets().getSecrets().iterator().next().getOccurrenceLine());
+        assertTrue("A cut line leaves its file partially scanned", matcher.isTruncated());
+        assertEquals(Collections.singleton("config/application.properties"), matcher.getCompletedFiles());
+    }
+
+    private static Set<String> parse(String diff, Runnable resetWatchdog) throws Exception {
+        final DiffMatcher matcher = new DiffMatcher(ENGINE, MatchBudget.unlimited(), LongLineWindows.disabled(), true);
+        new ZeroContextDiffParser(matcher, resetWatchdog).parse(new ByteArrayInputStream(diff.getBytes(StandardCharsets.UTF_8)));
+
+        final Set<String> found = new TreeSet<>();
+        for (FoundSecret secret : matcher.getFoundSecrets().getSecrets())
+            found.add(secret.getDestinationFilePath() + ":" + secret.getOccurrenceLine());
+        return found;
+    }
+}